@@ -204,6 +204,96 @@ class MachineResourcesTest extends AnyFunSuite with Matchers {
     prog.timeout(20.seconds).unsafeRunSync()
   }
 
+  test("tryReserveIdle yields to anything queued, even when the request itself would fit") {
+    // A background prefetch must never take a core a parked compile is waiting for.
+    val m = machine(cpu = 2, memMb = 4096)
+    val prog = for {
+      held <- m.reserveUntilReleased(TestFork, "big", cpu = 1, memoryMb = 4096)
+      // Queued: needs memory that is all held. One core is still free.
+      parked <- m.reserve(TestFork, "parked", cpu = 1, memoryMb = 2048).use(_ => IO.unit).start
+      _ <- m.snapshot.map(_.waiting.size).iterateUntil(_ == 1).timeout(5.seconds)
+      refused <- m.tryReserveIdle(RemoteCachePrefetch, "prefetch", cpu = 1, memoryMb = 0)
+      _ = refused shouldBe empty
+      // The same request through tryReserve would have been granted — that is the difference.
+      plain <- m.tryReserve(Compile, "compile", cpu = 1, memoryMb = 0)
+      _ = plain shouldBe defined
+      _ <- plain.get
+      _ <- held
+      _ <- parked.join.timeout(5.seconds)
+      granted <- m.tryReserveIdle(RemoteCachePrefetch, "prefetch", cpu = 1, memoryMb = 0)
+      _ = granted shouldBe defined
+      _ <- granted.get
+      end <- m.snapshot
+    } yield end.usedCpu shouldBe 0
+    prog.timeout(20.seconds).unsafeRunSync()
+  }
+
+  test("a freed core goes to the highest class waiting, not the oldest waiter") {
+    // The starvation this exists for: an agent's test run queued first, an IDE compile queued behind it, and oldest-first handed the core to the tests.
+    import MachineResources.{Claim, Priority}
+    val m = machine(cpu = 1, memMb = 4096)
+    val prog = for {
+      release <- m.reserveUntilReleased(Compile, "holder", cpu = 1, memoryMb = 0)
+      order <- IO.ref(List.empty[String])
+      tests <- m.reserve(TestFork, Claim(Priority.TestFork, "agent"), "suite", cpu = 1, memoryMb = 0).use(_ => order.update(_ :+ "suite")).start
+      _ <- m.snapshot.map(_.waiting.size).iterateUntil(_ == 1).timeout(5.seconds)
+      compile <- m.reserve(Compile, Claim(Priority.Interactive, "ide"), "compile", cpu = 1, memoryMb = 0).use(_ => order.update(_ :+ "compile")).start
+      _ <- m.snapshot.map(_.waiting.size).iterateUntil(_ == 2).timeout(5.seconds)
+      _ <- release
+      _ <- compile.join.timeout(5.seconds)
+      _ <- tests.join.timeout(5.seconds)
+      seen <- order.get
+    } yield seen shouldBe List("compile", "suite")
+    prog.timeout(20.seconds).unsafeRunSync()
+  }
+
+  test("a lower class yields to a refused demand, but not along a dimension the demand does not need") {
+    import MachineResources.{Priority, Want}
+    val m = machine(cpu = 2, memMb = 4096)
+    val prog = m.demand("ide", IO.unit).use { ide =>
+      for {
+        _ <- ide.wanting(Map(Priority.Interactive -> Want(cpu = 1, memoryMb = 0)))
+        // One core wanted by the IDE: of two free, the test run may take one and not both.
+        a <- m.tryReserve(TestFork, "suite-1", cpu = 1, memoryMb = 0)
+        b <- m.tryReserve(TestFork, "suite-2", cpu = 1, memoryMb = 0)
+        _ = a shouldBe defined
+        _ = b shouldBe empty
+        // Memory the IDE does not want is still handed out.
+        c <- m.tryReserve(TestFork, "pooled-jvm", cpu = 0, memoryMb = 2048)
+        _ = c shouldBe defined
+        // The demand's own reservations do not count against it.
+        mine <- ide.tryReserve(Compile, Priority.Interactive, "compile", cpu = 1, memoryMb = 0)
+        _ = mine shouldBe defined
+        _ <- List(a, c, mine).flatten.sequence_
+      } yield ()
+    }
+    prog.timeout(20.seconds).unsafeRunSync()
+  }
+
+  test("within a class, the tenant holding fewer cores goes first") {
+    import MachineResources.{Claim, Priority}
+    val m = machine(cpu = 3, memMb = 4096)
+    val prog = for {
+      // Tenant "a" already holds two cores; one is held by a third party.
+      heldA <- List("a1", "a2").traverse(n => m.reserveUntilReleased(Compile, Claim(Priority.Batch, "a"), n, cpu = 1, memoryMb = 0))
+      other <- m.reserveUntilReleased(Compile, "other", cpu = 1, memoryMb = 0)
+      order <- IO.ref(List.empty[String])
+      moreA <- m.reserve(Compile, Claim(Priority.Batch, "a"), "a3", cpu = 1, memoryMb = 0).use(_ => order.update(_ :+ "a")).start
+      _ <- m.snapshot.map(_.waiting.size).iterateUntil(_ == 1).timeout(5.seconds)
+      firstB <- m.reserve(Compile, Claim(Priority.Batch, "b"), "b1", cpu = 1, memoryMb = 0).use(_ => order.update(_ :+ "b")).start
+      _ <- m.snapshot.map(_.waiting.size).iterateUntil(_ == 2).timeout(5.seconds)
+      shares <- m.snapshot.map(_.shares.find(_.priority == Priority.Batch).get)
+      _ = shares.cpuByTenant shouldBe Map("a" -> 2, "" -> 1)
+      _ = shares.waiting shouldBe 2
+      _ <- other
+      _ <- firstB.join.timeout(5.seconds)
+      _ <- heldA.sequence_
+      _ <- moreA.join.timeout(5.seconds)
+      seen <- order.get
+    } yield seen shouldBe List("b", "a")
+    prog.timeout(20.seconds).unsafeRunSync()
+  }
+
   test("reserveUntilReleased holds resources past the scope that took them, until the release action runs") {
     // Process-lifetime semantics: a pooled test JVM keeps its memory reservation across suites, so
     // the reservation cannot be a Resource scoped to whichever suite spawned the process.
@@ -0,0 +1,95 @@
+package bleep.analysis
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import sbt.internal.inc.Analysis
+import xsbti.compile.AnalysisContents
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.{CompletableFuture, CountDownLatch, TimeUnit}
+
+/** The writer's contract, with a stand-in serializer: what it writes is beside the point, when and in which order is not. */
+class AnalysisWriterTest extends AnyFunSuite with Matchers {
+
+  private def contents(): AnalysisContents = AnalysisContents.create(Analysis.empty, null)
+
+  private def withFile(f: Path => Unit): Unit = {
+    val dir = Files.createTempDirectory("analysis-writer")
+    try f(dir.resolve("analysis.zip"))
+    finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+
+  test("a pending analysis is served until it lands, and the flush waits for it") {
+    withFile { file =>
+      val gate = new CountDownLatch(1)
+      val pending = contents()
+      AnalysisWriter.submit(file, pending) { tmp => gate.await(); Files.writeString(tmp, "first"): Unit }(() => ())
+
+      AnalysisWriter.pending(file).map(_ eq pending) shouldBe Some(true)
+      AnalysisWriter.exists(file) shouldBe true
+      Files.exists(file) shouldBe false
+
+      gate.countDown()
+      AnalysisWriter.flush(List(file)) shouldBe Nil
+      Files.readString(file) shouldBe "first"
+      AnalysisWriter.pending(file) shouldBe None
+      Files.exists(file.resolveSibling("analysis.zip.tmp")) shouldBe false
+    }
+  }
+
+  test("only the newest of several writes queued behind a running one reaches the disk") {
+    withFile { file =>
+      val started = new CountDownLatch(1)
+      val gate = new CountDownLatch(1)
+      val written = new java.util.concurrent.ConcurrentLinkedQueue[String]()
+      def write(label: String, block: Boolean): Unit =
+        AnalysisWriter.submit(file, contents()) { tmp =>
+          if (block) { started.countDown(); gate.await() }
+          written.add(label): Unit
+          Files.writeString(tmp, label): Unit
+        }(() => ())
+
+      write("running", block = true)
+      started.await()
+      write("superseded", block = false)
+      write("newest", block = false)
+      gate.countDown()
+
+      AnalysisWriter.flush(List(file)) shouldBe Nil
+      Files.readString(file) shouldBe "newest"
+      written.toArray.toList shouldBe List("running", "newest")
+    }
+  }
+
+  test("a failed write deletes the old analysis and is reported once by the flush") {
+    withFile { file =>
+      Files.writeString(file, "stale")
+      AnalysisWriter.submit(file, contents())(_ => throw new java.io.IOException("disk full"))(() => ())
+
+      val failures = AnalysisWriter.flush(List(file))
+      failures should have size 1
+      failures.head should include("disk full")
+      Files.exists(file) shouldBe false
+      AnalysisWriter.flush(List(file)) shouldBe Nil
+    }
+  }
+
+  test("a write failing with an Error is reported like any other failure and does not hold up the writes behind it") {
+    withFile { file =>
+      // More failed writes than there are permits: one that kept its permit would block the submit after the last.
+      val rounds = CompletableFuture.runAsync { () =>
+        (1 to 20).foreach { _ =>
+          AnalysisWriter.submit(file, contents())(_ => throw new OutOfMemoryError("analysis too large"))(() => ())
+          val failures = AnalysisWriter.flush(List(file))
+          failures should have size 1
+          failures.head should include("analysis too large")
+          AnalysisWriter.isPending(file) shouldBe false
+        }
+        AnalysisWriter.submit(file, contents())(tmp => Files.writeString(tmp, "after"): Unit)(() => ())
+        AnalysisWriter.flush(List(file)) shouldBe Nil
+      }
+      rounds.get(30, TimeUnit.SECONDS)
+      Files.readString(file) shouldBe "after"
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package bleep.analysis
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+
+import java.nio.file.{Files, Path}
+
+/** Which compiles get a parallel backend, and that the flag never counts as a change of setup. */
+class BackendParallelismTest extends AnyFunSuite with Matchers {
+
+  private def scala(version: String, options: List[String] = Nil) =
+    ProjectLanguage.ScalaJava(version, options, Nil, None, bleep.model.CompileOrder.Mixed)
+
+  private def withSources(n: Int)(f: ProjectConfig => Unit): Unit = {
+    val dir = Files.createTempDirectory("backend-parallelism")
+    try {
+      val src = Files.createDirectories(dir.resolve("src"))
+      (1 to n).foreach(i => Files.writeString(src.resolve(s"F$i.scala"), s"class F$i"))
+      f(ProjectConfig("big", Set(src), Nil, dir.resolve("classes"), scala("3.5.2"), None, dir))
+    } finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+
+  test("only compilers that take the flag get it") {
+    BackendParallelism.supports("2.11.12") shouldBe false
+    BackendParallelism.supports("2.12.20") shouldBe true
+    BackendParallelism.supports("2.13.16") shouldBe true
+    BackendParallelism.supports("3.3.5") shouldBe false
+    BackendParallelism.supports("3.5.0-RC1") shouldBe true
+    BackendParallelism.supports("3.7.1") shouldBe true
+  }
+
+  test("the flag is added for more than one thread, and never over the project's own") {
+    BackendParallelism.scalacOptions(scala("2.13.16", List("-deprecation")), 4) shouldBe List("-deprecation", "-Ybackend-parallelism", "4")
+    BackendParallelism.scalacOptions(scala("2.13.16", List("-deprecation")), 1) shouldBe List("-deprecation")
+    BackendParallelism.scalacOptions(scala("3.3.5"), 4) shouldBe Nil
+    BackendParallelism.scalacOptions(scala("2.13.16", List("-Ybackend-parallelism", "2")), 4) shouldBe List("-Ybackend-parallelism", "2")
+  }
+
+  test("setups that differ only in backend threads compare equal") {
+    val base = List("-deprecation", "-release", "17")
+    BackendParallelism.stripped(base ++ List("-Ybackend-parallelism", "6")) shouldBe base
+    BackendParallelism.stripped(List("-Ybackend-parallelism:6") ++ base) shouldBe base
+    BackendParallelism.stripped(base) shouldBe base
+  }
+
+  test("small projects ask for no extra threads, large ones for one per 500 sources") {
+    withSources(BackendParallelism.MinSources - 1)(config => BackendParallelism.wantedThreads(config) shouldBe 1)
+    withSources(1600)(config => BackendParallelism.wantedThreads(config) shouldBe 3)
+    withSources(1600)(config => BackendParallelism.wantedThreads(config.copy(language = scala("3.3.5"))) shouldBe 1)
+  }
+
+  test("sources under nested source directories are counted once") {
+    withSources(600) { config =>
+      val nested: Path = config.sources.head.resolve("nested")
+      Files.createDirectories(nested)
+      BackendParallelism.wantedThreads(config.copy(sources = config.sources + nested)) shouldBe 2
+    }
+  }
+}
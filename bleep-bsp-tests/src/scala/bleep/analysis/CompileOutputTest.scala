@@ -0,0 +1,79 @@
+package bleep.analysis
+
+import bleep.packaging.{createJar, JarType, ManifestCreator}
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+
+import java.io.ByteArrayInputStream
+import java.nio.file.{Files, Path}
+import java.util.jar.{JarInputStream, JarOutputStream}
+import java.util.zip.ZipEntry
+
+/** A straight-to-jar output reads the same as a classes directory to everything that looks inside it. */
+class CompileOutputTest extends AnyFunSuite with Matchers {
+
+  private val classes = List("com/example/Foo.class", "com/example/Foo$.class", "com/example/Foo$Bar.class", "Top.class")
+
+  private def withOutputs(f: (Path, Path) => Unit): Unit = {
+    val dir = Files.createTempDirectory("compile-output")
+    try {
+      val classesDir = dir.resolve("classes")
+      classes.foreach { entry =>
+        val file = classesDir.resolve(entry)
+        Files.createDirectories(file.getParent)
+        Files.write(file, entry.getBytes)
+      }
+      val classesJar = dir.resolve("classes.jar")
+      val out = new JarOutputStream(Files.newOutputStream(classesJar))
+      try
+        classes.foreach { entry =>
+          out.putNextEntry(new ZipEntry(entry))
+          out.write(entry.getBytes)
+          out.closeEntry()
+        }
+      finally out.close()
+      f(classesDir, classesJar)
+    } finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+
+  private def entriesOf(jar: Array[Byte]): Map[String, String] = {
+    val in = new JarInputStream(new ByteArrayInputStream(jar))
+    try Iterator.continually(in.getNextJarEntry).takeWhile(_ != null).map(e => e.getName -> new String(in.readAllBytes())).toMap
+    finally in.close()
+  }
+
+  test("the output's form is told by its name, before anything is written") {
+    CompileOutput.isJar(Path.of("/target/classes.jar")) shouldBe true
+    CompileOutput.isJar(Path.of("/target/test-classes")) shouldBe false
+    CompileOutput.nonEmpty(Path.of("/does/not/exist/classes.jar")) shouldBe false
+  }
+
+  test("class entries are the same for a directory and a jar") {
+    withOutputs { (classesDir, classesJar) =>
+      CompileOutput.classEntries(classesDir).sorted shouldBe classes.sorted
+      CompileOutput.classEntries(classesJar).sorted shouldBe classes.sorted
+    }
+  }
+
+  test("a jar output is packaged as if it had been a directory") {
+    withOutputs { (classesDir, classesJar) =>
+      val fromDir = entriesOf(createJar(JarType.Jar, ManifestCreator.default, List(classesDir)))
+      val fromJar = entriesOf(createJar(JarType.Jar, ManifestCreator.default, List(classesJar)))
+      fromJar shouldBe fromDir
+      fromJar.keySet shouldBe classes.toSet
+    }
+  }
+
+  test("the noop manifest records a jar output as the one file it is") {
+    assume(NoopManifestStore.ctimeAvailable)
+    withOutputs { (_, classesJar) =>
+      val analysisFile = classesJar.resolveSibling(".zinc").resolve("analysis.zip")
+      Files.createDirectories(analysisFile.getParent)
+      val language = ProjectLanguage.ScalaJava("3.7.1", Nil, Nil, None, bleep.model.CompileOrder.Mixed)
+      val manifest = NoopManifestStore
+        .regenerateFromLocal(analysisFile, Set.empty, Array.empty, Map.empty, language, None, ProjectCompileSuccess(classesJar, Set.empty, Some(analysisFile)))
+        .get
+      manifest.outputDirStats.keySet shouldBe Set(classesJar)
+    }
+  }
+}
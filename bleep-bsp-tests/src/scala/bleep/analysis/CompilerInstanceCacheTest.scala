@@ -0,0 +1,121 @@
+package bleep.analysis
+
+import bleep.analysis.CompilerInstanceCache.Key
+import bleep.analysis.CompilerResolver.CompilerInstance
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+
+import java.nio.file.{Files, Path}
+import scala.collection.mutable
+
+/** The cache's contract, with stand-in compilers: a jar of a given size and a loader that records being closed. */
+class CompilerInstanceCacheTest extends AnyFunSuite with Matchers {
+
+  private class TrackingLoader extends ClassLoader(null) with AutoCloseable {
+    @volatile var closed = false
+    def close(): Unit = closed = true
+  }
+
+  /** A cache whose compilers are each estimated at `mbEach` of metaspace, with a budget of `budgetMb`. */
+  private def withCache(budgetMb: Long, mbEach: Long)(f: (CompilerInstanceCache, Key => CompilerInstance, mutable.Buffer[(Key, String)]) => Unit): Unit = {
+    val dir = Files.createTempDirectory("compiler-cache")
+    try {
+      val jar = dir.resolve("compiler.jar")
+      Files.write(jar, new Array[Byte]((mbEach * 1024 * 1024 / CompilerInstanceCache.MetaspacePerJarByte).toInt))
+      val evicted = mutable.Buffer.empty[(Key, String)]
+      val cache = new CompilerInstanceCache(budgetMb * 1024 * 1024, (key, _, reason) => evicted.synchronized(evicted += key -> reason): Unit)
+      f(cache, key => CompilerInstance(key.kind, key.version, Seq(jar), new TrackingLoader), evicted)
+    } finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+
+  private def closed(lease: CompilerInstanceCache.Lease): Boolean = lease.instance.loader.asInstanceOf[TrackingLoader].closed
+
+  test("a cached compiler is handed out again, and created once") {
+    withCache(budgetMb = 1000, mbEach = 100) { (cache, create, _) =>
+      val key = Key("scala", "3.3.3")
+      var created = 0
+      val first = cache.lease(key) { created += 1; create(key) }
+      val second = cache.lease(key) { created += 1; create(key) }
+      (second.instance eq first.instance) shouldBe true
+      created shouldBe 1
+      cache.stats.hits shouldBe 1
+      cache.stats.misses shouldBe 1
+      first.close()
+      second.close()
+    }
+  }
+
+  test("over budget, the least recently used compiler nobody holds is evicted and closed") {
+    withCache(budgetMb = 250, mbEach = 100) { (cache, create, evicted) =>
+      val a = Key("scala", "2.13.16")
+      val b = Key("scala", "3.3.3")
+      val c = Key("kotlin", "2.1.0")
+      val leaseA = cache.lease(a)(create(a))
+      leaseA.close()
+      val leaseB = cache.lease(b)(create(b))
+      leaseB.close()
+      val leaseC = cache.lease(c)(create(c))
+
+      evicted.toList shouldBe List(a -> "budget")
+      closed(leaseA) shouldBe true
+      closed(leaseB) shouldBe false
+      cache.stats.entries.map(_.key) shouldBe List(c, b)
+      leaseC.close()
+    }
+  }
+
+  test("a held compiler is never evicted; the cache runs over budget until it is returned") {
+    withCache(budgetMb = 150, mbEach = 100) { (cache, create, evicted) =>
+      val a = Key("scala", "2.13.16")
+      val b = Key("scala", "3.3.3")
+      val leaseA = cache.lease(a)(create(a))
+      val leaseB = cache.lease(b)(create(b))
+      evicted shouldBe empty
+      cache.stats.metaspaceBytes should be > cache.budgetBytes
+
+      leaseA.close()
+      evicted.toList shouldBe List(a -> "budget")
+      closed(leaseA) shouldBe true
+      closed(leaseB) shouldBe false
+      leaseB.close()
+      leaseB.close() // harmless
+      cache.stats.entries.map(e => (e.key, e.leases)) shouldBe List((b, 0))
+    }
+  }
+
+  test("an idle trim keeps the most recent compiler of each kind, and any that are held") {
+    withCache(budgetMb = 1000, mbEach = 10) { (cache, create, evicted) =>
+      // held throughout, and older than every other Scala compiler: only the hold keeps it
+      val held = cache.lease(Key("scala", "2.13.16"))(create(Key("scala", "2.13.16")))
+      Thread.sleep(2)
+      val keys = List(Key("kotlin", "2.0.0"), Key("scala", "3.3.3"), Key("kotlin", "2.1.0"), Key("ecj", "3.40.0"))
+      keys.foreach { key =>
+        cache.lease(key)(create(key)).close()
+        Thread.sleep(2) // distinct lastUsedMs
+      }
+      cache.trimIdle() shouldBe List(Key("kotlin", "2.0.0"))
+      evicted.toList shouldBe List(Key("kotlin", "2.0.0") -> "idle")
+      cache.stats.entries.map(_.key).toSet shouldBe Set(Key("ecj", "3.40.0"), Key("kotlin", "2.1.0"), Key("scala", "2.13.16"), Key("scala", "3.3.3"))
+      held.close()
+    }
+  }
+
+  test("a compiler that fails to load is not cached, and the next lease tries again") {
+    withCache(budgetMb = 1000, mbEach = 10) { (cache, create, _) =>
+      val key = Key("scala", "3.99.0")
+      val thrown = intercept[IllegalStateException](cache.lease(key)(throw new IllegalStateException("no such version")))
+      thrown.getMessage shouldBe "no such version"
+      cache.stats.entries shouldBe empty
+      cache.lease(key)(create(key)).close()
+      cache.stats.entries.map(_.key) shouldBe List(key)
+    }
+  }
+
+  test("the estimate scales with the jars") {
+    val dir = Files.createTempDirectory("compiler-cache")
+    try {
+      val jar: Path = Files.write(dir.resolve("a.jar"), new Array[Byte](1000))
+      CompilerInstanceCache.estimateMetaspace(Seq(jar, dir.resolve("missing.jar"))) shouldBe (1000 * CompilerInstanceCache.MetaspacePerJarByte).toLong
+    } finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+}
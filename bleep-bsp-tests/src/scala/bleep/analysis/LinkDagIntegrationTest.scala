@@ -246,7 +246,7 @@ class LinkDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (_, _) => IO.pure(TaskResult.Success),
         link = (lt, _) => {
           linkCalled = true
@@ -295,7 +295,7 @@ class LinkDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (_, _) => IO.pure(TaskResult.Success),
         link = (_, _) =>
           IO.pure(
@@ -347,7 +347,7 @@ class LinkDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (_, _) => IO.pure(TaskResult.Success),
         link = (_, _) => IO.pure((TaskResult.Failure("Link error", List.empty), LinkResult.Failure("Link error", List.empty))),
         discover = (_, _) => IO.pure((TaskResult.Success, List.empty)),
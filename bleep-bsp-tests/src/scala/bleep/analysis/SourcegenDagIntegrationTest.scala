@@ -297,7 +297,7 @@ class SourcegenDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (t, _) => IO(order.add(s"compile:${t.project.value}"): Unit).as(TaskResult.Success),
         link = (_, _) => sys.error("LinkTask should not appear here"),
         discover = (_, _) => sys.error("DiscoverTask should not appear here"),
@@ -344,7 +344,7 @@ class SourcegenDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (t, _) =>
           if (t.project == scriptsProject) IO.pure(TaskResult.Failure("compile error", Nil))
           else if (t.project == target) IO(targetCompileCalled.set(true)).as(TaskResult.Success)
@@ -395,7 +395,7 @@ class SourcegenDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (t, _) =>
           if (t.project == target) IO(targetCompileCalled.set(true)).as(TaskResult.Success)
           else IO.pure(TaskResult.Success),
@@ -444,7 +444,7 @@ class SourcegenDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (t, _) =>
           if (t.project == target) IO(targetCompileCalled.set(true)).as(TaskResult.Success)
           else IO.pure(TaskResult.Success),
@@ -493,7 +493,7 @@ class SourcegenDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (_, _) => IO.pure(TaskResult.Success),
         link = (_, _) => sys.error("LinkTask should not appear here"),
         discover = (_, _) => sys.error("DiscoverTask should not appear here"),
@@ -546,7 +546,7 @@ class SourcegenDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (_, _) => IO.pure(TaskResult.Success),
         link = (_, _) => sys.error("LinkTask should not appear here"),
         discover = (_, _) => sys.error("DiscoverTask should not appear here"),
@@ -595,7 +595,7 @@ class SourcegenDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (t, _) =>
           if (t.project == target) IO(targetCompileCalled.set(true)).as(TaskResult.Success)
           else IO.pure(TaskResult.Success),
@@ -645,7 +645,7 @@ class SourcegenDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (t, _) => record(s"compile:${t.project.value}").as(TaskResult.Success),
         link = (_, _) => sys.error("LinkTask should not appear here"),
         discover = (_, _) => sys.error("DiscoverTask should not appear here"),
@@ -692,7 +692,7 @@ class SourcegenDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (_, _) => IO.raiseError(new RuntimeException("bleep-test-runner resolution returned no jars")),
         link = (_, _) => sys.error("LinkTask should not appear here"),
         discover = (_, _) => sys.error("DiscoverTask should not appear here"),
@@ -745,7 +745,7 @@ class SourcegenDagIntegrationTest extends AnyFunSuite with Matchers {
 
     val executor = TaskDag.executor(
       Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (_, _) => IO.pure(TaskResult.Success),
         link = (_, _) => sys.error("LinkTask should not appear here"),
         discover = (_, _) => sys.error("DiscoverTask should not appear here"),
@@ -0,0 +1,110 @@
+package bleep.analysis
+
+import cats.effect.unsafe.implicits.global
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+
+import java.nio.file.{Files, Path}
+import scala.collection.mutable
+
+/** Zinc compiling straight to jar, end to end: an upstream project into `classes.jar`, a downstream project against that jar and its analysis, and an
+  * incremental round through both after the upstream API changes.
+  *
+  * The unit tests in [[CompileOutputTest]] cover what reads a jar output. What only a real compile shows is that zinc keeps the jar incremental: that a change
+  * to one upstream file rewrites that file's classes and keeps the rest of the jar, and that the downstream project, which sees the upstream as a jar on its
+  * classpath, still gets to recompile only the files that use what changed.
+  */
+class StraightToJarCompileTest extends AnyFunSuite with Matchers {
+
+  private val scalaVersion = "3.3.3"
+
+  private val language: ProjectLanguage.ScalaJava = ProjectLanguage.ScalaJava(
+    scalaVersion = scalaVersion,
+    scalaOptions = Nil,
+    javaOptions = Nil,
+    ecjVersion = None,
+    compileOrder = bleep.model.CompileOrder.Mixed
+  )
+
+  /** A project under `dir/<name>` compiling its `src` into `target/classes.jar`, analysis in `target/.zinc`. */
+  private def project(dir: Path, name: String, extraClasspath: Seq[Path]): ProjectConfig = {
+    val target = dir.resolve(name).resolve("target")
+    ProjectConfig(
+      name = name,
+      sources = Set(Files.createDirectories(dir.resolve(name).resolve("src"))),
+      classpath = CompilerResolver.getScalaCompiler(scalaVersion).allJars ++ extraClasspath,
+      outputDir = target.resolve("classes.jar"),
+      language = language,
+      analysisDir = Some(target.resolve(".zinc")),
+      buildDir = dir
+    )
+  }
+
+  /** Writes `content` as `file` in `config`'s sources, in the package named after the project. */
+  private def write(config: ProjectConfig, file: String, content: String): Unit =
+    Files.writeString(config.sources.head.resolve(file), s"package ${config.name}\n$content\n"): Unit
+
+  /** Compiles `config`, failing the test unless it succeeds. Returns the analysis file and the names of the source files zinc compiled. */
+  private def compile(config: ProjectConfig, dependencyAnalyses: Map[Path, Path]): (Path, Set[String]) = {
+    val compiledFiles = mutable.Set[Path]()
+    val diagnostics = mutable.Buffer[CompilerError]()
+    val result = ZincBridge
+      .compile(
+        config = config,
+        language = language,
+        diagnosticListener = DiagnosticListener.tracking(compiledFiles, diagnostics),
+        cancellationToken = CancellationToken.never,
+        dependencyAnalyses = dependencyAnalyses,
+        progressListener = ProgressListener.noop,
+        ecjVersion = None,
+        analyses = AnalysisCache.standalone(config.buildDir)
+      )
+      .unsafeRunSync()
+    result match {
+      case ProjectCompileSuccess(outputDir, _, Some(analysisFile)) =>
+        outputDir shouldBe config.outputDir
+        (analysisFile, compiledFiles.map(_.getFileName.toString).toSet)
+      case ProjectCompileSuccess(_, _, None) =>
+        fail(s"${config.name} compiled without an analysis file")
+      case ProjectCompileFailure(errors) =>
+        fail(s"${config.name} failed to compile: ${errors.map(_.formatted).mkString(", ")}")
+      case ProjectCompileCancelled(reason) =>
+        fail(s"Unexpected cancellation: $reason")
+    }
+  }
+
+  test("a downstream project compiles against an upstream jar, and both stay incremental") {
+    val dir = Files.createTempDirectory("straight-to-jar")
+    try {
+      val core = project(dir, "core", Nil)
+      val app = project(dir, "app", List(core.outputDir))
+      write(core, "Greeter.scala", "object Greeter { def greet(name: String): String = s\"Hello, $name\" }")
+      write(core, "Unrelated.scala", "object Unrelated { def answer: Int = 42 }")
+      write(app, "App.scala", "object App { def run(): String = core.Greeter.greet(\"world\") }")
+      write(app, "Other.scala", "object Other { def answer: Int = 1 }")
+
+      // Clean compile of both, each into its jar.
+      val (coreAnalysis, coreFirst) = compile(core, Map.empty)
+      coreFirst shouldBe Set("Greeter.scala", "Unrelated.scala")
+      Files.isRegularFile(core.outputDir) shouldBe true
+      CompileOutput.classEntries(core.outputDir) should contain allOf ("core/Greeter.class", "core/Greeter$.class", "core/Unrelated.class")
+
+      val upstream = Map(core.outputDir -> coreAnalysis)
+      val (_, appFirst) = compile(app, upstream)
+      appFirst shouldBe Set("App.scala", "Other.scala")
+      CompileOutput.classEntries(app.outputDir) should contain allOf ("app/App.class", "app/Other.class")
+
+      // Nothing changed: neither project compiles anything.
+      compile(core, Map.empty)._2 shouldBe empty
+      compile(app, upstream)._2 shouldBe empty
+
+      // An API change in one upstream file recompiles that file, keeps the rest of the jar, and recompiles only the downstream file using it.
+      write(core, "Greeter.scala", "object Greeter { def greet(name: String, end: String = \"!\"): String = s\"Hello, $name$end\" }")
+      compile(core, Map.empty)._2 shouldBe Set("Greeter.scala")
+      CompileOutput.classEntries(core.outputDir) should contain allOf ("core/Greeter.class", "core/Unrelated.class")
+
+      compile(app, upstream)._2 shouldBe Set("App.scala")
+      CompileOutput.classEntries(app.outputDir) should contain allOf ("app/App.class", "app/Other.class")
+    } finally deleteRecursively(dir)
+  }
+}
@@ -106,7 +106,7 @@ class SymbolProcessorDagIntegrationTest extends AnyFunSuite with Matchers {
       eventQueue <- Queue.bounded[IO, Option[TaskDag.DagEvent]](1024)
       killSignal <- Deferred[IO, KillReason]
       handlers = Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (ct, _) => IO { timeline.add(s"compile:${ct.project.value}"); TaskResult.Success },
         link = (_, _) => sys.error("LinkTask should not appear here"),
         discover = (_, _) => sys.error("DiscoverTask should not appear here"),
@@ -139,7 +139,7 @@ class SymbolProcessorDagIntegrationTest extends AnyFunSuite with Matchers {
       eventQueue <- Queue.bounded[IO, Option[TaskDag.DagEvent]](1024)
       killSignal <- Deferred[IO, KillReason]
       handlers = Handlers(
-        mayAdmitCompile = _ => IO.pure(true),
+        mayAdmitCompile = _ => IO.pure(TaskDag.CompileAdmission.Always),
         compile = (ct, _) => IO { compileInvoked.set(true); finishedTasks.add(ct.project.value -> TaskResult.Success); TaskResult.Success },
         link = (_, _) => sys.error("LinkTask should not appear here"),
         discover = (_, _) => sys.error("DiscoverTask should not appear here"),
@@ -0,0 +1,42 @@
+package bleep.bsp
+
+import io.circe.Json
+import io.circe.parser.parse
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.Files
+import scala.jdk.CollectionConverters.*
+
+/** The remote-cache and link-cache events as they land in `metrics.jsonl`: one JSON object per line, with every field something reading the file can rely on.
+  */
+class BspMetricsTest extends AnyFunSuite {
+
+  test("link cache and remote-cache push events are written as parseable JSONL") {
+    val dir = Files.createTempDirectory("bsp-metrics")
+    try {
+      BspMetrics.initialize(dir)
+      BspMetrics.recordLinkCache("app/js", "/ws \"one\"", "remote", 2048L, 17L)
+      BspMetrics.recordRemoteCachePush("app/js", "/ws", "link", "pushed", 4096L, 23L)
+      BspMetrics.recordRemoteCachePush("core", "/ws", "compile", "sources_changed", 0L, 5L)
+      BspMetrics.shutdown()
+
+      val events = Files.readAllLines(dir.resolve("metrics.jsonl")).asScala.toList.map(line => parse(line).fold(e => fail(s"$line: $e"), identity))
+      def ofType(tpe: String): List[Json] = events.filter(_.hcursor.get[String]("type").contains(tpe))
+
+      val link = ofType("link_cache")
+      assert(link.size == 1)
+      val l = link.head.hcursor
+      assert(l.get[String]("project").contains("app/js"))
+      assert(l.get[String]("workspace").contains("/ws \"one\""))
+      assert(l.get[String]("outcome").contains("remote"))
+      assert(l.get[Long]("bytes").contains(2048L))
+      assert(l.get[Long]("duration_ms").contains(17L))
+      assert(l.get[Long]("ts").isRight)
+
+      val pushes = ofType("remote_cache_push").map(_.hcursor)
+      val kindsAndOutcomes = pushes.map(p => (p.get[String]("kind").toOption, p.get[String]("outcome").toOption))
+      assert(kindsAndOutcomes == List(Some("link") -> Some("pushed"), Some("compile") -> Some("sources_changed")))
+      assert(pushes.map(_.get[Long]("bytes").toOption) == List(Some(4096L), Some(0L)))
+    } finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+}
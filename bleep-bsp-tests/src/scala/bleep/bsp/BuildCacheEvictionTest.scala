@@ -10,8 +10,27 @@ import org.scalatest.matchers.should.Matchers
   */
 class BuildCacheEvictionTest extends AnyFunSuite with Matchers {
 
+  /** The count cap alone: every entry weighs nothing, so the byte budget never binds. */
   private def select(present: Vector[(String, Long)], keep: String, bound: Int, busy: Set[String] = Set.empty): Vector[String] =
-    BuildCache.selectEvictions(present, keep, bound, busy.contains).map(_._1)
+    BuildCache
+      .selectEvictions(
+        present.map { case (key, lastUsedMs) => BuildCache.Candidate(key, lastUsedMs, 0L) },
+        Some(keep),
+        BuildCache.Budget(Long.MaxValue, Some(bound), minWorkspaces = 2),
+        busy.contains
+      )
+      .map(_.key)
+
+  /** The byte budget alone: entries as (key, lastUsedMs, retained MB). */
+  private def selectByBytes(present: Vector[(String, Long, Long)], keep: Option[String], budgetMb: Long, busy: Set[String] = Set.empty): Vector[String] =
+    BuildCache
+      .selectEvictions(
+        present.map { case (key, lastUsedMs, mb) => BuildCache.Candidate(key, lastUsedMs, mb * 1024 * 1024) },
+        keep,
+        BuildCache.Budget(budgetMb * 1024 * 1024, None, minWorkspaces = 2),
+        busy.contains
+      )
+      .map(_.key)
 
   test("under the bound nothing is evicted") {
     select(Vector("a" -> 1L, "b" -> 2L), keep = "b", bound = 4) shouldBe empty
@@ -51,4 +70,32 @@ class BuildCacheEvictionTest extends AnyFunSuite with Matchers {
     val present = Vector("busy1" -> 1L, "busy2" -> 2L, "busy3" -> 3L, "idle1" -> 4L, "keep" -> 5L)
     select(present, keep = "keep", bound = 3, busy = Set("busy1", "busy2", "busy3")) shouldBe Vector("idle1")
   }
+
+  test("within the byte budget nothing is evicted, however many workspaces there are") {
+    val present = Vector("a" -> 1L, "b" -> 2L, "c" -> 3L, "d" -> 4L, "e" -> 5L).map { case (k, t) => (k, t, 10L) }
+    selectByBytes(present, keep = Some("e"), budgetMb = 100) shouldBe empty
+  }
+
+  test("over the byte budget the least recently used go first, only until the rest fits") {
+    // 400 + 300 + 200 + 100 = 1000MB against 600: dropping the oldest (400) fits.
+    val present = Vector(("oldest", 1L, 400L), ("older", 2L, 300L), ("recent", 3L, 200L), ("newest", 4L, 100L))
+    selectByBytes(present, keep = None, budgetMb = 600) shouldBe Vector("oldest")
+  }
+
+  test("a small idle workspace goes before a large one in use, and the floor stops the rest") {
+    // The monorepo alone is over budget. The oldest small one goes; the floor of two keeps the other.
+    val present = Vector(("tiny", 1L, 5L), ("small", 2L, 20L), ("monorepo", 3L, 3000L))
+    selectByBytes(present, keep = Some("monorepo"), budgetMb = 1000) shouldBe Vector("tiny")
+  }
+
+  test("the byte budget never evicts below the minimum, but the count cap does") {
+    val present = Vector(("a", 1L, 900L), ("b", 2L, 900L))
+    selectByBytes(present, keep = None, budgetMb = 100) shouldBe empty
+    select(Vector("a" -> 1L, "b" -> 2L), keep = "b", bound = 1) shouldBe Vector("a")
+  }
+
+  test("without a load to protect, the periodic pass may evict any idle entry") {
+    val present = Vector(("a", 1L, 500L), ("b", 2L, 500L), ("c", 3L, 500L))
+    selectByBytes(present, keep = None, budgetMb = 1000, busy = Set("a")) shouldBe Vector("b")
+  }
 }
@@ -0,0 +1,73 @@
+package bleep.bsp
+
+import bleep.model.*
+import org.scalatest.funsuite.AnyFunSuite
+
+import scala.collection.immutable.SortedSet
+
+/** Unit tests for [[BuildDelta]]: which projects an edit to the build touches, and that what depends on them counts as touched too. */
+class BuildDeltaTest extends AnyFunSuite {
+
+  private def name(n: String) = CrossProjectName(ProjectName(n), None)
+
+  private def dependsOn(deps: String*): Project = Project.empty.copy(dependsOn = JsonSet(deps.map(ProjectName.apply)*))
+
+  private def build(projects: (String, Project)*): Build.Exploded =
+    Build.Exploded(
+      $version = BleepVersion("1.0.0-M9"),
+      explodedProjects = projects.map { case (n, p) => name(n) -> p }.toMap,
+      resolvers = JsonList.empty,
+      jvm = None,
+      scripts = Map.empty,
+      remoteCache = None
+    )
+
+  // core <- util <- app, and lonely on its own
+  private val before = build("core" -> Project.empty, "util" -> dependsOn("core"), "app" -> dependsOn("util"), "lonely" -> Project.empty)
+
+  test("an identical build changes nothing") {
+    assert(BuildDelta.between(before, Map.empty, before, Map.empty).isEmpty)
+  }
+
+  test("a changed project takes its transitive dependents with it, and nothing else") {
+    val after = build(
+      "core" -> Project.empty.copy(isTestProject = Some(false)),
+      "util" -> dependsOn("core"),
+      "app" -> dependsOn("util"),
+      "lonely" -> Project.empty
+    )
+    val delta = BuildDelta.between(before, Map.empty, after, Map.empty)
+    assert(delta.changed == SortedSet(name("core")))
+    assert(delta.affected == SortedSet(name("core"), name("util"), name("app")))
+  }
+
+  test("added and removed projects") {
+    val after = build("core" -> Project.empty, "util" -> dependsOn("core"), "app" -> dependsOn("util"), "fresh" -> dependsOn("core"))
+    val delta = BuildDelta.between(before, Map.empty, after, Map.empty)
+    assert(delta.added == SortedSet(name("fresh")))
+    assert(delta.removed == SortedSet(name("lonely")))
+    assert(delta.changed.isEmpty)
+    assert(delta.affected == SortedSet(name("fresh")))
+  }
+
+  test("a new bleep version touches everything") {
+    val delta = BuildDelta.between(before, Map.empty, before.copy($version = BleepVersion("1.0.0-M10")), Map.empty)
+    assert(delta.affected == SortedSet.from(before.explodedProjects.keys))
+  }
+
+  test("a changed script project takes the projects it generates sources for with it") {
+    // scripts <- generated, through sourcegen only; app depends on generated
+    def withSourcegen(p: Project): Project =
+      p.copy(sourcegen = JsonSet(ScriptDef.Main(name("scripts"), "gen.Main", JsonSet.empty): ScriptDef))
+    val before = build("scripts" -> Project.empty, "generated" -> withSourcegen(Project.empty), "app" -> dependsOn("generated"), "lonely" -> Project.empty)
+    val after = build(
+      "scripts" -> Project.empty.copy(isTestProject = Some(false)),
+      "generated" -> withSourcegen(Project.empty),
+      "app" -> dependsOn("generated"),
+      "lonely" -> Project.empty
+    )
+    val delta = BuildDelta.between(before, Map.empty, after, Map.empty)
+    assert(delta.changed == SortedSet(name("scripts")))
+    assert(delta.affected == SortedSet(name("scripts"), name("generated"), name("app")))
+  }
+}
@@ -0,0 +1,100 @@
+package bleep.bsp
+
+import bleep.bsp.CompileParallelismTuner.{step, Cooldown, Hysteresis, Probe, Tuning, WindowStats}
+import org.scalatest.funsuite.AnyFunSuite
+
+import scala.collection.mutable
+
+/** Unit tests for [[CompileParallelismTuner.step]], the controller's policy, and for the GC time it is fed. */
+class CompileParallelismTunerTest extends AnyFunSuite {
+
+  private val Max = 8
+  private def window(throughput: Double = 100.0, gc: Double = 0.05, cpu: Double = 0.5, heldBack: Boolean = false) =
+    WindowStats(throughput, gc, cpu, heldBack)
+
+  /** Feed `windows` in order from `from`, returning the final state and the slots after each window. */
+  private def run(from: Tuning, windows: WindowStats*): (Tuning, List[Int]) =
+    windows.foldLeft((from, List.empty[Int])) { case ((t, seen), w) =>
+      val (next, _) = step(t, w, Max)
+      (next, seen :+ next.slots)
+    }
+
+  test("sustained GC overhead takes a slot away, one window of it does not") {
+    val (_, slots) = run(Tuning.initial(Max), window(gc = 0.5), window(gc = 0.05), window(gc = 0.5), window(gc = 0.5))
+    assert(slots == List(8, 8, 8, 7))
+  }
+
+  test("never goes below one slot") {
+    val (t, _) = run(Tuning.initial(1), window(gc = 0.9), window(gc = 0.9), window(gc = 0.9))
+    assert(t.slots == 1)
+  }
+
+  test("compiles held back with GC and CPU to spare add a slot, as a probe that is kept when throughput rises") {
+    val start = Tuning(4, 0, 0, 0, None)
+    val (raised, change) = step(step(start, window(heldBack = true), Max)._1, window(heldBack = true), Max)
+    assert(raised.slots == 5 && raised.probe.contains(Probe(4, 100.0)))
+    assert(change.map(_.reason).contains("headroom"))
+    val (kept, none) = step(raised, window(throughput = 120.0, heldBack = true), Max)
+    assert(kept.slots == 5 && kept.probe.isEmpty && none.isEmpty)
+  }
+
+  test("a probed slot that does not pay for itself is given back, and no probe follows until the cooldown has passed") {
+    val probing = Tuning(5, 0, 0, 0, Some(Probe(4, 100.0)))
+    val (reverted, change) = step(probing, window(throughput = 102.0, heldBack = true), Max)
+    assert(reverted.slots == 4 && reverted.cooldown == Cooldown)
+    assert(change.map(_.reason).contains("no_gain"))
+    val (_, slots) = run(reverted, List.fill(Cooldown)(window(heldBack = true))*)
+    assert(slots == List(4, 4, 4, 5))
+  }
+
+  test("no slot is added on a saturated machine, under GC pressure, at the maximum, or when nothing was held back") {
+    val start = Tuning(4, 0, 0, 0, None)
+    assert(run(start, window(heldBack = true, cpu = 0.95), window(heldBack = true, cpu = 0.95))._1.slots == 4)
+    assert(run(start, window(heldBack = true, gc = 0.2), window(heldBack = true, gc = 0.2))._1.slots == 4)
+    assert(run(start, window(), window())._1.slots == 4)
+    assert(run(Tuning.initial(Max), window(heldBack = true), window(heldBack = true))._1.slots == Max)
+  }
+
+  test("an idle window breaks a streak") {
+    val idle = window(throughput = 0.0)
+    assert(run(Tuning.initial(Max), window(gc = 0.5), idle, window(gc = 0.5))._1.slots == Max)
+  }
+
+  /** A heap whose collectors are `beans`, by name, read through `gcTime` as the tuner would read them. */
+  private class FakeCollectors(gcTime: Iterable[(String, Long)] => Long, names: String*) extends HeapMonitor {
+    val beans: mutable.LinkedHashMap[String, Long] = mutable.LinkedHashMap.from(names.map(_ -> 0L))
+    def heapUsage(): HeapMonitor.Usage = HeapMonitor.Usage(0L, 1L)
+    def gcTimeMs(): Long = gcTime(beans)
+    def advance(name: String, ms: Long): Unit = beans(name) += ms
+  }
+
+  private val GenerationalZgc = List("ZGC Minor Cycles", "ZGC Minor Pauses", "ZGC Major Cycles", "ZGC Major Pauses")
+
+  /** Two busy windows on generational ZGC, each with its minor and major cycles running concurrently for longer than the window lasted. */
+  private def zgcWindows(heap: FakeCollectors): List[Option[CompileParallelismTuner.Change]] = {
+    val tuner = new CompileParallelismTuner(4, heap)
+    List.fill(Hysteresis) {
+      Thread.sleep(100)
+      heap.advance("ZGC Minor Cycles", 400L)
+      heap.advance("ZGC Major Cycles", 400L)
+      heap.advance("ZGC Minor Pauses", 1L)
+      heap.advance("ZGC Major Pauses", 1L)
+      tuner.admits(activeCompiles = 4)
+      tuner.tick()
+    }
+  }
+
+  test("concurrent ZGC cycles are not GC overhead, its pauses are") {
+    assert(zgcWindows(new FakeCollectors(HeapMonitor.pauseTimeMs, GenerationalZgc*)) == List(None, None))
+    // Counted as before, the cycles alone put the share over `GcHigh` and cost a slot.
+    val summed = zgcWindows(new FakeCollectors(_.map(_._2).sum, GenerationalZgc*))
+    assert(summed.last.map(_.reason).contains("gc_overhead"))
+  }
+
+  test("stop-the-world collectors count in full, G1's concurrent marking does not") {
+    val g1 = List("G1 Young Generation" -> 120L, "G1 Concurrent GC" -> 900L, "G1 Old Generation" -> 30L)
+    assert(HeapMonitor.pauseTimeMs(g1) == 150L)
+    assert(HeapMonitor.pauseTimeMs(List("Shenandoah Cycles" -> 500L, "Shenandoah Pauses" -> 7L)) == 7L)
+    assert(HeapMonitor.pauseTimeMs(List("PS Scavenge" -> 40L, "PS MarkSweep" -> 60L)) == 100L)
+  }
+}
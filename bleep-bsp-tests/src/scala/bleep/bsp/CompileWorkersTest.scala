@@ -0,0 +1,174 @@
+package bleep.bsp
+
+import bleep.analysis.*
+import bleep.bsp.CompileWorkerProtocol.{FromWorker, Result, ToWorker}
+import bleep.model
+import cats.effect.IO
+import cats.effect.unsafe.implicits.global
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.io.{BufferedReader, BufferedWriter, InputStreamReader, OutputStreamWriter}
+import java.net.{StandardProtocolFamily, UnixDomainSocketAddress}
+import java.nio.channels.{Channels, ServerSocketChannel, SocketChannel}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path}
+import java.util.concurrent.atomic.AtomicInteger
+import scala.collection.mutable
+import scala.concurrent.duration.*
+
+/** Unit tests for [[CompileWorkers]] routing, retries and cancellation, and the [[CompileWorkerProtocol]] the server and its workers speak. */
+class CompileWorkersTest extends AnyFunSuite {
+
+  private val workspace = model.WorkspaceKey(Path.of("/ws"), model.BuildVariant.Normal)
+
+  private val config = ProjectConfig(
+    name = "core",
+    sources = Set(Path.of("/ws/core/src")),
+    classpath = List(Path.of("/cache/scala-library.jar")),
+    outputDir = Path.of("/ws/.bleep/builds/normal/.bloop/core/classes"),
+    language = ProjectLanguage.ScalaJava("3.3.3", List("-deprecation"), List("--release", "17"), None, model.CompileOrder.JavaThenScala),
+    analysisDir = Some(Path.of("/ws/.bleep/builds/normal/.bloop/core/.zinc")),
+    buildDir = Path.of("/ws")
+  )
+
+  /** The other end of a [[CompileWorkers.Worker]]'s connection, played by the test. */
+  private final class FakeWorker(channel: SocketChannel) {
+    private val in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8))
+    private val out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8))
+
+    def receive(): ToWorker = CompileWorkerProtocol.decodeToWorker(in.readLine()).fold(e => fail(e.getMessage), identity)
+
+    def reply(message: FromWorker): Unit = {
+      out.write(CompileWorkerProtocol.encode(message))
+      out.newLine()
+      out.flush()
+    }
+
+    def disconnect(): Unit = channel.close()
+  }
+
+  /** A worker connected to a [[FakeWorker]] over a real socket. The worker's process is a stand-in that only waits to be killed. */
+  private def withWorker(cancelGrace: FiniteDuration)(f: (CompileWorkers.Worker, FakeWorker, Process) => Unit): Unit = {
+    val dir = Files.createTempDirectory("compile-worker")
+    val server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+    val process = new ProcessBuilder("sleep", "600").start()
+    try {
+      val address = UnixDomainSocketAddress.of(dir.resolve("worker.sock"))
+      server.bind(address)
+      val remote = SocketChannel.open(address)
+      val worker = new CompileWorkers.Worker(0, process, server.accept(), IO.unit, dir.resolve("worker.log"), ryddig.TypedLogger.DevNull, cancelGrace)
+      worker.listen()
+      try f(worker, new FakeWorker(remote), process)
+      finally remote.close()
+    } finally {
+      process.destroyForcibly(): Unit
+      server.close()
+      bleep.internal.FileUtils.deleteDirectory(dir)
+    }
+  }
+
+  private def compileOn(worker: CompileWorkers.Worker): IO[ProjectCompileResult] =
+    worker.compile(workspace, config, DiagnosticListener.noop, CancellationToken.never, Map.empty, ProgressListener.noop)
+
+  test("a new route goes to the slot with the fewest, the lowest on a tie") {
+    assert(CompileWorkers.pick(Nil, 3) == 0)
+    assert(CompileWorkers.pick(List(0), 3) == 1)
+    assert(CompileWorkers.pick(List(0, 1, 2, 0), 3) == 1)
+    assert(CompileWorkers.pick(List(0, 0, 0), 1) == 0)
+  }
+
+  test("projects on the same compiler share a route, and a different version does not") {
+    def scala(version: String) = ProjectLanguage.ScalaJava(version, Nil, Nil, None, model.CompileOrder.Mixed)
+    assert(CompileWorkers.compilerOf(scala("3.3.3")) == CompileWorkers.compilerOf(scala("3.3.3").copy(scalaOptions = List("-deprecation"))))
+    assert(CompileWorkers.compilerOf(scala("3.3.3")) != CompileWorkers.compilerOf(scala("3.7.4")))
+    assert(CompileWorkers.compilerOf(ProjectLanguage.JavaOnly(Some(17), Nil, None)) == "javac")
+  }
+
+  test("a compile request and what the worker sends back survive the wire") {
+    val request: ToWorker = ToWorker.Compile(7, Path.of("/ws"), "normal", config, Map(Path.of("/a/classes") -> Path.of("/a/.zinc/analysis.zip")))
+    assert(CompileWorkerProtocol.decodeToWorker(CompileWorkerProtocol.encode(request)) == Right(request))
+
+    val error = CompilerError(Some(Path.of("/ws/core/src/A.scala")), 3, 5, "type mismatch", None, CompilerError.Severity.Error)
+    val replies: List[FromWorker] = List(
+      FromWorker.Reason(7, "core", CompilationReason.Incremental(10, List(Path.of("/ws/core/src/A.scala")), Nil)),
+      FromWorker.Phase(7, "core", CompilePhase.ReadingAnalysis(42)),
+      FromWorker.Diagnostic(7, error),
+      FromWorker.Done(7, Result.Failure(List(error))),
+      FromWorker.Done(8, Result.Cancelled)
+    )
+    replies.foreach(reply => assert(CompileWorkerProtocol.decodeFromWorker(CompileWorkerProtocol.encode(reply)) == Right(reply)))
+  }
+
+  test("a cancelled compile returns only after the worker confirms it stopped") {
+    withWorker(cancelGrace = 30.seconds) { (worker, fake, process) =>
+      val events = mutable.ListBuffer.empty[String]
+      def record(event: String): Unit = events.synchronized(events += event): Unit
+
+      val fiber = compileOn(worker).start.unsafeRunSync()
+      val id = fake.receive() match {
+        case compile: ToWorker.Compile => compile.id
+        case other                     => fail(s"expected a compile, got $other")
+      }
+      val cancelled = (fiber.cancel >> IO(record("cancel returned"))).unsafeToFuture()
+
+      assert(fake.receive() == ToWorker.Cancel(id))
+      // Still writing: the cancellation must not be over yet.
+      Thread.sleep(200)
+      record("worker done")
+      fake.reply(FromWorker.Done(id, Result.Cancelled))
+      scala.concurrent.Await.result(cancelled, 10.seconds)
+
+      assert(events.toList == List("worker done", "cancel returned"))
+      assert(process.isAlive)
+      assert(worker.alive)
+    }
+  }
+
+  test("a worker that does not confirm a cancellation is killed, and has exited when the cancellation returns") {
+    withWorker(cancelGrace = 200.millis) { (worker, fake, process) =>
+      val fiber = compileOn(worker).start.unsafeRunSync()
+      fake.receive()
+      fiber.cancel.timeout(10.seconds).unsafeRunSync()
+      assert(!process.isAlive)
+      assert(!worker.alive)
+    }
+  }
+
+  test("a worker that dies fails what it was running with WorkerDied") {
+    withWorker(cancelGrace = 30.seconds) { (worker, fake, _) =>
+      val running = compileOn(worker).attempt.unsafeToFuture()
+      fake.receive()
+      fake.disconnect()
+      scala.concurrent.Await.result(running, 10.seconds) match {
+        case Left(_: CompileWorkers.WorkerDied) => ()
+        case other                              => fail(s"expected WorkerDied, got $other")
+      }
+      assert(!worker.alive)
+    }
+  }
+
+  test("a compile whose worker died runs again, once") {
+    val success = ProjectCompileSuccess(config.outputDir, Set.empty, None)
+    def dyingFor(times: Int, runs: AtomicInteger): IO[ProjectCompileResult] =
+      IO(runs.incrementAndGet()).flatMap(run => if (run <= times) IO.raiseError(new CompileWorkers.WorkerDied("compile worker 0 died")) else IO.pure(success))
+    def retried(times: Int, cancellation: CancellationToken = CancellationToken.never): (ProjectCompileResult, Int) = {
+      val runs = new AtomicInteger(0)
+      val result = CompileWorkers.retryingOnDeath("core", workspace, cancellation, ryddig.TypedLogger.DevNull, CompileWorkers.Retries)(dyingFor(times, runs))
+      (result.unsafeRunSync(), runs.get())
+    }
+
+    assert(retried(0) == ((success, 1)))
+    assert(retried(1) == ((success, 2)))
+
+    val (twice, runs) = retried(2)
+    assert(runs == 2)
+    twice match {
+      case ProjectCompileFailure(List(error)) => assert(error.message.contains("twice in a row"))
+      case other                              => fail(s"expected a compile failure, got $other")
+    }
+
+    val cancelled = CancellationToken.create()
+    cancelled.cancel()
+    assert(retried(1, cancelled) == ((ProjectCompileCancelled(bleep.bsp.protocol.KillReason.UserRequest), 1)))
+  }
+}
@@ -0,0 +1,74 @@
+package bleep.bsp
+
+import bleep.MachineResources
+import bleep.model.{CrossProjectName, ProjectName}
+import cats.effect.unsafe.implicits.global
+import ch.epfl.scala.bsp.Uri
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.util.concurrent.atomic.AtomicInteger
+
+/** Unit tests for [[DependencySourcesWarmup]]: every project warmed while the machine is idle, nothing while foreground work holds it, and nothing handed out
+  * for a build the connection has moved on from.
+  */
+class DependencySourcesWarmupTest extends AnyFunSuite {
+
+  /** Stands in for a `Started`: only its identity matters. */
+  private final class FakeBuild
+
+  private def machine(cpu: Int): MachineResources =
+    MachineResources.create(totalCpu = cpu, totalMemoryMb = 64 * 1024, logger = ryddig.TypedLogger.DevNull, longWaitWarnMs = 60000L)
+
+  private def name(s: String): CrossProjectName = CrossProjectName(ProjectName(s), None)
+
+  private def jar(s: String): List[Uri] = List(Uri(s"file:///cache/$s-sources.jar"))
+
+  /** Projects whose source jars are their own name, counting how often any of them is computed. */
+  private def projects(runs: AtomicInteger, names: String*): List[(CrossProjectName, () => List[Uri])] =
+    names.toList.map(n => (name(n), () => { runs.incrementAndGet(); jar(n) }))
+
+  private def eventually(what: String)(condition: => Boolean): Unit = {
+    val deadline = System.currentTimeMillis() + 10000L
+    while (!condition && System.currentTimeMillis() < deadline) Thread.sleep(20)
+    assert(condition, what)
+  }
+
+  test("every project is warmed while the machine is idle") {
+    val warmup = new DependencySourcesWarmup[FakeBuild](machine(cpu = 2), ryddig.TypedLogger.DevNull)
+    val build = new FakeBuild
+    val runs = new AtomicInteger(0)
+    warmup.start(build, projects(runs, "a", "b", "c"))
+    eventually("all warmed")(List("a", "b", "c").forall(n => warmup.get(build, name(n)).isDefined))
+    assert(warmup.get(build, name("b")).contains(jar("b")))
+    assert(runs.get() == 3)
+  }
+
+  test("nothing is warmed while foreground work holds every core") {
+    val m = machine(cpu = 1)
+    val warmup = new DependencySourcesWarmup[FakeBuild](m, ryddig.TypedLogger.DevNull)
+    val build = new FakeBuild
+    val runs = new AtomicInteger(0)
+    val release = m.reserveUntilReleased(MachineResources.ResourceKind.Compile, "compile", cpu = 1, memoryMb = 0L).unsafeRunSync()
+    warmup.start(build, projects(runs, "a"))
+    Thread.sleep(300)
+    assert(runs.get() == 0)
+    assert(warmup.get(build, name("a")).isEmpty)
+    release.unsafeRunSync()
+    eventually("warmed once the compile is done")(warmup.get(build, name("a")).isDefined)
+  }
+
+  test("a build adopted since gets nothing warmed for the previous one") {
+    val warmup = new DependencySourcesWarmup[FakeBuild](machine(cpu = 2), ryddig.TypedLogger.DevNull)
+    val before = new FakeBuild
+    val after = new FakeBuild
+    val runs = new AtomicInteger(0)
+    warmup.start(before, projects(runs, "a"))
+    eventually("warmed")(warmup.get(before, name("a")).isDefined)
+    warmup.start(after, projects(runs, "b"))
+    assert(warmup.get(before, name("a")).isEmpty)
+    assert(warmup.get(after, name("a")).isEmpty)
+    eventually("the new build warmed")(warmup.get(after, name("b")).isDefined)
+    warmup.stop()
+    assert(warmup.get(after, name("b")).isEmpty)
+  }
+}
@@ -0,0 +1,145 @@
+package bleep.bsp
+
+import bleep.bsp.HeapPressureGate.Decision
+import bleep.bsp.TaskDag.{CompileTask, DagEvent, Handlers, TaskId, TaskResult}
+import bleep.model.{CrossProjectName, ProjectName}
+import cats.effect.std.Queue
+import cats.effect.unsafe.implicits.global
+import cats.effect.{Deferred, IO}
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.{Path, Paths}
+import java.util.concurrent.ConcurrentLinkedQueue
+import scala.concurrent.duration.*
+import scala.jdk.CollectionConverters.*
+
+/** Unit tests for [[HeapForecast]]'s holds: taken when a compile is admitted rather than when it starts, so the compiles admitted after it in one pass of
+  * [[TaskDag]] are weighed against it, and given back whether the compile ran or the machine refused it.
+  */
+class HeapForecastTest extends AnyFunSuite {
+
+  private val Gb = 1024L * 1024L * 1024L
+  // 10GB heap at a 0.8 threshold: an 8GB ceiling, and anything predicted at 2GB or more is large
+  private val usage = HeapMonitor.Usage(1 * Gb, 10 * Gb)
+
+  private def name(s: String): CrossProjectName = CrossProjectName(ProjectName(s), None)
+
+  /** No file there, so the prediction is the allocation share alone. */
+  private def analysisFile(project: CrossProjectName): Path = Paths.get("/nonexistent", project.value, "analysis.zip")
+
+  /** Stands in for a compile of a project nobody is compiling, to read what is held against it. */
+  private val probe = analysisFile(name("probe"))
+
+  /** A forecast with a predicted peak of about 3GB for each of `large`. */
+  private def forecastWith(large: String*): HeapForecast = {
+    val forecast = new HeapForecast(HeapForecast.Alpha)
+    large.foreach(p => forecast.recordAllocation(analysisFile(name(p)), p, 30 * Gb))
+    forecast.recordAllocation(probe, "probe", 1L)
+    forecast
+  }
+
+  /** The server's admission, minus what it reports: the gate's decision on `forecast`, with the hold the admission takes. */
+  private def admission(forecast: HeapForecast, machine: bleep.MachineResources)(task: CompileTask): IO[TaskDag.CompileAdmission] =
+    machine.activeCompiles.flatMap { compiling =>
+      forecast
+        .admit(analysisFile(task.project)) { f =>
+          HeapPressureGate.decide(usage, compiling > 0, 0.8, HeapPressureGate.DefaultRetryMs, None, EpochMs(0L), f)
+        }
+        .map {
+          case HeapForecast.Admission(_, Decision.Admit, release) => TaskDag.CompileAdmission.Admit(release)
+          case _                                                  => TaskDag.CompileAdmission.Defer
+        }
+    }
+
+  private def handlers(forecast: HeapForecast, machine: bleep.MachineResources, compile: CompileTask => IO[Unit]): Handlers =
+    Handlers(
+      mayAdmitCompile = admission(forecast, machine),
+      compile = (t, _) => forecast.whileCompiling(analysisFile(t.project))(compile(t)).as(TaskResult.Success),
+      link = (_, _) => sys.error("LinkTask should not appear here"),
+      discover = (_, _) => sys.error("DiscoverTask should not appear here"),
+      test = (_, _) => sys.error("TestSuiteTask should not appear here"),
+      sourcegen = (_, _) => sys.error("SourcegenTask should not appear here"),
+      annotationProcessor = (_, _) => sys.error("ResolveAnnotationProcessorsTask should not appear here"),
+      symbolProcessor = (_, _) => sys.error("ResolveSymbolProcessorsTask should not appear here")
+    )
+
+  /** `first` is depended on by `after`, so it heads the pass and is admitted on the idle machine; `large` are offered in the same pass behind it. */
+  private def dag(large: String*): TaskDag.Dag = {
+    val first = CompileTask(name("first"), Set.empty, Set.empty)
+    val after = CompileTask(name("after"), Set(first.project), Set(first.id))
+    TaskDag.Dag.fromTasks(first :: after :: large.toList.map(p => CompileTask(name(p), Set.empty, Set.empty)))
+  }
+
+  private def machine(cpu: Int): bleep.MachineResources =
+    bleep.MachineResources.create(totalCpu = cpu, totalMemoryMb = 64 * 1024, logger = ryddig.TypedLogger.DevNull, longWaitWarnMs = 60000L)
+
+  private def heldAgainstOthers(forecast: HeapForecast): Long =
+    forecast.forecast(probe).map(_.inFlightPeakBytes).getOrElse(0L)
+
+  test("two large compiles offered in one admission pass are not both admitted") {
+    val forecast = forecastWith("a", "b")
+    val m = machine(cpu = 4)
+    val started = new ConcurrentLinkedQueue[String]()
+    val program = for {
+      release <- Deferred[IO, Unit]
+      executor = TaskDag.executor(handlers(forecast, m, t => IO(started.add(t.project.value)) >> release.get))
+      eventQueue <- Queue.unbounded[IO, Option[DagEvent]]
+      killSignal <- Outcome.neverKillSignal
+      run <- executor.execute(dag("a", "b"), m, TaskDag.ForkHeaps.default, eventQueue, killSignal).start
+      _ <- IO.sleep(300.millis)
+      duringFirstPass = started.asScala.toSet
+      _ <- release.complete(())
+      finalDag <- run.joinWithNever.timeout(30.seconds)
+    } yield (duringFirstPass, finalDag)
+
+    val (duringFirstPass, finalDag) = program.unsafeRunSync()
+    assert(duringFirstPass.contains("first"))
+    assert(duringFirstPass.intersect(Set("a", "b")).size == 1)
+    assert(Set("first", "after", "a", "b").map(p => TaskId.Compile(name(p)): TaskId).subsetOf(finalDag.completed))
+    assert(heldAgainstOthers(forecast) == 0L)
+  }
+
+  test("a compile the machine refuses after the gate admitted it gives its hold back") {
+    val forecast = forecastWith("a")
+    val m = machine(cpu = 1)
+    val program = for {
+      release <- Deferred[IO, Unit]
+      executor = TaskDag.executor(handlers(forecast, m, t => if (t.project.value == "first") release.get else IO.unit))
+      eventQueue <- Queue.unbounded[IO, Option[DagEvent]]
+      killSignal <- Outcome.neverKillSignal
+      run <- executor.execute(dag("a"), m, TaskDag.ForkHeaps.default, eventQueue, killSignal).start
+      // `first` holds the only core, so `a` passed the gate and was then refused a reservation.
+      _ <- IO.sleep(300.millis)
+      heldWhileRefused <- IO(heldAgainstOthers(forecast))
+      _ <- release.complete(())
+      _ <- run.joinWithNever.timeout(30.seconds)
+    } yield heldWhileRefused
+
+    assert(program.unsafeRunSync() == 0L)
+    assert(heldAgainstOthers(forecast) == 0L)
+  }
+
+  test("a compile held by its admission and while it runs counts once, until both are given back") {
+    val forecast = forecastWith("a")
+    val file = analysisFile(name("a"))
+    val peak = forecast.predictPeakBytes(file).get
+    val admitted = forecast.admit(file)(_ => Decision.Admit).unsafeRunSync()
+    assert(admitted.decision == Decision.Admit)
+    assert(heldAgainstOthers(forecast) == peak)
+
+    val whileRunning = forecast.whileCompiling(file)(IO(heldAgainstOthers(forecast))).unsafeRunSync()
+    assert(whileRunning == peak)
+    assert(heldAgainstOthers(forecast) == peak)
+
+    admitted.release.unsafeRunSync()
+    admitted.release.unsafeRunSync()
+    assert(heldAgainstOthers(forecast) == 0L)
+  }
+
+  test("a deferred compile holds nothing") {
+    val forecast = forecastWith("a")
+    val deferred = forecast.admit(analysisFile(name("a")))(_ => Decision.Defer(0L, "predicted_peak")).unsafeRunSync()
+    assert(deferred.forecast.map(_.peakBytes) == forecast.predictPeakBytes(analysisFile(name("a"))))
+    assert(heldAgainstOthers(forecast) == 0L)
+  }
+}
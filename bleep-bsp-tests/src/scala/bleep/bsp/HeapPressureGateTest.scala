@@ -0,0 +1,54 @@
+package bleep.bsp
+
+import bleep.bsp.HeapPressureGate.{Decision, Forecast}
+import org.scalatest.funsuite.AnyFunSuite
+
+/** Unit tests for [[HeapPressureGate.decide]], with and without a [[HeapForecast]]. */
+class HeapPressureGateTest extends AnyFunSuite {
+
+  private val Mb = 1024L * 1024L
+  // 10GB heap at a 0.8 threshold: an 8GB ceiling, and anything predicted at 2GB or more is large
+  private def usage(usedMb: Long) = HeapMonitor.Usage(usedMb * Mb, 10240 * Mb)
+  private val now = EpochMs(1000000L)
+
+  private def decide(usedMb: Long, forecast: Option[Forecast], othersCompiling: Boolean = true, firstRefusedAt: Option[EpochMs] = None): Decision =
+    HeapPressureGate.decide(
+      usage = usage(usedMb),
+      othersCompiling = othersCompiling,
+      threshold = 0.8,
+      retryMs = HeapPressureGate.DefaultRetryMs,
+      firstRefusedAt = firstRefusedAt,
+      now = now,
+      forecast = forecast
+    )
+
+  private def forecast(peakMb: Long, inFlightMb: Long = 0, largestMb: Long = 0) = Some(Forecast(peakMb * Mb, inFlightMb * Mb, largestMb * Mb))
+
+  test("a compile that is predicted to fit is admitted straight away, even beside others") {
+    assert(decide(usedMb = 4000, forecast(peakMb = 500, inFlightMb = 1500, largestMb = 1000)) == Decision.Admit)
+  }
+
+  test("a compile predicted to overrun the ceiling is deferred, although the heap is below the threshold now") {
+    decide(usedMb = 4000, forecast(peakMb = 1500, inFlightMb = 3000, largestMb = 1500)) match {
+      case Decision.Defer(_, reason) => assert(reason == "predicted_peak")
+      case other                     => fail(s"expected a deferral, got $other")
+    }
+  }
+
+  test("two large compiles are not started side by side, however much room there is") {
+    assert(decide(usedMb = 500, forecast(peakMb = 2500, inFlightMb = 2500, largestMb = 2500)) == Decision.Defer(2000L, "large_compile_running"))
+    assert(decide(usedMb = 500, forecast(peakMb = 2500, inFlightMb = 1500, largestMb = 1500)) == Decision.Admit)
+  }
+
+  test("the sole compile and a compile past the deadline are admitted whatever the forecast") {
+    val huge = forecast(peakMb = 9000, inFlightMb = 9000, largestMb = 9000)
+    assert(decide(usedMb = 7000, huge, othersCompiling = false) == Decision.Admit)
+    assert(decide(usedMb = 7000, huge, firstRefusedAt = Some(EpochMs(now.value - HeapPressureGate.MaxWaitMs))) == Decision.Admit)
+  }
+
+  test("without a forecast, the stagger applies and the reason says whether the heap was under pressure") {
+    assert(decide(usedMb = 5120, forecast = None) == Decision.Defer(1250L, "stagger"))
+    assert(decide(usedMb = 9000, forecast = None) == Decision.Defer(2000L, "heap_pressure"))
+    assert(decide(usedMb = 4096, forecast = None, firstRefusedAt = Some(now)) == Decision.Admit)
+  }
+}
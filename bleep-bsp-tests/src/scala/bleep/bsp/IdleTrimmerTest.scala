@@ -0,0 +1,27 @@
+package bleep.bsp
+
+import bleep.model.{BuildVariant, WorkspaceKey}
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.Path
+
+/** Unit tests for which workspaces' analyses an [[IdleTrimmer]] trim lets go of. */
+class IdleTrimmerTest extends AnyFunSuite {
+
+  private def key(ws: String, variant: BuildVariant = BuildVariant.Normal) = WorkspaceKey(Path.of(ws), variant)
+
+  test("everything but the most recently used workspace is evicted") {
+    val lastUsed = Map(key("/ws/a") -> 100L, key("/ws/b") -> 300L, key("/ws/c") -> 200L, key("/ws/b", BuildVariant.BSP) -> 50L)
+    assert(IdleTrimmer.workspacesToEvict(lastUsed, Set.empty) == List(key("/ws/a"), key("/ws/b", BuildVariant.BSP), key("/ws/c")))
+  }
+
+  test("a workspace with work in flight keeps its analyses") {
+    val lastUsed = Map(key("/ws/a") -> 100L, key("/ws/b") -> 300L, key("/ws/c") -> 200L)
+    assert(IdleTrimmer.workspacesToEvict(lastUsed, Set(Path.of("/ws/a"))) == List(key("/ws/c")))
+  }
+
+  test("nothing to evict when at most one workspace holds analyses") {
+    assert(IdleTrimmer.workspacesToEvict(Map.empty, Set.empty) == Nil)
+    assert(IdleTrimmer.workspacesToEvict(Map(key("/ws/a") -> 1L), Set.empty) == Nil)
+  }
+}
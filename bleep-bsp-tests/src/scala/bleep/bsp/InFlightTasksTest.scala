@@ -0,0 +1,109 @@
+package bleep.bsp
+
+import bleep.bsp.protocol.KillReason
+import bleep.model
+import bleep.model.{CrossProjectName, ProjectName}
+import cats.effect.{Deferred, IO}
+import cats.effect.unsafe.implicits.global
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicInteger
+import scala.collection.mutable
+import scala.concurrent.duration.*
+
+/** Unit tests for [[InFlightTasks]]: a second request for a running task waits for it and sees what it published, and outlives a leader that is killed. */
+class InFlightTasksTest extends AnyFunSuite {
+
+  private type Seen = mutable.ListBuffer[String]
+
+  private val counter = new AtomicInteger(0)
+
+  // A fresh task per test, so tests never join each other's flights.
+  private def freshKey(): InFlightTasks.Key =
+    InFlightTasks.Key(
+      model.WorkspaceKey(Path.of("/ws"), model.BuildVariant.Normal),
+      BuildId("build"),
+      TaskDag.TaskId.Compile(CrossProjectName(ProjectName(s"p${counter.incrementAndGet()}"), None))
+    )
+
+  private def record(msg: String): Seen => Unit = seen => seen.synchronized(seen += msg): Unit
+
+  test("a second request gets the running task's result and everything it published, before and after joining") {
+    val key = freshKey()
+    val program = for {
+      joined <- Deferred[IO, Unit]
+      release <- Deferred[IO, Unit]
+      kill <- Deferred[IO, KillReason]
+      runs = new AtomicInteger(0)
+      leaderSeen = mutable.ListBuffer.empty[String]
+      followerSeen = mutable.ListBuffer.empty[String]
+      lead = (flight: InFlightTasks.Flight[Seen]) =>
+        IO(runs.incrementAndGet()) >>
+          IO(flight.publish(record("before"))) >>
+          joined.get >>
+          IO(flight.publish(record("after"))) >>
+          release.get.as(TaskDag.TaskResult.Success)
+      leader <- InFlightTasks.run(key, leaderSeen, kill)(lead).start
+      _ <- IO.sleep(50.millis)
+      follower <- InFlightTasks.run(key, followerSeen, kill)(lead).start
+      _ <- IO.sleep(50.millis) >> joined.complete(()) >> IO.sleep(50.millis) >> release.complete(())
+      leaderResult <- leader.joinWithNever
+      followerResult <- follower.joinWithNever
+    } yield (runs.get(), leaderResult, followerResult, leaderSeen.toList, followerSeen.toList)
+
+    val (runs, leaderResult, followerResult, leaderSeen, followerSeen) = program.unsafeRunSync()
+    assert(runs == 1)
+    assert(leaderResult == TaskDag.TaskResult.Success)
+    assert(followerResult == TaskDag.TaskResult.Success)
+    assert(leaderSeen == List("before", "after"))
+    assert(followerSeen == List("before", "after"))
+  }
+
+  test("a request joining a leader that is killed runs the task itself") {
+    val key = freshKey()
+    val program = for {
+      leaderKill <- Deferred[IO, KillReason]
+      followerKill <- Deferred[IO, KillReason]
+      runs = new AtomicInteger(0)
+      lead = (kill: Deferred[IO, KillReason]) =>
+        (_: InFlightTasks.Flight[Seen]) =>
+          IO(runs.incrementAndGet()) >> IO.race(IO.sleep(100.millis), kill.get).map {
+            case Left(_)       => TaskDag.TaskResult.Success
+            case Right(reason) => TaskDag.TaskResult.Killed(reason)
+          }
+      leader <- InFlightTasks.run(key, mutable.ListBuffer.empty[String], leaderKill)(lead(leaderKill)).start
+      _ <- IO.sleep(20.millis)
+      follower <- InFlightTasks.run(key, mutable.ListBuffer.empty[String], followerKill)(lead(followerKill)).start
+      _ <- IO.sleep(20.millis) >> leaderKill.complete(KillReason.UserRequest)
+      leaderResult <- leader.joinWithNever
+      followerResult <- follower.joinWithNever
+    } yield (runs.get(), leaderResult, followerResult)
+
+    val (runs, leaderResult, followerResult) = program.unsafeRunSync()
+    assert(leaderResult == TaskDag.TaskResult.Killed(KillReason.UserRequest))
+    assert(followerResult == TaskDag.TaskResult.Success)
+    assert(runs == 2)
+  }
+
+  test("a request that is killed while waiting stops waiting and leaves the task running") {
+    val key = freshKey()
+    val program = for {
+      leaderKill <- Deferred[IO, KillReason]
+      followerKill <- Deferred[IO, KillReason]
+      release <- Deferred[IO, Unit]
+      lead = (_: InFlightTasks.Flight[Seen]) => release.get.as(TaskDag.TaskResult.Success)
+      leader <- InFlightTasks.run(key, mutable.ListBuffer.empty[String], leaderKill)(lead).start
+      _ <- IO.sleep(20.millis)
+      follower <- InFlightTasks.run(key, mutable.ListBuffer.empty[String], followerKill)(lead).start
+      _ <- IO.sleep(20.millis) >> followerKill.complete(KillReason.UserRequest)
+      followerResult <- follower.joinWithNever
+      _ <- release.complete(())
+      leaderResult <- leader.joinWithNever
+    } yield (leaderResult, followerResult)
+
+    val (leaderResult, followerResult) = program.unsafeRunSync()
+    assert(followerResult == TaskDag.TaskResult.Killed(KillReason.UserRequest))
+    assert(leaderResult == TaskDag.TaskResult.Success)
+  }
+}
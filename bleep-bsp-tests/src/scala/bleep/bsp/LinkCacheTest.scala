@@ -0,0 +1,135 @@
+package bleep.bsp
+
+import bleep.analysis.{ScalaJsLinkConfig, ScalaNativeLinkConfig}
+import bleep.model.{CrossProjectName, ProjectName}
+import bleep.{CacheStore, TarGz}
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.ConcurrentHashMap
+
+/** Unit tests for [[LinkCache]]: what the key is made of, installing a link output from the remote cache, and the checks a push of one makes before packing.
+  */
+class LinkCacheTest extends AnyFunSuite {
+
+  private val project = CrossProjectName(ProjectName("app"), None)
+  private val jsTask = TaskDag.LinkTask(project, TaskDag.LinkPlatform.ScalaJs("1.16.0", "3.3.3", ScalaJsLinkConfig.Debug), releaseMode = false, isTest = false)
+
+  /** Longer than the kernel's timestamp clock lags the wall clock, so "before" and "after" a compile start are unambiguous. */
+  private val Tick = 50L
+
+  private class MemoryStore extends CacheStore {
+    val objects = new ConcurrentHashMap[String, Array[Byte]]()
+    override def headObject(key: String): Boolean = objects.containsKey(key)
+    override def getObject(key: String): Array[Byte] = Option(objects.get(key)).getOrElse(throw new java.io.FileNotFoundException(key))
+    override def putObject(key: String, content: Array[Byte]): Unit = objects.put(key, content): Unit
+  }
+
+  private def withDir(f: Path => Unit): Unit = {
+    val dir = Files.createTempDirectory("link-cache")
+    try f(dir)
+    finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+
+  private def linkDirOf(baseOutputDir: Path): Path = baseOutputDir.resolve(LinkExecutor.linkDirSuffix(jsTask.platform))
+
+  /** A Scala.js link output as the linker leaves it, recorded under `linkKey`. */
+  private def writeLinkOutput(linkDir: Path, linkKey: String, content: String = "console.log(1)"): Unit = {
+    Files.createDirectories(linkDir.resolve("js"))
+    Files.writeString(linkDir.resolve("js/main.js"), content)
+    Files.writeString(linkDir.resolve("js/main.js.map"), "{}")
+    Files.writeString(linkDir.resolve(".bleep-link-key"), linkKey): Unit
+  }
+
+  test("every part of the key changes it") {
+    val jars = List("scalajs-library_2.13-1.16.0.jar" -> "aaa")
+    val base = LinkCache.linkKey("digest", "scala-js|1.16.0|3.3.3|Debug", jsTask, None, jars)
+    assert(LinkCache.linkKey("digest", "scala-js|1.16.0|3.3.3|Debug", jsTask, None, jars) == base)
+    assert(LinkCache.linkKey("other", "scala-js|1.16.0|3.3.3|Debug", jsTask, None, jars) != base)
+    assert(LinkCache.linkKey("digest", "scala-js|1.17.0|3.3.3|Debug", jsTask, None, jars) != base)
+    assert(LinkCache.linkKey("digest", "scala-js|1.16.0|3.3.3|Debug", jsTask.copy(releaseMode = true), None, jars) != base)
+    assert(LinkCache.linkKey("digest", "scala-js|1.16.0|3.3.3|Debug", jsTask.copy(isTest = true), None, jars) != base)
+    assert(LinkCache.linkKey("digest", "scala-js|1.16.0|3.3.3|Debug", jsTask, Some("app.Main"), jars) != base)
+    assert(LinkCache.linkKey("digest", "scala-js|1.16.0|3.3.3|Debug", jsTask, None, List("scalajs-library_2.13-1.16.0.jar" -> "bbb")) != base)
+    assert(LinkCache.linkKey("digest", "scala-js|1.16.0|3.3.3|Debug", jsTask, None, Nil) != base)
+  }
+
+  test("where the local clang lives is not part of the key, what it targets is") {
+    val native = TaskDag.LinkPlatform.ScalaNative("0.5.6", "3.3.3", ScalaNativeLinkConfig.Debug)
+    val elsewhere = native.copy(config = native.config.copy(clang = Some(Path.of("/opt/llvm/bin/clang")), clangpp = Some(Path.of("/opt/llvm/bin/clang++"))))
+    assert(LinkCache.platformDescription(native) == LinkCache.platformDescription(elsewhere))
+    assert(LinkCache.platformDescription(native).exists(_.contains(sys.props("os.arch"))))
+    assert(LinkCache.platformDescription(native) != LinkCache.platformDescription(native.copy(version = "0.5.7")))
+  }
+
+  test("a remote hit replaces the previous outputs and records the key it was pulled for") {
+    withDir { dir =>
+      val store = new MemoryStore
+      val published = dir.resolve("published")
+      writeLinkOutput(published, "key-1", "console.log('pulled')")
+      store.putObject("app/link-key-1", TarGz.pack(published, LinkCache.packFilter(published)))
+
+      val base = dir.resolve("link-output")
+      val linkDir = linkDirOf(base)
+      writeLinkOutput(linkDir, "key-0")
+      Files.writeString(linkDir.resolve("js/extra-module.js"), "stale")
+
+      val pulled = LinkCache.pull(store, "app/link-key-1", jsTask, base, "key-1")
+      assert(pulled.exists { case (result, bytes) => result.isInstanceOf[TaskDag.LinkResult.JsSuccess] && bytes > 0 })
+      assert(Files.readString(linkDir.resolve("js/main.js")) == "console.log('pulled')")
+      assert(!Files.exists(linkDir.resolve("js/extra-module.js")))
+      assert(Files.readString(linkDir.resolve(".bleep-link-key")) == "key-1")
+    }
+  }
+
+  test("a remote miss leaves the link directory alone") {
+    withDir { dir =>
+      val base = dir.resolve("link-output")
+      val linkDir = linkDirOf(base)
+      writeLinkOutput(linkDir, "key-0")
+      assert(LinkCache.pull(new MemoryStore, "app/link-key-1", jsTask, base, "key-1").isEmpty)
+      assert(Files.readString(linkDir.resolve(".bleep-link-key")) == "key-0")
+      assert(Files.exists(linkDir.resolve("js/main.js")))
+    }
+  }
+
+  test("a push packs the outputs when they still hold the key and no source changed since the compile") {
+    withDir { dir =>
+      val sources = Files.createDirectories(dir.resolve("src"))
+      Files.writeString(sources.resolve("Main.scala"), "object Main")
+      // Past the slack the check allows for whole-second timestamps.
+      Thread.sleep(RemoteCachePusher.TimestampSlackMs + Tick)
+      val compileStart = System.currentTimeMillis()
+      Thread.sleep(Tick)
+      val linkDir = linkDirOf(dir.resolve("link-output"))
+      writeLinkOutput(linkDir, "key-1")
+
+      val packed = LinkCache.pack(linkDir, LinkCache.Keyed("key-1", compileStart), List(sources))
+      assert(packed.isRight)
+      val unpacked = dir.resolve("unpacked")
+      TarGz.unpack(packed.toOption.get, unpacked)
+      assert(Files.exists(unpacked.resolve("js/main.js")))
+      assert(!Files.exists(unpacked.resolve(".bleep-link-key")))
+    }
+  }
+
+  test("a push is skipped when a source changed since the compile, or the outputs were relinked") {
+    withDir { dir =>
+      val sources = Files.createDirectories(dir.resolve("src"))
+      Files.writeString(sources.resolve("Main.scala"), "object Main")
+      // Past the slack the check allows for whole-second timestamps.
+      Thread.sleep(RemoteCachePusher.TimestampSlackMs + Tick)
+      val compileStart = System.currentTimeMillis()
+      Thread.sleep(Tick)
+      val linkDir = linkDirOf(dir.resolve("link-output"))
+      writeLinkOutput(linkDir, "key-1")
+
+      Files.writeString(linkDir.resolve(".bleep-link-key"), "key-2")
+      assert(LinkCache.pack(linkDir, LinkCache.Keyed("key-1", compileStart), List(sources)) == Left("relinked"))
+
+      Files.writeString(linkDir.resolve(".bleep-link-key"), "key-1")
+      Files.writeString(sources.resolve("Main.scala"), "object Main { def edited = 1 }")
+      assert(LinkCache.pack(linkDir, LinkCache.Keyed("key-1", compileStart), List(sources)) == Left("sources_changed"))
+    }
+  }
+}
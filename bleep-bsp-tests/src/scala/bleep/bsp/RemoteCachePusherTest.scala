@@ -0,0 +1,129 @@
+package bleep.bsp
+
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{CountDownLatch, Executors, Semaphore, TimeUnit}
+
+/** The guard that keeps an auto-push from storing outputs under a digest of sources the compile never read: anything changed after the compile started
+  * drops the push. And the queue in front of the digest, which must not digest a project once per compile in a burst of them.
+  */
+class RemoteCachePusherTest extends AnyFunSuite {
+
+  /** Longer than the kernel's timestamp clock lags the wall clock, so "before" and "after" the compile start are unambiguous. */
+  private val Tick = 50L
+
+  private def withSources(f: (Path, Long) => Unit): Unit = {
+    val dir = Files.createTempDirectory("pusher-guard")
+    try {
+      val pkg = dir.resolve("com").resolve("example")
+      Files.createDirectories(pkg)
+      Files.writeString(pkg.resolve("Foo.scala"), "class Foo")
+      Files.writeString(pkg.resolve("Bar.scala"), "class Bar")
+      Thread.sleep(Tick)
+      val compileStart = System.currentTimeMillis()
+      Thread.sleep(Tick)
+      f(dir, compileStart)
+    } finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+
+  test("sources untouched since the compile started are pushed") {
+    withSources { (dir, compileStart) =>
+      assert(!RemoteCachePusher.changedSince(List(dir), compileStart))
+    }
+  }
+
+  test("a source edited while compiling drops the push") {
+    withSources { (dir, compileStart) =>
+      Files.writeString(dir.resolve("com/example/Foo.scala"), "class Foo { def edited = 1 }")
+      assert(RemoteCachePusher.changedSince(List(dir), compileStart))
+    }
+  }
+
+  test("a source added or removed while compiling drops the push") {
+    withSources { (dir, compileStart) =>
+      Files.writeString(dir.resolve("com/example/Baz.scala"), "class Baz")
+      assert(RemoteCachePusher.changedSince(List(dir), compileStart))
+    }
+    withSources { (dir, compileStart) =>
+      Files.delete(dir.resolve("com/example/Bar.scala"))
+      assert(RemoteCachePusher.changedSince(List(dir), compileStart))
+    }
+  }
+
+  test("an edit that keeps its old mtime is still seen") {
+    assume(bleep.analysis.NoopManifestStore.ctimeAvailable)
+    withSources { (dir, compileStart) =>
+      val foo = dir.resolve("com/example/Foo.scala")
+      val mtime = Files.getLastModifiedTime(foo)
+      Files.writeString(foo, "class Foo { def restored = 1 }")
+      Files.setLastModifiedTime(foo, mtime)
+      assert(RemoteCachePusher.changedSince(List(dir), compileStart))
+    }
+  }
+
+  test("source directories that do not exist hold no changes") {
+    withSources { (dir, compileStart) =>
+      assert(!RemoteCachePusher.changedSince(List(dir.resolve("missing")), compileStart))
+    }
+  }
+
+  /** A queue whose work cannot start until the test releases a slot. Plenty are released at the end so the executor can close. */
+  private def withQueue(maxWaiting: Int)(f: (RemoteCachePusher.Coalescing, Semaphore) => Unit): Unit = {
+    val slots = new Semaphore(0)
+    val executor = Executors.newVirtualThreadPerTaskExecutor()
+    try f(new RemoteCachePusher.Coalescing(maxWaiting, slots, executor), slots)
+    finally {
+      slots.release(1000)
+      executor.close()
+    }
+  }
+
+  test("a burst of schedules for one project digests once, for the latest compile") {
+    withQueue(maxWaiting = 8) { (queue, slots) =>
+      val digests = new AtomicInteger(0)
+      val digestedFor = new AtomicLong(-1L)
+      val finished = new CountDownLatch(1)
+      (1 to 10).foreach { compileStart =>
+        assert(queue.offer("cache|ws|core", compileStart.toLong) { latest =>
+          digests.incrementAndGet()
+          digestedFor.set(latest)
+          finished.countDown()
+        })
+      }
+      slots.release()
+      assert(finished.await(5, TimeUnit.SECONDS))
+      Thread.sleep(100)
+      assert(digests.get() == 1)
+      assert(digestedFor.get() == 10L)
+    }
+  }
+
+  test("a compile after the digest started queues another") {
+    withQueue(maxWaiting = 8) { (queue, slots) =>
+      val digests = new AtomicInteger(0)
+      val finished = new CountDownLatch(2)
+      def offer(start: Long) = queue.offer("cache|ws|core", start) { _ =>
+        digests.incrementAndGet()
+        finished.countDown()
+      }
+      assert(offer(1L))
+      slots.release()
+      while (digests.get() == 0) Thread.sleep(10)
+      assert(offer(2L))
+      slots.release()
+      assert(finished.await(5, TimeUnit.SECONDS))
+      assert(digests.get() == 2)
+    }
+  }
+
+  test("past the waiting bound other projects are dropped, and a waiting one still coalesces") {
+    withQueue(maxWaiting = 2) { (queue, _) =>
+      assert(queue.offer("core", 1L)(_ => ()))
+      assert(queue.offer("app", 1L)(_ => ()))
+      assert(!queue.offer("tests", 1L)(_ => ()))
+      assert(queue.offer("core", 2L)(_ => ()))
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package bleep.bsp
+
+import cats.effect.unsafe.implicits.global
+import cats.effect.{Deferred, IO}
+import cats.syntax.all.*
+import ch.epfl.scala.bsp.RawJson
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.util.concurrent.atomic.AtomicInteger
+import scala.concurrent.duration.*
+
+/** Unit tests for [[ResponseCache]]: one computation per request however many ask at once, nothing kept across a build change, and a bounded number of
+  * answers kept, least recently used going first.
+  */
+class ResponseCacheTest extends AnyFunSuite {
+
+  /** Stands in for a `Started`: only its identity matters. */
+  private final class FakeBuild
+
+  private def params(s: String): Option[RawJson] = Some(RawJson(s))
+
+  /** A computation counting its runs, answering with the run number. */
+  private def counting(runs: AtomicInteger): IO[RawJson] = IO(RawJson(runs.incrementAndGet().toString))
+
+  private def ask(cache: ResponseCache[FakeBuild], build: FakeBuild, p: String, runs: AtomicInteger): RawJson =
+    cache.getOrCompute(build, "buildTarget/sources", params(p))(counting(runs)).unsafeRunSync()
+
+  test("identical requests arriving while the first is computed wait for its answer") {
+    val cache = new ResponseCache[FakeBuild]()
+    val build = new FakeBuild
+    val runs = new AtomicInteger(0)
+    val program = for {
+      release <- Deferred[IO, Unit]
+      compute = release.get >> counting(runs)
+      fibers <- List.fill(4)(cache.getOrCompute(build, "buildTarget/sources", params("a"))(compute)).traverse(_.start)
+      _ <- IO.sleep(100.millis)
+      _ <- release.complete(())
+      answers <- fibers.traverse(_.joinWithNever)
+    } yield answers
+    val answers = program.unsafeRunSync()
+    assert(runs.get() == 1)
+    assert(answers.distinct == List(RawJson("1")))
+  }
+
+  test("a request for another build computes again, and the old build's answers are gone") {
+    val cache = new ResponseCache[FakeBuild]()
+    val before = new FakeBuild
+    val after = new FakeBuild
+    val runs = new AtomicInteger(0)
+    assert(ask(cache, before, "a", runs) == RawJson("1"))
+    assert(ask(cache, before, "a", runs) == RawJson("1"))
+    assert(ask(cache, after, "a", runs) == RawJson("2"))
+    assert(ask(cache, before, "a", runs) == RawJson("3"))
+  }
+
+  test("params are part of the key") {
+    val cache = new ResponseCache[FakeBuild]()
+    val build = new FakeBuild
+    val runs = new AtomicInteger(0)
+    ask(cache, build, "a", runs)
+    ask(cache, build, "b", runs)
+    assert(runs.get() == 2)
+  }
+
+  test("a failed answer is not kept") {
+    val cache = new ResponseCache[FakeBuild]()
+    val build = new FakeBuild
+    val runs = new AtomicInteger(0)
+    val failing = IO(runs.incrementAndGet()) >> IO.raiseError[RawJson](new RuntimeException("boom"))
+    assert(cache.getOrCompute(build, "m", None)(failing).attempt.unsafeRunSync().isLeft)
+    assert(cache.getOrCompute(build, "m", None)(counting(runs)).unsafeRunSync() == RawJson("2"))
+  }
+
+  test("a waiter whose computing request is cancelled computes the answer itself") {
+    val cache = new ResponseCache[FakeBuild]()
+    val build = new FakeBuild
+    val runs = new AtomicInteger(0)
+    val program = for {
+      leader <- cache.getOrCompute(build, "m", None)(IO(runs.incrementAndGet()) >> IO.never).start
+      _ <- IO.sleep(50.millis)
+      waiter <- cache.getOrCompute(build, "m", None)(counting(runs)).start
+      _ <- IO.sleep(50.millis)
+      _ <- leader.cancel
+      answer <- waiter.joinWithNever.timeout(5.seconds)
+    } yield answer
+    assert(program.unsafeRunSync() == RawJson("2"))
+  }
+
+  test("at most maxEntries answers are kept, the least recently used going first") {
+    val cache = new ResponseCache[FakeBuild](maxEntries = 2)
+    val build = new FakeBuild
+    val runs = new AtomicInteger(0)
+    ask(cache, build, "a", runs)
+    ask(cache, build, "b", runs)
+    ask(cache, build, "a", runs)
+    ask(cache, build, "c", runs)
+    assert(runs.get() == 3)
+    // `b` was the least recently used when `c` came in.
+    ask(cache, build, "a", runs)
+    assert(runs.get() == 3)
+    ask(cache, build, "b", runs)
+    assert(runs.get() == 4)
+  }
+}
@@ -0,0 +1,119 @@
+package bleep.bsp
+
+import bleep.CoursierResolver.Cached
+import bleep.CoursierResolver.Cached.LeanArtifact
+import bleep.{model, CoursierResolver}
+import coursier.Fetch
+import coursier.error.CoursierError
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit}
+import scala.collection.immutable.SortedSet
+
+/** What the daemon-wide resolution cache shares between workspaces, and what it refuses to keep because the answer could go stale.
+  *
+  * The cache is one per JVM, so every test asks for coordinates no other test uses.
+  */
+class SharedResolutionTest extends AnyFunSuite {
+
+  private val combo: model.VersionCombo = model.VersionCombo.Java
+  private val version = model.BleepVersion("1.0.0")
+
+  /** Resolves every dependency to one artifact, counting how often it was asked; `gate` holds each call until released, `changing` marks the artifacts. */
+  private class Counting(
+      gate: CountDownLatch = new CountDownLatch(0),
+      changing: Boolean = false,
+      override val params: CoursierResolver.Params = CoursierResolver.Params(None, false, None, Nil)
+  ) extends CoursierResolver {
+    val calls = new AtomicInteger(0)
+
+    override def withParams(newParams: CoursierResolver.Params): CoursierResolver = new Counting(gate, changing, newParams)
+
+    override def resolve(
+        deps: SortedSet[model.Dep],
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        ignoreEvictionErrors: model.IgnoreEvictionErrors
+    ): Either[CoursierError, CoursierResolver.Result] = {
+      calls.incrementAndGet()
+      gate.await(10, TimeUnit.SECONDS)
+      val result = Cached.fromLean(deps.toList.map { dep =>
+        LeanArtifact(dep.organization.value, dep.baseModuleName.value, dep.version, "", "jar", s"/cache/${dep.baseModuleName.value}-${dep.version}.jar")
+      })
+      Right(
+        if (changing) result.copy(fullDetailedArtifacts = result.fullDetailedArtifacts.map { case (d, p, a, f) => (d, p, a.withChanging(true), f) })
+        else result
+      )
+    }
+
+    override def direct(
+        deps: SortedSet[model.Dep],
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        ignoreEvictionErrors: model.IgnoreEvictionErrors
+    ): Either[CoursierError, Fetch.Result] =
+      Left(new CoursierError("not used") {})
+  }
+
+  private def deps(name: String, version: String = "1.0"): SortedSet[model.Dep] =
+    SortedSet[model.Dep](model.Dep.Java("org.example.shared", name, version))
+
+  private def resolve(resolver: CoursierResolver, deps: SortedSet[model.Dep]): CoursierResolver.Result =
+    resolver.resolve(deps, combo, SortedSet.empty, model.IgnoreEvictionErrors.No).fold(e => fail(e.getMessage), identity)
+
+  test("a second workspace asking for the same thing gets the first one's result") {
+    val one = new Counting
+    val two = new Counting
+    val first = resolve(SharedResolution.wrap(one, version), deps("across-workspaces"))
+    val second = resolve(SharedResolution.wrap(two, version), deps("across-workspaces"))
+    assert(one.calls.get() == 1)
+    assert(two.calls.get() == 0)
+    assert(first eq second)
+  }
+
+  test("concurrent requests for the same key resolve once") {
+    val gate = new CountDownLatch(1)
+    val underlying = new Counting(gate)
+    val pool = Executors.newFixedThreadPool(4)
+    try {
+      val futures = (1 to 4).map(_ => pool.submit(() => resolve(SharedResolution.wrap(underlying, version), deps("single-flight"))))
+      // Let every caller reach the cache before the first resolution finishes.
+      Thread.sleep(200)
+      gate.countDown()
+      val results = futures.map(_.get(10, TimeUnit.SECONDS))
+      assert(underlying.calls.get() == 1)
+      assert(results.forall(_ eq results.head))
+    } finally pool.shutdownNow(): Unit
+  }
+
+  test("snapshots and dynamic versions always go to the resolver") {
+    List("1.0-SNAPSHOT", "latest.release", "1.+", "[1.0,2.0)").foreach { v =>
+      val underlying = new Counting
+      val shared = SharedResolution.wrap(underlying, version)
+      resolve(shared, deps("dynamic", v))
+      resolve(shared, deps("dynamic", v))
+      assert(underlying.calls.get() == 2, v)
+    }
+  }
+
+  test("a result with changing artifacts is not kept") {
+    val underlying = new Counting(changing = true)
+    val shared = SharedResolution.wrap(underlying, version)
+    resolve(shared, deps("changing-artifacts"))
+    resolve(shared, deps("changing-artifacts"))
+    assert(underlying.calls.get() == 2)
+  }
+
+  test("another bleep version or other resolver params is another key") {
+    val underlying = new Counting
+    resolve(SharedResolution.wrap(underlying, version), deps("keyed"))
+    resolve(SharedResolution.wrap(underlying, model.BleepVersion("2.0.0")), deps("keyed"))
+    assert(underlying.calls.get() == 2)
+    val sources = new Counting(params = CoursierResolver.Params(None, true, None, Nil))
+    resolve(SharedResolution.wrap(sources, version), deps("keyed"))
+    assert(sources.calls.get() == 1)
+    resolve(SharedResolution.wrap(underlying, version), deps("keyed"))
+    assert(underlying.calls.get() == 2)
+  }
+}
@@ -0,0 +1,56 @@
+package bleep.bsp
+
+import bleep.ResolvedProject
+import bleep.model.{CrossId, CrossProjectName, ProjectName}
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.{Path, Paths}
+
+/** Unit tests for [[SourceIndex]]: the projects `buildTarget/inverseSources` answers with are the ones with a source root holding the file. */
+class SourceIndexTest extends AnyFunSuite {
+  private val root = Paths.get("/build")
+
+  private def project(name: String, sources: List[Path], resources: List[Path]): ResolvedProject =
+    ResolvedProject(
+      name = name,
+      directory = root.resolve(name),
+      workspaceDir = root,
+      sources = sources,
+      classpath = Nil,
+      classesDir = root.resolve(".bleep").resolve(name),
+      resources = Some(resources),
+      language = ResolvedProject.Language.Java(Nil),
+      platform = None,
+      isTestProject = false,
+      dependencies = Nil,
+      testFrameworks = Nil,
+      resolution = None
+    )
+
+  private val jvm = CrossProjectName(ProjectName("core"), Some(CrossId("jvm3")))
+  private val js = CrossProjectName(ProjectName("core"), Some(CrossId("js3")))
+  private val app = CrossProjectName(ProjectName("app"), None)
+
+  private val shared = root.resolve("core/shared/src/scala")
+  private val index = SourceIndex.of(
+    List(
+      jvm -> project("core@jvm3", List(shared, root.resolve("core/jvm/src/scala")), List(root.resolve("core/src/resources"))),
+      js -> project("core@js3", List(shared), List(root.resolve("core/src/resources"))),
+      app -> project("app", List(root.resolve("app/src/scala")), List(root.resolve("app/src/resources")))
+    )
+  )
+
+  test("a shared source directory belongs to every project compiling it") {
+    assert(index.projectsFor(shared.resolve("core/Foo.scala")).toSet == Set(jvm, js))
+    assert(index.projectsFor(root.resolve("core/jvm/src/scala/core/Jvm.scala")) == List(jvm))
+  }
+
+  test("a file under a resource root belongs to no target") {
+    assert(index.projectsFor(root.resolve("app/src/resources/application.conf")).isEmpty)
+    assert(index.projectsFor(root.resolve("core/src/resources/reference.conf")).isEmpty)
+  }
+
+  test("a file outside every root belongs to no target") {
+    assert(index.projectsFor(root.resolve("app/README.md")).isEmpty)
+  }
+}
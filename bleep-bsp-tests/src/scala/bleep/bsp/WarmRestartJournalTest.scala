@@ -0,0 +1,77 @@
+package bleep.bsp
+
+import bleep.model.*
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.{Files, Path}
+
+/** Unit tests for [[WarmRestartJournal]]: what it keeps for the next daemon, and that what it hands back is the build it was given. */
+class WarmRestartJournalTest extends AnyFunSuite {
+
+  private def payload(version: String): BspBuildData.Payload =
+    BspBuildData.Payload.of(
+      "normal",
+      Build.Exploded(
+        $version = BleepVersion(version),
+        explodedProjects = Map(CrossProjectName(ProjectName("core"), None) -> Project.empty),
+        resolvers = JsonList.empty,
+        jvm = None,
+        scripts = Map.empty,
+        remoteCache = None
+      ),
+      Map.empty
+    )
+
+  private def withJournal(f: (Path, WarmRestartJournal) => Unit): Unit = {
+    val dir = Files.createTempDirectory("warm-restart")
+    try f(dir, new WarmRestartJournal(dir))
+    finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+
+  test("a recorded build comes back as the build it was, and a newer one replaces it") {
+    withJournal { (dir, journal) =>
+      val ws = Path.of("/ws/a")
+      journal.record(ws, payload("1.0.0-M9"))
+      journal.flush()
+      val first = journal.entries
+      assert(first.map(e => (e.workspace, e.variant)) == List((ws.toString, "normal")))
+      assert(journal.payload(first.head).map(_.buildId) == Right(payload("1.0.0-M9").buildId))
+
+      val newer = payload("1.0.0-M10")
+      journal.record(ws, newer)
+      journal.flush()
+      assert(journal.entries.map(_.buildId) == List(newer.buildId))
+      assert(journal.payload(journal.entries.head).map(_.buildId) == Right(newer.buildId))
+      // one payload file per workspace, plus the index
+      assert(Files.list(dir).count() == 2)
+    }
+  }
+
+  test("only the most recently used workspaces are kept, and a forgotten one is gone") {
+    withJournal { (dir, journal) =>
+      val workspaces = (1 to WarmRestartJournal.MaxEntries + 2).map(i => Path.of(s"/ws/$i"))
+      workspaces.foreach { ws =>
+        journal.record(ws, payload("1.0.0-M9"))
+        Thread.sleep(2) // distinct lastUsedMs
+      }
+      journal.flush()
+      assert(journal.entries.map(_.workspace) == workspaces.reverse.take(WarmRestartJournal.MaxEntries).map(_.toString).toList)
+      assert(Files.list(dir).count() == WarmRestartJournal.MaxEntries + 1L)
+
+      journal.forget(journal.entries.head)
+      journal.flush()
+      assert(journal.entries.size == WarmRestartJournal.MaxEntries - 1)
+      assert(Files.list(dir).count() == WarmRestartJournal.MaxEntries.toLong)
+    }
+  }
+
+  test("an unreadable payload is reported, not thrown") {
+    withJournal { (dir, journal) =>
+      journal.record(Path.of("/ws/a"), payload("1.0.0-M9"))
+      journal.flush()
+      val entry = journal.entries.head
+      Files.writeString(dir.resolve(entry.payloadFileName), "{ not a build")
+      assert(journal.payload(entry).isLeft)
+    }
+  }
+}
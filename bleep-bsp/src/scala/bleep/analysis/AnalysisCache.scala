@@ -19,6 +19,9 @@ import scala.jdk.CollectionConverters.*
   * timeout, no sweep. An earlier version had all three, on the assumption that holding one workspace's analyses was expensive enough to need its own eviction
   * schedule. Interning removes that assumption — see below — so the cache is now a plain index whose lifetime is the workspace's.
   *
+  * The one exception is a daemon nobody is using: once it has been quiet for a while, [[bleep.bsp.IdleTrimmer]] drops the analyses of every workspace but the
+  * one used last, and the heap they held goes back to the OS. Nothing is lost but time — the next compile in those workspaces reads them from disk again.
+  *
   * ==Why interning==
   *
   * A class histogram of a live daemon at 7.2GB live set found ~4.5GB in `xsbti.api.*`: 31.7M `NameHash` (1.0GB), 31.1M `Id` (498MB), 7.4M `PathComponent[]`
@@ -41,7 +44,11 @@ import scala.jdk.CollectionConverters.*
   */
 class AnalysisCache {
 
-  private case class Entry(mtime: Long, analysis: CompileAnalysis, fileBytes: Long, lastUsedMs: AtomicLong)
+  /** @param internedShare
+    *   the fraction of this analysis's `AnalyzedClass` values that were already interned when it was put — held by some other analysis, so not retained on
+    *   this one's account.
+    */
+  private case class Entry(mtime: Long, analysis: CompileAnalysis, fileBytes: Long, internedShare: Double, lastUsedMs: AtomicLong)
 
   private val byWorkspace = new ConcurrentHashMap[model.WorkspaceKey, ConcurrentHashMap[Path, Entry]]()
 
@@ -94,24 +101,33 @@ class AnalysisCache {
     result
   }
 
-  /** Rebuild an analysis so its `AnalyzedClass` values are the shared instances.
+  /** Rebuild an analysis so its `AnalyzedClass` values are the shared instances, returning it with the fraction of them that were already held.
     *
     * Only `apis` is substituted. Stamps and relations are keyed by `VirtualFileRef`s whose ids are already workspace-neutral (`${BASE}/…`), but their spines
     * are per-analysis maps that would have to be rebuilt wholesale for a much smaller return; `apis` is where the measured bytes are.
     *
     * The un-interned original becomes garbage as soon as the caller drops it, which is why this returns a new analysis rather than mutating.
     */
-  private def internAnalysis(analysis: CompileAnalysis): CompileAnalysis =
+  private def internAnalysis(analysis: CompileAnalysis): (CompileAnalysis, Double) =
     analysis match {
       case a: sbt.internal.inc.Analysis =>
         expungeStaleInterned()
+        var total = 0
+        var alreadyHeld = 0
+        def one(ac: AnalyzedClass): AnalyzedClass = {
+          val shared = internOne(ac)
+          total += 1
+          if (shared ne ac) alreadyHeld += 1
+          shared
+        }
         val apis = a.apis
-        val internal = apis.internal.map { case (name, ac) => (name, internOne(ac)) }
-        val external = apis.external.map { case (name, ac) => (name, internOne(ac)) }
-        a.copy(a.stamps, sbt.internal.inc.APIs(internal, external), a.relations, a.infos, a.compilations)
+        val internal = apis.internal.map { case (name, ac) => (name, one(ac)) }
+        val external = apis.external.map { case (name, ac) => (name, one(ac)) }
+        val rebuilt = a.copy(a.stamps, sbt.internal.inc.APIs(internal, external), a.relations, a.infos, a.compilations)
+        (rebuilt, if (total == 0) 0.0 else alreadyHeld.toDouble / total)
       // Any other implementation is left alone rather than guessed at: interning is an optimisation,
       // and an analysis we cannot rebuild faithfully is one we should hand back untouched.
-      case other => other
+      case other => (other, 0.0)
     }
 
   private def bucket(key: model.WorkspaceKey): ConcurrentHashMap[Path, Entry] =
@@ -189,19 +205,20 @@ class AnalysisCache {
     // value, which it already had to.
     val hash = contentHash(analysisFile)
     val existing = hash.flatMap(h => Option(byContent.get(h))).flatMap(ref => Option(ref.get()))
-    val shared = existing match {
+    // A whole-analysis share is accounted for by identity in `retainedBytes`, not as interned classes.
+    val (shared, internedShare) = existing match {
       case Some(already) =>
         contentHits.increment()
-        already
+        (already, 0.0)
       case None =>
-        val fresh = internAnalysis(analysis)
+        val (fresh, share) = internAnalysis(analysis)
         hash.foreach(h => byContent.put(h, new ContentRef(h, fresh)): Unit)
-        fresh
+        (fresh, share)
     }
     val bytes =
       try Files.size(analysisFile)
       catch { case _: Exception => 0L }
-    bucket(key).put(analysisFile, Entry(mtime, shared, bytes, new AtomicLong(System.currentTimeMillis()))): Unit
+    bucket(key).put(analysisFile, Entry(mtime, shared, bytes, internedShare, new AtomicLong(System.currentTimeMillis()))): Unit
     shared
   }
 
@@ -220,6 +237,30 @@ class AnalysisCache {
       case None    => AnalysisCache.Freed(0, 0L)
     }
 
+  /** When each workspace last read or wrote an analysis, for the idle trim to choose which workspace to keep. */
+  def lastUsedMs: Map[model.WorkspaceKey, Long] =
+    byWorkspace
+      .entrySet()
+      .iterator()
+      .asScala
+      .flatMap(e => e.getValue.values().iterator().asScala.map(_.lastUsedMs.get).maxOption.map(e.getKey -> _))
+      .toMap
+
+  /** Estimated heap retained on each workspace's account, for [[bleep.bsp.BuildCache]] to weigh workspaces by.
+    *
+    * Each analysis is charged at [[AnalysisCache.estimateRetained]] of its file size, less the classes that were already interned when it was read. One held
+    * by several workspaces — byte-identical files share one graph — is split between them, so a workspace is charged what dropping it would roughly free
+    * rather than what it can reach.
+    */
+  def retainedBytes: Map[model.WorkspaceKey, Long] = {
+    val held = byWorkspace.entrySet().iterator().asScala.toList.flatMap(e => e.getValue.values().iterator().asScala.map(e.getKey -> _))
+    val holders = new java.util.IdentityHashMap[CompileAnalysis, Integer]()
+    held.foreach { case (_, entry) => holders.merge(entry.analysis, Integer.valueOf(1), (a, b) => Integer.valueOf(a.intValue + b.intValue)): Unit }
+    held.groupMapReduce(_._1) { case (_, entry) =>
+      AnalysisCache.estimateRetained(entry.fileBytes, entry.internedShare) / holders.get(entry.analysis).intValue
+    }(_ + _)
+  }
+
   /** What is held right now, for telemetry. Purely observational — nothing here drives eviction. */
   def stats: AnalysisCache.Stats = {
     val per = byWorkspace
@@ -263,6 +304,20 @@ object AnalysisCache {
   def standalone(buildDir: Path): Ref =
     Ref(new AnalysisCache, model.WorkspaceKey(buildDir, model.BuildVariant.Normal))
 
+  /** Heap bytes a loaded analysis retains per byte of its `analysis.zip`. The file is compressed and the graph is not: dlab worktrees held ~93MB of analysis
+    * files each and retained ~525MB per workspace with four resident, most of it analysis.
+    */
+  private val RetainedBytesPerFileByte = 5.0
+
+  /** The part of a loaded analysis that is `AnalyzedClass` trees, which is all interning can share: 597MB of a 2.03GB floor, measured on three dlab worktrees.
+    * Stamps and relations are the rest and are never shared piecemeal.
+    */
+  private val ApiShareOfRetained = 0.3
+
+  /** Estimated heap retained by an analysis read from a `fileBytes` file, of whose classes `internedShare` were already held elsewhere. */
+  private[bleep] def estimateRetained(fileBytes: Long, internedShare: Double): Long =
+    (fileBytes * RetainedBytesPerFileByte * (1.0 - ApiShareOfRetained * internedShare)).toLong
+
   case class Freed(entries: Int, fileBytes: Long)
   case class WorkspaceStats(key: model.WorkspaceKey, entries: Int, fileBytes: Long)
   case class Stats(
@@ -0,0 +1,130 @@
+package bleep.analysis
+
+import xsbti.compile.AnalysisContents
+
+import java.nio.file.{Files, Path, StandardCopyOption}
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap, Executors, Semaphore, ThreadFactory}
+import scala.jdk.CollectionConverters.*
+
+/** Writes zinc analyses to disk in the background, so a compile reports success as soon as its class files exist rather than after `analysis.zip` does.
+  *
+  * Serializing an analysis is not cheap — seconds for a large project — and it used to sit between zinc finishing and the compile reporting success, which is
+  * exactly where every downstream compile in the build was waiting. None of them needed the file: they read the analysis through [[pending]] first, and the
+  * object zinc just returned is the one they get.
+  *
+  * ==Ordering and crash safety==
+  *
+  * Writes of one file run in submission order, chained one behind the other, and a write that has been superseded by a later one for the same file before it
+  * started is skipped: only the newest analysis ever reaches the disk. Each write goes to `analysis.zip.tmp` and is renamed over the real file atomically, as
+  * before, so a crash mid-write leaves the previous analysis intact. A write that fails deletes the destination instead: an old analysis next to new class
+  * files would make the next compile trust a description of code that is no longer there, and a missing one only makes it start clean.
+  *
+  * ==Bound==
+  *
+  * Until it is written, a pending analysis is held here, and analyses are among the largest things the daemon holds. At most `MaxQueued` are; a compile
+  * finishing past that blocks in [[submit]] until a write completes, which is the old synchronous behaviour and no worse.
+  *
+  * ==Barriers==
+  *
+  * Anything that reads `analysis.zip` from outside this JVM must [[flush]] first: the reply to a BSP compile (the client may pack or read the target dir next),
+  * a compile handed to a worker JVM, a remote-cache push packing the target dir, a remote-cache install replacing it, and daemon shutdown.
+  */
+object AnalysisWriter {
+
+  /** Threads serializing. Zinc's store already parallelises one write internally; two lets a small project's write overtake a large one's. */
+  private val Threads = 2
+
+  /** Analyses held waiting to be written before [[submit]] pushes back on the compile. */
+  private val MaxQueued = 16
+
+  private final class Write(val file: Path, val contents: AnalysisContents, val serialize: Path => Unit, val landed: () => Unit)
+
+  /** The newest not-yet-written analysis per file. Readers consult it before the disk; a write removes itself only after it has landed. */
+  private val latest = new ConcurrentHashMap[Path, Write]()
+
+  /** The last write scheduled per file. The next one is chained behind it, which is all the per-file ordering there is. */
+  private val tails = new ConcurrentHashMap[Path, CompletableFuture[Void]]()
+
+  /** Writes that failed since the last [[flush]] of their file, so the barrier can report them. */
+  private val failures = new ConcurrentHashMap[Path, String]()
+
+  private val permits = new Semaphore(MaxQueued)
+
+  private val executor = Executors.newFixedThreadPool(
+    Threads,
+    new ThreadFactory {
+      private val counter = new java.util.concurrent.atomic.AtomicInteger(0)
+      def newThread(r: Runnable): Thread = {
+        val t = new Thread(r, s"analysis-writer-${counter.incrementAndGet()}")
+        t.setDaemon(true)
+        t
+      }
+    }
+  )
+
+  /** Schedule `contents` to be written to `file`.
+    *
+    * `serialize` writes the analysis to the path it is given — a temp file next to `file`. `landed` runs once the rename is done, with the file in place; it is
+    * where the caller seeds anything keyed by the file's new mtime.
+    */
+  def submit(file: Path, contents: AnalysisContents)(serialize: Path => Unit)(landed: () => Unit): Unit = {
+    permits.acquire()
+    val write = new Write(file, contents, serialize, landed)
+    latest.put(file, write): Unit
+    failures.remove(file): Unit
+    val scheduled = tails.compute(
+      file,
+      (_, previous) => {
+        val base = if (previous == null) CompletableFuture.completedFuture[Void](null) else previous
+        base.thenRunAsync(() => run(write), executor)
+      }
+    )
+    scheduled.whenComplete((_, _) => tails.remove(file, scheduled): Unit): Unit
+  }
+
+  private def run(write: Write): Unit =
+    try
+      if (latest.get(write.file) eq write) {
+        val tmp = write.file.resolveSibling(write.file.getFileName.toString + ".tmp")
+        try {
+          write.serialize(tmp)
+          Files.move(tmp, write.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+          write.landed()
+        } catch {
+          // Throwable, not Exception: an analysis too large to serialize fails with an OutOfMemoryError, and a write that escapes here completes its file's
+          // tail exceptionally. Every write chained behind it would then be skipped without releasing its permit or leaving `latest`, and `flush` would throw.
+          case e: Throwable =>
+            val message = s"Failed to save analysis to ${write.file}: $e"
+            System.err.println(s"[AnalysisWriter] $message — deleting it so the next compile starts clean")
+            try Files.deleteIfExists(tmp): Unit
+            catch { case _: Exception => () }
+            try Files.deleteIfExists(write.file): Unit
+            catch { case _: Exception => () }
+            failures.put(write.file, message): Unit
+        } finally latest.remove(write.file, write): Unit
+      }
+    finally permits.release()
+
+  /** The analysis waiting to be written to `file`, if there is one. Newer than whatever is on disk. */
+  def pending(file: Path): Option[AnalysisContents] =
+    Option(latest.get(file)).map(_.contents)
+
+  /** Whether `file` has an analysis, on disk or about to be. Use instead of `Files.exists` wherever the answer decides whether to read it. */
+  def exists(file: Path): Boolean =
+    latest.containsKey(file) || Files.exists(file)
+
+  def isPending(file: Path): Boolean =
+    latest.containsKey(file)
+
+  /** Wait until every write of these files scheduled so far has landed. Returns the failures among them, and forgets them. */
+  def flush(files: Iterable[Path]): List[String] =
+    files.iterator.flatMap { file =>
+      val tail = tails.get(file)
+      if (tail != null) tail.join(): Unit
+      Option(failures.remove(file))
+    }.toList
+
+  /** [[flush]] for every file with a write scheduled. */
+  def flushAll(): List[String] =
+    flush((tails.keySet().asScala.toList ++ failures.keySet().asScala).distinct)
+}
@@ -0,0 +1,84 @@
+package bleep.analysis
+
+import java.nio.file.{Files, Path}
+import scala.jdk.CollectionConverters.*
+
+/** Running a large project's compile on more than one core, where the compiler can.
+  *
+  * A project compiles as one zinc compile on one thread, and the governor reserves it one core. For most projects that is the right shape: the build's
+  * parallelism is across projects. It is the wrong one for the module every other module depends on when it has thousands of sources — it compiles alone, for
+  * minutes, on one core, while the rest of the machine waits for it.
+  *
+  * What the compilers offer is their backend: scalac 2.12+ and Scala 3.5+ can generate and write classfiles on a pool of `-Ybackend-parallelism` threads,
+  * which for a large module is a good part of the compile. Typing is single-threaded in both, and so stays.
+  *
+  * The extra threads run on cores the server reserves from the governor for the length of the compile, beside the compile's own, and only cores nothing else
+  * wants: a compile that finds the machine busy runs single-threaded exactly as before. So the flag's value follows what was granted, and changes between
+  * compiles of the same project. Zinc would take any change in scalac options for a changed setup and recompile the whole project, so the flag is left out of
+  * that comparison ([[stripped]]). The threads are the compiler's business alone; they do not change a single classfile.
+  */
+object BackendParallelism {
+
+  val Flag: String = "-Ybackend-parallelism"
+
+  /** A project needs this many sources before extra threads are worth asking for. Below it the backend is a few seconds, and the cores are better left to
+    * the projects compiling beside it.
+    */
+  val MinSources: Int = 500
+
+  /** Sources per backend thread asked for: 3,800 sources want 7 threads, 1,000 want 2. */
+  val SourcesPerThread: Int = 500
+
+  /** The most backend threads a compile asks for. Past this the backend waits on the single-threaded phases feeding it rather than on cores. */
+  val MaxThreads: Int = 8
+
+  /** Whether this Scala version's compiler takes [[Flag]]. Scala 2.11 and Scala 3 before 3.5 reject it as an unknown option. */
+  def supports(scalaVersion: String): Boolean =
+    scalaVersion.split('.').toList.flatMap(_.takeWhile(_.isDigit).toIntOption) match {
+      case 2 :: minor :: _ => minor >= 12
+      case 3 :: minor :: _ => minor >= 5
+      case major :: _      => major > 3
+      case Nil             => false
+    }
+
+  /** How many backend threads a compile of `config` could use, counting its own: 1 when it is not a Scala project on a compiler that supports the flag, when
+    * its options already set it, or when it is too small to benefit.
+    */
+  def wantedThreads(config: ProjectConfig): Int =
+    config.language match {
+      case sj: ProjectLanguage.ScalaJava if supports(sj.scalaVersion) && !sj.scalaOptions.exists(_.startsWith(Flag)) =>
+        val sources = countSources(config.sources)
+        if (sources < MinSources) 1 else math.min(MaxThreads, math.max(2, sources / SourcesPerThread))
+      case _ => 1
+    }
+
+  /** The scalac options to compile `language` with when `threads` backend threads were granted. */
+  def scalacOptions(language: ProjectLanguage.ScalaJava, threads: Int): List[String] =
+    if (threads <= 1 || !supports(language.scalaVersion) || language.scalaOptions.exists(_.startsWith(Flag))) language.scalaOptions
+    else language.scalaOptions ++ List(Flag, threads.toString)
+
+  /** `options` without any backend-parallelism setting, in either the two-argument or the `-Ybackend-parallelism:N` form: what decides whether two setups
+    * compile the same classfiles.
+    */
+  def stripped(options: Seq[String]): List[String] = {
+    def go(rest: List[String]): List[String] =
+      rest match {
+        case Flag :: _ :: tail                     => go(tail)
+        case head :: tail if head.startsWith(Flag) => go(tail)
+        case head :: tail                          => head :: go(tail)
+        case Nil                                   => Nil
+      }
+    go(options.toList)
+  }
+
+  private def countSources(sourceDirs: Set[Path]): Int =
+    NoopManifestStore.removeNestedDirs(sourceDirs).iterator.map { dir =>
+      if (!Files.isDirectory(dir)) 0
+      else
+        scala.util
+          .Using(Files.walk(dir)) { stream =>
+            stream.iterator().asScala.count(p => p.toString.endsWith(".scala") || p.toString.endsWith(".java"))
+          }
+          .getOrElse(0)
+    }.sum
+}
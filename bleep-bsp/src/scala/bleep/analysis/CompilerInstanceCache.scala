@@ -0,0 +1,243 @@
+package bleep.analysis
+
+import bleep.analysis.CompilerResolver.CompilerInstance
+
+import java.lang.management.ManagementFactory
+import java.nio.file.{Files, Path}
+import java.util.concurrent.{CompletableFuture, CompletionException, ConcurrentHashMap}
+import java.util.concurrent.atomic.{AtomicBoolean, LongAdder}
+import scala.collection.mutable
+import scala.jdk.CollectionConverters.*
+import scala.util.control.NonFatal
+
+/** The compiler classloaders the daemon holds, bounded by the metaspace they are estimated to pin.
+  *
+  * Every Scala compiler, Kotlin compiler and ECJ version a daemon has compiled with used to stay loaded for the life of the process, each behind its own
+  * unbounded map. Each is a `URLClassLoader` over tens of MB of jars, and once a compile has run through it, 100MB or more of metaspace and JIT'd code. A daemon
+  * serving branches on Scala 2.13, 3.3 and 3.5 and a couple of Kotlin versions holds all of them for good, and metaspace, unlike the heap, is never given back
+  * while the loader is reachable.
+  *
+  * One cache for all of them, so the bound is one figure for the whole daemon rather than one per compiler family:
+  *
+  *   - '''Leases.''' A compile holds a [[CompilerInstanceCache.Lease]] on its compiler for as long as it runs. Only an entry nobody holds can be evicted, so a
+  *     compile never has its loader closed under it. The cache can therefore run over budget while every entry is in use; it comes back under as leases are
+  *     returned.
+  *   - '''LRU by metaspace.''' When the estimated total exceeds the budget, unheld entries go least recently used first until it fits. The estimate is
+  *     [[CompilerInstanceCache.MetaspacePerJarByte]] times the size of the loader's jars: actual metaspace depends on how much of the compiler a build
+  *     exercises, which is not known when the loader is made, and the jar size is what ranks a Kotlin compiler above ECJ, which is what eviction needs.
+  *   - '''Closing.''' An evicted loader is closed, releasing its jar file handles, and dropped, so the GC can unload its classes. Whatever was derived from it —
+  *     see [[CompilerInstanceCache.Lease.derived]] — goes with it.
+  *
+  * Creation happens outside the lock, once per key: concurrent compiles wanting the same new compiler wait for the one resolving it rather than each building
+  * their own loader.
+  *
+  * @param budgetBytes
+  *   estimated metaspace the unheld entries may pin
+  * @param onEvict
+  *   called after an entry was evicted and closed, with why: `budget` or `idle`
+  */
+final class CompilerInstanceCache(val budgetBytes: Long, onEvict: (CompilerInstanceCache.Key, Long, String) => Unit) {
+  import CompilerInstanceCache.*
+
+  private final class Slot(val key: Key) {
+    val ready = new CompletableFuture[CompilerInstance]()
+    val derived = new ConcurrentHashMap[String, AnyRef]()
+    // guarded by the cache's lock
+    var refs: Int = 0
+    var lastUsedMs: Long = 0L
+    var metaspaceBytes: Long = 0L
+    var evicted: Boolean = false
+
+    def loaded: Boolean = ready.isDone && !ready.isCompletedExceptionally
+  }
+
+  private val slots = mutable.HashMap.empty[Key, Slot]
+  private val hits = new LongAdder()
+  private val misses = new LongAdder()
+  private val evictions = new LongAdder()
+
+  /** Hold the compiler for `key`, creating it with `create` if it is not cached. The caller must close the lease when done with the compiler. */
+  def lease(key: Key)(create: => CompilerInstance): Lease = {
+    val (slot, creating) = synchronized {
+      val (slot, creating) = slots.get(key) match {
+        case Some(existing) =>
+          hits.increment()
+          (existing, false)
+        case None =>
+          misses.increment()
+          val fresh = new Slot(key)
+          slots.put(key, fresh)
+          (fresh, true)
+      }
+      slot.refs += 1
+      slot.lastUsedMs = System.currentTimeMillis()
+      (slot, creating)
+    }
+    if (creating)
+      try {
+        val instance = create
+        val estimate = estimateMetaspace(instance.allJars)
+        synchronized(slot.metaspaceBytes = estimate)
+        slot.ready.complete(instance): Unit
+      } catch {
+        case NonFatal(e) =>
+          synchronized(if (slots.get(key).contains(slot)) slots.remove(key): Unit)
+          slot.ready.completeExceptionally(e): Unit
+      }
+    try slot.ready.join()
+    catch {
+      case e: CompletionException =>
+        release(slot)
+        throw e.getCause
+    }
+    enforceBudget()
+    new Lease(slot.ready.join(), slot.derived, () => release(slot))
+  }
+
+  /** Run `f` holding the compiler for `key`. */
+  def use[A](key: Key)(create: => CompilerInstance)(f: Lease => A): A = {
+    val lease = this.lease(key)(create)
+    try f(lease)
+    finally lease.close()
+  }
+
+  private def release(slot: Slot): Unit = {
+    val close = synchronized {
+      slot.refs -= 1
+      slot.lastUsedMs = System.currentTimeMillis()
+      slot.evicted && slot.refs == 0
+    }
+    if (close) closeSlot(slot)
+    else enforceBudget()
+  }
+
+  /** Evict unheld entries, least recently used first, until the estimate fits the budget. */
+  private def enforceBudget(): Unit = {
+    val victims = synchronized {
+      var total = slots.valuesIterator.filter(_.loaded).map(_.metaspaceBytes).sum
+      val candidates = slots.valuesIterator.filter(s => s.refs == 0 && s.loaded).toList.sortBy(_.lastUsedMs).iterator
+      val evict = List.newBuilder[Slot]
+      while (total > budgetBytes && candidates.hasNext) {
+        val slot = candidates.next()
+        total -= slot.metaspaceBytes
+        evict += detach(slot)
+      }
+      evict.result()
+    }
+    victims.foreach { slot =>
+      closeSlot(slot)
+      onEvict(slot.key, slot.metaspaceBytes, "budget")
+    }
+  }
+
+  /** Evict every unheld entry but the most recently used of each [[Key.kind]], for a daemon nobody is using. Returns the keys evicted. */
+  def trimIdle(): List[Key] = {
+    val victims = synchronized {
+      slots.valuesIterator
+        .filter(_.loaded)
+        .toList
+        .groupBy(_.key.kind)
+        .valuesIterator
+        .flatMap(_.sortBy(-_.lastUsedMs).drop(1).filter(_.refs == 0))
+        .map(detach)
+        .toList
+    }
+    victims.foreach { slot =>
+      closeSlot(slot)
+      onEvict(slot.key, slot.metaspaceBytes, "idle")
+    }
+    victims.map(_.key).sortBy(_.toString)
+  }
+
+  /** Forget every entry, closing those nobody holds. Held ones are closed when their last lease is returned. */
+  def clear(): Unit = {
+    val unheld = synchronized {
+      val all = slots.valuesIterator.toList
+      slots.clear()
+      all.foreach(_.evicted = true)
+      all.filter(_.refs == 0)
+    }
+    unheld.foreach(closeSlot)
+  }
+
+  // called under the lock
+  private def detach(slot: Slot): Slot = {
+    slots.remove(slot.key)
+    slot.evicted = true
+    evictions.increment()
+    slot
+  }
+
+  private def closeSlot(slot: Slot): Unit = {
+    slot.derived.clear()
+    if (slot.loaded) slot.ready.join().loader match {
+      case closeable: AutoCloseable =>
+        try closeable.close()
+        catch { case NonFatal(e) => System.err.println(s"[CompilerInstanceCache] Could not close the ${slot.key} loader: ${e.getMessage}") }
+      case _ => ()
+    }
+  }
+
+  def stats: Stats = synchronized {
+    val nowMs = System.currentTimeMillis()
+    val entries = slots.valuesIterator
+      .filter(_.loaded)
+      .map(s => EntryStats(s.key, s.metaspaceBytes, s.refs, nowMs - s.lastUsedMs))
+      .toList
+      .sortBy(e => (e.key.kind, e.key.version))
+    Stats(entries, budgetBytes, hits.sum(), misses.sum(), evictions.sum())
+  }
+
+}
+
+object CompilerInstanceCache {
+
+  /** @param kind
+    *   the compiler family — `scala`, `kotlin`, `ecj`. Idle trimming keeps the most recent of each.
+    */
+  case class Key(kind: String, version: String) {
+    override def toString: String = s"$kind $version"
+  }
+
+  /** A compiler held by one user. Closing it more than once is harmless. */
+  final class Lease private[analysis] (val instance: CompilerInstance, derivedValues: ConcurrentHashMap[String, AnyRef], release: () => Unit)
+      extends AutoCloseable {
+    private val closed = new AtomicBoolean(false)
+
+    /** Something built from the compiler that is worth keeping as long as the compiler is — a reflective setup, say — computed once per entry under `name`
+      * and dropped with it.
+      */
+    def derived[A <: AnyRef](name: String)(make: CompilerInstance => A): A =
+      derivedValues.computeIfAbsent(name, _ => make(instance)).asInstanceOf[A]
+
+    def close(): Unit =
+      if (closed.compareAndSet(false, true)) release()
+  }
+
+  case class EntryStats(key: Key, metaspaceBytes: Long, leases: Int, idleMs: Long)
+
+  case class Stats(entries: List[EntryStats], budgetBytes: Long, hits: Long, misses: Long, evictions: Long) {
+    def metaspaceBytes: Long = entries.map(_.metaspaceBytes).sum
+  }
+
+  /** Estimated metaspace per byte of compiler jar. Jars are compressed and class metadata is larger than the bytecode it came from; a Scala 3 compiler's ~25MB
+    * of jars lands at roughly 100MB of metaspace once a real build has run through it, and Kotlin's larger compiler in proportion.
+    */
+  val MetaspacePerJarByte: Double = 4.0
+
+  /** The budget when `-XX:MaxMetaspaceSize` is not set: room for three Scala compilers and two Kotlin ones, which is more than a daemon switching between a
+    * handful of branches actually alternates between.
+    */
+  val DefaultBudgetBytes: Long = 1024L * 1024L * 1024L
+
+  /** Half of `-XX:MaxMetaspaceSize` when one is set — the rest is bleep's own classes, zinc's, and the compiler bridges — or [[DefaultBudgetBytes]]. */
+  def defaultBudget(): Long =
+    ManagementFactory.getMemoryPoolMXBeans.asScala
+      .find(_.getName == "Metaspace")
+      .map(_.getUsage.getMax)
+      .filter(_ > 0)
+      .fold(DefaultBudgetBytes)(_ / 2)
+
+  private[analysis] def estimateMetaspace(jars: Seq[Path]): Long =
+    (jars.iterator.map(jar => if (Files.isRegularFile(jar)) Files.size(jar) else 0L).sum * MetaspacePerJarByte).toLong
+}
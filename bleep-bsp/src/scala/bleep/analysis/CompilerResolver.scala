@@ -125,24 +125,35 @@ object CompilerResolver {
 
   private case class InstanceKey(language: String, version: String)
 
-  /** Cache of resolved compiler instances */
+  /** Cache of resolved toolchain instances: the Scala.js linker, Scala Native tools, Kotlin/JS and Native. Unbounded, since their users hold an instance for
+    * a whole link without a lease; the compilers themselves are in [[compilers]].
+    */
   private val instanceCache = new ConcurrentHashMap[InstanceKey, CompilerInstance]()
 
   /** Cache of resolved JAR paths */
   private val jarCache = new ConcurrentHashMap[InstanceKey, Seq[Path]]()
 
+  /** The Scala and Kotlin compilers, and ECJ (see `ZincBridge`), bounded by the metaspace they pin. A compile leases the compiler it uses for as long as it
+    * runs; see [[CompilerInstanceCache]].
+    */
+  private[bleep] val compilers: CompilerInstanceCache =
+    new CompilerInstanceCache(
+      CompilerInstanceCache.defaultBudget(),
+      (key, metaspaceBytes, reason) => bleep.bsp.BspMetrics.recordCompilerEvict(key.kind, key.version, metaspaceBytes, reason)
+    )
+
   // ============================================================================
   // Resolution Methods
   // ============================================================================
 
-  /** Resolve and create a Scala compiler instance for the specified version.
+  /** Resolve and create a Scala compiler instance for the specified version. For tests, which want its jars or to compare instances; see below.
     *
     * @param version
     *   Scala version (e.g., "3.3.3", "3.7.4")
     * @return
     *   compiler instance with isolated classloader
     */
-  def getScalaCompiler(version: String): CompilerInstance =
+  private[analysis] def getScalaCompiler(version: String): CompilerInstance =
     getScalaCompiler(VersionScala(version))
 
   /** Resolve and create a Scala compiler instance for the specified version.
@@ -150,28 +161,33 @@ object CompilerResolver {
     * @param version
     *   VersionScala instance
     * @return
-    *   compiler instance with isolated classloader
+    *   compiler instance with isolated classloader, cached but not held: it may be evicted and closed at any point after this returns. So only for tests;
+    *   anything loading classes through it uses [[leaseScalaCompiler]].
     */
-  def getScalaCompiler(version: VersionScala): CompilerInstance = {
-    val key = InstanceKey("scala", version.scalaVersion)
-    instanceCache.computeIfAbsent(
-      key,
-      _ => {
-        val jars = resolveScalaCompiler(version)
-        val loader = createCompilerClassLoader(jars)
-        CompilerInstance("scala", version.scalaVersion, jars, loader)
-      }
-    )
+  private[analysis] def getScalaCompiler(version: VersionScala): CompilerInstance =
+    compilers.use(CompilerInstanceCache.Key("scala", version.scalaVersion))(createScalaCompiler(version))(_.instance)
+
+  /** Hold the Scala compiler for `version` for the length of a compile. Unlike [[getScalaCompiler]], the loader cannot be evicted and closed until the lease
+    * is.
+    */
+  def leaseScalaCompiler(version: String): CompilerInstanceCache.Lease = {
+    val v = VersionScala(version)
+    compilers.lease(CompilerInstanceCache.Key("scala", v.scalaVersion))(createScalaCompiler(v))
   }
 
-  /** Resolve and create a Kotlin compiler instance for the specified version.
+  private def createScalaCompiler(version: VersionScala): CompilerInstance = {
+    val jars = resolveScalaCompiler(version)
+    CompilerInstance("scala", version.scalaVersion, jars, createCompilerClassLoader(jars))
+  }
+
+  /** Resolve and create a Kotlin compiler instance for the specified version. For tests, like [[getScalaCompiler]].
     *
     * @param version
     *   Kotlin version (e.g., "2.0.0", "2.3.0")
     * @return
     *   compiler instance with isolated classloader
     */
-  def getKotlinCompiler(version: String): CompilerInstance =
+  private[analysis] def getKotlinCompiler(version: String): CompilerInstance =
     getKotlinCompiler(VersionKotlin(version))
 
   /** Resolve and create a Kotlin compiler instance for the specified version.
@@ -179,18 +195,20 @@ object CompilerResolver {
     * @param version
     *   VersionKotlin instance
     * @return
-    *   compiler instance with isolated classloader
+    *   compiler instance with isolated classloader, cached but not held. So only for tests; anything loading classes through it uses [[leaseKotlinCompiler]].
     */
-  def getKotlinCompiler(version: VersionKotlin): CompilerInstance = {
-    val key = InstanceKey("kotlin", version.kotlinVersion)
-    instanceCache.computeIfAbsent(
-      key,
-      _ => {
-        val jars = resolveKotlinCompiler(version)
-        val loader = createCompilerClassLoader(jars)
-        CompilerInstance("kotlin", version.kotlinVersion, jars, loader)
-      }
-    )
+  private[analysis] def getKotlinCompiler(version: VersionKotlin): CompilerInstance =
+    compilers.use(CompilerInstanceCache.Key("kotlin", version.kotlinVersion))(createKotlinCompiler(version))(_.instance)
+
+  /** Hold the Kotlin compiler for `version` for the length of a compile. See [[leaseScalaCompiler]]. */
+  def leaseKotlinCompiler(version: String): CompilerInstanceCache.Lease = {
+    val v = VersionKotlin(version)
+    compilers.lease(CompilerInstanceCache.Key("kotlin", v.kotlinVersion))(createKotlinCompiler(v))
+  }
+
+  private def createKotlinCompiler(version: VersionKotlin): CompilerInstance = {
+    val jars = resolveKotlinCompiler(version)
+    CompilerInstance("kotlin", version.kotlinVersion, jars, createCompilerClassLoader(jars))
   }
 
   /** Resolve Scala 3 compiler JARs for a specific version.
@@ -494,6 +512,7 @@ object CompilerResolver {
 
   /** Clear all caches (useful for testing) */
   def clearCaches(): Unit = {
+    compilers.clear()
     instanceCache.clear()
     jarCache.clear()
   }
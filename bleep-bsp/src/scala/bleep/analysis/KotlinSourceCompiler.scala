@@ -3,7 +3,6 @@ package bleep.analysis
 import java.io.File
 import java.nio.file.{Files, Path}
 import java.security.MessageDigest
-import java.util.concurrent.ConcurrentHashMap
 import scala.collection.mutable
 import scala.jdk.CollectionConverters.*
 import scala.util.Try
@@ -68,8 +67,6 @@ object KotlinSourceCompiler extends Compiler {
       fileLocationsClass: Class[?]
   )
 
-  private val setupCache = new ConcurrentHashMap[String, CachedCompilerSetup]()
-
   // ==========================================================================
   // Classpath Change Detection
   // ==========================================================================
@@ -215,26 +212,30 @@ object KotlinSourceCompiler extends Compiler {
 
       if cancellation.isCancelled then return CompilationCancelled
 
-      // Get or create cached compiler setup
-      val setup = getOrCreateSetup(config.version)
-
-      // Try incremental compilation first, fall back to full compilation
-      val result = if setup.incrementalRunnerClass != null then {
-        debug(s"Compiling ${sourcePaths.size} Kotlin files (incremental)")
-        val incrementalResult = compileIncremental(setup, config, sourcePaths, input, listener, cancellation)
-        incrementalResult match {
-          case CompilationFailure(errs) if errs.exists(e => e.message.contains("cache\" is null") || e.message.contains("cache is null")) =>
-            // Kotlin IC cache is corrupted — invalidate and retry
-            debug("Kotlin IC cache corrupted (cache is null), invalidating and retrying")
-            val cacheDir = input.outputDir.resolve(".kotlin-ic")
-            invalidateCache(cacheDir)
-            compileIncremental(setup, config, sourcePaths, input, listener, cancellation)
-          case other => other
-        }
-      } else {
-        debug(s"Compiling ${sourcePaths.size} Kotlin files (full)")
-        compileWithReflection(setup, config, sourcePaths, input, listener, cancellation)
-      }
+      // Held until the compile is done, so the compiler cannot be evicted and closed under it
+      val lease = CompilerResolver.leaseKotlinCompiler(config.version)
+      val result =
+        try {
+          val setup = setupFor(lease)
+
+          // Try incremental compilation first, fall back to full compilation
+          if setup.incrementalRunnerClass != null then {
+            debug(s"Compiling ${sourcePaths.size} Kotlin files (incremental)")
+            val incrementalResult = compileIncremental(setup, config, sourcePaths, input, listener, cancellation)
+            incrementalResult match {
+              case CompilationFailure(errs) if errs.exists(e => e.message.contains("cache\" is null") || e.message.contains("cache is null")) =>
+                // Kotlin IC cache is corrupted — invalidate and retry
+                debug("Kotlin IC cache corrupted (cache is null), invalidating and retrying")
+                val cacheDir = input.outputDir.resolve(".kotlin-ic")
+                invalidateCache(cacheDir)
+                compileIncremental(setup, config, sourcePaths, input, listener, cancellation)
+              case other => other
+            }
+          } else {
+            debug(s"Compiling ${sourcePaths.size} Kotlin files (full)")
+            compileWithReflection(setup, config, sourcePaths, input, listener, cancellation)
+          }
+        } finally lease.close()
 
       result match {
         case CompilationSuccess(_, classes) =>
@@ -278,114 +279,110 @@ object KotlinSourceCompiler extends Compiler {
       }
     }
 
-  /** Get or create cached compiler setup for a version */
-  private def getOrCreateSetup(version: String): CachedCompilerSetup =
-    setupCache.computeIfAbsent(
-      version,
-      _ => {
-        val instance = CompilerResolver.getKotlinCompiler(version)
-        val loader = instance.loader
-
-        // Load core classes
-        val k2CompilerClass = loader.loadClass("org.jetbrains.kotlin.cli.jvm.K2JVMCompiler")
-        val argumentsClass = loader.loadClass("org.jetbrains.kotlin.cli.common.arguments.K2JVMCompilerArguments")
-        val messageCollectorClass = loader.loadClass("org.jetbrains.kotlin.cli.common.messages.MessageCollector")
-        val severityClass = loader.loadClass("org.jetbrains.kotlin.cli.common.messages.CompilerMessageSeverity")
-        val locationClass = loader.loadClass("org.jetbrains.kotlin.cli.common.messages.CompilerMessageSourceLocation")
-        val servicesClass = loader.loadClass("org.jetbrains.kotlin.config.Services")
-        val servicesBuilderClass = loader.loadClass("org.jetbrains.kotlin.config.Services$Builder")
-        val exitCodeClass = loader.loadClass("org.jetbrains.kotlin.cli.common.ExitCode")
-        val canceledStatusClass = loader.loadClass("org.jetbrains.kotlin.progress.CompilationCanceledStatus")
-        val canceledExceptionClass = loader.loadClass("org.jetbrains.kotlin.progress.CompilationCanceledException")
-
-        val exitCodeOK = exitCodeClass.getField("OK").get(null)
-        val severityError = severityClass.getField("ERROR").get(null)
-        val severityException = severityClass.getField("EXCEPTION").get(null)
-
-        // Note: We don't cache the compiler instance because K2JVMCompiler has internal state
-        // that doesn't reset properly between invocations, causing issues when compiling
-        // multiple files or switching between incremental/non-incremental modes.
-        // Instead, we create a new instance for each compilation (see compileWithReflection).
-        val compilerInstance: Any = null // Placeholder - created fresh in compileWithReflection
-
-        val execMethod = k2CompilerClass.getMethods
-          .find { m =>
-            m.getName == "exec" &&
-            m.getParameterCount == 3 &&
-            m.getParameterTypes()(0).getName == "org.jetbrains.kotlin.cli.common.messages.MessageCollector" &&
-            m.getParameterTypes()(1).getName == "org.jetbrains.kotlin.config.Services"
-          }
-          .getOrElse(throw new NoSuchMethodException("Could not find K2JVMCompiler.exec method"))
-
-        // Try to load incremental compilation support.
-        //
-        // We deliberately use `BuildHistoryJvmICRunner`, not `IncrementalJvmCompilerRunner`. Since Kotlin 2.2 the latter *only* supports the
-        // classpath-snapshot code path: it hard-errors with "Unexpected ClasspathSnapshotDisabled for this code path" unless you feed it
-        // pre-computed `ClasspathChanges.ClasspathSnapshotEnabled` snapshot files, which we do not produce. `BuildHistoryJvmICRunner` is the
-        // build-history-based runner (what Maven uses) and works with nothing but a build-history file.
-        //
-        // It exists from Kotlin 2.2.0 onwards with a stable 7-arg constructor. On older compilers it is absent and we compile non-incrementally.
-        val (incrementalRunnerClass, buildReporterInstance, modulesApiHistoryInstance, changedFilesToBeComputedInstance, icFeaturesClass, fileLocationsClass) =
-          try {
-            val runnerClass = loader.loadClass("org.jetbrains.kotlin.incremental.BuildHistoryJvmICRunner")
-
-            // DoNothingBuildReporter.INSTANCE
-            val buildReporterClass = loader.loadClass("org.jetbrains.kotlin.build.report.DoNothingBuildReporter")
-            val buildReporter = buildReporterClass.getField("INSTANCE").get(null)
-
-            // EmptyModulesApiHistory.INSTANCE — we compile one module per invocation, so there is no sibling-module history to consult.
-            val modulesApiHistoryClass = loader.loadClass("org.jetbrains.kotlin.incremental.multiproject.EmptyModulesApiHistory")
-            val modulesApiHistory = modulesApiHistoryClass.getField("INSTANCE").get(null)
-
-            // ChangedFiles.DeterminableFiles.ToBeComputed.INSTANCE — lets the runner diff sources itself against its own snapshot.
-            // NOTE: passing `ChangedFiles.Unknown` here makes `IncrementalCompilerRunner.compile` return `RequiresRebuild` immediately,
-            // i.e. a full compile on every single build.
-            val changedFilesClass = loader.loadClass("org.jetbrains.kotlin.incremental.ChangedFiles$DeterminableFiles$ToBeComputed")
-            val changedFilesToBeComputed = changedFilesClass.getField("INSTANCE").get(null)
-
-            // IncrementalCompilationFeatures class (has default constructor)
-            val featuresClass = loader.loadClass("org.jetbrains.kotlin.incremental.IncrementalCompilationFeatures")
-
-            // FileLocations class
-            val locationsClass = loader.loadClass("org.jetbrains.kotlin.incremental.storage.FileLocations")
-
-            debug(s"Loaded BuildHistoryJvmICRunner for Kotlin $version")
-            (runnerClass, buildReporter, modulesApiHistory, changedFilesToBeComputed, featuresClass, locationsClass)
-          } catch {
-            case e: ClassNotFoundException =>
-              System.err.println(
-                s"[bleep] Kotlin $version has no BuildHistoryJvmICRunner (${e.getMessage}); incremental Kotlin compilation is unavailable, " +
-                  s"every build will be a full compile. Use Kotlin 2.2.0 or newer."
-              )
-              (null, null, null, null, null, null)
-          }
+  /** The reflective setup for a leased compiler, built once per compiler and dropped with it when [[CompilerResolver.compilers]] evicts it. */
+  private def setupFor(lease: CompilerInstanceCache.Lease): CachedCompilerSetup =
+    lease.derived("kotlin-setup") { instance =>
+      val loader = instance.loader
+
+      // Load core classes
+      val k2CompilerClass = loader.loadClass("org.jetbrains.kotlin.cli.jvm.K2JVMCompiler")
+      val argumentsClass = loader.loadClass("org.jetbrains.kotlin.cli.common.arguments.K2JVMCompilerArguments")
+      val messageCollectorClass = loader.loadClass("org.jetbrains.kotlin.cli.common.messages.MessageCollector")
+      val severityClass = loader.loadClass("org.jetbrains.kotlin.cli.common.messages.CompilerMessageSeverity")
+      val locationClass = loader.loadClass("org.jetbrains.kotlin.cli.common.messages.CompilerMessageSourceLocation")
+      val servicesClass = loader.loadClass("org.jetbrains.kotlin.config.Services")
+      val servicesBuilderClass = loader.loadClass("org.jetbrains.kotlin.config.Services$Builder")
+      val exitCodeClass = loader.loadClass("org.jetbrains.kotlin.cli.common.ExitCode")
+      val canceledStatusClass = loader.loadClass("org.jetbrains.kotlin.progress.CompilationCanceledStatus")
+      val canceledExceptionClass = loader.loadClass("org.jetbrains.kotlin.progress.CompilationCanceledException")
+
+      val exitCodeOK = exitCodeClass.getField("OK").get(null)
+      val severityError = severityClass.getField("ERROR").get(null)
+      val severityException = severityClass.getField("EXCEPTION").get(null)
+
+      // Note: We don't cache the compiler instance because K2JVMCompiler has internal state
+      // that doesn't reset properly between invocations, causing issues when compiling
+      // multiple files or switching between incremental/non-incremental modes.
+      // Instead, we create a new instance for each compilation (see compileWithReflection).
+      val compilerInstance: Any = null // Placeholder - created fresh in compileWithReflection
+
+      val execMethod = k2CompilerClass.getMethods
+        .find { m =>
+          m.getName == "exec" &&
+          m.getParameterCount == 3 &&
+          m.getParameterTypes()(0).getName == "org.jetbrains.kotlin.cli.common.messages.MessageCollector" &&
+          m.getParameterTypes()(1).getName == "org.jetbrains.kotlin.config.Services"
+        }
+        .getOrElse(throw new NoSuchMethodException("Could not find K2JVMCompiler.exec method"))
 
-        CachedCompilerSetup(
-          loader = loader,
-          k2CompilerClass = k2CompilerClass,
-          compilerInstance = compilerInstance,
-          argumentsClass = argumentsClass,
-          messageCollectorClass = messageCollectorClass,
-          severityClass = severityClass,
-          locationClass = locationClass,
-          servicesClass = servicesClass,
-          servicesBuilderClass = servicesBuilderClass,
-          exitCodeClass = exitCodeClass,
-          canceledStatusClass = canceledStatusClass,
-          canceledExceptionClass = canceledExceptionClass,
-          exitCodeOK = exitCodeOK,
-          severityError = severityError,
-          severityException = severityException,
-          execMethod = execMethod,
-          incrementalRunnerClass = incrementalRunnerClass,
-          buildReporterInstance = buildReporterInstance,
-          modulesApiHistoryInstance = modulesApiHistoryInstance,
-          changedFilesToBeComputedInstance = changedFilesToBeComputedInstance,
-          icFeaturesClass = icFeaturesClass,
-          fileLocationsClass = fileLocationsClass
-        )
-      }
-    )
+      // Try to load incremental compilation support.
+      //
+      // We deliberately use `BuildHistoryJvmICRunner`, not `IncrementalJvmCompilerRunner`. Since Kotlin 2.2 the latter *only* supports the
+      // classpath-snapshot code path: it hard-errors with "Unexpected ClasspathSnapshotDisabled for this code path" unless you feed it
+      // pre-computed `ClasspathChanges.ClasspathSnapshotEnabled` snapshot files, which we do not produce. `BuildHistoryJvmICRunner` is the
+      // build-history-based runner (what Maven uses) and works with nothing but a build-history file.
+      //
+      // It exists from Kotlin 2.2.0 onwards with a stable 7-arg constructor. On older compilers it is absent and we compile non-incrementally.
+      val (incrementalRunnerClass, buildReporterInstance, modulesApiHistoryInstance, changedFilesToBeComputedInstance, icFeaturesClass, fileLocationsClass) =
+        try {
+          val runnerClass = loader.loadClass("org.jetbrains.kotlin.incremental.BuildHistoryJvmICRunner")
+
+          // DoNothingBuildReporter.INSTANCE
+          val buildReporterClass = loader.loadClass("org.jetbrains.kotlin.build.report.DoNothingBuildReporter")
+          val buildReporter = buildReporterClass.getField("INSTANCE").get(null)
+
+          // EmptyModulesApiHistory.INSTANCE — we compile one module per invocation, so there is no sibling-module history to consult.
+          val modulesApiHistoryClass = loader.loadClass("org.jetbrains.kotlin.incremental.multiproject.EmptyModulesApiHistory")
+          val modulesApiHistory = modulesApiHistoryClass.getField("INSTANCE").get(null)
+
+          // ChangedFiles.DeterminableFiles.ToBeComputed.INSTANCE — lets the runner diff sources itself against its own snapshot.
+          // NOTE: passing `ChangedFiles.Unknown` here makes `IncrementalCompilerRunner.compile` return `RequiresRebuild` immediately,
+          // i.e. a full compile on every single build.
+          val changedFilesClass = loader.loadClass("org.jetbrains.kotlin.incremental.ChangedFiles$DeterminableFiles$ToBeComputed")
+          val changedFilesToBeComputed = changedFilesClass.getField("INSTANCE").get(null)
+
+          // IncrementalCompilationFeatures class (has default constructor)
+          val featuresClass = loader.loadClass("org.jetbrains.kotlin.incremental.IncrementalCompilationFeatures")
+
+          // FileLocations class
+          val locationsClass = loader.loadClass("org.jetbrains.kotlin.incremental.storage.FileLocations")
+
+          debug(s"Loaded BuildHistoryJvmICRunner for Kotlin $version")
+          (runnerClass, buildReporter, modulesApiHistory, changedFilesToBeComputed, featuresClass, locationsClass)
+        } catch {
+          case e: ClassNotFoundException =>
+            System.err.println(
+              s"[bleep] Kotlin $version has no BuildHistoryJvmICRunner (${e.getMessage}); incremental Kotlin compilation is unavailable, " +
+                s"every build will be a full compile. Use Kotlin 2.2.0 or newer."
+            )
+            (null, null, null, null, null, null)
+        }
+
+      CachedCompilerSetup(
+        loader = loader,
+        k2CompilerClass = k2CompilerClass,
+        compilerInstance = compilerInstance,
+        argumentsClass = argumentsClass,
+        messageCollectorClass = messageCollectorClass,
+        severityClass = severityClass,
+        locationClass = locationClass,
+        servicesClass = servicesClass,
+        servicesBuilderClass = servicesBuilderClass,
+        exitCodeClass = exitCodeClass,
+        canceledStatusClass = canceledStatusClass,
+        canceledExceptionClass = canceledExceptionClass,
+        exitCodeOK = exitCodeOK,
+        severityError = severityError,
+        severityException = severityException,
+        execMethod = execMethod,
+        incrementalRunnerClass = incrementalRunnerClass,
+        buildReporterInstance = buildReporterInstance,
+        modulesApiHistoryInstance = modulesApiHistoryInstance,
+        changedFilesToBeComputedInstance = changedFilesToBeComputedInstance,
+        icFeaturesClass = icFeaturesClass,
+        fileLocationsClass = fileLocationsClass
+      )
+    }
 
   /** Compile using Kotlin's IncrementalJvmCompilerRunner */
   private def compileIncremental(
@@ -2,8 +2,8 @@ package bleep.analysis
 
 import bleep.bsp.protocol.KillReason
 import cats.effect.IO
-import java.io.{File, IOException}
-import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import java.io.File
+import java.nio.file.{Files, Path, StandardOpenOption}
 import java.util.Optional
 import scala.jdk.CollectionConverters.*
 import scala.jdk.OptionConverters.*
@@ -56,8 +56,9 @@ object ZincBridge {
   // NOT cached: Compilers/AnalyzingCompiler — their ClassLoaderCache uses HashMap
   // (not thread-safe) so they must be created fresh per compilation.
   // The Scala compiler classes themselves are cached in ScalaInstance.loader()
-  // (via CompilerResolver.instanceCache), so fresh ClassLoaderCache only re-loads
-  // the small bridge classes, not the full compiler.
+  // (via CompilerResolver.compilers, a CompilerInstanceCache each compile leases
+  // its compiler from), so fresh ClassLoaderCache only re-loads the small bridge
+  // classes, not the full compiler.
 
   /** Singleton incremental compiler — stateless, thread-safe. */
   private lazy val incrementalCompiler: IncrementalCompiler = ZincUtil.defaultIncrementalCompiler
@@ -80,9 +81,6 @@ object ZincBridge {
     out.result()
   }
 
-  /** Cached ZincScalaInstance per Scala version. Immutable, safe to share. */
-  private val scalaInstanceCache = new java.util.concurrent.ConcurrentHashMap[String, ZincScalaInstance]()
-
   /** Cached bridge jar per Scala version. Avoids coursier I/O on every compile. */
   private val bridgeCache = new java.util.concurrent.ConcurrentHashMap[String, Path]()
 
@@ -91,7 +89,7 @@ object ZincBridge {
     */
   private val ecjJarCache = new java.util.concurrent.ConcurrentHashMap[String, Seq[Path]]()
 
-  /** Cached ECJ classloader per ECJ version, because ECJ's caches are `static` and therefore per-classloader.
+  /** The ECJ classloader per ECJ version is shared rather than built per compile, because ECJ's caches are `static` and therefore per-classloader.
     *
     * `org.eclipse.jdt.internal.compiler.util.JRTUtil` keeps the JDK module image in statics: `images`, `ctSymFiles`, `JRT_FILE_SYSTEMS`, and `classCache` (a
     * `SoftClassCache` of already-parsed JDK class files). A fresh classloader per compile discards all four, so every Java compile re-opens `ct.sym` as a zip
@@ -102,11 +100,15 @@ object ZincBridge {
     * Sharing one loader across concurrent compiles is also the way ECJ is meant to be used (the Eclipse IDE reuses it for the life of the process); those
     * statics are concurrent structures. Only the loader is shared — `EcjCompiler` still gets a per-compile cancellation token and progress listener.
     *
-    * Never closed, deliberately: it lives as long as the daemon, and closing it would throw away the caches that are the entire point. What that retains is
-    * bounded by the number of distinct ECJ versions the daemon serves — normally one — not by compiles or workspaces: 807 classes of metaspace per version,
-    * plus a `SoftClassCache` the GC can reclaim under pressure. The previous code paid that class-loading cost per compile instead.
+    * Held in [[CompilerResolver.compilers]] next to the Scala and Kotlin compilers, leased per compile like them. Closing it throws away the caches above, so
+    * it only happens when the loader is evicted — least recently used under metaspace pressure, or on an idle trim — and the next Java compile pays for them
+    * once. At 807 classes it is rarely the one that goes.
     */
-  private val ecjClassLoaderCache = new java.util.concurrent.ConcurrentHashMap[String, java.net.URLClassLoader]()
+  private def leaseEcj(version: String): CompilerInstanceCache.Lease =
+    CompilerResolver.compilers.lease(CompilerInstanceCache.Key("ecj", version)) {
+      val jars = getEcjJars(version)
+      CompilerResolver.CompilerInstance("ecj", version, jars, new java.net.URLClassLoader(jars.map(_.toUri.toURL).toArray, getClass.getClassLoader))
+    }
 
   /** Threads each analysis read/write may use.
     *
@@ -254,7 +256,7 @@ object ZincBridge {
       analyses: AnalysisCache.Ref
   ): IO[ProjectCompileResult] = IO.interruptible {
     debug(s"[ZincBridge] compile() called for ${config.name}")
-    Files.createDirectories(config.outputDir)
+    CompileOutput.prepare(config.outputDir)
 
     val analysisDir = config.analysisDir.getOrElse(config.outputDir.resolve(".zinc"))
     Files.createDirectories(analysisDir)
@@ -274,8 +276,11 @@ object ZincBridge {
       val result =
         compileOnce(config, sources, language, diagnosticListener, cancellationToken, dependencyAnalyses, progressListener, ecjVersion, analysisFile, analyses)
       val end = bleep.bsp.BspMetrics.threadAllocatedBytes()
-      if (begin >= 0 && end >= begin)
+      if (begin >= 0 && end >= begin) {
         bleep.bsp.BspMetrics.recordCompileAllocation(config.name, end - begin, System.currentTimeMillis() - startMs)
+        bleep.bsp.HeapForecast.global.recordAllocation(analysisFile, config.name, end - begin)
+        bleep.bsp.CompileParallelismTuner.recordCompileWork(end - begin)
+      }
       result
     }
   }
@@ -320,6 +325,8 @@ object ZincBridge {
       manifest.depAnalysisStats.get(outputDir) match {
         case None           => return Left(s"new dependency not in manifest: $outputDir")
         case Some(expected) =>
+          // Still being written means rewritten since the manifest was taken, and the disk still shows the old one's stat.
+          if (AnalysisWriter.isPending(depAnalysisFile)) return Left(s"dependency analysis being rewritten: $depAnalysisFile")
           if (!Files.exists(depAnalysisFile)) return Left(s"dependency analysis missing: $depAnalysisFile")
           val actualMtime = Files.getLastModifiedTime(depAnalysisFile).toMillis
           if (actualMtime != expected.mtimeMillis)
@@ -341,7 +348,7 @@ object ZincBridge {
       val outIter = manifest.outputDirStats.iterator
       while (outIter.hasNext) {
         val (dir, expected) = outIter.next()
-        if (!Files.isDirectory(dir)) {
+        if (!Files.exists(dir)) {
           noopManifestCache.remove(analysisFile)
           return Left(s"output dir gone: $dir")
         }
@@ -355,7 +362,7 @@ object ZincBridge {
       }
     }
     // Also verify analysis file still exists
-    if (!Files.exists(analysisFile)) {
+    if (!AnalysisWriter.exists(analysisFile)) {
       noopManifestCache.remove(analysisFile)
       return Left("analysis file missing")
     }
@@ -503,6 +510,12 @@ object ZincBridge {
       i += 1
     }
 
+    // The manifest records the stat of every dependency's analysis, and of the output dirs — which contain the analysis when
+    // no separate analysis dir is configured. Stat'd before their writes land, those would be the old files' and the next
+    // noop check would decline on them. Dependencies finished compiling before this project started, so this rarely waits.
+    val ownIfInOutput = if (analysisFile.startsWith(result.outputDir)) List(analysisFile) else Nil
+    AnalysisWriter.flush(dependencyAnalyses.values ++ ownIfInOutput): Unit
+
     NoopManifestStore.regenerateFromLocal(analysisFile, sourceDirs, sourcePaths, dependencyAnalyses, language, ecjVersion, result) match {
       case Some(manifest) => noopManifestCache.put(analysisFile, manifest): Unit
       case None           => () // ctime unavailable (Windows) — manifest disabled
@@ -538,8 +551,48 @@ object ZincBridge {
         case Left(reason) => reason
       }
 
-    val scalaInstance = getScalaInstance(language.scalaVersion)
-    val compilers = createCompilers(scalaInstance, language, ecjVersion, cancellationToken, progressListener)
+    val scalaLease = CompilerResolver.leaseScalaCompiler(language.scalaVersion)
+    try {
+      val ecjLease = ecjVersion.map(leaseEcj)
+      try
+        compileLeased(
+          config,
+          sources,
+          language,
+          diagnosticListener,
+          cancellationToken,
+          dependencyAnalyses,
+          progressListener,
+          ecjVersion,
+          analysisFile,
+          analyses,
+          noopDeclinedBecause,
+          scalaInstance(scalaLease),
+          ecjLease
+        )
+      finally ecjLease.foreach(_.close())
+    } finally scalaLease.close()
+  }
+
+  /** The part of [[compileOnce]] past the noop fast path, run holding the compilers it uses. A noop compile never loads a compiler; this one cannot have its
+    * compiler evicted from under it.
+    */
+  private def compileLeased(
+      config: ProjectConfig,
+      sources: Array[VirtualFile],
+      language: ProjectLanguage.ScalaJava,
+      diagnosticListener: DiagnosticListener,
+      cancellationToken: CancellationToken,
+      dependencyAnalyses: Map[Path, Path],
+      progressListener: ProgressListener,
+      ecjVersion: Option[String],
+      analysisFile: Path,
+      analyses: AnalysisCache.Ref,
+      noopDeclinedBecause: String,
+      scalaInstance: ZincScalaInstance,
+      ecjLease: Option[CompilerInstanceCache.Lease]
+  ): ProjectCompileResult = {
+    val compilers = createCompilers(scalaInstance, language, ecjLease, cancellationToken, progressListener)
     val logger = new BleepLogger(diagnosticListener)
     val reporter = new BleepReporter(diagnosticListener, config.buildDir)
 
@@ -560,10 +613,20 @@ object ZincBridge {
     // stale .class files AND the source files → "duplicate class" errors.
     if (!hasPrevAnalysis && Files.exists(config.outputDir)) {
       debug(s"[ZincBridge] No analysis for ${config.name} — clearing stale class files from ${config.outputDir}")
-      bleep.internal.FileUtils.deleteDirectory(config.outputDir)
-      Files.createDirectories(config.outputDir): Unit
+      CompileOutput.delete(config.outputDir)
+      CompileOutput.prepare(config.outputDir)
     }
 
+    // A project switched between a classes directory and straight-to-jar leaves the previous form
+    // beside the new one. Zinc sees the output change and compiles everything into the new form,
+    // but nothing would ever remove the old one, and the remote cache would go on packing it.
+    previousOutput(previousResult)
+      .filter(prev => prev != config.outputDir && prev.getParent == config.outputDir.getParent && Files.exists(prev))
+      .foreach { prev =>
+        debug(s"[ZincBridge] ${config.name}: output moved from $prev to ${config.outputDir} — removing the old output")
+        CompileOutput.delete(prev)
+      }
+
     // Emit CompilationReason so the client display shows "Compiling: project-name ..."
     if (!hasPrevAnalysis) {
       diagnosticListener.onCompilationReason(config.name, CompilationReason.CleanBuild)
@@ -680,12 +743,13 @@ object ZincBridge {
       case e: IllegalArgumentException if e.getMessage == "requirement failed" =>
         // Corrupt analysis — wipe and signal clean rebuild needed
         System.err.println(s"[ZincBridge] ${config.name}: corrupt analysis detected (${e.getMessage}), deleting for clean rebuild")
+        AnalysisWriter.flush(List(analysisFile)): Unit
         Files.deleteIfExists(analysisFile)
         analyses.invalidate(analysisFile)
         noopManifestCache.remove(analysisFile)
         if (Files.exists(config.outputDir)) {
-          bleep.internal.FileUtils.deleteDirectory(config.outputDir)
-          Files.createDirectories(config.outputDir): Unit
+          CompileOutput.delete(config.outputDir)
+          CompileOutput.prepare(config.outputDir)
         }
         ProjectCompileFailure(
           List(
@@ -756,8 +820,12 @@ object ZincBridge {
     }
   }
 
+  /** The class files a compile into `outputDir` left, for the result. A jar output has no class files of its own to list: the jar is the unit, and a result
+    * naming thousands of entries inside it would only put them back into the noop manifest this mode exists to keep small.
+    */
   private def collectClassFiles(outputDir: Path): Set[Path] =
-    if (Files.exists(outputDir)) {
+    if (CompileOutput.isJar(outputDir)) Set.empty
+    else if (Files.exists(outputDir)) {
       // Use Using to ensure Files.walk stream is properly closed
       scala.util
         .Using(Files.walk(outputDir)) { stream =>
@@ -821,43 +889,41 @@ object ZincBridge {
     }
   }
 
-  private def getScalaInstance(scalaVersion: String): ZincScalaInstance =
-    scalaInstanceCache.computeIfAbsent(
-      scalaVersion,
-      sv => {
-        val instance = CompilerResolver.getScalaCompiler(sv)
-        val resolvedAllJars = instance.allJars.map(_.toFile).toArray
+  /** The zinc view of a leased Scala compiler. Kept with the lease's entry, so it goes when the loader does. */
+  private def scalaInstance(lease: CompilerInstanceCache.Lease): ZincScalaInstance =
+    lease.derived("zinc-scala-instance") { instance =>
+      val sv = instance.version
+      val resolvedAllJars = instance.allJars.map(_.toFile).toArray
 
-        val resolvedLibraryJars = resolvedAllJars.filter { f =>
-          f.getName.contains("scala-library") || f.getName.contains("scala3-library")
-        }
-        val resolvedCompilerJars = resolvedAllJars.filter { f =>
-          val name = f.getName
-          name.contains("scala-compiler") || name.contains("scala3-compiler") ||
-          name.contains("tasty-core") || name.contains("scala3-interfaces") ||
-          name.contains("scala-asm") || name.contains("scala-reflect")
-        }
-        val resolvedOtherJars = resolvedAllJars.filterNot(j => resolvedLibraryJars.contains(j) || resolvedCompilerJars.contains(j))
-        val resolvedLoader = instance.loader
-
-        new ZincScalaInstance {
-          override def version(): String = sv
-          override def libraryJars(): Array[File] = resolvedLibraryJars
-          override def compilerJars(): Array[File] = resolvedCompilerJars
-          override def allJars(): Array[File] = resolvedAllJars
-          override def otherJars(): Array[File] = resolvedOtherJars
-          override def loaderLibraryOnly(): ClassLoader = resolvedLoader
-          override def loaderCompilerOnly(): ClassLoader = resolvedLoader
-          override def loader(): ClassLoader = resolvedLoader
-          override def actualVersion(): String = sv
-        }
+      val resolvedLibraryJars = resolvedAllJars.filter { f =>
+        f.getName.contains("scala-library") || f.getName.contains("scala3-library")
       }
-    )
+      val resolvedCompilerJars = resolvedAllJars.filter { f =>
+        val name = f.getName
+        name.contains("scala-compiler") || name.contains("scala3-compiler") ||
+        name.contains("tasty-core") || name.contains("scala3-interfaces") ||
+        name.contains("scala-asm") || name.contains("scala-reflect")
+      }
+      val resolvedOtherJars = resolvedAllJars.filterNot(j => resolvedLibraryJars.contains(j) || resolvedCompilerJars.contains(j))
+      val resolvedLoader = instance.loader
+
+      new ZincScalaInstance {
+        override def version(): String = sv
+        override def libraryJars(): Array[File] = resolvedLibraryJars
+        override def compilerJars(): Array[File] = resolvedCompilerJars
+        override def allJars(): Array[File] = resolvedAllJars
+        override def otherJars(): Array[File] = resolvedOtherJars
+        override def loaderLibraryOnly(): ClassLoader = resolvedLoader
+        override def loaderCompilerOnly(): ClassLoader = resolvedLoader
+        override def loader(): ClassLoader = resolvedLoader
+        override def actualVersion(): String = sv
+      }
+    }
 
   private def createCompilers(
       scalaInstance: ZincScalaInstance,
       language: ProjectLanguage.ScalaJava,
-      ecjVersion: Option[String],
+      ecj: Option[CompilerInstanceCache.Lease],
       cancellationToken: CancellationToken,
       progressListener: ProgressListener
   ): Compilers = {
@@ -873,10 +939,10 @@ object ZincBridge {
       Some(cache)
     )
 
-    val javaTools = ecjVersion match {
-      case Some(version) =>
-        debug(s"[ZincBridge] Using ECJ version $version for Java compilation")
-        createEcjTools(scalaInstance, classpathOptions, version, cancellationToken, progressListener)
+    val javaTools = ecj match {
+      case Some(ecjLease) =>
+        debug(s"[ZincBridge] Using ECJ version ${ecjLease.instance.version} for Java compilation")
+        createEcjTools(scalaInstance, classpathOptions, ecjLease.instance.loader, cancellationToken, progressListener)
       case None =>
         sbt.internal.inc.javac.JavaTools.directOrFork(
           scalaInstance,
@@ -892,12 +958,10 @@ object ZincBridge {
   private def createEcjTools(
       scalaInstance: ZincScalaInstance,
       classpathOptions: ClasspathOptions,
-      ecjVersion: String,
+      ecjClassLoader: ClassLoader,
       cancellationToken: CancellationToken,
       progressListener: ProgressListener
   ): xsbti.compile.JavaTools = {
-    val ecjClassLoader = getEcjClassLoader(ecjVersion)
-
     // Create a forked Java compiler that uses ECJ
     val ecjCompiler = new EcjCompiler(ecjClassLoader, cancellationToken, progressListener)
 
@@ -917,12 +981,6 @@ object ZincBridge {
   private def getEcjJars(version: String): Seq[Path] =
     ecjJarCache.computeIfAbsent(version, resolveEcj)
 
-  private def getEcjClassLoader(version: String): java.net.URLClassLoader =
-    ecjClassLoaderCache.computeIfAbsent(
-      version,
-      v => new java.net.URLClassLoader(getEcjJars(v).map(_.toUri.toURL).toArray, getClass.getClassLoader)
-    )
-
   /** Resolve ECJ jars from Maven */
   private def resolveEcj(version: String): Seq[Path] = {
     val dep = bleep.model.Dep.Java("org.eclipse.jdt", "ecj", version)
@@ -1012,31 +1070,18 @@ object ZincBridge {
     // classes from the same project (e.g., TestProtocol.class when compiling ForkedTestRunner.java)
     val classpathVf = (outputDir +: config.classpath).map(p => PlainVirtualFile(p, config.buildDir): VirtualFile).toArray
 
-    val scalacOptions = language.scalaOptions.toArray
+    val scalacOptions = BackendParallelism.scalacOptions(language, config.backendThreads).toArray
     val javacOptions = language.javaOptions.toArray
 
     // Load analyses from dependency projects for proper incremental compilation. The cache spares
     // us re-reading the same file when several projects in one build depend on it; a miss just
     // reads from disk, so eviction is never a correctness question.
     val loadedAnalyses: Map[Path, CompileAnalysis] = dependencyAnalyses.flatMap { case (classDir, analysisFile) =>
-      if (Files.exists(analysisFile)) {
-        val currentMtime = Files.getLastModifiedTime(analysisFile).toMillis
-        analyses.get(analysisFile, currentMtime) match {
-          case Some(cached) => Some(classDir -> cached)
-          case None         =>
-            try {
-              val store = analysisStore(analysisFile, analysisFile)
-              store.get().toScala.map { contents =>
-                // The interned instance, not the freshly deserialized one: `put` shares structure
-                // with what other workspaces already loaded, and the original becomes garbage here.
-                val analysis = analyses.put(analysisFile, currentMtime, contents.getAnalysis)
-                classDir -> analysis
-              }
-            } catch {
-              case _: Exception => None
-            }
-        }
-      } else None
+      // A dependency that compiled moments ago in this build is served from its pending write, which is the whole point of
+      // not waiting for it.
+      val pending = AnalysisWriter.pending(analysisFile)
+      if (pending.isDefined) pending.map(contents => classDir -> contents.getAnalysis)
+      else readDependencyAnalysis(analysisFile, analyses).map(classDir -> _)
     }
 
     val lookup = new PerClasspathEntryLookup {
@@ -1195,7 +1240,10 @@ object ZincBridge {
       100, // maxErrors
       sourcePositionMapper,
       zincCompileOrder(language.compileOrder),
-      Optional.empty[Path](), // temporaryClassesDir
+      // temporaryClassesDir: only read when compiling straight to jar, as the scratch space for the
+      // compile steps that cannot write into a jar. Kept beside the jar rather than in /tmp, so it is
+      // per project and goes away with the project's target dir.
+      if (CompileOutput.isJar(outputDir)) Optional.of(CompileOutput.stagingDir(outputDir)) else Optional.empty[Path](),
       Optional.of[xsbti.FileConverter](fileConverter),
       Optional.empty[xsbti.compile.analysis.ReadStamps](),
       Optional.empty[xsbti.compile.Output]()
@@ -1228,15 +1276,65 @@ object ZincBridge {
       debug(s"[ZincBridge]   Output dirs match: $outputMatch")
     }
 
-    Inputs.of(compilers, options, setup, previousResult)
+    Inputs.of(compilers, options, setup, withBackendParallelismOf(previousResult, scalacOptions))
+  }
+
+  /** `previous` as if it had been compiled with `scalacOptions`, when the two differ only in backend parallelism. How many threads wrote the classfiles is
+    * not something zinc should recompile a project over, and the count follows whatever cores were free. See [[BackendParallelism]].
+    */
+  private def withBackendParallelismOf(previous: PreviousResult, scalacOptions: Array[String]): PreviousResult =
+    previous.setup().toScala match {
+      case Some(setup)
+          if !setup.options.scalacOptions.sameElements(scalacOptions) &&
+            BackendParallelism.stripped(setup.options.scalacOptions) == BackendParallelism.stripped(scalacOptions) =>
+        PreviousResult.of(previous.analysis(), Optional.of(setup.withOptions(setup.options.withScalacOptions(scalacOptions))))
+      case _ => previous
+    }
+
+  /** The output the previous compile wrote to, from its recorded setup. */
+  private def previousOutput(previous: PreviousResult): Option[Path] =
+    previous.setup().toScala.flatMap(_.output.getSingleOutputAsPath.toScala)
+
+  /** A dependency's analysis as it is on disk, through the cache: read at most once per mtime however many projects depend on it. */
+  private def readDependencyAnalysis(analysisFile: Path, analyses: AnalysisCache.Ref): Option[CompileAnalysis] =
+    if (!Files.exists(analysisFile)) None
+    else {
+      val currentMtime = Files.getLastModifiedTime(analysisFile).toMillis
+      analyses.get(analysisFile, currentMtime) match {
+        case Some(cached) => Some(cached)
+        case None         =>
+          try {
+            val store = analysisStore(analysisFile, analysisFile)
+            // The interned instance, not the freshly deserialized one: `put` shares structure
+            // with what other workspaces already loaded, and the original becomes garbage here.
+            store.get().toScala.map(contents => analyses.put(analysisFile, currentMtime, contents.getAnalysis))
+          } catch {
+            case _: Exception => None
+          }
+      }
+    }
+
+  /** Read a dependency analysis into the cache ahead of the compile that will want it, exactly as that compile would have. Whether one is now held. */
+  def preloadAnalysis(analysisFile: Path, analyses: AnalysisCache.Ref): Boolean =
+    AnalysisWriter.isPending(analysisFile) || readDependencyAnalysis(analysisFile, analyses).isDefined
+
+  /** Resolve the compiler and compiler bridge for a Scala version ahead of the first compile that needs them. The bridge is cached for the life of the
+    * process; the compiler for as long as [[CompilerResolver.compilers]] keeps it.
+    */
+  def preloadCompiler(scalaVersion: String): Unit = {
+    CompilerResolver.leaseScalaCompiler(scalaVersion).close()
+    getBridge(scalaVersion): Unit
   }
 
   private def loadPreviousResult(analysisFile: Path): PreviousResult = {
-    debug(s"[ZincBridge] Looking for analysis at: $analysisFile, exists=${Files.exists(analysisFile)}")
-    if (Files.exists(analysisFile)) {
+    debug(s"[ZincBridge] Looking for analysis at: $analysisFile, exists=${AnalysisWriter.exists(analysisFile)}")
+    if (AnalysisWriter.exists(analysisFile)) {
       try {
-        val store = analysisStore(analysisFile, analysisFile)
-        val contents = store.get()
+        // The previous compile's analysis may not have reached the disk yet; the pending copy is the newer one.
+        val contents = AnalysisWriter.pending(analysisFile) match {
+          case Some(pending) => Optional.of(pending)
+          case None          => analysisStore(analysisFile, analysisFile).get()
+        }
         if (contents.isPresent) {
           val analysis = contents.get().getAnalysis.asInstanceOf[sbt.internal.inc.Analysis]
           val miniSetup = contents.get().getMiniSetup
@@ -1283,29 +1381,21 @@ object ZincBridge {
     }
   }
 
+  /** Hand the analysis to [[AnalysisWriter]] and return. Readers in this JVM get it from there until it lands; the temp-file-and-rename that keeps a
+    * cancelled or crashed write from corrupting `analysis.zip` happens on the writer's thread.
+    */
   private def saveAnalysis(analysisFile: Path, analysis: CompileAnalysis, setup: MiniSetup, analyses: AnalysisCache.Ref): Unit = {
-    // Write to a temp file first, then atomic rename.
-    // This prevents corrupted analysis.zip when compilation is cancelled mid-write.
-    val tempFile = analysisFile.resolveSibling(analysisFile.getFileName.toString + ".tmp")
-    try {
-      val cpHashes = setup.options.classpathHash
-      if (cpHashes.nonEmpty) {
-        val sample = cpHashes.take(3).map(fh => s"${fh.file}:${fh.hash}").mkString(", ")
-        debug(s"[ZincBridge] Saving with classpath hashes: $sample")
-      }
-      val store = analysisStore(tempFile, analysisFile)
-      store.set(AnalysisContents.create(analysis, setup))
-      Files.move(tempFile, analysisFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
-      // Update the cache so dependents see the fresh analysis. The interned instance is discarded
-      // here — this analysis is already written to disk and the caller holds its own reference; the
-      // point is to seed the cache so the next reader shares structure instead of re-deserializing.
+    val cpHashes = setup.options.classpathHash
+    if (cpHashes.nonEmpty) {
+      val sample = cpHashes.take(3).map(fh => s"${fh.file}:${fh.hash}").mkString(", ")
+      debug(s"[ZincBridge] Saving with classpath hashes: $sample")
+    }
+    val contents = AnalysisContents.create(analysis, setup)
+    AnalysisWriter.submit(analysisFile, contents)(tempFile => analysisStore(tempFile, analysisFile).set(contents)) { () =>
+      // Seed the cache so the next reader shares structure instead of re-deserializing. The interned
+      // instance is discarded here — the pending copy already served everyone who asked before now.
       val mtime = Files.getLastModifiedTime(analysisFile).toMillis
       analyses.put(analysisFile, mtime, analysis): Unit
-    } catch {
-      case e: Exception =>
-        try Files.deleteIfExists(tempFile)
-        catch { case _: Exception => () }
-        throw new IOException(s"Failed to save analysis to $analysisFile: ${e.getMessage}", e)
     }
   }
 
@@ -1541,10 +1631,11 @@ private class EcjCompiler(
           // the counter; the registry lets ChildProcessDiagnostics surface a count). The
           // thread itself stays alive — ECJ will continue writing class files to disk and
           // pinning its in-memory symbol tables until it self-completes. That memory is
-          // reclaimable once it does: the ECJ classloader is built per compile (see
-          // createEcjTools, called from createCompilers per compileOnce) and is reachable only
-          // from this thread's stack, so nothing outlives the thread. What we cannot do is
-          // hurry it along — see the no-interrupt rule above.
+          // reclaimable once it does: the per-compile state is reachable only from this
+          // thread's stack. The shared ECJ loader is not held for it — the compile's lease is
+          // returned when compileOnce gives up — so if the loader is evicted meanwhile, the
+          // thread fails on its next class load, which only ends it sooner. What we cannot do
+          // is hurry it along — see the no-interrupt rule above.
           ZincBridge.abandonedEcjThreads.add(compileThread): Unit
           System.err.println(
             s"[ZincBridge] WARNING: ECJ thread '$threadName' did not exit within 30s after cancellation (now ${ZincBridge.abandonedEcjThreads.size} abandoned threads)"
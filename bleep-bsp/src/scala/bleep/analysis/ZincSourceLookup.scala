@@ -61,6 +61,12 @@ object ZincSourceLookup {
     * user already has, so a failure to resolve costs a bare file name, and letting it throw would take the surrounding test report down with it.
     */
   def relativeSourceForProject(analyses: AnalysisCache.Ref, analysisFile: Path, binaryClassName: String): Option[String] =
+    AnalysisWriter.pending(analysisFile) match {
+      case Some(pending) => relativeSourceFor(pending.getAnalysis, binaryClassName)
+      case None          => relativeSourceFromDisk(analyses, analysisFile, binaryClassName)
+    }
+
+  private def relativeSourceFromDisk(analyses: AnalysisCache.Ref, analysisFile: Path, binaryClassName: String): Option[String] =
     if (!Files.exists(analysisFile)) None
     else
       try {
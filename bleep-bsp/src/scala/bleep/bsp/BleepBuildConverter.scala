@@ -5,7 +5,7 @@ import bleep.analysis.{CompilerResolver, ProjectConfig, ProjectLanguage}
 import bleep.model
 import bleep.model.{CrossProjectName, Java, Kotlin}
 
-import java.nio.file.Paths
+import java.nio.file.{Path, Paths}
 
 /** Converts bleep's build model to the compilation infrastructure types.
   *
@@ -37,7 +37,8 @@ object BleepBuildConverter {
     // the wire from the client, while the analysis dir below, the compile lock, test discovery and
     // the test classpath are all derived locally from BuildPaths. Deriving output from the other
     // source would mean compiling into one directory and looking for the results in another.
-    val outputDir = started.projectPaths(crossName).classes
+    // `output` is the classes directory, or the jar for a project compiled straight to jar.
+    val outputDir = started.projectPaths(crossName).output
 
     // Get explicit configs from bleep model (if defined)
     val bleepProject = started.build.explodedProjects.get(crossName)
@@ -57,9 +58,7 @@ object BleepBuildConverter {
       case other => other
     }
 
-    // Use the same path structure as BuildPaths.targetDir: name/crossId
-    val targetDir = started.buildPaths.variantBuildDir(crossName)
-    val analysisDir = Some(targetDir.resolve(".zinc"))
+    val analysisDir = Some(zincDir(started, crossName))
 
     ProjectConfig(
       name = crossName.value,
@@ -203,7 +202,7 @@ object BleepBuildConverter {
           val resolved =
             if (started.build.explodedProjects.contains(depCrossName)) Some(depCrossName) else started.build.explodedProjects.keys.find(_.name == depName)
           resolved.flatMap { cn =>
-            if (started.resolvedProjects.contains(cn)) Some(started.projectPaths(cn).classes.toString) else None
+            if (started.resolvedProjects.contains(cn)) Some(started.projectPaths(cn).output.toString) else None
           }
         }.toList
       case None =>
@@ -233,6 +232,14 @@ object BleepBuildConverter {
     xpluginOpt ++ presetOpts
   }
 
+  // Use the same path structure as BuildPaths.targetDir: name/crossId
+  private def zincDir(started: Started, crossName: CrossProjectName): Path =
+    started.buildPaths.variantBuildDir(crossName).resolve(".zinc")
+
+  /** The project's zinc analysis. Unique per workspace, build variant and project, which is what makes it a key for anything remembered per compile. */
+  def analysisFile(started: Started, crossName: CrossProjectName): Path =
+    zincDir(started, crossName).resolve("analysis.zip")
+
   /** Get transitive dependencies for a set of projects. */
   def transitiveDependencies(
       projects: Set[CrossProjectName],
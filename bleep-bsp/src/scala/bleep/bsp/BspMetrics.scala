@@ -109,6 +109,7 @@ object BspMetrics {
   private val MaxMetricsFileBytes = 100L * 1024 * 1024
 
   def initialize(metricsDir: Path): Unit = {
+    shuttingDown.set(false)
     metricsPath = metricsDir.resolve("metrics.jsonl")
     rotateIfNeeded()
     writer = new BufferedWriter(new FileWriter(metricsPath.toFile, true)) // append mode
@@ -255,6 +256,9 @@ object BspMetrics {
     *
     * So `physical_memory_mb` and `server_heap_mb` are recorded outright. They are constant per process and mildly redundant on every 15s sample, which is the
     * price of each sample being self-describing rather than something to reconstruct.
+    *
+    * `classes` breaks usage down by priority class, with the cores each tenant holds inside it — the figure that says whether an IDE's compiles are getting
+    * ahead of an agent's test run, which the totals cannot.
     */
   def recordMachine(
       usedCpu: Int,
@@ -265,11 +269,19 @@ object BspMetrics {
       serverHeapMb: Long,
       activeCompiles: Int,
       running: Int,
-      waiting: Int
-  ): Unit =
+      waiting: Int,
+      shares: List[bleep.MachineResources.ClassShare]
+  ): Unit = {
+    val classes = shares
+      .map { c =>
+        val tenants = c.cpuByTenant.map { case (t, n) => s""""${esc(t)}":$n""" }.mkString("{", ",", "}")
+        s""""${c.priority.name}":{"used_cpu":${c.usedCpu},"used_memory_mb":${c.usedMemoryMb},"running":${c.running},"waiting":${c.waiting},"wanted_cpu":${c.wantedCpu},"cpu_by_tenant":$tenants}"""
+      }
+      .mkString("{", ",", "}")
     writeEvent(
-      s"""{"type":"machine","ts":${now()},"used_cpu":$usedCpu,"total_cpu":$totalCpu,"used_memory_mb":$usedMemoryMb,"total_memory_mb":$totalMemoryMb,"physical_memory_mb":$physicalMemoryMb,"server_heap_mb":$serverHeapMb,"active_compiles":$activeCompiles,"running":$running,"waiting":$waiting}"""
+      s"""{"type":"machine","ts":${now()},"used_cpu":$usedCpu,"total_cpu":$totalCpu,"used_memory_mb":$usedMemoryMb,"total_memory_mb":$totalMemoryMb,"physical_memory_mb":$physicalMemoryMb,"server_heap_mb":$serverHeapMb,"active_compiles":$activeCompiles,"running":$running,"waiting":$waiting,"classes":$classes}"""
     )
+  }
 
   /** What the Zinc analysis cache is holding after each sweep. The largest single retainer in the server heap, so its size is the first number to look at when
     * the live set is climbing.
@@ -288,25 +300,123 @@ object BspMetrics {
     )
   }
 
-  /** Which workspaces the daemon is holding resolved builds for. The retained-heap floor tracks this number, so recording it is what makes the floor
-    * attributable instead of merely visible.
+  /** The compiler classloaders the daemon is holding, and the metaspace each is estimated to pin, each cycle. Hits, misses and evictions are totals since
+    * start; a steadily climbing eviction count next to misses is a budget too small for the versions actually in use. See
+    * [[bleep.analysis.CompilerInstanceCache]].
     */
-  def recordWorkspaceState(cached: List[String], maxCached: Int): Unit =
+  def recordCompilerCache(stats: bleep.analysis.CompilerInstanceCache.Stats): Unit = {
+    val mb = 1024L * 1024L
+    val entries = stats.entries
+      .map(e =>
+        s"""{"kind":"${esc(e.key.kind)}","version":"${esc(e.key.version)}","metaspace_mb":${e.metaspaceBytes / mb},"leases":${e.leases},"idle_ms":${e.idleMs}}"""
+      )
+      .mkString("[", ",", "]")
+    writeEvent(
+      s"""{"type":"compiler_cache","ts":${now()},"metaspace_mb":${stats.metaspaceBytes / mb},"budget_mb":${stats.budgetBytes / mb},"hits":${stats.hits},""" +
+        s""""misses":${stats.misses},"evictions":${stats.evictions},"entries":$entries}"""
+    )
+  }
+
+  /** A compiler classloader evicted and closed. `reason` is `budget` (LRU under the metaspace budget) or `idle` (an [[IdleTrimmer]] trim). */
+  def recordCompilerEvict(kind: String, version: String, metaspaceBytes: Long, reason: String): Unit =
     writeEvent(
-      s"""{"type":"workspace_state","ts":${now()},"cached_count":${cached.size},"max_cached":$maxCached,"cached":${cached
-          .map(w => s""""${esc(w)}"""")
-          .mkString("[", ",", "]")}}"""
+      s"""{"type":"compiler_evict","ts":${now()},"kind":"${esc(kind)}","version":"${esc(version)}","metaspace_mb":${metaspaceBytes / (1024 * 1024)},""" +
+        s""""reason":"${esc(reason)}"}"""
     )
 
+  /** Which builds the daemon is holding, and what each is estimated to retain. The retained-heap floor tracks these, so recording them is what makes the
+    * floor attributable instead of merely visible — and recording the estimates next to the budget is what lets them be checked against a heap dump.
+    *
+    * `cached_count` counts distinct workspaces, as it always has; `cached` has one entry per build, so a workspace held in two variants appears twice.
+    */
+  def recordWorkspaceState(cached: List[BuildCache.Retained], budget: BuildCache.Budget): Unit = {
+    val mb = 1024L * 1024L
+    val builds = cached
+      .map { r =>
+        s"""{"workspace":"${esc(r.key.workspace.toString)}","variant":"${esc(r.key.variant.toString)}",""" +
+          s""""resolved_mb":${r.resolvedBytes / mb},"analysis_mb":${r.analysisBytes / mb},"retained_mb":${r.totalBytes / mb}}"""
+      }
+      .mkString("[", ",", "]")
+    val maxCached = budget.maxWorkspaces.fold("null")(_.toString)
+    val workspaces = cached.map(_.key.workspace).distinct.size
+    writeEvent(
+      s"""{"type":"workspace_state","ts":${now()},"cached_count":$workspaces,"max_cached":$maxCached,"budget_mb":${budget.retainedBytes / mb},""" +
+        s""""retained_mb":${cached.map(_.totalBytes).sum / mb},"cached":$builds}"""
+    )
+  }
+
+  /** One idle trim, with the daemon's footprint and heap before it and after the freed heap was uncommitted. See [[IdleTrimmer]]. A footprint of -1 means
+    * the platform does not report one.
+    */
+  def recordIdleTrim(report: IdleTrimmer.Report): Unit = {
+    def measured(prefix: String, m: IdleTrimmer.Measurement): String =
+      s""""${prefix}_footprint_mb":${m.footprintMb.getOrElse(-1L)},"${prefix}_heap_used_mb":${m.heapUsedMb},"${prefix}_heap_committed_mb":${m.heapCommittedMb}"""
+    writeEvent(
+      s"""{"type":"idle_trim","ts":${now()},"quiet_ms":${report.quietForMs},${measured("before", report.before)},${measured("after", report.after)},""" +
+        s""""compilers_dropped":${report.compilersDropped.map(c => s""""${esc(c)}"""").mkString("[", ",", "]")},""" +
+        s""""analyses_freed":${report.analysesFreed},"analysis_file_mb_freed":${report.analysisFileBytesFreed / (1024 * 1024)}}"""
+    )
+  }
+
+  /** The compile-concurrency limit moved, why, and what the window that moved it looked like. See [[CompileParallelismTuner]]. `throughput_mb_s` is compile
+    * allocation completed per second; `cpu_load` is -1 where the platform does not report it.
+    */
+  def recordCompileTuning(change: CompileParallelismTuner.Change): Unit = {
+    def fmt(d: Double): String = String.format(Locale.US, "%.3f", d: java.lang.Double)
+    writeEvent(
+      s"""{"type":"compile_tuning","ts":${now()},"from_slots":${change.fromSlots},"to_slots":${change.toSlots},"reason":"${esc(change.reason)}",""" +
+        s""""throughput_mb_s":${fmt(change.stats.throughput / (1024 * 1024))},"gc_share":${fmt(change.stats.gcShare)},"cpu_load":${fmt(change.stats.cpuLoad)},""" +
+        s""""held_back":${change.stats.heldBack}}"""
+    )
+  }
+
   def recordBuildStart(workspace: String, projectCount: Int): Unit =
     writeEvent(s"""{"type":"build_start","ts":${now()},"workspace":"${esc(workspace)}","projects":$projectCount}""")
 
   def recordBuildEnd(workspace: String, durationMs: Long, success: Boolean): Unit =
     writeEvent(s"""{"type":"build_end","ts":${now()},"workspace":"${esc(workspace)}","duration_ms":$durationMs,"success":$success}""")
 
+  /** A request joined a task another request was already running, instead of running its own copy. See [[InFlightTasks]]. */
+  def recordTaskCoalesced(task: String, workspace: String): Unit =
+    writeEvent(s"""{"type":"task_coalesced","ts":${now()},"task":"${esc(task)}","workspace":"${esc(workspace)}"}""")
+
+  /** A compile ran again because the compile worker running it died. The worker's own start and end are `fork_start`/`fork_end`. See [[CompileWorkers]]. */
+  def recordCompileRetried(project: String, workspace: String, cause: String): Unit =
+    writeEvent(s"""{"type":"compile_retried","ts":${now()},"project":"${esc(project)}","workspace":"${esc(workspace)}","cause":"${esc(cause)}"}""")
+
   def recordCacheEvict(cache: String, workspace: String): Unit =
     writeEvent(s"""{"type":"cache_evict","ts":${now()},"cache":"${esc(cache)}","workspace":"${esc(workspace)}"}""")
 
+  /** One project's background remote-cache prefetch. `outcome` is `pulled`, `not_cached`, `preempted` or `failed`; `bytes` is the archive size when one was
+    * downloaded. Preemptions are recorded, not hidden: a prefetch that keeps losing to compiles is one that is not arriving in time to help.
+    */
+  def recordRemoteCachePrefetch(project: String, workspace: String, outcome: String, bytes: Long, durationMs: Long): Unit =
+    writeEvent(
+      s"""{"type":"remote_cache_prefetch","ts":${now()},"project":"${esc(project)}","workspace":"${esc(
+          workspace
+        )}","outcome":"${esc(outcome)}","bytes":$bytes,"duration_ms":$durationMs}"""
+    )
+
+  /** One automatic remote-cache push. `kind` is what was pushed: `compile` outputs, or `link` outputs (see [[LinkCache]]). `outcome` is `pushed`,
+    * `already_cached`, `sources_changed`, `not_portable`, `relinked` (a link's outputs replaced before they were packed) or `failed`.
+    */
+  def recordRemoteCachePush(project: String, workspace: String, kind: String, outcome: String, bytes: Long, durationMs: Long): Unit =
+    writeEvent(
+      s"""{"type":"remote_cache_push","ts":${now()},"project":"${esc(project)}","workspace":"${esc(
+          workspace
+        )}","kind":"${esc(kind)}","outcome":"${esc(outcome)}","bytes":$bytes,"duration_ms":$durationMs}"""
+    )
+
+  /** Where a link's output came from: `local` (already on disk for this key), `remote` (pulled), `linked` (a miss; the linker ran), `uncached` (no key: the
+    * sources changed since they were compiled, or the project could not be digested) or `failed`.
+    */
+  def recordLinkCache(project: String, workspace: String, outcome: String, bytes: Long, durationMs: Long): Unit =
+    writeEvent(
+      s"""{"type":"link_cache","ts":${now()},"project":"${esc(project)}","workspace":"${esc(
+          workspace
+        )}","outcome":"${esc(outcome)}","bytes":$bytes,"duration_ms":$durationMs}"""
+    )
+
   def recordCleanCache(project: String): Unit =
     writeEvent(s"""{"type":"clean_cache","ts":${now()},"project":"${esc(project)}"}""")
 
@@ -375,13 +485,36 @@ object BspMetrics {
     *
     * `others_compiling` is what the gate actually consulted (`machine.activeCompiles`), not [[concurrentCompiles]], which counts something else and disagreed —
     * events recorded `concurrent_compiles: 0` while the gate was deferring precisely because others were compiling.
+    *
+    * `predicted_peak_mb` is the [[HeapForecast]] the decision was made on, or -1 for a project with no history yet.
     */
-  def recordAdmissionDefer(project: String, reason: String, heapUsedMb: Long, heapMaxMb: Long, delayMs: Long, othersCompiling: Int): Unit =
+  def recordAdmissionDefer(
+      project: String,
+      reason: String,
+      heapUsedMb: Long,
+      heapMaxMb: Long,
+      delayMs: Long,
+      othersCompiling: Int,
+      predictedPeakMb: Option[Long]
+  ): Unit =
     writeEvent(
       s"""{"type":"admission_defer","ts":${now()},"project":"${esc(project)}","reason":"${esc(
           reason
-        )}","heap_used_mb":$heapUsedMb,"heap_max_mb":$heapMaxMb,"delay_ms":$delayMs,"others_compiling":$othersCompiling}"""
+        )}","heap_used_mb":$heapUsedMb,"heap_max_mb":$heapMaxMb,"delay_ms":$delayMs,"others_compiling":$othersCompiling,""" +
+        s""""predicted_peak_mb":${predictedPeakMb.getOrElse(-1L)}}"""
+    )
+
+  /** A compile's allocation against what [[HeapForecast]] predicted from the project's history before it ran. The forecast's peak is a fixed share of this
+    * prediction, so this is the error admission runs on; `samples` is how many compiles the prediction was built from.
+    */
+  def recordHeapForecast(project: String, predictedBytes: Long, actualBytes: Long, samples: Int): Unit = {
+    val mb = 1024L * 1024L
+    val errorPct = if (actualBytes > 0) (predictedBytes - actualBytes) * 100 / actualBytes else 0L
+    writeEvent(
+      s"""{"type":"heap_forecast","ts":${now()},"project":"${esc(project)}","predicted_mb":${predictedBytes / mb},"actual_mb":${actualBytes / mb},""" +
+        s""""error_pct":$errorPct,"samples":$samples}"""
     )
+  }
 
   /** Forked test JVMs, by pid, so a test run can be reconstructed after the fact.
     *
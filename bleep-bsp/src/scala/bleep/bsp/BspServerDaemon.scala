@@ -265,9 +265,32 @@ object BspServerDaemon {
     // BuildCache, so that dropping a build also drops the analyses read while compiling it — which
     // is where the memory actually is. See BuildCache.dropAll for why the cascade runs one way only.
     val analysisCache = new bleep.analysis.AnalysisCache
-    // The server's own heap is the exact figure the ratio should scale on — the client set `-Xmx`
+    // The server's own heap is the exact figure the budget should scale on — the client set `-Xmx`
     // when it started us.
-    val buildCache = new BuildCache(daemonConfig.maxCachedWorkspacesFor(Runtime.getRuntime.maxMemory()), analysisCache)
+    val buildCache = new BuildCache(BuildCache.Budget.fromConfig(daemonConfig, Runtime.getRuntime.maxMemory()), analysisCache)
+
+    // Compiles in worker JVMs instead of this heap, when configured. Started lazily, by the first compile that needs one; their logs sit beside ours.
+    val compileWorkers = CompileWorkers.fromConfig(daemonConfig, machine, config.socketDir, logger).unsafeRunSync()
+    compileWorkers.foreach(_ => logger.info(s"Compiling in ${daemonConfig.effectiveCompileWorkers} compile worker(s)"))
+
+    // What the previous daemon was serving, reloaded in the background at the lowest priority so the
+    // first compile after an upgrade, idle exit or OOM restart does not start from nothing. Every
+    // build this daemon is sent is recorded for the next one. See WarmRestartPreloader.
+    val warmRestart = WarmRestartJournal.forUser(UserPaths.fromAppDirs)
+    locally {
+      val preloader = new WarmRestartPreloader(warmRestart, machine, buildCache, analysisCache, logger)
+      val thread = new Thread("bleep-warm-restart") {
+        override def run(): Unit =
+          try preloader.run(() => shutdownRequested.get())
+          catch {
+            case _: InterruptedException        => ()
+            case scala.util.control.NonFatal(e) => logger.warn(s"Warm restart failed: ${e.getMessage}")
+          }
+      }
+      thread.setDaemon(true)
+      thread.setPriority(Thread.MIN_PRIORITY)
+      thread.start()
+    }
 
     // Background reporter. Two jobs, one thread:
     //
@@ -291,7 +314,8 @@ object BspServerDaemon {
             while (!shutdownRequested.get()) {
               Thread.sleep(15000)
               val snapshot = machine.snapshot.unsafeRunSync()
-              if (snapshot.waiting.nonEmpty) logger.info(snapshot.render)
+              // Refused retries are contention too, and under DAG admission they are most of it: they never show up as waiters.
+              if (snapshot.waiting.nonEmpty || snapshot.shares.exists(_.wantedCpu > 0)) logger.info(snapshot.render)
               BspMetrics.recordMachine(
                 usedCpu = snapshot.usedCpu,
                 totalCpu = snapshot.totalCpu,
@@ -301,10 +325,16 @@ object BspServerDaemon {
                 serverHeapMb = serverHeapMb,
                 activeCompiles = snapshot.activeCompiles,
                 running = snapshot.active.size,
-                waiting = snapshot.waiting.size
+                waiting = snapshot.waiting.size,
+                shares = snapshot.shares
               )
-              BspMetrics.recordWorkspaceState(buildCache.cachedWorkspaces, buildCache.bound)
+              // Analyses grow as workspaces compile, not only when builds load, so the budget is enforced here too.
+              buildCache.enforceBudget(logger)
+              BspMetrics.recordWorkspaceState(buildCache.retained, buildCache.bound)
               BspMetrics.recordAnalysisCache(analysisCache.stats)
+              BspMetrics.recordCompilerCache(bleep.analysis.CompilerResolver.compilers.stats)
+              // Workers hold analyses too, and only the server knows when a workspace has gone.
+              compileWorkers.foreach(_.retainOnly(buildCache.loaded.map(_._1).toSet))
             }
           catch { case _: InterruptedException => () }
       }
@@ -312,6 +342,70 @@ object BspServerDaemon {
       reporter.start()
     }
 
+    // Follow the workspaces we hold across branch switches, pulling what CI already built before
+    // anyone asks for it. Polled from one thread; the downloads themselves run on virtual threads
+    // and only on cores nothing else wants. See RemoteCachePrefetcher.
+    if (daemonConfig.effectiveRemoteCachePrefetch) {
+      val prefetcher = new RemoteCachePrefetcher(machine, buildCache, logger)
+      val poller = new Thread("bleep-remote-cache-prefetch") {
+        override def run(): Unit =
+          try
+            while (!shutdownRequested.get()) {
+              Thread.sleep(RemoteCachePrefetcher.PollInterval.toMillis)
+              try prefetcher.pollOnce()
+              catch { case scala.util.control.NonFatal(e) => logger.warn(s"Remote-cache prefetch poll failed: ${e.getMessage}") }
+            }
+          catch { case _: InterruptedException => () }
+      }
+      poller.setDaemon(true)
+      poller.start()
+    }
+
+    // Tune how many compiles run at once from what they achieve — throughput, GC overhead, CPU load.
+    // Compile workers allocate where the tuner cannot measure them, so it stays off with workers on.
+    // See CompileParallelismTuner.
+    val compileTuner =
+      if (daemonConfig.effectiveCompileAutotune && compileWorkers.isEmpty) {
+        val tuner = new CompileParallelismTuner(maxConcurrentOperations, HeapMonitor.system)
+        val thread = new Thread("bleep-compile-tuner") {
+          override def run(): Unit =
+            try
+              while (!shutdownRequested.get()) {
+                Thread.sleep(CompileParallelismTuner.Window.toMillis)
+                try
+                  tuner.tick().foreach { change =>
+                    logger
+                      .withContext("reason", change.reason)
+                      .info(s"Compile slots ${change.fromSlots} -> ${change.toSlots} of ${tuner.maxSlots}")
+                  }
+                catch { case scala.util.control.NonFatal(e) => logger.warn(s"Compile tuning failed: ${e.getMessage}") }
+              }
+            catch { case _: InterruptedException => () }
+        }
+        thread.setDaemon(true)
+        thread.start()
+        Some(tuner)
+      } else None
+
+    // Give memory back when nobody is using the daemon: drop all but the most recent compiler and
+    // workspace analyses, collect, and let ZGC uncommit the heap. See IdleTrimmer.
+    val idleTrimMs = daemonConfig.effectiveIdleTrimMillis
+    if (idleTrimMs > 0) {
+      val trimmer = new IdleTrimmer(idleTrimMs, machine, analysisCache, logger)
+      val thread = new Thread("bleep-idle-trim") {
+        override def run(): Unit =
+          try
+            while (!shutdownRequested.get()) {
+              Thread.sleep(IdleTrimmer.PollInterval.toMillis)
+              try trimmer.pollOnce()
+              catch { case scala.util.control.NonFatal(e) => logger.warn(s"Idle trim failed: ${e.getMessage}") }
+            }
+          catch { case _: InterruptedException => () }
+      }
+      thread.setDaemon(true)
+      thread.start()
+    }
+
     // NOTE: Do NOT redirect stdout — Zinc writes massive amounts of data to
     // stdout which would bloat the log file to tens of GB.
     // stderr is captured by ProcessBuilder.redirectError(outputFile) so
@@ -348,6 +442,15 @@ object BspServerDaemon {
           )
         try BspMetrics.shutdown()
         catch { case _: Exception => () }
+        // Analyses still queued for writing describe class files already on disk; losing them costs the next process a full compile.
+        try bleep.analysis.AnalysisWriter.flushAll().foreach(msg => logger.warn(msg))
+        catch { case _: Exception => () }
+        // The next process warms what this one was serving.
+        try warmRestart.flush()
+        catch { case _: Exception => () }
+        // The next process's digests start from what this one hashed.
+        try DigestService.saveAll()
+        catch { case _: Exception => () }
         // Process-global lock state. Released here, at daemon shutdown — never per connection.
         try ProjectLock.releaseAllOnDaemonShutdown().unsafeRunSync()
         catch { case _: Exception => () }
@@ -438,7 +541,10 @@ object BspServerDaemon {
                   machine,
                   kspMutexes,
                   buildCache,
-                  analysisCache
+                  analysisCache,
+                  compileWorkers,
+                  warmRestart,
+                  compileTuner
                 )
               finally BspMetrics.recordConnectionClose(connId)
               try clientSocket.close()
@@ -456,7 +562,10 @@ object BspServerDaemon {
                       machine,
                       kspMutexes,
                       buildCache,
-                      analysisCache
+                      analysisCache,
+                      compileWorkers,
+                      warmRestart,
+                      compileTuner
                     )
                   finally {
                     BspMetrics.recordConnectionClose(connId)
@@ -509,7 +618,10 @@ object BspServerDaemon {
       machine: MachineResources,
       kspMutexes: KspMutexes,
       buildCache: BuildCache,
-      analysisCache: bleep.analysis.AnalysisCache
+      analysisCache: bleep.analysis.AnalysisCache,
+      compileWorkers: Option[CompileWorkers],
+      warmRestart: WarmRestartJournal,
+      compileTuner: Option[CompileParallelismTuner]
   ): Unit =
     try {
       // Create multi-workspace server using the daemon-level logger
@@ -521,7 +633,10 @@ object BspServerDaemon {
         heapMonitor = HeapMonitor.system,
         kspMutexes = kspMutexes,
         buildCache = buildCache,
-        analysisCache = analysisCache
+        analysisCache = analysisCache,
+        compileWorkers = compileWorkers,
+        warmRestart = Some(warmRestart),
+        compileTuner = compileTuner
       )
 
       // Run server message loop
@@ -5,8 +5,9 @@ import ryddig.Logger
 
 import java.nio.file.Path
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong}
 import scala.jdk.CollectionConverters.*
+import scala.util.control.NonFatal
 
 /** Resolved builds, cached for the lifetime of the daemon rather than of a connection.
   *
@@ -21,15 +22,22 @@ import scala.jdk.CollectionConverters.*
   * Keyed by (workspace, variant) and versioned by [[BuildId]], so "the same build again" is a cache hit and "a different build" is an explicit, logged
   * adoption.
   */
-/** @param maxWorkspaces
-  *   how many entries to keep before evicting the least recently used idle one. A resolved build is not small — exploded model, resolved classpaths, and the
-  *   Zinc analysis reachable from it — and this cache used to be unbounded, so a daemon accumulated one per workspace it had ever served and never gave any of
-  *   it back. Measured on a daemon serving 11 worktrees: the post-GC floor climbed from 3.5GB to 8.2GB of a 12GB heap over 45 minutes, after which compiles
-  *   OOM'd at a concurrency of three. Bounding the cache bounds that floor.
+/** @param budget
+  *   how much the cached builds may retain before the least recently used idle ones are evicted. A resolved build is not small — exploded model, resolved
+  *   classpaths, and the Zinc analysis reachable from it — and this cache used to be unbounded, so a daemon accumulated one per workspace it had ever served and
+  *   never gave any of it back. Measured on a daemon serving 11 worktrees: the post-GC floor climbed from 3.5GB to 8.2GB of a 12GB heap over 45 minutes, after
+  *   which compiles OOM'd at a concurrency of three. Bounding the cache bounds that floor.
+  *
+  * The bound was a count of workspaces until a two-project workspace and a three-hundred-project monorepo turned out to count the same. It is now in bytes,
+  * weighed by [[retained]]: an estimate, not a measurement — the JVM cannot say what one object graph retains without walking the heap — but one that
+  * scales with what the workspace actually holds.
   */
-class BuildCache(maxWorkspaces: Int, analysisCache: bleep.analysis.AnalysisCache) {
+class BuildCache(budget: BuildCache.Budget, analysisCache: bleep.analysis.AnalysisCache) {
 
-  private case class Entry(buildId: BuildId, started: Started, lastUsedMs: AtomicLong)
+  /** @param reloadRequested
+    *   set by `workspace/reload`: the next `getOrLoad` loads again even for the same build, and hands this entry to the load as the one it replaces.
+    */
+  private case class Entry(buildId: BuildId, started: Started, sourceIndex: SourceIndex, lastUsedMs: AtomicLong, reloadRequested: AtomicBoolean)
 
   private val entries = new ConcurrentHashMap[model.WorkspaceKey, Entry]()
 
@@ -45,29 +53,38 @@ class BuildCache(maxWorkspaces: Int, analysisCache: bleep.analysis.AnalysisCache
 
   /** Look up the build for this workspace+variant, loading it if absent or if the client means a different one.
     *
-    * `load` is only invoked on a miss or on adoption. It runs while holding the per-key lock, so concurrent connections asking for the same build resolve it
-    * once rather than racing.
+    * `load` is only invoked on a miss, on adoption, or after [[requestReload]]. It runs while holding the per-key lock, so concurrent connections asking for the
+    * same build resolve it once rather than racing. It is given the build it replaces, if any, so it can carry over whatever the change did not touch (see
+    * [[BuildDelta]]) — under the same lock, so two connections adopting the same new build do that once between them too.
     *
     * On adoption the previous entry is replaced but operations already in flight are left alone: each captured its own `Started` when it started and continues
     * against it. We deliberately do NOT stall the new client until they finish — an IDE connecting should not block behind a five-minute test run. Writes to
     * shared output directories stay serialized by `ProjectLock`, and Zinc recompiles when it sees a changed setup.
+    *
+    * @param displace
+    *   `false` for a load nobody asked for: whatever is held for the workspace is returned as it is, whichever build it is. The warm-restart preloader replays
+    *   the build a previous daemon was sent, and a client that has connected since with a newer one must not be put back on the old one.
     */
   def getOrLoad(
       workspace: Path,
       variant: model.BuildVariant,
       buildId: BuildId,
-      logger: Logger
-  )(load: => Either[BleepException, Started]): Either[BleepException, Started] = {
+      logger: Logger,
+      displace: Boolean = true
+  )(load: Option[Started] => Either[BleepException, Started]): Either[BleepException, Started] = {
     val key = model.WorkspaceKey(workspace, variant)
 
     loadLocks.computeIfAbsent(key, _ => new AnyRef).synchronized {
       Option(entries.get(key)) match {
-        case Some(entry) if entry.buildId == buildId =>
+        case Some(entry) if entry.buildId == buildId && !entry.reloadRequested.get() =>
           entry.lastUsedMs.set(System.currentTimeMillis())
           Right(entry.started)
 
+        case Some(entry) if !displace =>
+          Right(entry.started)
+
         case existing =>
-          existing.foreach { stale =>
+          existing.filter(_.buildId != buildId).foreach { stale =>
             val inFlight = SharedWorkspaceState.getActiveOperations(workspace).size
             logger
               .withContext("workspace", workspace.toString)
@@ -77,18 +94,28 @@ class BuildCache(maxWorkspaces: Int, analysisCache: bleep.analysis.AnalysisCache
               .withContext("operationsInFlight", inFlight)
               .info("Adopting a different build for this workspace")
           }
-          load.map { started =>
-            entries.put(key, Entry(buildId, started, new AtomicLong(System.currentTimeMillis())))
-            evictDownToBound(keep = key, logger)
+          load(existing.map(_.started)).map { started =>
+            entries.put(key, Entry(buildId, started, SourceIndex.of(started), new AtomicLong(System.currentTimeMillis()), new AtomicBoolean(false)))
+            evictDownToBudget(keep = Some(key), logger)
             started
           }
       }
     }
   }
 
-  /** Drop the entry for a workspace+variant, so the next `getOrLoad` reloads. Used by `workspace/reload`. */
-  def evict(workspace: Path, variant: model.BuildVariant): Unit =
-    dropAll(model.WorkspaceKey(workspace, variant)): Unit
+  /** The [[SourceIndex]] of this exact build, if it is the one held. A connection still on a build another connection has since replaced gets `None`, and
+    * builds its own.
+    */
+  def sourceIndex(workspace: Path, variant: model.BuildVariant, buildId: BuildId): Option[SourceIndex] =
+    Option(entries.get(model.WorkspaceKey(workspace, variant))).filter(_.buildId == buildId).map(_.sourceIndex)
+
+  /** Make the next `getOrLoad` for a workspace+variant load again. Used by `workspace/reload`.
+    *
+    * This used to drop the entry outright, and the Zinc analyses with it, so a reload threw away everything the daemon held for the workspace even when the
+    * build had not changed at all. Marking the entry instead keeps it as the build the reload replaces, so the load can tell what actually changed.
+    */
+  def requestReload(workspace: Path, variant: model.BuildVariant): Unit =
+    Option(entries.get(model.WorkspaceKey(workspace, variant))).foreach(_.reloadRequested.set(true))
 
   /** Drop a build AND the Zinc analyses read while compiling it.
     *
@@ -103,44 +130,66 @@ class BuildCache(maxWorkspaces: Int, analysisCache: bleep.analysis.AnalysisCache
     analysisCache.evictWorkspace(key)
   }
 
-  /** The workspaces currently held, for telemetry. Distinct: one workspace can hold several variants, but the interesting quantity is how many builds' worth of
-    * state is resident.
+  /** Every build held, with what it is estimated to retain, largest first. For eviction and for telemetry. */
+  def retained: List[BuildCache.Retained] = {
+    val analysisBytes = analysisCache.retainedBytes
+    entries
+      .entrySet()
+      .iterator()
+      .asScala
+      .map { e =>
+        BuildCache.Retained(e.getKey, BuildCache.resolvedBytes(e.getValue.started), analysisBytes.getOrElse(e.getKey, 0L), e.getValue.lastUsedMs.get())
+      }
+      .toList
+      .sortBy(-_.totalBytes)
+  }
+
+  /** Every build currently held, for background work that follows the workspaces the daemon is serving (see [[RemoteCachePrefetcher]]). A snapshot: entries
+    * loaded or evicted afterwards are picked up on the next call.
     */
-  def cachedWorkspaces: List[String] =
-    entries.keySet().iterator().asScala.map(_.workspace.toString).toList.distinct.sorted
+  def loaded: List[(model.WorkspaceKey, Started)] =
+    entries.entrySet().iterator().asScala.map(e => (e.getKey, e.getValue.started)).toList
 
-  /** The bound in force, so telemetry can record what was being enforced rather than only what resulted. */
-  def bound: Int = maxWorkspaces
+  /** The budget in force, so telemetry can record what was being enforced rather than only what resulted. */
+  def bound: BuildCache.Budget = budget
 
-  /** Evict least-recently-used entries until at most [[maxWorkspaces]] remain.
+  /** Evict down to the budget without a load to trigger it. Analyses grow as workspaces compile, long after their build was loaded, so the daemon calls this
+    * periodically; a workspace that only ever compiles would otherwise never be weighed again.
+    */
+  def enforceBudget(logger: Logger): Unit =
+    evictDownToBudget(keep = None, logger)
+
+  /** Evict least-recently-used entries until what remains fits the [[budget]].
     *
     * Two entries are never candidates: the one just loaded, and any whose workspace has operations in flight. The second is not a correctness requirement —
     * every in-flight operation captured its own `Started` when it began and runs against that, exactly as it does when a client adopts a different build — but
     * evicting a workspace that is mid-build only means reloading it moments later, which is pure waste.
     *
-    * Because of that exclusion the cache CAN exceed its bound: with more busy workspaces than slots, nothing is evictable and the bound yields rather than
-    * stalling a build. It is a cache size, not an admission limit, and a daemon can still serve any number of workspaces at once.
+    * Because of that exclusion the cache CAN exceed its budget: with busy workspaces retaining more than it, nothing is evictable and the budget yields rather
+    * than stalling a build. It is a cache size, not an admission limit, and a daemon can still serve any number of workspaces at once.
     *
     * Synchronized on `entries` rather than on the per-key load locks: this pass touches every key, it holds no I/O, and taking the per-key lock of a workspace
     * we are about to drop would invert the lock order that `getOrLoad` establishes.
     */
-  private def evictDownToBound(keep: model.WorkspaceKey, logger: Logger): Unit =
+  private def evictDownToBudget(keep: Option[model.WorkspaceKey], logger: Logger): Unit =
     entries.synchronized {
-      val present = entries.entrySet().iterator().asScala.map(e => (e.getKey, e.getValue.lastUsedMs.get())).toVector
+      val present = retained.map(r => BuildCache.Candidate(r.key, r.lastUsedMs, r.totalBytes)).toVector
       val doomed = BuildCache.selectEvictions(
         present = present,
         keep = keep,
-        bound = maxWorkspaces,
+        budget = budget,
         isBusy = key => SharedWorkspaceState.getActiveOperations(key.workspace).nonEmpty
       )
-      doomed.foreach { case (key, lastUsedMs) =>
+      doomed.foreach { candidate =>
+        val key = candidate.key
         val freed = dropAll(key)
         logger
           .withContext("workspace", key.workspace.toString)
           .withContext("variant", key.variant.toString)
-          .withContext("idleSeconds", (System.currentTimeMillis() - lastUsedMs) / 1000)
+          .withContext("idleSeconds", (System.currentTimeMillis() - candidate.lastUsedMs) / 1000)
           .withContext("cacheSize", entries.size())
-          .withContext("maxWorkspaces", maxWorkspaces)
+          .withContext("retainedMb", candidate.retainedBytes / (1024 * 1024))
+          .withContext("budgetMb", budget.retainedBytes / (1024 * 1024))
           .withContext("analysesFreed", freed.entries)
           .withContext("analysisMbFreed", freed.fileBytes / (1024 * 1024))
           .info("Evicting a cached build to bound retained heap; it will be reloaded on next use")
@@ -151,23 +200,77 @@ class BuildCache(maxWorkspaces: Int, analysisCache: bleep.analysis.AnalysisCache
 
 object BuildCache {
 
-  /** Which entries to drop so that at most `bound` remain: least recently used first, never `keep`, never a busy one.
+  /** @param retainedBytes
+    *   what all cached builds together may retain
+    * @param maxWorkspaces
+    *   the user's cap on how many are cached, if they set one
+    * @param minWorkspaces
+    *   how many the byte budget never evicts below; the cap is not subject to it
+    */
+  case class Budget(retainedBytes: Long, maxWorkspaces: Option[Int], minWorkspaces: Int)
+
+  object Budget {
+
+    /** The budget for a server with `maxHeapBytes` of heap — the daemon passes its own `-Xmx`. */
+    def fromConfig(config: model.BspServerConfig, maxHeapBytes: Long): Budget =
+      Budget(config.cachedBuildsBudgetBytesFor(maxHeapBytes), config.maxCachedWorkspacesCap, model.BspServerConfig.MinCachedWorkspaces)
+  }
+
+  /** One cached build and what it is estimated to retain: its resolved projects, and its share of the analyses read while compiling it. */
+  case class Retained(key: model.WorkspaceKey, resolvedBytes: Long, analysisBytes: Long, lastUsedMs: Long) {
+    def totalBytes: Long = resolvedBytes + analysisBytes
+  }
+
+  private[bsp] case class Candidate[K](key: K, lastUsedMs: Long, retainedBytes: Long)
+
+  /** A project of the build that nothing has resolved yet: its exploded model and nothing else. */
+  private val UnresolvedProjectBytes = 16L * 1024
+
+  /** A resolved project, before its paths: options, resolution report, the compile setup. */
+  private val ResolvedProjectBytes = 256L * 1024
+
+  /** Each classpath and source entry of a resolved project. A `Path` with its string and the list cell holding it. */
+  private val PathBytes = 256L
+
+  /** Estimated heap retained by a build's projects. Resolution is lazy, so a workspace that only ever compiled a few of its projects is charged for those. */
+  private[bsp] def resolvedBytes(started: Started): Long =
+    started.resolvedProjects.valuesIterator.map { project =>
+      val resolved =
+        try project.getIfEvaluated
+        catch { case NonFatal(_) => None }
+      resolved match {
+        case Some(p) => ResolvedProjectBytes + (p.classpath.size + p.sources.size).toLong * PathBytes
+        case None    => UnresolvedProjectBytes
+      }
+    }.sum
+
+  /** Which entries to drop so that what remains fits `budget`: least recently used first, never `keep`, never a busy one.
+    *
+    * Evicts while the count is over the cap, or while the bytes are over the budget and more than `minWorkspaces` remain. Least recently used rather than
+    * largest first: the largest workspace is as likely as any to be the one in use, and a cache that always sheds the monorepo first is one that always
+    * reloads it.
     *
     * Pure and separate from the cache so the policy can be tested without standing up a resolved build. Returns fewer than needed — possibly none — when too
-    * many entries are busy, which is deliberate: the bound yields to work in progress rather than stalling it.
+    * many entries are busy, which is deliberate: the budget yields to work in progress rather than stalling it.
     */
   private[bsp] def selectEvictions[K](
-      present: Vector[(K, Long)],
-      keep: K,
-      bound: Int,
+      present: Vector[Candidate[K]],
+      keep: Option[K],
+      budget: Budget,
       isBusy: K => Boolean
-  ): Vector[(K, Long)] = {
-    val overBy = present.size - bound
-    if (overBy <= 0) Vector.empty
-    else
-      present
-        .filter { case (key, _) => key != keep && !isBusy(key) }
-        .sortBy { case (_, lastUsedMs) => lastUsedMs }
-        .take(overBy)
+  ): Vector[Candidate[K]] = {
+    var count = present.size
+    var bytes = present.map(_.retainedBytes).sum
+    def overCap = budget.maxWorkspaces.exists(count > _)
+    def overBytes = bytes > budget.retainedBytes && count > budget.minWorkspaces
+    val doomed = Vector.newBuilder[Candidate[K]]
+    val evictable = present.filter(c => !keep.contains(c.key) && !isBusy(c.key)).sortBy(_.lastUsedMs).iterator
+    while ((overCap || overBytes) && evictable.hasNext) {
+      val next = evictable.next()
+      doomed += next
+      count -= 1
+      bytes -= next.retainedBytes
+    }
+    doomed.result()
   }
 }
@@ -0,0 +1,83 @@
+package bleep.bsp
+
+import bleep.{model, ResolvedProject}
+import bleep.model.CrossProjectName
+
+import scala.collection.immutable.SortedSet
+
+/** Which projects an edit to the build actually touched.
+  *
+  * A client sends a whole new build whenever `bleep.yaml` changes, and this server used to treat that as a new build in every respect. The build is new, but
+  * most of it usually is not: bumping one dependency in one project changes that project's classpath and the classpaths of what depends on it, and nothing
+  * else. Knowing which projects those are lets the rest keep what the server holds for them — their resolved projects, their loaded analyses, their noop
+  * manifests — and lets the IDE be told about the targets that changed instead of all of them.
+  *
+  * A project counts as changed when its exploded config differs or when what the client resolved for it differs. The second catches what the first cannot see:
+  * a changed resolver, or a dependency range that resolves to something new. A change to the bleep version or to the build's JVM changes every project.
+  *
+  * @param added
+  *   in the new build only
+  * @param removed
+  *   in the old build only
+  * @param changed
+  *   in both, with a different config or resolution
+  * @param affected
+  *   every project of the new build whose compile inputs may differ: the added and changed ones, and everything that transitively depends on one of them or
+  *   generates sources with one of them
+  */
+case class BuildDelta(
+    added: SortedSet[CrossProjectName],
+    removed: SortedSet[CrossProjectName],
+    changed: SortedSet[CrossProjectName],
+    affected: SortedSet[CrossProjectName]
+) {
+  def isEmpty: Boolean = added.isEmpty && removed.isEmpty && affected.isEmpty
+}
+
+object BuildDelta {
+  val empty: BuildDelta = BuildDelta(SortedSet.empty, SortedSet.empty, SortedSet.empty, SortedSet.empty)
+
+  def between(
+      before: model.Build,
+      beforeResolved: Map[CrossProjectName, ResolvedProject],
+      after: model.Build,
+      afterResolved: Map[CrossProjectName, ResolvedProject]
+  ): BuildDelta = {
+    val beforeNames = before.explodedProjects.keySet
+    val afterNames = after.explodedProjects.keySet
+    val added = SortedSet.from(afterNames -- beforeNames)
+    val removed = SortedSet.from(beforeNames -- afterNames)
+
+    val global = before.$version != after.$version || before.jvm != after.jvm
+    val changed =
+      SortedSet.from(afterNames.intersect(beforeNames).filter { crossName =>
+        global ||
+        before.explodedProjects(crossName) != after.explodedProjects(crossName) ||
+        beforeResolved.get(crossName) != afterResolved.get(crossName)
+      })
+
+    BuildDelta(added, removed, changed, affected = withDependents(after, added ++ changed))
+  }
+
+  /** `roots` and every project of `build` that reaches one of them through `dependsOn` or `sourcegen`: a project whose sources are generated by a script
+    * project's code gets other sources when that code changes.
+    */
+  private[bsp] def withDependents(build: model.Build, roots: SortedSet[CrossProjectName]): SortedSet[CrossProjectName] =
+    if (roots.isEmpty) roots
+    else {
+      val dependents: Map[CrossProjectName, Iterable[CrossProjectName]] =
+        build.explodedProjects.toList
+          .flatMap { case (crossName, project) =>
+            val deps = build.resolvedDependsOn.getOrElse(crossName, Set.empty)
+            val scriptProjects = project.sourcegen.values.map { case model.ScriptDef.Main(scriptProject, _, _) => scriptProject }
+            (deps ++ scriptProjects).map(dep => (dep, crossName))
+          }
+          .groupMap(_._1)(_._2)
+
+      val seen = scala.collection.mutable.Set.empty[CrossProjectName]
+      def go(crossName: CrossProjectName): Unit =
+        if (seen.add(crossName)) dependents.getOrElse(crossName, Nil).foreach(go)
+      roots.foreach(go)
+      SortedSet.from(seen)
+    }
+}
@@ -1,13 +1,12 @@
 package bleep.bsp
 
+import bleep.analysis.CompileOutput
 import bleep.model.CrossProjectName
 import sbt.testing._
 
-import java.io.File
 import java.lang.reflect.Modifier
 import java.net.URLClassLoader
 import java.nio.file.{Files, Path}
-import scala.jdk.CollectionConverters._
 import scala.util.Try
 
 /** Discovered test suite ready for execution */
@@ -164,7 +163,7 @@ object ClasspathTestDiscovery {
     * @param project
     *   the project name
     * @param classesDir
-    *   directory containing compiled .class files
+    *   the project's compile output: a directory of .class files, or the jar of a project compiled straight to jar
     * @param classpath
     *   full classpath including dependencies
     * @return
@@ -175,7 +174,7 @@ object ClasspathTestDiscovery {
       classesDir: Path,
       classpath: List[Path]
   ): List[DiscoveredTestSuite] = {
-    if (!Files.isDirectory(classesDir)) {
+    if (!Files.exists(classesDir)) {
       return Nil
     }
 
@@ -184,8 +183,7 @@ object ClasspathTestDiscovery {
     val classLoader = new URLClassLoader(urls, getClass.getClassLoader)
 
     try {
-      val classFiles = collectClassFiles(classesDir)
-      val classNames = classFiles.map(f => classFileToClassName(classesDir, f))
+      val classNames = collectClassNames(classesDir)
 
       // Strategy 1: sbt-testing Framework fingerprints
       val frameworkDiscovered = discoverViaFrameworks(project, classNames, classLoader)
@@ -500,13 +498,11 @@ object ClasspathTestDiscovery {
       project: CrossProjectName,
       classesDir: Path
   ): List[DiscoveredTestSuite] = {
-    if (!Files.isDirectory(classesDir)) return Nil
+    if (!Files.exists(classesDir)) return Nil
 
-    val classFiles = collectClassFiles(classesDir)
     val compiledPatterns = testNamePatterns.map(_.r)
 
-    classFiles.flatMap { classFile =>
-      val className = classFileToClassName(classesDir, classFile)
+    collectClassNames(classesDir).flatMap { className =>
       val simpleName = className.split('.').lastOption.getOrElse(className)
 
       if (compiledPatterns.exists(_.findFirstIn(simpleName).isDefined)) {
@@ -521,29 +517,19 @@ object ClasspathTestDiscovery {
   // Utility methods
   // ============================================================================
 
-  /** Collect all .class files in a directory (recursively) */
-  private def collectClassFiles(dir: Path): List[Path] = {
-    if (!Files.isDirectory(dir)) return Nil
-
-    import scala.util.Using
-    // Use Using to ensure Files.walk stream is properly closed
-    val allClassFiles = Using(Files.walk(dir)) { stream =>
-      stream
-        .iterator()
-        .asScala
-        .filter(p => p.toString.endsWith(".class"))
-        .filter { p =>
-          val name = p.getFileName.toString
-          // Skip: MyTest$Inner.class (inner class - has $ followed by non-empty name)
-          // Skip: MyTest$$anon$1.class (anonymous class - has $$)
-          !name.contains("$$") && !name.matches(".*\\$[^.]+\\.class")
-        }
-        .toList
-    }.getOrElse(Nil)
+  /** The names of the top-level classes in a compile output, read from the directory or the jar alike ([[CompileOutput.classEntries]]). */
+  private def collectClassNames(output: Path): List[String] = {
+    val allClassFiles = CompileOutput
+      .classEntries(output)
+      .filter { entry =>
+        val name = entry.substring(entry.lastIndexOf('/') + 1)
+        // Skip: MyTest$Inner.class (inner class - has $ followed by non-empty name)
+        // Skip: MyTest$$anon$1.class (anonymous class - has $$)
+        !name.contains("$$") && !name.matches(".*\\$[^.]+\\.class")
+      }
 
-    // Get set of non-$ class names
-    val nonDollarNames = allClassFiles
-      .map(_.getFileName.toString)
+    // Get set of non-$ class files
+    val nonDollarEntries = allClassFiles
       .filter(!_.endsWith("$.class"))
       .map(_.stripSuffix(".class"))
       .toSet
@@ -551,23 +537,9 @@ object ClasspathTestDiscovery {
     // Filter out $.class files when the corresponding non-$ class exists
     // This handles Scala objects where we only want to discover the module accessor class,
     // not both the accessor and the object class.
-    allClassFiles.filter { p =>
-      val name = p.getFileName.toString
-      if (name.endsWith("$.class")) {
-        val baseName = name.stripSuffix("$.class")
-        !nonDollarNames.contains(baseName)
-      } else {
-        true
-      }
-    }
-  }
-
-  /** Convert class file path to class name */
-  private def classFileToClassName(baseDir: Path, classFile: Path): String = {
-    val relativePath = baseDir.relativize(classFile).toString
-    relativePath
-      .stripSuffix(".class")
-      .replace(File.separatorChar, '.')
+    allClassFiles
+      .filter(entry => !entry.endsWith("$.class") || !nonDollarEntries.contains(entry.stripSuffix("$.class")))
+      .map(_.stripSuffix(".class").replace('/', '.'))
   }
 
   /** Check if a class has a no-arg constructor */
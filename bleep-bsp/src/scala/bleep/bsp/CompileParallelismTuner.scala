@@ -0,0 +1,144 @@
+package bleep.bsp
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.LongAdder
+import scala.concurrent.duration.*
+
+/** How many compiles the daemon lets run at once, tuned from what running them actually achieves.
+  *
+  * Compile concurrency used to be whatever `parallelism` and the core count allowed: one compile per core the governor would grant. That is the right number
+  * for a machine with heap to spare and the wrong one for an 8-core laptop, where four concurrent Scala 3 compiles spend their time collecting each other's
+  * garbage and all finish later than two would have. No fixed number suits both, nor one machine across the day — the same four compiles fit after an idle
+  * trim and thrash with three workspaces' analyses resident.
+  *
+  * So the limit is a controller's output. Every [[Window]] it looks at:
+  *
+  *   - '''throughput''' — compile work completed per second, where the work of a compile is what it allocated ([[recordCompileWork]]). Allocation follows
+  *     what was compiled and not how long it took, so it does not flatter a slower window the way compiles-per-second would when the compiles got bigger;
+  *   - '''GC overhead''' — the share of the window the collectors paused the application ([[HeapMonitor.gcTimeMs]]). Only pauses count: a concurrent
+  *     collector reports its cycles in wall clock, overlapping each other and the compiles, so counting them would read a healthy ZGC heap as past [[GcHigh]].
+  *     Under ZGC the pauses stay short even when it thrashes; what thrash costs there is cores and stalled allocations, which show as a probe's throughput not
+  *     rising ([[MinGain]]);
+  *   - '''CPU saturation''' — the machine's load. Another compile on a saturated machine only slices the same cores thinner.
+  *
+  * and moves the limit one slot at a time, never on one window's evidence ([[Hysteresis]]):
+  *
+  *   - down when the GC overhead has stayed above [[GcHigh]];
+  *   - up when compiles were held back by the limit while GC stayed under [[GcLow]] and the machine had cores free. An increase is a probe: if the next
+  *     window's throughput is not [[MinGain]] better than before it, the slot is given back and no increase is tried again for [[Cooldown]] windows.
+  *
+  * It starts at [[maxSlots]], which is what the daemon did before, so it only ever takes concurrency away for a reason it can name, and each change is
+  * recorded with that reason ([[BspMetrics.recordCompileTuning]]). The limit is enforced at compile admission; the governor's core count still bounds
+  * everything else. Compiles in worker JVMs allocate in the worker, where this cannot see them, so the daemon does not run the controller with workers on.
+  *
+  * @param maxSlots
+  *   the most compiles it will allow at once — the governor's core count
+  */
+final class CompileParallelismTuner(val maxSlots: Int, heapMonitor: HeapMonitor) {
+  import CompileParallelismTuner.*
+
+  @volatile private var tuning: Tuning = Tuning.initial(maxSlots)
+  private val heldBack = new LongAdder()
+  private var last: Reading = Reading.now(heapMonitor)
+
+  /** The number of compiles that may run at once right now. */
+  def slots: Int = tuning.slots
+
+  /** Whether another compile may start with `activeCompiles` already running. A refusal is counted as demand the limit held back. */
+  def admits(activeCompiles: Int): Boolean =
+    activeCompiles < tuning.slots || { heldBack.increment(); false }
+
+  /** Close the window that ended now and retune. Called from one thread every [[Window]]. */
+  def tick(): Option[Change] = {
+    val reading = Reading.now(heapMonitor)
+    val wallMs = math.max(1L, reading.atMs - last.atMs)
+    val stats = WindowStats(
+      throughput = (reading.workBytes - last.workBytes) * 1000.0 / wallMs,
+      gcShare = (reading.gcTimeMs - last.gcTimeMs).toDouble / wallMs,
+      cpuLoad = reading.cpuLoad,
+      heldBack = heldBack.sumThenReset() > 0
+    )
+    last = reading
+    val (next, change) = step(tuning, stats, maxSlots)
+    tuning = next
+    change.foreach(BspMetrics.recordCompileTuning)
+    change
+  }
+}
+
+object CompileParallelismTuner {
+
+  val Window: FiniteDuration = 15.seconds
+
+  /** Consecutive windows a condition must hold before the limit moves. One window is a single large module; two is a trend. */
+  val Hysteresis: Int = 2
+
+  /** Windows after a change during which the limit is not raised again. Long enough that a slot given back for GC is not retaken the moment the heap clears. */
+  val Cooldown: Int = 4
+
+  /** GC running for this share of the window or more is overhead worth a slot. */
+  val GcHigh: Double = 0.30
+
+  /** Below this share there is heap headroom for another compile. The gap to [[GcHigh]] is what keeps the limit from oscillating. */
+  val GcLow: Double = 0.10
+
+  /** System CPU load at or above which the machine is saturated and another compile cannot help. */
+  val CpuSaturated: Double = 0.90
+
+  /** The throughput gain a probed slot must show to be kept. Less is noise, and an extra compile's heap is not free. */
+  val MinGain: Double = 0.05
+
+  private val completedWork = new LongAdder()
+
+  /** Count a finished compile's work, measured as the bytes it allocated, toward the current window. */
+  def recordCompileWork(allocatedBytes: Long): Unit =
+    completedWork.add(allocatedBytes)
+
+  /** What one window showed. `cpuLoad` is negative where the JVM cannot tell, and is then taken as not saturated. */
+  case class WindowStats(throughput: Double, gcShare: Double, cpuLoad: Double, heldBack: Boolean) {
+    def busy: Boolean = throughput > 0 || heldBack
+  }
+
+  /** A probe: the limit was raised from `fromSlots`, when throughput was `throughputBefore`. */
+  case class Probe(fromSlots: Int, throughputBefore: Double)
+
+  case class Tuning(slots: Int, gcStreak: Int, headroomStreak: Int, cooldown: Int, probe: Option[Probe])
+  object Tuning {
+    def initial(maxSlots: Int): Tuning = Tuning(math.max(1, maxSlots), 0, 0, 0, None)
+  }
+
+  /** A change of the limit, with the window that caused it. `reason` is `gc_overhead`, `headroom` or `no_gain`. */
+  case class Change(fromSlots: Int, toSlots: Int, reason: String, stats: WindowStats)
+
+  /** The controller's whole policy, as a function of its state and one window. Pure so it can be tested without a heap or a clock. */
+  private[bsp] def step(t: Tuning, w: WindowStats, maxSlots: Int): (Tuning, Option[Change]) = {
+    val cooldown = math.max(0, t.cooldown - 1)
+    def move(to: Int, reason: String, probe: Option[Probe], cooldown: Int): (Tuning, Option[Change]) =
+      (Tuning(to, 0, 0, cooldown, probe), Some(Change(t.slots, to, reason, w)))
+
+    if (!w.busy) (t.copy(gcStreak = 0, headroomStreak = 0, cooldown = cooldown, probe = None), None) // nothing ran, so nothing was learned
+    else
+      t.probe match {
+        case Some(p) if w.throughput < p.throughputBefore * (1 + MinGain) => move(p.fromSlots, "no_gain", None, Cooldown)
+        case _ =>
+          val gcStreak = if (w.gcShare >= GcHigh) t.gcStreak + 1 else 0
+          val headroomStreak = if (w.heldBack && w.gcShare < GcLow && w.cpuLoad < CpuSaturated) t.headroomStreak + 1 else 0
+          if (gcStreak >= Hysteresis && t.slots > 1) move(t.slots - 1, "gc_overhead", None, Cooldown)
+          else if (headroomStreak >= Hysteresis && cooldown == 0 && t.slots < maxSlots)
+            move(t.slots + 1, "headroom", Some(Probe(t.slots, w.throughput)), 0)
+          else (Tuning(t.slots, gcStreak, headroomStreak, cooldown, None), None)
+      }
+  }
+
+  private case class Reading(atMs: Long, workBytes: Long, gcTimeMs: Long, cpuLoad: Double)
+  private object Reading {
+    def now(heapMonitor: HeapMonitor): Reading =
+      Reading(System.currentTimeMillis(), completedWork.sum(), heapMonitor.gcTimeMs(), systemCpuLoad())
+  }
+
+  private def systemCpuLoad(): Double =
+    ManagementFactory.getOperatingSystemMXBean match {
+      case os: com.sun.management.OperatingSystemMXBean => os.getCpuLoad
+      case _                                             => -1.0
+    }
+}
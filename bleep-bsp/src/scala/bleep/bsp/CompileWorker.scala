@@ -0,0 +1,121 @@
+package bleep.bsp
+
+import bleep.analysis.*
+import bleep.bsp.CompileWorkerProtocol.{FromWorker, Result, ToWorker}
+import cats.effect.IO
+import cats.effect.unsafe.implicits.global
+
+import java.io.{BufferedReader, BufferedWriter, InputStreamReader, OutputStreamWriter}
+import java.net.{StandardProtocolFamily, UnixDomainSocketAddress}
+import java.nio.channels.{Channels, SocketChannel}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Path, Paths}
+import java.util.concurrent.ConcurrentHashMap
+
+/** Entry point of a compile worker JVM, started by [[CompileWorkers]] from the server's own classpath.
+  *
+  * Connects back to the socket the server named and then does nothing but compile: each request runs the same `ProjectCompiler` the server would have run
+  * in-process, against this worker's own [[AnalysisCache]], and everything the compile reports goes back over the socket tagged with the request's id.
+  *
+  * The worker has no life of its own. It holds no locks — the server takes `ProjectLock` before it dispatches — decides nothing about scheduling, and exits
+  * when the socket closes, which is also how it notices the server dying.
+  */
+object CompileWorker {
+
+  def main(args: Array[String]): Unit =
+    args match {
+      case Array("--connect", socket) => run(Paths.get(socket))
+      case _                          =>
+        System.err.println("Usage: compile-worker --connect <socket>")
+        System.exit(1)
+    }
+
+  private def run(socket: Path): Unit = {
+    val channel = SocketChannel.open(StandardProtocolFamily.UNIX)
+    channel.connect(UnixDomainSocketAddress.of(socket))
+    val in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8))
+    val out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8))
+
+    // Compiles report from zinc's threads, several at once. A write that fails means the server is gone; the read loop sees that too and exits, so the
+    // compile that was reporting is not the place to fail.
+    def send(message: FromWorker): Unit = out.synchronized {
+      try {
+        out.write(CompileWorkerProtocol.encode(message))
+        out.newLine()
+        out.flush()
+      } catch { case _: java.io.IOException => () }
+    }
+
+    val analyses = new AnalysisCache
+    val running = new ConcurrentHashMap[Long, CancellationToken]()
+
+    var line = in.readLine()
+    while (line != null) {
+      CompileWorkerProtocol.decodeToWorker(line) match {
+        case Right(request: ToWorker.Compile) =>
+          val token = CancellationToken.create()
+          running.put(request.id, token): Unit
+          compile(request, token, analyses, send)
+            .guarantee(IO(running.remove(request.id)).void)
+            .unsafeRunAndForget()
+        case Right(ToWorker.Cancel(id)) =>
+          Option(running.get(id)).foreach(_.cancel())
+        case Right(forget: ToWorker.Forget) =>
+          analyses.evictWorkspace(forget.workspaceKey): Unit
+        case Left(error) =>
+          System.err.println(s"[compile-worker] ignoring a message it cannot read: ${error.getMessage}")
+      }
+      line = in.readLine()
+    }
+    // The server closed the socket: it is shutting down, has died, or has given up on us. Whatever is still compiling has nobody to report to.
+    System.exit(0)
+  }
+
+  private def compile(request: ToWorker.Compile, token: CancellationToken, analyses: AnalysisCache, send: FromWorker => Unit): IO[Unit] = {
+    val id = request.id
+
+    val diagnosticListener = new DiagnosticListener {
+      def onDiagnostic(error: CompilerError): Unit = send(FromWorker.Diagnostic(id, error))
+      override def onCompilationReason(projectName: String, reason: CompilationReason): Unit = send(FromWorker.Reason(id, projectName, reason))
+      override def onCompilePhase(projectName: String, phase: CompilePhase): Unit = send(FromWorker.Phase(id, projectName, phase))
+    }
+
+    // Zinc calls this per unit per phase — thousands of times on a large project — and the server only ever shows whole percents, at most once a second. So
+    // only a change of percent or phase crosses the socket. Whether to go on is answered here, from the token the server's `Cancel` trips.
+    val progressListener = new ProgressListener {
+      @volatile private var last = (-1, "")
+      def onProgress(current: Int, total: Int, phase: String): Boolean = {
+        if (total > 0) {
+          val now = ((current.toLong * 100) / total).toInt -> phase
+          if (now != last) {
+            last = now
+            send(FromWorker.Progress(id, current, total, phase))
+          }
+        }
+        !token.isCancelled
+      }
+    }
+
+    ProjectCompiler
+      .forLanguage(request.config.language)
+      .compile(
+        request.config,
+        diagnosticListener,
+        token,
+        request.dependencyAnalyses,
+        progressListener,
+        AnalysisCache.Ref(analyses, request.workspaceKey)
+      )
+      .attempt
+      .flatMap {
+        // The server and the next worker read this analysis from disk, so it has to be there before the answer is.
+        case Right(result: ProjectCompileSuccess) =>
+          IO.blocking(AnalysisWriter.flush(result.analysisFile.toList)).map {
+            case Nil      => FromWorker.Done(id, Result.of(result))
+            case failures => FromWorker.Done(id, Result.Failure(failures.map(CompilerError(None, 0, 0, _, None, CompilerError.Severity.Error))))
+          }.flatMap(done => IO(send(done)))
+        case Right(result) => IO(send(FromWorker.Done(id, Result.of(result))))
+        case Left(e)       => IO(send(FromWorker.Done(id, Result.Threw(s"${e.getClass.getName}: ${e.getMessage}"))))
+      }
+  }
+}
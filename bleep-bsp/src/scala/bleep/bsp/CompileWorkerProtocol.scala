@@ -0,0 +1,80 @@
+package bleep.bsp
+
+import bleep.analysis.*
+import bleep.internal.codecs.*
+import bleep.model
+import io.circe.generic.semiauto.deriveCodec
+import io.circe.parser.decode
+import io.circe.syntax.*
+import io.circe.Codec
+
+import java.nio.file.Path
+
+/** What the compile server and a [[CompileWorker]] say to each other: one JSON object per line, in both directions, over the worker's socket.
+  *
+  * Requests carry an id, and everything the worker sends about a request carries it back, so one worker runs several compiles at once — a workspace's DAG
+  * compiles in parallel and all of it is routed to the same worker. The worker reports what the in-process compile would have told its listeners, in the same
+  * order; the server replays it into the same listeners, so nothing downstream can tell where the compile ran.
+  *
+  * Both ends are the same jar — the server starts its workers from its own classpath — so there is no version skew to tolerate and the codecs are derived.
+  */
+object CompileWorkerProtocol {
+
+  sealed trait ToWorker
+  object ToWorker {
+    case class Compile(id: Long, workspace: Path, variant: String, config: ProjectConfig, dependencyAnalyses: Map[Path, Path]) extends ToWorker {
+      def workspaceKey: model.WorkspaceKey = model.WorkspaceKey(workspace, model.BuildVariant.fromName(variant))
+    }
+    case class Cancel(id: Long) extends ToWorker
+
+    /** The server no longer holds this workspace's build, so the worker should not hold its analyses either. */
+    case class Forget(workspace: Path, variant: String) extends ToWorker {
+      def workspaceKey: model.WorkspaceKey = model.WorkspaceKey(workspace, model.BuildVariant.fromName(variant))
+    }
+  }
+
+  sealed trait FromWorker {
+    def id: Long
+  }
+  object FromWorker {
+    case class Diagnostic(id: Long, error: CompilerError) extends FromWorker
+    case class Reason(id: Long, projectName: String, reason: CompilationReason) extends FromWorker
+    case class Phase(id: Long, projectName: String, phase: CompilePhase) extends FromWorker
+    case class Progress(id: Long, current: Int, total: Int, phase: String) extends FromWorker
+    case class Done(id: Long, result: Result) extends FromWorker
+  }
+
+  /** How a compile ended. A success does not list its class files: nothing on the server reads them, and on a large project they are most of the message. */
+  sealed trait Result
+  object Result {
+    case class Success(outputDir: Path, analysisFile: Option[Path]) extends Result
+    case class Failure(errors: List[CompilerError]) extends Result
+    case object Cancelled extends Result
+
+    /** The compile threw. The server rethrows it, as the in-process compile would have. */
+    case class Threw(message: String) extends Result
+
+    def of(result: ProjectCompileResult): Result =
+      result match {
+        case s: ProjectCompileSuccess   => Success(s.outputDir, s.analysisFile)
+        case f: ProjectCompileFailure   => Failure(f.errors)
+        case _: ProjectCompileCancelled => Cancelled
+      }
+  }
+
+  private implicit val languageCodec: Codec[ProjectLanguage] = deriveCodec
+  private implicit val projectConfigCodec: Codec[ProjectConfig] = deriveCodec
+  private implicit val severityCodec: Codec[CompilerError.Severity] = deriveCodec
+  private implicit val compilerErrorCodec: Codec[CompilerError] = deriveCodec
+  private implicit val reasonCodec: Codec[CompilationReason] = deriveCodec
+  private implicit val phaseCodec: Codec[CompilePhase] = deriveCodec
+  private implicit val resultCodec: Codec[Result] = deriveCodec
+  private implicit val toWorkerCodec: Codec[ToWorker] = deriveCodec
+  private implicit val fromWorkerCodec: Codec[FromWorker] = deriveCodec
+
+  def encode(message: ToWorker): String = message.asJson.noSpaces
+  def encode(message: FromWorker): String = message.asJson.noSpaces
+
+  def decodeToWorker(line: String): Either[io.circe.Error, ToWorker] = decode[ToWorker](line)
+  def decodeFromWorker(line: String): Either[io.circe.Error, FromWorker] = decode[FromWorker](line)
+}
@@ -0,0 +1,396 @@
+package bleep.bsp
+
+import bleep.analysis.*
+import bleep.bsp.CompileWorkerProtocol.{FromWorker, Result, ToWorker}
+import bleep.bsp.protocol.KillReason
+import bleep.{model, MachineResources}
+import cats.effect.IO
+import cats.effect.std.Mutex
+import cats.effect.unsafe.implicits.global
+import cats.syntax.all.*
+import ryddig.Logger
+
+import java.io.{BufferedReader, BufferedWriter, IOException, InputStreamReader, OutputStreamWriter}
+import java.lang.management.ManagementFactory
+import java.net.{StandardProtocolFamily, UnixDomainSocketAddress}
+import java.nio.channels.{Channels, ServerSocketChannel, SocketChannel}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, Paths, StandardCopyOption}
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong, AtomicReference}
+import scala.collection.mutable
+import scala.concurrent.duration.*
+import scala.jdk.CollectionConverters.*
+
+/** Compile worker JVMs: compiles run in them instead of in the server's heap.
+  *
+  * Every in-process compile for every workspace shares the server's one `-Xmx`, and a good deal of the server exists only to make that survivable —
+  * [[HeapPressureGate]] deferring compiles, [[AnalysisCache]] interning, the bound on [[BuildCache]]. With workers, the server keeps scheduling, caching and
+  * BSP, and a compile runs in a worker instead: a big compile can exhaust only its worker's heap, and a worker that dies takes nothing else with it.
+  *
+  * ==Routing==
+  *
+  * Sticky, by workspace and compiler. The first compile of a (workspace, compiler) pair goes to the worker with the fewest pairs so far, and every later one
+  * goes to the same worker — which is what keeps that worker's JIT, its classloaded compiler and its Zinc analyses for the workspace warm. A worker runs
+  * several compiles at once; how many compile machine-wide is still decided by DAG admission, exactly as before.
+  *
+  * ==Memory==
+  *
+  * A worker holds its footprint from the governor for as long as it lives, as [[MachineResources.ResourceKind.CompileWorker]], so it counts against the same
+  * memory budget as test forks. It is taken with `tryReserve`, never by waiting: when the worker's memory does not fit right now, that compile runs in the
+  * server as it always has, and the worker is started by a later one. Waiting would mean holding a compile's core while forks that may be idle in a pool
+  * hold the memory.
+  *
+  * ==Failure==
+  *
+  * A worker that dies — OOM, a crash, a kill — fails every compile it was running with [[WorkerDied]]. Each of them is retried once on a fresh worker; a
+  * compile that kills its worker twice is reported as a compile failure naming the worker's log, rather than taking down a third.
+  *
+  * ==Cancellation==
+  *
+  * A compile cancelled on the server side is not over until the worker says so. The caller holds the project's [[ProjectLock]] around the compile, and the
+  * worker may still be writing classes and analysis when it is told to stop; were the lock released on sending `Cancel`, the next compile of the project
+  * would start on top of those writes. So a cancelled compile waits for the worker's `Done` for it, and a worker that does not answer within
+  * [[CancelGrace]] is killed, and waited for until it has exited, before the cancellation completes.
+  */
+final class CompileWorkers private (slots: Vector[CompileWorkers.Slot], heapMb: Long, machine: MachineResources, logDir: Path, logger: Logger) {
+  import CompileWorkers.*
+
+  /** Which slot each (workspace, compiler) pair was given. Guarded by its own monitor: assignment reads every other entry. */
+  private val routes = mutable.HashMap.empty[Route, Int]
+
+  private def slotFor(route: Route): Slot =
+    slots(routes.synchronized(routes.getOrElseUpdate(route, pick(routes.values, slots.size))))
+
+  /** Compile in this workspace's worker — or, when no worker can be had right now, with `inProcess`. `ownAnalysis` is the project's analysis file, as
+    * [[BleepBuildConverter.analysisFile]] names it.
+    */
+  def compile(
+      workspace: model.WorkspaceKey,
+      config: ProjectConfig,
+      ownAnalysis: Path,
+      diagnosticListener: DiagnosticListener,
+      cancellation: CancellationToken,
+      dependencyAnalyses: Map[Path, Path],
+      progressListener: ProgressListener
+  )(inProcess: IO[ProjectCompileResult]): IO[ProjectCompileResult] = {
+    val slot = slotFor(Route(workspace, compilerOf(config.language)))
+
+    val attempt: IO[ProjectCompileResult] =
+      workerIn(slot).flatMap {
+        case None         => inProcess
+        case Some(worker) =>
+          // The worker reads analyses from disk, and the ones this JVM compiled may still be on their way there — the project's own, if its last
+          // compile fell back to in-process, and its dependencies'. The worker flushes its own writes before it answers, so the reverse needs nothing.
+          IO.blocking(AnalysisWriter.flush(ownAnalysis :: dependencyAnalyses.values.toList)) >>
+            worker.compile(workspace, config, diagnosticListener, cancellation, dependencyAnalyses, progressListener)
+      }
+
+    retryingOnDeath(config.name, workspace, cancellation, logger, Retries)(attempt)
+  }
+
+  /** Tell workers to drop the analyses of workspaces the server no longer holds, and forget where those workspaces were routed. */
+  def retainOnly(workspaces: Set[model.WorkspaceKey]): Unit = {
+    val gone = routes.synchronized {
+      val stale = routes.filter { case (route, _) => !workspaces.contains(route.workspace) }.toList
+      stale.foreach { case (route, _) => routes.remove(route) }
+      stale
+    }
+    gone.foreach { case (route, index) =>
+      slots(index).current.get().filter(_.alive).foreach(_.send(ToWorker.Forget(route.workspace.workspace, route.workspace.variant.name)))
+    }
+  }
+
+  /** The live worker in this slot, starting one if there is none. `None` when one cannot be had right now. */
+  private def workerIn(slot: Slot): IO[Option[Worker]] =
+    slot.lock.lock.surround {
+      IO.defer {
+        slot.current.get() match {
+          case Some(worker) if worker.alive => IO.pure(Some(worker))
+          case _                            =>
+            spawn(slot.index).flatTap(started => IO(slot.current.set(started)))
+        }
+      }
+    }
+
+  private def spawn(index: Int): IO[Option[Worker]] =
+    machine
+      .tryReserve(MachineResources.ResourceKind.CompileWorker, s"compile worker $index", cpu = 0, memoryMb = MachineResources.forkFootprintMb(heapMb))
+      .flatMap {
+        case None          => IO.pure(Option.empty[Worker])
+        case Some(release) =>
+          start(index, release).attempt.flatMap {
+            case Right(worker) => IO.pure(Option(worker))
+            case Left(e)       =>
+              IO(logger.warn(s"Could not start compile worker $index, compiling in the server instead: ${e.getMessage}")) >> release.as(Option.empty[Worker])
+          }
+      }
+
+  private def start(index: Int, release: IO[Unit]): IO[Worker] = {
+    val socket = logDir.resolve(s"compile-worker-$index.sock")
+    val log = logDir.resolve(s"compile-worker-$index.log")
+
+    val launch = IO.blocking {
+      Files.deleteIfExists(socket)
+      val server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+      server.bind(UnixDomainSocketAddress.of(socket))
+      // One log per slot, with the previous worker's kept beside it: a worker that died is usually restarted straight away, and its log is the evidence.
+      if (Files.exists(log)) Files.move(log, logDir.resolve(s"compile-worker-$index.log.prev"), StandardCopyOption.REPLACE_EXISTING)
+      val classpath = System.getProperty("java.class.path")
+      val useEnvClasspath = scala.util.Properties.isWin && classpath.length > 30000
+      val cmd =
+        List(Paths.get(System.getProperty("java.home"), "bin", "java").toString) ++ jvmOptions(heapMb) ++
+          (if (useEnvClasspath) Nil else List("-cp", classpath)) ++
+          List(WorkerMainClass, "--connect", socket.toString)
+      val pb = new ProcessBuilder(cmd*)
+      if (useEnvClasspath) pb.environment().put("CLASSPATH", classpath): Unit
+      // Zinc writes a great deal to stdout, as it does in the server, where stdout is discarded for the same reason.
+      pb.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+      pb.redirectError(log.toFile)
+      (server, pb.start())
+    }
+
+    launch.flatMap { case (server, process) =>
+      IO.race(IO.interruptible(server.accept()), IO.interruptible(process.waitFor()))
+        .timeout(StartTimeout)
+        .guarantee(IO.blocking { server.close(); Files.deleteIfExists(socket) }.void)
+        .flatMap {
+          case Left(channel) =>
+            IO {
+              val worker = new Worker(index, process, channel, release, log, logger)
+              worker.listen()
+              BspMetrics.recordForkStart(process.pid(), s"compile worker $index", Some(heapMb))
+              logger.info(s"Started compile worker $index (pid ${process.pid()}, ${heapMb}MB heap)")
+              worker
+            }
+          case Right(exit) =>
+            IO.raiseError(new IOException(s"compile worker $index exited with $exit before connecting; see $log"))
+        }
+        .onError(_ => IO(process.destroyForcibly()).void)
+    }
+  }
+}
+
+object CompileWorkers {
+
+  /** How many times a compile is retried after its worker dies. */
+  val Retries = 1
+
+  /** Default heap for each worker when `compileWorkerMaxMemory` is unset. */
+  val DefaultHeapMb: Long = 4096L
+
+  private val StartTimeout: FiniteDuration = 60.seconds
+
+  /** How long a cancelled compile waits for its worker to confirm it stopped before the worker is killed. A compile checks for cancellation between Zinc
+    * phases and on every progress tick, so a worker that is still healthy answers well within this.
+    */
+  val CancelGrace: FiniteDuration = 10.seconds
+
+  private val WorkerMainClass: String = CompileWorker.getClass.getName.stripSuffix("$")
+
+  /** The workers a server configured with `config` runs, if it runs any. Nothing is started until the first compile that needs a worker. */
+  def fromConfig(config: model.BspServerConfig, machine: MachineResources, logDir: Path, logger: Logger): IO[Option[CompileWorkers]] =
+    config.effectiveCompileWorkers match {
+      case 0     => IO.pure(None)
+      case count =>
+        val heapMb = config.compileWorkerMaxMemory.flatMap(MachineResources.parseMemoryMb).getOrElse(DefaultHeapMb)
+        (0 until count).toVector
+          .traverse(index => Mutex[IO].map(lock => new Slot(index, lock)))
+          .map(slots => Some(new CompileWorkers(slots, heapMb, machine, logDir, logger)))
+    }
+
+  /** A worker is dead and the compile it was running went with it. */
+  final class WorkerDied(message: String) extends IOException(message)
+
+  /** Run `attempt`, and run it again when its worker dies under it, up to `retries` times. Each run gets whatever worker is live by then — the dead one's slot
+    * starts a fresh one. A death after the compile was cancelled is just the cancellation, and one past the last retry is reported as a compile failure.
+    */
+  private[bsp] def retryingOnDeath(projectName: String, workspace: model.WorkspaceKey, cancellation: CancellationToken, logger: Logger, retries: Int)(
+      attempt: IO[ProjectCompileResult]
+  ): IO[ProjectCompileResult] =
+    attempt.recoverWith {
+      case _: WorkerDied if cancellation.isCancelled =>
+        IO.pure(ProjectCompileCancelled(KillReason.UserRequest))
+      case died: WorkerDied if retries > 0 =>
+        IO(logger.withContext("project", projectName).warn(s"${died.getMessage}; compiling again on a fresh worker")) >>
+          IO(BspMetrics.recordCompileRetried(projectName, workspace.workspace.toString, died.getMessage)) >>
+          retryingOnDeath(projectName, workspace, cancellation, logger, retries - 1)(attempt)
+      case died: WorkerDied =>
+        IO.pure(
+          ProjectCompileFailure(
+            List(CompilerError(None, 0, 0, s"${died.getMessage}, twice in a row while compiling $projectName", None, CompilerError.Severity.Error))
+          )
+        )
+    }
+
+  private[bsp] case class Route(workspace: model.WorkspaceKey, compiler: String)
+
+  /** The slot a new route goes to: the one with the fewest routes already, the lowest on a tie. `assigned` holds the slot of every existing route. */
+  private[bsp] def pick(assigned: Iterable[Int], slotCount: Int): Int = {
+    val counts = Array.fill(slotCount)(0)
+    assigned.foreach(i => counts(i) += 1)
+    counts.indices.minBy(i => counts(i))
+  }
+
+  /** What a worker keeps warm for a project: its compiler and version. Projects sharing one are worth routing together. */
+  private[bsp] def compilerOf(language: ProjectLanguage): String =
+    language match {
+      case l: ProjectLanguage.ScalaJava    => s"scala ${l.scalaVersion}"
+      case l: ProjectLanguage.Kotlin       => s"kotlin ${l.kotlinVersion}"
+      case l: ProjectLanguage.KotlinJs     => s"kotlin-js ${l.kotlinVersion}"
+      case l: ProjectLanguage.KotlinNative => s"kotlin-native ${l.kotlinVersion}"
+      case l: ProjectLanguage.JavaOnly     => l.ecjVersion.fold("javac")(v => s"ecj $v")
+    }
+
+  /** The server's own JVM options, with the worker's heap instead of the server's. Everything else the server was started with — stack size, GC, exit on
+    * OOM — applies to compiling just the same. Agents and debuggers are left behind: they are attached to the server, and a second copy would fight over its
+    * port.
+    */
+  private def jvmOptions(heapMb: Long): List[String] =
+    ManagementFactory.getRuntimeMXBean.getInputArguments.asScala.toList.filterNot { opt =>
+      opt.startsWith("-Xmx") || opt.startsWith("-agentlib") || opt.startsWith("-javaagent") || opt.startsWith("-Xrunjdwp") || opt == "-Xdebug"
+    } :+ s"-Xmx${heapMb}m"
+
+  private[bsp] final class Slot(val index: Int, val lock: Mutex[IO]) {
+    val current = new AtomicReference[Option[Worker]](None)
+  }
+
+  /** What a compile in flight reports to. `settled` completes once the worker is done with it: it answered, or it is dead. */
+  private case class Pending(
+      diagnosticListener: DiagnosticListener,
+      progressListener: ProgressListener,
+      callback: Either[Throwable, ProjectCompileResult] => Unit,
+      settled: CompletableFuture[Unit] = new CompletableFuture[Unit]()
+  ) {
+    def finish(result: Either[Throwable, ProjectCompileResult]): Unit = {
+      callback(result)
+      settled.complete(()): Unit
+    }
+  }
+
+  /** One running worker process and its connection. */
+  private[bsp] final class Worker(
+      index: Int,
+      process: Process,
+      channel: SocketChannel,
+      release: IO[Unit],
+      log: Path,
+      logger: Logger,
+      cancelGrace: FiniteDuration = CancelGrace
+  ) {
+    private val in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8))
+    private val out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8))
+    private val pending = new ConcurrentHashMap[Long, Pending]()
+    private val nextId = new AtomicLong(0)
+    private val dead = new AtomicBoolean(false)
+    private val startedAt = System.currentTimeMillis()
+
+    def alive: Boolean = !dead.get() && process.isAlive
+
+    def send(message: ToWorker): Unit =
+      try
+        out.synchronized {
+          out.write(CompileWorkerProtocol.encode(message))
+          out.newLine()
+          out.flush()
+        }
+      catch { case e: IOException => died(s"writing to it failed: ${e.getMessage}") }
+
+    def compile(
+        workspace: model.WorkspaceKey,
+        config: ProjectConfig,
+        diagnosticListener: DiagnosticListener,
+        cancellation: CancellationToken,
+        dependencyAnalyses: Map[Path, Path],
+        progressListener: ProgressListener
+    ): IO[ProjectCompileResult] =
+      IO.async[ProjectCompileResult] { callback =>
+        IO {
+          val id = nextId.incrementAndGet()
+          val entry = Pending(diagnosticListener, progressListener, callback)
+          pending.put(id, entry): Unit
+          // Registered, then checked: whichever of this and `died` runs second sees the other, so the compile is failed exactly once either way.
+          if (dead.get()) Option(pending.remove(id)).foreach(_.finish(Left(new WorkerDied(s"compile worker $index died"))))
+          else {
+            send(ToWorker.Compile(id, workspace.workspace, workspace.variant.name, config, dependencyAnalyses))
+            cancellation.onCancel(() => if (pending.containsKey(id)) send(ToWorker.Cancel(id)))
+          }
+          Some(cancelAndWait(id, entry))
+        }
+      }
+
+    /** The compile's fiber was cancelled: stop the worker's compile, and return only once the worker no longer touches the project's outputs. The entry stays
+      * registered until the worker's `Done`, so that is what completes `settled`; a worker that sends nothing by then is killed.
+      */
+    private def cancelAndWait(id: Long, entry: Pending): IO[Unit] =
+      IO.defer {
+        if (entry.settled.isDone) IO.unit
+        else
+          IO(send(ToWorker.Cancel(id))) >>
+            IO.fromCompletableFuture(IO(entry.settled.copy())).timeout(cancelGrace).recoverWith { case _: java.util.concurrent.TimeoutException =>
+              IO.blocking {
+                died(s"it did not stop a cancelled compile within $cancelGrace")
+                process.waitFor()
+              }.void
+            }
+      }
+
+    /** Start reading what the worker sends. Reading stops when the connection does, which is the worker dying whichever way it died. */
+    def listen(): Unit = {
+      val reader = new Thread(s"compile-worker-$index") {
+        override def run(): Unit = {
+          try {
+            var line = in.readLine()
+            while (line != null) {
+              CompileWorkerProtocol.decodeFromWorker(line) match {
+                case Right(message) => dispatch(message)
+                case Left(error)    => logger.warn(s"Compile worker $index sent something unreadable: ${error.getMessage}")
+              }
+              line = in.readLine()
+            }
+          } catch { case _: IOException => () }
+          died("its connection closed")
+        }
+      }
+      reader.setDaemon(true)
+      reader.start()
+    }
+
+    private def dispatch(message: FromWorker): Unit =
+      message match {
+        case FromWorker.Done(id, result) =>
+          Option(pending.remove(id)).foreach { p =>
+            p.finish(result match {
+              case Result.Success(outputDir, analysisFile) => Right(ProjectCompileSuccess(outputDir, Set.empty, analysisFile))
+              case Result.Failure(errors)                  => Right(ProjectCompileFailure(errors))
+              case Result.Cancelled                        => Right(ProjectCompileCancelled(KillReason.UserRequest))
+              case Result.Threw(error)                     => Left(new RuntimeException(s"$error (in compile worker $index)"))
+            })
+          }
+        case other =>
+          Option(pending.get(other.id)).foreach { p =>
+            other match {
+              case FromWorker.Diagnostic(_, error)              => p.diagnosticListener.onDiagnostic(error)
+              case FromWorker.Reason(_, projectName, reason)    => p.diagnosticListener.onCompilationReason(projectName, reason)
+              case FromWorker.Phase(_, projectName, phase)      => p.diagnosticListener.onCompilePhase(projectName, phase)
+              case FromWorker.Progress(_, current, total, name) => p.progressListener.onProgress(current, total, name): Unit
+              case FromWorker.Done(_, _)                        => ()
+            }
+          }
+      }
+
+    /** Tear down once, however many ways the death is noticed, and fail whatever was running on it. */
+    private def died(cause: String): Unit =
+      if (dead.compareAndSet(false, true)) {
+        process.destroyForcibly(): Unit
+        try channel.close()
+        catch { case _: IOException => () }
+        val exit = if (process.waitFor(5, java.util.concurrent.TimeUnit.SECONDS)) s"exit ${process.exitValue()}" else "did not exit"
+        BspMetrics.recordForkEnd(process.pid(), System.currentTimeMillis() - startedAt, exit, None)
+        release.unsafeRunAndForget()
+        val inFlight = pending.keySet().asScala.toList.flatMap(id => Option(pending.remove(id)))
+        if (inFlight.nonEmpty) logger.warn(s"Compile worker $index (pid ${process.pid()}) died with ${inFlight.size} compile(s) running: $cause, $exit")
+        inFlight.foreach(_.finish(Left(new WorkerDied(s"compile worker $index died ($exit); see $log"))))
+      }
+  }
+}
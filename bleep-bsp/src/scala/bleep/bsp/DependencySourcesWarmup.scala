@@ -0,0 +1,80 @@
+package bleep.bsp
+
+import bleep.MachineResources
+import bleep.model.CrossProjectName
+import cats.effect.IO
+import cats.effect.unsafe.implicits.global
+import ch.epfl.scala.bsp.Uri
+import ryddig.Logger
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
+import scala.concurrent.duration.*
+import scala.util.control.NonFatal
+
+/** Source jars for every project of the build an IDE connection just adopted, collected before the IDE asks for them.
+  *
+  * An IDE's first `buildTarget/dependencySources` arrives straight after import and names every target at once. Answering it means forcing each project's
+  * resolution and walking its modules for `sources` artifacts, and the import shows nothing until that is done. Started as soon as the connection adopts a
+  * build, the work is usually finished by the time the request comes, which then only has to be encoded (and is kept by [[ResponseCache]] from there on).
+  *
+  * Nobody is waiting on it yet, so each project is admitted separately through [[MachineResources.tryReserveIdle]], as [[WarmRestartPreloader]] admits its
+  * steps: a compile the IDE starts meanwhile keeps every core it wants. A project the warm-up has not reached when the request comes is computed by the request
+  * itself, exactly as without a warm-up. Adopting another build stops the warm-up for the previous one, whose jars are no longer handed out.
+  */
+final class DependencySourcesWarmup[B <: AnyRef](machine: MachineResources, logger: Logger) {
+  import DependencySourcesWarmup.*
+
+  private val current = new AtomicReference[Option[Round[B]]](None)
+
+  /** Collect the source jars of `projects` for `build` on a background thread, in the order given, stopping any warm-up still running for another build. */
+  def start(build: B, projects: List[(CrossProjectName, () => List[Uri])]): Unit = {
+    val round = new Round(build, new ConcurrentHashMap[CrossProjectName, List[Uri]]())
+    current.set(Some(round))
+    Thread.ofVirtual().name("bsp-dependency-sources-warmup").start(() => run(round, projects)): Unit
+  }
+
+  /** Stop warming and forget what was warmed. Called when the connection closes. */
+  def stop(): Unit = current.set(None)
+
+  /** The source jars of `crossName` in `build`, if the warm-up has got to them. */
+  def get(build: B, crossName: CrossProjectName): Option[List[Uri]] =
+    current.get().filter(_.build eq build).flatMap(round => Option(round.sourceJars.get(crossName)))
+
+  private def run(round: Round[B], projects: List[(CrossProjectName, () => List[Uri])]): Unit = {
+    val stopped = () => !current.get().exists(_ eq round)
+    val startedAt = System.currentTimeMillis()
+    val warmed = projects.count { case (crossName, sourceJars) =>
+      try whenIdle(s"warm dependency sources ${crossName.value}", stopped)(round.sourceJars.put(crossName, sourceJars()): Unit).isDefined
+      catch {
+        // The request computes this project again and reports what went wrong to the client that asked; nobody asked yet.
+        case NonFatal(e) =>
+          logger.withContext("project", crossName.value).withContext("reason", e.getMessage).debug("Could not warm dependency sources")
+          false
+      }
+    }
+    if (!stopped())
+      logger.withContext("projects", warmed).withContext("ms", System.currentTimeMillis() - startedAt).info("Warmed dependency sources")
+  }
+
+  /** Run `work` holding one core nothing else wants, waiting for one as long as it takes. `None` if stopped first. */
+  private def whenIdle[A](label: String, stopped: () => Boolean)(work: => A): Option[A] = {
+    var granted: Option[IO[Unit]] = None
+    while (granted.isEmpty && !stopped()) {
+      granted = machine.tryReserveIdle(MachineResources.ResourceKind.ResponseWarmup, label, cpu = 1, memoryMb = 0L).unsafeRunSync()
+      if (granted.isEmpty) Thread.sleep(AdmissionRetry.toMillis)
+    }
+    granted.map { release =>
+      try work
+      finally release.unsafeRunSync()
+    }
+  }
+}
+
+object DependencySourcesWarmup {
+
+  /** One build's warm-up. Compared by identity: a second adoption of the same build is a new round, and the old one stops. */
+  private final class Round[B](val build: B, val sourceJars: ConcurrentHashMap[CrossProjectName, List[Uri]])
+
+  private val AdmissionRetry: FiniteDuration = 500.millis
+}
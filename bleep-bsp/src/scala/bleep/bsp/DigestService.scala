@@ -0,0 +1,79 @@
+package bleep.bsp
+
+import bleep.{model, FileHashCache, ProjectDigest, Started}
+
+import java.nio.file.Path
+import scala.collection.immutable.SortedMap
+
+/** Project digests for the compile server, computed against file hashes it keeps in memory.
+  *
+  * Prefetch digests a workspace on every commit move, and auto-push digests each project twice per compile. Through [[ProjectDigest.computeFor]]'s default
+  * path each of those would load the workspace's [[FileHashCache]] from disk, stat every file against it, and write it back. Holding the cache here keeps the
+  * stat and drops the load and the write: the daemon pays for reading a file once per change, not once per question about it.
+  *
+  * Still written to disk — on a timer rather than per call, since it exists for the next process, not this one — so a `bleep remote-cache pull` from the
+  * command line starts from what the daemon already knew.
+  *
+  * Bounded by [[MaxWorkspaces]] so a daemon that has served many worktrees does not hold all of their stat tables. Least recently used goes first; dropping
+  * one costs its next call a load from disk.
+  */
+object DigestService {
+
+  private val MaxWorkspaces = 16
+
+  /** How often a changed cache is written back. */
+  private val SaveIntervalMs = 30000L
+
+  private final class Held(val hashes: FileHashCache) {
+    @volatile var lastSavedMs: Long = System.currentTimeMillis()
+  }
+
+  private val held: java.util.LinkedHashMap[Path, Held] =
+    new java.util.LinkedHashMap[Path, Held](16, 0.75f, /* accessOrder = */ true) {
+      override def removeEldestEntry(eldest: java.util.Map.Entry[Path, Held]): Boolean =
+        if (size() > MaxWorkspaces) {
+          eldest.getValue.hashes.save()
+          true
+        } else false
+    }
+
+  private def holderFor(started: Started): Held =
+    held.synchronized {
+      val buildDir = started.buildPaths.buildDir
+      Option(held.get(buildDir)).getOrElse {
+        val fresh = new Held(FileHashCache.load(FileHashCache.fileFor(started.buildPaths)))
+        held.put(buildDir, fresh): Unit
+        fresh
+      }
+    }
+
+  /** Digests for `projects` and their dependencies, as [[ProjectDigest.computeFor]] computes them. */
+  def digests(started: Started, projects: collection.Set[model.CrossProjectName]): SortedMap[model.CrossProjectName, String] = {
+    val holder = holderFor(started)
+    val result = ProjectDigest.computeFor(started.build, started.buildPaths, projects, holder.hashes)
+    val now = System.currentTimeMillis()
+    if (now - holder.lastSavedMs >= SaveIntervalMs) {
+      holder.lastSavedMs = now
+      holder.hashes.save()
+    }
+    result
+  }
+
+  /** Every project's digest. */
+  def all(started: Started): SortedMap[model.CrossProjectName, String] =
+    digests(started, started.build.explodedProjects.keySet)
+
+  /** One project's digest. */
+  def digest(started: Started, project: model.CrossProjectName): Option[String] =
+    digests(started, Set(project)).get(project)
+
+  /** Git blob hash of one file, through the same per-workspace cache — for inputs that are not sources, like the jars a link reads. */
+  def fileHash(started: Started, file: Path): String =
+    holderFor(started).hashes.blobHash(file)
+
+  /** Write every held cache back. For daemon shutdown. */
+  def saveAll(): Unit = {
+    val all = held.synchronized(held.values().toArray(Array.empty[Held]).toList)
+    all.foreach(_.hashes.save())
+  }
+}
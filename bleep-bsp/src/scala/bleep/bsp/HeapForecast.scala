@@ -0,0 +1,117 @@
+package bleep.bsp
+
+import bleep.analysis.AnalysisCache
+import cats.effect.IO
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import scala.jdk.CollectionConverters.*
+
+/** What each project's compile is expected to need of the server heap at its peak, learned from the compiles before it.
+  *
+  * [[HeapPressureGate]] used to see only the heap as it is now: whether a compile fit was answered by whether the heap was below the threshold when it asked,
+  * and a compile that would take 3GB was admitted on the same terms as one that would take 30MB. Whether two large modules of the same build OOMed the daemon
+  * came down to which one got past the gate first.
+  *
+  * Each compile's allocation is already measured exactly ([[BspMetrics.recordCompileAllocation]]). An EWMA of it per project is the history; the predicted
+  * peak is [[LiveShareOfAllocation]] of that plus the retained size of the project's own analysis, which the compile holds in full alongside the one it is
+  * writing. Allocation is churn, not live data, so the share is a calibration constant rather than a measurement — which is why every compile's predicted
+  * allocation is reported against its actual, so the constant can be checked and the error watched.
+  *
+  * Keyed by the project's analysis file, which is unique per workspace, variant and project, so `core` in two worktrees has two histories. Compiles in worker
+  * JVMs allocate in the worker, are never recorded here, and so are admitted as before.
+  *
+  * A compile counts as in flight from the moment it is admitted, not from when it starts: [[TaskDag]] weighs every ready task in one pass, and the compiles
+  * admitted earlier in the pass have not started by the time the next is weighed. Counted only once they started, two large compiles offered together were
+  * both weighed against an empty daemon.
+  */
+final class HeapForecast(alpha: Double) {
+  import HeapForecast.*
+
+  private val history = new ConcurrentHashMap[Path, History]()
+
+  /** Predicted peaks of the compiles admitted or running, per analysis file. A compile is held twice over its life — by its admission and while it runs —
+    * and counted once.
+    */
+  private val inFlight = new ConcurrentHashMap[Path, Held]()
+
+  /** The peak heap a compile of the project with this analysis file is expected to reach, or `None` before its first measured compile. */
+  def predictPeakBytes(analysisFile: Path): Option[Long] =
+    Option(history.get(analysisFile)).map { h =>
+      val analysisBytes = if (Files.isRegularFile(analysisFile)) Files.size(analysisFile) else 0L
+      (h.allocatedBytes * LiveShareOfAllocation).toLong + AnalysisCache.estimateRetained(analysisBytes, internedShare = 0.0)
+    }
+
+  /** Run `compile` counted as in flight, at its predicted peak, for the gate to weigh other compiles against. Also covers a compile admitted without asking
+    * the gate, as the DAG's first task on an idle machine is.
+    */
+  def whileCompiling[A](analysisFile: Path)(compile: IO[A]): IO[A] =
+    IO(hold(analysisFile, predictPeakBytes(analysisFile).getOrElse(0L))).bracket(_ => compile)(release => release)
+
+  /** What the gate needs to know about `analysisFile`'s compile, or `None` when there is no history to predict from. */
+  def forecast(analysisFile: Path): Option[HeapPressureGate.Forecast] =
+    predictPeakBytes(analysisFile).map { peak =>
+      val others = inFlight.asScala.collect { case (file, held) if file != analysisFile => held.peakBytes }.toList
+      HeapPressureGate.Forecast(peakBytes = peak, inFlightPeakBytes = others.sum, largestInFlightBytes = others.maxOption.getOrElse(0L))
+    }
+
+  /** Ask `decide` whether `analysisFile`'s compile may start, given its forecast, and hold its predicted peak from then on when it may.
+    *
+    * Deciding and holding happen under one lock, so two admissions — in one DAG's pass or on two connections — cannot both be weighed against what was in
+    * flight before either of them. The admission's `release` gives the hold back; the DAG runs it with the compile's reservation, or at once when the machine
+    * then refuses the compile one.
+    */
+  def admit(analysisFile: Path)(decide: Option[HeapPressureGate.Forecast] => HeapPressureGate.Decision): IO[Admission] =
+    IO {
+      synchronized {
+        val f = forecast(analysisFile)
+        decide(f) match {
+          case HeapPressureGate.Decision.Admit => Admission(f, HeapPressureGate.Decision.Admit, hold(analysisFile, f.fold(0L)(_.peakBytes)))
+          case deferred                        => Admission(f, deferred, IO.unit)
+        }
+      }
+    }
+
+  /** Count `analysisFile`'s compile as in flight at `peakBytes` until the returned action runs. Running it again does nothing. */
+  private def hold(analysisFile: Path, peakBytes: Long): IO[Unit] = {
+    inFlight.compute(analysisFile, (_, held) => if (held == null) Held(peakBytes, holders = 1) else held.copy(holders = held.holders + 1)): Unit
+    val released = new AtomicBoolean(false)
+    IO {
+      if (released.compareAndSet(false, true))
+        inFlight.computeIfPresent(analysisFile, (_, held) => if (held.holders <= 1) null else held.copy(holders = held.holders - 1)): Unit
+    }
+  }
+
+  /** Fold a finished compile's allocation into the project's history, and report how far off the prediction was. */
+  def recordAllocation(analysisFile: Path, project: String, allocatedBytes: Long): Unit = {
+    val before = Option(history.get(analysisFile))
+    history.merge(analysisFile, History(allocatedBytes.toDouble, 1), (h, _) => h.update(allocatedBytes, alpha)): Unit
+    before.foreach(h => BspMetrics.recordHeapForecast(project, predictedBytes = h.allocatedBytes.toLong, actualBytes = allocatedBytes, samples = h.samples))
+  }
+}
+
+object HeapForecast {
+
+  /** Weight of the newest compile. A module's compiles vary with what changed — one file or the whole module — so the history should follow a lasting change
+    * in size within a handful of compiles without being dragged to the size of the last one-line fix.
+    */
+  val Alpha: Double = 0.3
+
+  /** The share of a compile's total allocation live at once at its peak. Compiles allocate mostly short-lived trees and symbols; a tenth is the upper end of
+    * what heap graphs of large modules show, and erring high costs some parallelism while erring low costs the daemon.
+    */
+  val LiveShareOfAllocation: Double = 0.1
+
+  /** What [[HeapForecast.admit]] decided, on which forecast, and how to give back the hold an admission took. `release` does nothing for a deferral. */
+  case class Admission(forecast: Option[HeapPressureGate.Forecast], decision: HeapPressureGate.Decision, release: IO[Unit])
+
+  private case class Held(peakBytes: Long, holders: Int)
+
+  case class History(allocatedBytes: Double, samples: Int) {
+    def update(latest: Long, alpha: Double): History = History(alpha * latest + (1 - alpha) * allocatedBytes, samples + 1)
+  }
+
+  /** The daemon's one forecast: the heap is shared by every connection's compiles, so their history is too. */
+  val global: HeapForecast = new HeapForecast(Alpha)
+}
@@ -1,5 +1,7 @@
 package bleep.bsp
 
+import scala.jdk.CollectionConverters.*
+
 /** Heap memory in megabytes */
 case class HeapMb(value: Long) extends AnyVal
 
@@ -12,6 +14,11 @@ case class DurationMs(value: Long) extends AnyVal
 /** Abstraction for reading heap memory usage, injectable for testing. */
 trait HeapMonitor {
   def heapUsage(): HeapMonitor.Usage
+
+  /** Total time the collectors have paused the application since the JVM started, in milliseconds ([[HeapMonitor.pauseTimeMs]]). Only differences between
+    * two calls mean anything.
+    */
+  def gcTimeMs(): Long
 }
 
 object HeapMonitor {
@@ -21,11 +28,23 @@ object HeapMonitor {
     def fraction: Double = if (maxBytes > 0) usedBytes.toDouble / maxBytes else 0.0
   }
 
+  /** The pause time among `collectors`, each a collector's name and the milliseconds it reports.
+    *
+    * Not every collector's time is a pause. ZGC and Shenandoah report their concurrent cycles as collectors of their own (`ZGC Cycles`, generational ZGC's
+    * `ZGC Minor Cycles` and `ZGC Major Cycles`, `Shenandoah Cycles`), timed in wall clock while the application kept running, and since JDK 20 G1 does the
+    * same for its concurrent marking (`G1 Concurrent GC`). A minor and a major cycle overlap, so their sum can exceed the time that passed. Those are left out;
+    * what remains (the `Pauses` collectors, G1's young and old generations, and every stop-the-world collector) is time the application stood still.
+    */
+  private[bsp] def pauseTimeMs(collectors: Iterable[(String, Long)]): Long =
+    collectors.iterator.collect { case (name, ms) if !name.endsWith(" Cycles") && name != "G1 Concurrent GC" => math.max(0L, ms) }.sum
+
   val system: HeapMonitor = new HeapMonitor {
     private val memBean = java.lang.management.ManagementFactory.getMemoryMXBean
     def heapUsage(): Usage = {
       val heap = memBean.getHeapMemoryUsage
       Usage(heap.getUsed, heap.getMax)
     }
+    def gcTimeMs(): Long =
+      pauseTimeMs(java.lang.management.ManagementFactory.getGarbageCollectorMXBeans.asScala.map(gc => (gc.getName, gc.getCollectionTime)))
   }
 }
@@ -37,14 +37,29 @@ object HeapPressureGate {
   object Decision {
     case object Admit extends Decision
 
-    /** Not now. `delayMs` is only the stagger this would have slept, reported to the listener so the "waiting for memory" event still carries a duration. */
-    case class Defer(delayMs: Long) extends Decision
+    /** Not now. `delayMs` is only the stagger this would have slept, reported to the listener so the "waiting for memory" event still carries a duration.
+      * `reason` is what the metrics record: `heap_pressure` and `stagger` without a forecast, `predicted_peak` and `large_compile_running` with one.
+      */
+    case class Defer(delayMs: Long, reason: String) extends Decision
   }
 
+  /** What [[HeapForecast]] expects of this compile and of the ones already running, in bytes. */
+  case class Forecast(peakBytes: Long, inFlightPeakBytes: Long, largestInFlightBytes: Long)
+
+  /** A compile predicted to need at least this share of the ceiling is large, and two large compiles are never started side by side: together they are the
+    * OOM the gate exists to prevent, and each alone is fast enough that running them one after the other costs little.
+    */
+  val LargeShare: Double = 0.25
+
   /** The gate's whole policy, as a total function of what it observes. Pure so it can be tested without a heap, a clock, or a scheduler.
     *
     * `firstRefusedAt` is when this task was first deferred (None if it has never been), which is what makes [[MaxWaitMs]] enforceable across separate admission
     * attempts rather than within one sleep loop.
+    *
+    * With a `forecast`, the question is whether the compile will fit rather than whether the heap is full now: it is admitted at once when the heap in use,
+    * plus the predicted peaks of the compiles already running, plus its own, stays under `threshold` of the max heap. That counts the running compiles' current
+    * usage twice — it is in the heap in use and in their peaks — which errs toward deferring, the side the deadline bounds. A large compile waits for any other
+    * large one to finish however much room there is. Without a forecast — a project that has never compiled in this daemon — the stagger below applies.
     */
   def decide(
       usage: HeapMonitor.Usage,
@@ -52,17 +67,28 @@ object HeapPressureGate {
       threshold: Double,
       retryMs: DurationMs,
       firstRefusedAt: Option[EpochMs],
-      now: EpochMs
-  ): Decision =
+      now: EpochMs,
+      forecast: Option[Forecast]
+  ): Decision = {
+    // Stagger proportional to how close we are to the threshold:
+    //   fraction 0.02 / threshold 0.80 => scale 0.10 (min) => 200ms
+    //   fraction 0.50 / threshold 0.80 => scale 0.625      => 1250ms
+    //   fraction 0.80 / threshold 0.80 => scale 1.0        => 2000ms
+    def stagger: Long = (retryMs.value * math.max(MinDelayFraction, math.min(1.0, usage.fraction / threshold))).toLong
+
     if (!othersCompiling) Decision.Admit // sole compile: staggering against nobody, and deferring it would stall the build
-    else if (firstRefusedAt.isDefined && usage.fraction < threshold) Decision.Admit // waited at least once and the pressure is gone
-    else if (firstRefusedAt.exists(start => now.value - start.value >= MaxWaitMs)) Decision.Admit // deadline: proceed under pressure rather than never
-    else {
-      // Stagger proportional to how close we are to the threshold:
-      //   fraction 0.02 / threshold 0.80 => scale 0.10 (min) => 200ms
-      //   fraction 0.50 / threshold 0.80 => scale 0.625      => 1250ms
-      //   fraction 0.80 / threshold 0.80 => scale 1.0        => 2000ms
-      val scale = math.max(MinDelayFraction, math.min(1.0, usage.fraction / threshold))
-      Decision.Defer((retryMs.value * scale).toLong)
-    }
+    else
+      forecast match {
+        case _ if firstRefusedAt.exists(start => now.value - start.value >= MaxWaitMs) => Decision.Admit // deadline: proceed under pressure rather than never
+        case Some(f) =>
+          val ceiling = (usage.maxBytes * threshold).toLong
+          val large = (ceiling * LargeShare).toLong
+          if (f.peakBytes >= large && f.largestInFlightBytes >= large) Decision.Defer(retryMs.value, "large_compile_running")
+          else if (usage.usedBytes + f.inFlightPeakBytes + f.peakBytes <= ceiling) Decision.Admit
+          else Decision.Defer(stagger, "predicted_peak")
+        case None =>
+          if (firstRefusedAt.isDefined && usage.fraction < threshold) Decision.Admit // waited at least once and the pressure is gone
+          else Decision.Defer(stagger, if (usage.fraction >= threshold) "heap_pressure" else "stagger")
+      }
+  }
 }
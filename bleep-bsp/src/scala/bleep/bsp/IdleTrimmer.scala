@@ -0,0 +1,117 @@
+package bleep.bsp
+
+import bleep.{model, MachineResources, ProcessMemory}
+import bleep.analysis.{AnalysisCache, CompilerResolver}
+import cats.effect.unsafe.implicits.global
+import ryddig.Logger
+
+import java.lang.management.ManagementFactory
+import java.nio.file.Path
+import scala.concurrent.duration.*
+
+/** Gives memory back once the daemon has been quiet for a while.
+  *
+  * A daemon sized for the largest compile it has run keeps that size for as long as it lives. Between compiles — a developer reading a diff, in a meeting, on
+  * another project — it holds every compiler it has loaded and every analysis it has read, and a heap committed to match, on a laptop where that memory is
+  * wanted by the browser and the IDE. The idle timeout only helps after an hour, and then by throwing away everything, including what the next compile will
+  * want back.
+  *
+  * So after [[bleep.model.BspServerConfig.effectiveIdleTrimMillis]] without any work, once per quiet stretch:
+  *
+  *   - every Scala compiler, ECJ loader and Kotlin compiler but the most recently used of each is evicted and closed
+  *     ([[bleep.analysis.CompilerInstanceCache.trimIdle]]);
+  *   - the analyses of every workspace but the one used last are dropped ([[AnalysisCache.evictWorkspace]]). Builds stay: they are small next to their
+  *     analyses, and the next compile re-reads analyses from disk far faster than it could re-resolve a build;
+  *   - a full GC is requested, and the heap freed by it is uncommitted. The daemon runs ZGC with `ZUncommitDelay` (see `BspRifleConfig`), so what the GC
+  *     frees goes back to the OS after that delay without anything further from here.
+  *
+  * "Quiet" means nothing in flight in any workspace and nothing running or waiting in the [[MachineResources]] governor, whether or not clients are connected
+  * — an editor left open all afternoon is still connected. Compile worker JVMs hold their governor reservation for their whole life, so they do not count as
+  * work.
+  *
+  * The footprint before and after is recorded in [[BspMetrics]], using [[ProcessMemory]]'s figure rather than RSS (which counts shared pages in full), next to
+  * the heap's used and committed sizes, so what a trim actually bought is visible rather than assumed.
+  */
+final class IdleTrimmer(quietMs: Long, machine: MachineResources, analysisCache: AnalysisCache, logger: Logger) {
+  import IdleTrimmer.*
+
+  private var lastBusyMs: Long = System.currentTimeMillis()
+  private var trimmedSinceBusy: Boolean = false
+
+  /** Check whether the daemon is quiet and trim if it has been for long enough. Called from one thread every [[PollInterval]]; blocks while a trim settles. */
+  def pollOnce(): Unit = {
+    val nowMs = System.currentTimeMillis()
+    if (SharedWorkspaceState.activeWorkspaces.nonEmpty || governorBusy) {
+      lastBusyMs = nowMs
+      trimmedSinceBusy = false
+    } else if (!trimmedSinceBusy && nowMs - lastBusyMs >= quietMs) {
+      trimmedSinceBusy = true
+      trim(quietForMs = nowMs - lastBusyMs)
+    }
+  }
+
+  private def governorBusy: Boolean = {
+    val snapshot = machine.snapshot.unsafeRunSync()
+    snapshot.waiting.nonEmpty || snapshot.active.exists(_.kind != MachineResources.ResourceKind.CompileWorker)
+  }
+
+  private def trim(quietForMs: Long): Unit = {
+    val before = Measurement.now()
+    val compilers = CompilerResolver.compilers.trimIdle().map(_.toString)
+    val freed = workspacesToEvict(analysisCache.lastUsedMs, SharedWorkspaceState.activeWorkspaces).map(analysisCache.evictWorkspace)
+    System.gc()
+    Thread.sleep(SettleDelay.toMillis)
+    val after = Measurement.now()
+    val report = Report(
+      quietForMs = quietForMs,
+      before = before,
+      after = after,
+      compilersDropped = compilers,
+      analysesFreed = freed.map(_.entries).sum,
+      analysisFileBytesFreed = freed.map(_.fileBytes).sum
+    )
+    BspMetrics.recordIdleTrim(report)
+    logger
+      .withContext("quietMinutes", quietForMs / 60000)
+      .withContext("footprintMb", s"${before.footprintMb.fold("?")(_.toString)} -> ${after.footprintMb.fold("?")(_.toString)}")
+      .withContext("heapCommittedMb", s"${before.heapCommittedMb} -> ${after.heapCommittedMb}")
+      .withContext("compilersDropped", compilers.mkString(", "))
+      .withContext("analysesFreed", report.analysesFreed)
+      .info("Trimmed an idle server")
+  }
+}
+
+object IdleTrimmer {
+
+  val PollInterval: FiniteDuration = 15.seconds
+
+  /** How long after the GC the second measurement is taken. Past the daemon's `ZUncommitDelay` of 30s, so it sees the heap after uncommit, not before. */
+  private val SettleDelay: FiniteDuration = 35.seconds
+
+  /** The daemon's memory at one instant. `footprintMb` is `None` where [[ProcessMemory]] cannot read it. */
+  case class Measurement(footprintMb: Option[Long], heapUsedMb: Long, heapCommittedMb: Long)
+
+  object Measurement {
+    def now(): Measurement = {
+      val heap = ManagementFactory.getMemoryMXBean.getHeapMemoryUsage
+      Measurement(ProcessMemory.system.footprintMb(ProcessHandle.current().pid()), heap.getUsed / (1024L * 1024L), heap.getCommitted / (1024L * 1024L))
+    }
+  }
+
+  case class Report(
+      quietForMs: Long,
+      before: Measurement,
+      after: Measurement,
+      compilersDropped: List[String],
+      analysesFreed: Int,
+      analysisFileBytesFreed: Long
+  )
+
+  /** Every workspace holding analyses except the one that used them last, and except any with work in flight — none, when called from a trim, but a compile
+    * can start between the quiet check and the eviction, and the analyses it is reading are the last ones to take from under it.
+    */
+  private[bsp] def workspacesToEvict(lastUsedMs: Map[model.WorkspaceKey, Long], active: Set[Path]): List[model.WorkspaceKey] = {
+    val keep = lastUsedMs.maxByOption(_._2).map(_._1)
+    lastUsedMs.keys.toList.filterNot(key => keep.contains(key) || active.contains(key.workspace)).sortBy(_.workspace.toString)
+  }
+}
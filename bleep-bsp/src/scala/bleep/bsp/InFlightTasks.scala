@@ -0,0 +1,101 @@
+package bleep.bsp
+
+import bleep.bsp.protocol.{BleepBspProtocol, KillReason, ProcessExit}
+import bleep.model
+import bleep.model.CrossProjectName
+import cats.effect.{Deferred, IO}
+import ch.epfl.scala.bsp.{Diagnostic, TextDocumentIdentifier}
+
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.mutable
+
+/** Tasks running right now, across every connection, so that a request whose DAG contains one joins it instead of running its own copy.
+  *
+  * An IDE, a terminal `bleep compile` and a few MCP agents on the same workspace each build and run their own `TaskDag`. Their DAGs overlap almost entirely,
+  * and every overlapping compile used to run once per request: the second one queued on `ProjectLock` behind the first and then compiled again — or, at best,
+  * paid a noop check — while holding its own reservation. Here the second request finds the first one's task and waits for its outcome instead.
+  *
+  * A task is the same task only within one build: the key is the workspace and variant, the [[BuildId]] and the [[TaskDag.TaskId]]. Whoever registers first
+  * leads and runs the task; everyone after it subscribes. A subscriber sees what the task has published so far — its diagnostics and progress events — and
+  * then everything it publishes until it finishes, so its client shows the same compile as the leader's does.
+  *
+  * Cancellation stays per request. A subscriber that is killed stops waiting and leaves the task running for the others. A leader that is killed kills the
+  * task, and its subscribers — which did not ask for that — run it again themselves, one of them leading.
+  */
+object InFlightTasks {
+
+  case class Key(workspace: model.WorkspaceKey, buildId: BuildId, task: TaskDag.TaskId)
+
+  /** Where a running compile reports to. One per joined request, each carrying that request's origin id and diagnostic bookkeeping. */
+  trait CompileListener {
+    def begin(project: CrossProjectName): Unit
+    def diagnostic(project: CrossProjectName, document: TextDocumentIdentifier, diagnostic: Diagnostic): Unit
+    def event(project: CrossProjectName, event: BleepBspProtocol.Event): Unit
+  }
+
+  /** One running task, and everyone listening to it. */
+  final class Flight[L] private[InFlightTasks] (private[InFlightTasks] val result: Deferred[IO, TaskDag.TaskResult]) {
+    private val published = mutable.ArrayBuffer.empty[L => Unit]
+    private val listeners = mutable.ArrayBuffer.empty[L]
+
+    /** Deliver to every listener now, and to every listener that joins later. */
+    def publish(message: L => Unit): Unit = synchronized {
+      published += message
+      listeners.foreach(message)
+    }
+
+    private[InFlightTasks] def subscribe(listener: L): Unit = synchronized {
+      published.foreach(_(listener))
+      listeners += listener
+    }
+
+    private[InFlightTasks] def unsubscribe(listener: L): Unit = synchronized {
+      listeners -= listener
+    }: Unit
+  }
+
+  /** The listener a leading compile reports to: everything it is told goes to the flight, and from there to every request that has joined. */
+  def publishingTo(flight: Flight[CompileListener]): CompileListener =
+    new CompileListener {
+      def begin(project: CrossProjectName): Unit = flight.publish(_.begin(project))
+      def diagnostic(project: CrossProjectName, document: TextDocumentIdentifier, diagnostic: Diagnostic): Unit =
+        flight.publish(_.diagnostic(project, document, diagnostic))
+      def event(project: CrossProjectName, event: BleepBspProtocol.Event): Unit = flight.publish(_.event(project, event))
+    }
+
+  // Values are `Flight[L]` for the `L` their key's task kind uses; every caller for one kind of task passes the same `L`.
+  private val flights = new ConcurrentHashMap[Key, Flight[?]]()
+
+  /** Run the task under `key` — or, if it is already running, wait for that run.
+    *
+    * `lead` runs only when this request leads, and publishes through the flight it is given. `kill` is this request's own kill signal.
+    */
+  def run[L](key: Key, listener: L, kill: Deferred[IO, KillReason])(lead: Flight[L] => IO[TaskDag.TaskResult]): IO[TaskDag.TaskResult] =
+    IO.defer {
+      val mine = new Flight[L](Deferred.unsafe[IO, TaskDag.TaskResult])
+      mine.subscribe(listener)
+      flights.putIfAbsent(key, mine) match {
+        case null =>
+          // Deregistered before the result is published, so nobody who sees the result can then join this finished run.
+          def finish(result: TaskDag.TaskResult): IO[Unit] =
+            IO(flights.remove(key, mine)) >> mine.result.complete(result).void
+          lead(mine).guaranteeCase {
+            case cats.effect.Outcome.Succeeded(fa) => fa.flatMap(finish)
+            case cats.effect.Outcome.Errored(e)    => finish(TaskDag.TaskResult.Error(s"${key.task.value} failed: ${e.getMessage}", ProcessExit.Unknown))
+            case cats.effect.Outcome.Canceled()    => finish(TaskDag.TaskResult.Killed(KillReason.UserRequest))
+          }
+
+        case running =>
+          val leader = running.asInstanceOf[Flight[L]]
+          BspMetrics.recordTaskCoalesced(key.task.value, key.workspace.workspace.toString)
+          IO(leader.subscribe(listener)) >>
+            IO.race(leader.result.get, kill.get)
+              .guarantee(IO(leader.unsubscribe(listener)))
+              .flatMap {
+                case Left(TaskDag.TaskResult.Killed(_)) => run(key, listener, kill)(lead)
+                case Left(result)                       => IO.pure(result)
+                case Right(reason)                      => IO.pure(TaskDag.TaskResult.Killed(reason))
+              }
+      }
+    }
+}
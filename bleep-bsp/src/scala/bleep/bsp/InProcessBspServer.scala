@@ -45,7 +45,7 @@ object InProcessBspServer {
                   heapMonitor = HeapMonitor.system,
                   kspMutexes = new KspMutexes,
                   buildCache =
-                    new BuildCache(bleep.model.BspServerConfig.default.maxCachedWorkspacesFor(Runtime.getRuntime.maxMemory()), inProcessAnalysisCache),
+                    new BuildCache(BuildCache.Budget.fromConfig(bleep.model.BspServerConfig.default, Runtime.getRuntime.maxMemory()), inProcessAnalysisCache),
                   analysisCache = inProcessAnalysisCache
                 )
               server.run()
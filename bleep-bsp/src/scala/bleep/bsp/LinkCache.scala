@@ -0,0 +1,287 @@
+package bleep.bsp
+
+import bleep.{model, CacheStore, Checksums, Started, TarGz}
+import bleep.commands.RemoteCache
+import bleep.internal.FileUtils
+import cats.effect.IO
+import ryddig.Logger
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path}
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import scala.concurrent.duration.*
+import scala.jdk.CollectionConverters.*
+import scala.util.Using
+import scala.util.control.NonFatal
+
+/** Caches Scala.js and Scala Native link outputs under a key describing everything the linker reads, locally and in the remote cache.
+  *
+  * Linking a Scala Native test binary or a `fullLinkJS` bundle takes minutes per project, and until now nothing outside [[LinkExecutor]]'s own mtime check
+  * remembered one: every CI job relinked everything it had just pulled compile outputs for, and the pulled class files — all newer than any link output —
+  * defeated even that check locally.
+  *
+  * ==The key==
+  *
+  * SHA-256 over:
+  *   - the project's [[bleep.ProjectDigest]], which already folds in the digests of every project it depends on, so the class directories on the classpath are
+  *     covered by what produced them;
+  *   - each jar on the classpath, by file name and content hash (through [[DigestService]], so unchanged jars are not re-read);
+  *   - the platform: toolchain and Scala versions and the full link config, and for Scala Native the OS and architecture the binary runs on. Local clang paths
+  *     are left out — where a tool is installed says nothing about what it produces;
+  *   - release mode, test mode and the main class.
+  *
+  * The key digests the sources as they are when the link starts, and the classes the linker reads were compiled from the sources as they were when their
+  * compile started. The two only agree if nothing changed in between, and storing outputs under a key that does not describe them would poison every cache
+  * they reach. So each compile task records when it started ([[compileStarting]]), and a key is only taken if no input of the digest changed since the
+  * earliest such start among the project and everything it depends on — the same check [[RemoteCachePusher]] makes for compile outputs. A link that fails it
+  * runs uncached.
+  *
+  * ==Where outputs come from==
+  *
+  *   1. Locally: each link directory records the key its outputs were produced under. A match means linking would reproduce what is there.
+  *   1. Remotely, through the build's [[bleep.CacheStore]], under the project's prefix with a `link-` key that can never equal a compile digest. A hit is
+  *      unpacked in place of the directory's previous contents.
+  *   1. Otherwise the linker runs. A link that actually ran is pushed in the background when `remoteCacheAutoPush` is on, through [[RemoteCachePusher]]'s
+  *      queue; one found up to date by mtime is trusted locally, as it always was, but never published.
+  *
+  * All three write the link directory, and the push reads it, under the directory's own [[ProjectLock]]: a relink never rewrites what is being packed. The
+  * push also checks again that no input changed since the compiles the key was taken against, and that the directory still holds that key's outputs.
+  *
+  * Kotlin/JS and Kotlin/Native are not cached: their output locations are part of their config and not portable.
+  */
+object LinkCache {
+
+  /** Bump when anything fed into the key changes meaning. */
+  private val FormatVersion = "1"
+
+  /** The key the outputs in a link directory were produced under. Not packed: a pull writes the one it pulled. */
+  private val KeyFileName = ".bleep-link-key"
+
+  /** Scala Native's intermediate files: large, machine-specific, and only useful to the next incremental link on this machine. */
+  private val NativeWorkDir = "native-work"
+
+  /** How long a link waits for a push to finish packing its directory. Packing takes seconds; this only bounds a stuck holder. */
+  private val LockTimeout: FiniteDuration = 5.minutes
+
+  /** When each project's compile task last started, by classes dir — one per workspace, variant and project. */
+  private val compileStarts = new ConcurrentHashMap[Path, java.lang.Long]()
+
+  /** A link key, and the time since which its inputs must not have changed for it to describe the outputs linked under it. */
+  final case class Keyed(linkKey: String, inputsAsOfMs: Long)
+
+  /** Record that `project`'s compile task is starting. Whatever it leaves in the classes dir — compiled now, or found up to date — reflects its sources as
+    * they are from this moment on.
+    */
+  def compileStarting(started: Started, project: model.CrossProjectName, startMs: Long): Unit =
+    compileStarts.put(started.projectPaths(project).classes, startMs): Unit
+
+  /** The earliest compile start of `project` and everything on its classpath, or `None` if one of them has not compiled in this daemon. */
+  private def compiledAsOf(started: Started, project: model.CrossProjectName): Option[Long] = {
+    val starts = (project :: started.build.transitiveDependenciesFor(project).keys.toList).map { name =>
+      Option(compileStarts.get(started.projectPaths(name).classes)).map(_.longValue)
+    }
+    if (starts.forall(_.isDefined)) Some(starts.flatten.min) else None
+  }
+
+  /** The store key component for a link key, distinct from every compile digest so both can live under one project. */
+  def storeDigest(linkKey: String): String = s"link-$linkKey"
+
+  /** What goes into a pushed link archive: everything under `linkDir` but the key file and Scala Native's work dir. */
+  def packFilter(linkDir: Path)(file: Path): Boolean = {
+    val rel = linkDir.relativize(file)
+    !rel.startsWith(NativeWorkDir) && rel.toString != KeyFileName
+  }
+
+  /** The link key for `task`, or `None` if its platform is not cached, the project cannot be digested, or its sources changed since they were compiled. */
+  def key(started: Started, task: TaskDag.LinkTask, classpath: Seq[Path], mainClass: Option[String]): Option[Keyed] =
+    for {
+      platform <- platformDescription(task.platform)
+      asOf <- compiledAsOf(started, task.project)
+      projectDigest <- DigestService.digest(started, task.project)
+      // Checked after digesting: if nothing changed since the compiles started, what was just digested is what they read.
+      if !RemoteCachePusher.changedSince(RemoteCachePusher.digestInputs(started, task.project), asOf - RemoteCachePusher.TimestampSlackMs)
+    } yield {
+      // Directories are project outputs (classes, resources), covered by the project digest.
+      val jars = classpath.filter(Files.isRegularFile(_)).map(jar => jar.getFileName.toString -> DigestService.fileHash(started, jar))
+      Keyed(linkKey(projectDigest, platform, task, mainClass, jars), asOf)
+    }
+
+  /** SHA-256 over the key's parts. `jars` are (file name, content hash) in classpath order, the order the linker sees them. */
+  private[bsp] def linkKey(projectDigest: String, platform: String, task: TaskDag.LinkTask, mainClass: Option[String], jars: Seq[(String, String)]): String = {
+    val md = MessageDigest.getInstance("SHA-256")
+    def add(value: String): Unit = {
+      md.update(value.getBytes(StandardCharsets.UTF_8))
+      md.update(0.toByte)
+    }
+    add(FormatVersion)
+    add(projectDigest)
+    add(platform)
+    add(s"release=${task.releaseMode}")
+    add(s"test=${task.isTest}")
+    add(s"main=${mainClass.getOrElse("")}")
+    jars.foreach { case (name, hash) =>
+      add(name)
+      add(hash)
+    }
+    Checksums.byteArrayToHexString(md.digest())
+  }
+
+  /** What of the platform goes into the key, or `None` for a platform that is not cached. */
+  private[bsp] def platformDescription(platform: TaskDag.LinkPlatform): Option[String] =
+    platform match {
+      case TaskDag.LinkPlatform.ScalaJs(version, scalaVersion, config) =>
+        Some(s"scala-js|$version|$scalaVersion|$config")
+      case TaskDag.LinkPlatform.ScalaNative(version, scalaVersion, config) =>
+        Some(s"scala-native|$version|$scalaVersion|${config.copy(clang = None, clangpp = None)}|${sys.props("os.name")}|${sys.props("os.arch")}")
+      case _ => None
+    }
+
+  /** Run `link` only if neither this machine nor the remote cache already has its output.
+    *
+    * @param linkLogger
+    *   the client-facing log the linker itself writes to
+    * @param logger
+    *   the daemon's log, for what the client has no use for
+    */
+  def around(
+      started: Started,
+      task: TaskDag.LinkTask,
+      classpath: Seq[Path],
+      mainClass: Option[String],
+      baseOutputDir: Path,
+      linkLogger: LinkExecutor.LinkLogger,
+      logger: Logger
+  )(link: IO[(TaskDag.TaskResult, TaskDag.LinkResult)]): IO[(TaskDag.TaskResult, TaskDag.LinkResult)] = {
+    val workspace = started.buildPaths.buildDir.toString
+    val startMs = System.currentTimeMillis()
+    def record(outcome: String, bytes: Long): IO[Unit] =
+      IO(BspMetrics.recordLinkCache(task.project.value, workspace, outcome, bytes, System.currentTimeMillis() - startMs))
+
+    if (platformDescription(task.platform).isEmpty) link
+    else {
+      val linkDir = baseOutputDir.resolve(LinkExecutor.linkDirSuffix(task.platform))
+      val keyFile = linkDir.resolve(KeyFileName)
+
+      val computeKey = IO.blocking {
+        try key(started, task, classpath, mainClass)
+        catch {
+          case NonFatal(e) =>
+            logger.withContext("project", task.project.value).withContext("reason", e.getMessage).debug("No link cache key")
+            None
+        }
+      }
+
+      // Whatever happens next, the outputs stop matching the recorded key the moment the linker starts writing.
+      def runLinker(keyed: Option[Keyed]): IO[(TaskDag.TaskResult, TaskDag.LinkResult)] =
+        IO.blocking(Files.deleteIfExists(keyFile)) >>
+          link.flatTap {
+            case (TaskDag.TaskResult.Success, result) =>
+              keyed.fold(record("uncached", 0L)) { k =>
+                IO.blocking {
+                  Files.createDirectories(linkDir)
+                  Files.writeString(keyFile, k.linkKey)
+                  if (!wasUpToDate(result) && RemoteCachePusher.enabled(started))
+                    RemoteCachePusher.scheduleLink(started, task.project, k, linkDir, logger)
+                } >> record("linked", 0L)
+              }
+            case _ => record("failed", 0L)
+          }
+
+      computeKey.flatMap { keyed =>
+        ProjectLock.acquireDir(task.project, linkDir, ProjectLock.LockMode.Exclusive, LockTimeout, () => ()).surround {
+          keyed match {
+            case None    => runLinker(None)
+            case Some(k) =>
+              IO.blocking(fromLocal(task, baseOutputDir, keyFile, k.linkKey)).flatMap {
+                case Some(result) =>
+                  IO(linkLogger.info(s"[LINK] Up-to-date (link cache): ${task.project.value}")) >>
+                    record("local", 0L).as((TaskDag.TaskResult.Success, result))
+                case None =>
+                  IO.blocking(fromRemote(started, task, baseOutputDir, k.linkKey, logger)).flatMap {
+                    case Some((result, bytes)) =>
+                      IO(linkLogger.info(s"[LINK] Pulled from remote cache: ${task.project.value} (${bytes / 1024} KB)")) >>
+                        record("remote", bytes).as((TaskDag.TaskResult.Success, result))
+                    case None => runLinker(keyed)
+                  }
+              }
+          }
+        }
+      }
+    }
+  }
+
+  private def wasUpToDate(result: TaskDag.LinkResult): Boolean =
+    result match {
+      case r: TaskDag.LinkResult.JsSuccess     => r.wasUpToDate
+      case r: TaskDag.LinkResult.NativeSuccess => r.wasUpToDate
+      case _                                   => false
+    }
+
+  private def fromLocal(task: TaskDag.LinkTask, baseOutputDir: Path, keyFile: Path, linkKey: String): Option[TaskDag.LinkResult] =
+    if (Files.isRegularFile(keyFile) && Files.readString(keyFile).trim == linkKey) LinkExecutor.existingOutput(task, baseOutputDir)
+    else None
+
+  /** Pull and install the outputs for `linkKey`, if the remote cache has them. A cache that cannot be reached is a miss: the linker is always the fallback. */
+  private def fromRemote(
+      started: Started,
+      task: TaskDag.LinkTask,
+      baseOutputDir: Path,
+      linkKey: String,
+      logger: Logger
+  ): Option[(TaskDag.LinkResult, Long)] =
+    started.build.remoteCache.flatMap { config =>
+      try {
+        val (client, prefix) = RemoteCache.storeFor(started, config)
+        pull(client, RemoteCache.cacheKey(prefix, task.project, storeDigest(linkKey)), task, baseOutputDir, linkKey)
+      } catch {
+        case NonFatal(e) =>
+          logger.withContext("project", task.project.value).withContext("reason", e.getMessage).debug("Link cache pull failed; linking")
+          None
+      }
+    }
+
+  /** Install the archive stored under `storeKey` as `task`'s link outputs, recording `linkKey` for them. `None` if the store does not have it. */
+  private[bsp] def pull(
+      client: CacheStore,
+      storeKey: String,
+      task: TaskDag.LinkTask,
+      baseOutputDir: Path,
+      linkKey: String
+  ): Option[(TaskDag.LinkResult, Long)] =
+    if (!client.headObject(storeKey)) None
+    else {
+      val linkDir = baseOutputDir.resolve(LinkExecutor.linkDirSuffix(task.platform))
+      val archive = client.getObject(storeKey)
+      clearExceptWork(linkDir)
+      TarGz.unpack(archive, linkDir)
+      // Tar entries carry no mode here; a native binary has to be made runnable again.
+      if (task.platform.isNative) linkDir.resolve(task.project.value).toFile.setExecutable(true): Unit
+      Files.writeString(linkDir.resolve(KeyFileName), linkKey)
+      LinkExecutor.existingOutput(task, baseOutputDir).map(_ -> archive.length.toLong)
+    }
+
+  /** The archive to push for `keyed` from `linkDir`, or why there is none. Called under the directory's shared lock, so no link is writing it.
+    *
+    * Two things can have moved on since the link finished: a later link may have replaced the outputs (their recorded key differs), or an input of the digest
+    * may have changed since the compiles the key was checked against — then the outputs are still right for the key, but nothing has confirmed the key is
+    * right for the sources any more.
+    */
+  private[bsp] def pack(linkDir: Path, keyed: Keyed, inputs: Iterable[Path]): Either[String, Array[Byte]] = {
+    val keyFile = linkDir.resolve(KeyFileName)
+    if (!Files.isRegularFile(keyFile) || Files.readString(keyFile).trim != keyed.linkKey) Left("relinked")
+    else if (RemoteCachePusher.changedSince(inputs, keyed.inputsAsOfMs - RemoteCachePusher.TimestampSlackMs)) Left("sources_changed")
+    else Right(TarGz.pack(linkDir, packFilter(linkDir)))
+  }
+
+  /** Remove a previous link's outputs before unpacking another's, so files it produced and the pulled one did not — extra JS modules, say — cannot be mistaken
+    * for part of the result. Scala Native's work dir stays for the next local incremental link.
+    */
+  private def clearExceptWork(linkDir: Path): Unit =
+    if (Files.isDirectory(linkDir))
+      Using.resource(Files.list(linkDir)) { stream =>
+        stream.iterator().asScala.filter(_.getFileName.toString != NativeWorkDir).toList.foreach { entry =>
+          if (Files.isDirectory(entry)) FileUtils.deleteDirectory(entry) else Files.deleteIfExists(entry): Unit
+        }
+      }
+}
@@ -97,6 +97,25 @@ object LinkExecutor {
     }
   }
 
+  /** What an earlier link left under `baseOutputDir` for `task`, as the result linking would return, marked up to date. `None` if it left nothing usable.
+    *
+    * Only the layout is checked. Whether those outputs belong to the current inputs is the caller's question — [[LinkCache]] answers it with a key rather than
+    * with mtimes. Scala.js and Scala Native only; the Kotlin linkers write where their config says.
+    */
+  def existingOutput(task: LinkTask, baseOutputDir: Path): Option[LinkResult] = {
+    val outputDir = baseOutputDir.resolve(linkDirSuffix(task.platform))
+    task.platform match {
+      case _: LinkPlatform.ScalaJs =>
+        val files = findJsOutputFiles(outputDir.resolve("js"))
+        files.find(p => p.toString.endsWith(".js")).map { mainJs =>
+          LinkResult.JsSuccess(mainJs, files.find(_.toString.endsWith(".map")), files, wasUpToDate = true)
+        }
+      case _: LinkPlatform.ScalaNative =>
+        Some(outputDir.resolve(task.project.value)).filter(Files.isRegularFile(_)).map(LinkResult.NativeSuccess(_, wasUpToDate = true))
+      case _ => None
+    }
+  }
+
   /** Find all JS output files in a directory. */
   private def findJsOutputFiles(jsOutputDir: Path): Seq[Path] =
     if (!Files.exists(jsOutputDir)) Seq.empty
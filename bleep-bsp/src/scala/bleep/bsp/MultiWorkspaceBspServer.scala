@@ -4,6 +4,7 @@ import bleep.*
 import bleep.analysis.{
   CancellationToken,
   CompilationReason,
+  CompileOutput,
   CompilePhase,
   CompilerError,
   DiagnosticListener,
@@ -13,6 +14,8 @@ import bleep.analysis.{
   ProjectCompileSuccess,
   ProjectCompiler,
   ProjectLanguage,
+  AnalysisWriter,
+  BackendParallelism,
   ScalaJsLinkConfig,
   ZincBridge
 }
@@ -52,7 +55,10 @@ class MultiWorkspaceBspServer(
     heapMonitor: HeapMonitor,
     kspMutexes: KspMutexes,
     buildCache: BuildCache,
-    analysisCache: bleep.analysis.AnalysisCache
+    analysisCache: bleep.analysis.AnalysisCache,
+    compileWorkers: Option[CompileWorkers] = None,
+    warmRestart: Option[WarmRestartJournal] = None,
+    compileTuner: Option[CompileParallelismTuner] = None
 ) {
   import MultiWorkspaceBspServer.DebugLogging
 
@@ -96,6 +102,27 @@ class MultiWorkspaceBspServer(
     */
   private val activeStarted = AtomicReference[Option[Started]](None)
 
+  /** Encoded answers for `activeStarted`. Each lookup names the build it is for, so a new one empties it. See [[ResponseCache]]. */
+  private val responseCache = new ResponseCache[Started]()
+
+  /** Source jars for `activeStarted`, collected in the background when an IDE's connection adopts a build. See [[DependencySourcesWarmup]]. */
+  private val dependencySourcesWarmup = new DependencySourcesWarmup[Started](machine, logger)
+
+  /** Move this connection to `started`, rebound to this connection's logger, and start on what an IDE asks for first. */
+  private def adopt(started: Started): Unit = {
+    val rebound = started.withLogger(logger)
+    activeStarted.set(Some(rebound))
+    if (ideClient.get()) {
+      val projects = rebound.resolvedProjects.toList.sortBy { case (crossName, _) => crossName.value }.map { case (crossName, resolved) =>
+        (crossName, () => ResponseCache.sourceJarsOf(resolved.forceGet))
+      }
+      dependencySourcesWarmup.start(rebound, projects)
+    }
+  }
+
+  /** A [[SourceIndex]] for `activeStarted`, only when the cache no longer holds that build's. See [[activeSourceIndex]]. */
+  private val localSourceIndex = AtomicReference[Option[(Started, SourceIndex)]](None)
+
   /** The build id this connection asked for, so `workspace/reload` can reload the same one. */
   private val activeBuildId = AtomicReference[Option[BuildId]](None)
 
@@ -145,6 +172,7 @@ class MultiWorkspaceBspServer(
                 myOperationIds.clear()
               }
             } >>
+            IO.delay(dependencySourcesWarmup.stop()) >>
             IO.delay(cancelAllActiveRequests()) >>
             IO.blocking {
               val fibers = activeFibers.values().asScala.toList
@@ -317,6 +345,13 @@ class MultiWorkspaceBspServer(
     /** A handler that is still synchronous: run it on the blocking pool and wrap its result. */
     def sync(result: => Option[RawJson]): IO[Option[RawJson]] = IO.blocking(result)
 
+    /** As `sync`, for the read-only requests whose encoded answers are kept for the build (see [[ResponseCache]]). */
+    def cached(result: => RawJson): IO[Option[RawJson]] =
+      IO(activeStarted.get()).flatMap {
+        case Some(started) => responseCache.getOrCompute(started, method, params)(IO.blocking(result)).map(Some(_))
+        case None          => IO.blocking(Some(result))
+      }
+
     method match {
       case "build/initialize" =>
         sync(Some(toRaw(handleInitialize(parseParams[InitializeBuildParams](params)))))
@@ -331,7 +366,7 @@ class MultiWorkspaceBspServer(
         sync { handleExit(); None }
 
       case "workspace/buildTargets" =>
-        sync(Some(toRaw(handleBuildTargets())))
+        cached(toRaw(handleBuildTargets()))
 
       case "workspace/reload" =>
         sync { handleReload(); None }
@@ -340,10 +375,10 @@ class MultiWorkspaceBspServer(
         sync { handleBuildChanged(params); None }
 
       case "buildTarget/sources" =>
-        sync(Some(toRaw(handleSources(parseParams[SourcesParams](params)))))
+        cached(toRaw(handleSources(parseParams[SourcesParams](params))))
 
       case "buildTarget/dependencySources" =>
-        sync(Some(toRaw(handleDependencySources(parseParams[DependencySourcesParams](params)))))
+        cached(toRaw(handleDependencySources(parseParams[DependencySourcesParams](params))))
 
       // The three long-running operations. They return IO directly, so a $/cancelRequest cancels
       // the fiber rather than interrupting a thread parked inside unsafeRunSync.
@@ -357,10 +392,10 @@ class MultiWorkspaceBspServer(
         sync(Some(toRaw(handleRun(parseParams[RunParams](params), cancellation))))
 
       case "buildTarget/scalacOptions" =>
-        sync(Some(toRaw(handleScalacOptions(parseParams[ScalacOptionsParams](params)))))
+        cached(toRaw(handleScalacOptions(parseParams[ScalacOptionsParams](params))))
 
       case "buildTarget/javacOptions" =>
-        sync(Some(toRaw(handleJavacOptions(parseParams[JavacOptionsParams](params)))))
+        cached(toRaw(handleJavacOptions(parseParams[JavacOptionsParams](params))))
 
       case "buildTarget/jvmRunEnvironment" =>
         sync(Some(toRaw(handleJvmRunEnvironment(parseParams[JvmRunEnvironmentParams](params)))))
@@ -378,7 +413,7 @@ class MultiWorkspaceBspServer(
         sync(Some(toRaw(handleInverseSources(parseParams[InverseSourcesParams](params)))))
 
       case "buildTarget/dependencyModules" =>
-        sync(Some(toRaw(handleDependencyModules(parseParams[DependencyModulesParams](params)))))
+        cached(toRaw(handleDependencyModules(parseParams[DependencyModulesParams](params))))
 
       case "buildTarget/jvmCompileClasspath" =>
         sync(Some(toRaw(handleJvmCompileClasspath(parseParams[JvmCompileClasspathParams](params)))))
@@ -546,7 +581,7 @@ class MultiWorkspaceBspServer(
         // The cached Started is shared across connections and carries whichever logger loaded it.
         // Rebind ours so this connection's log lines carry its own context. The Lazy resolved
         // projects are shared by reference, so this keeps the resolution cache.
-        activeStarted.set(Some(started.withLogger(logger)))
+        adopt(started)
         buildLoadError.set(None)
         logger
           .withContext("projects", started.build.explodedProjects.size)
@@ -696,110 +731,21 @@ class MultiWorkspaceBspServer(
   // Build handling. The client resolves builds; we only execute them.
   // ==========================================================================
 
-  /** Build a `Started` purely from what the client sent — no `bleep.yaml`, no `bootstrap.from`, no coursier on the compile path.
-    *
-    * The client has already loaded the build, applied its rewrites, and resolved every project. Repeating any of that here would at best waste time and at
-    * worst produce a build that differs from the one the client believes it asked for, which is the whole failure mode this protocol exists to prevent.
-    *
-    * `Prebootstrapped` still wants a `BuildLoader.Existing`, and two things downstream read through it: `resolvedJvm` (which the compile path forces) and the
-    * `CoursierResolver` factory. Both are derived from a `model.BuildFile`. So we synthesize one from the exploded build — every field that matters
-    * (`$version`, `jvm`, `resolvers`, `scripts`, `remote-cache`) is carried on `Build.Exploded`; `projects`/`templates` are already expanded into
-    * `explodedProjects` and nothing reads them from here. Handing over an empty `Existing` instead would silently fall back to the system JVM and ignore the
-    * build's `jvm` setting.
-    *
-    * The resolver is still constructed, because `buildTarget/dependencySources` and `dependencyModules` resolve on demand — but nothing on the compile path
-    * touches it.
+  /** Load the build the client sent through the daemon's [[BuildCache]] (see [[MultiWorkspaceBspServer.loadClientBuild]]), and note it in the warm-restart
+    * journal so the next daemon can have it loaded before this client, or the next, asks again.
     */
   private def createStartedFromExplodedBuild(
       buildRoot: Path,
       variant: model.BuildVariant,
       exploded: model.Build.Exploded,
       buildId: BuildId
-  ): Either[BleepException, Started] =
-    // Before anything is cached or compiled. The compile path throws on a missing language or platform version, which is right but arrives mid-build as an
-    // IllegalStateException about one project; this reports every offender at once, at load, through the channel the client already renders (`buildLoadError`).
-    model.BuildValidation.missingVersions(exploded) match {
-      case Nil    => createStartedFromValidatedBuild(buildRoot, variant, exploded, buildId)
-      case errors => Left(new BleepException.Text(errors.mkString("\n")))
+  ): Either[BleepException, Started] = {
+    val resolvedFromClient = providedResolvedProjects.get()
+    MultiWorkspaceBspServer.loadClientBuild(buildCache, analysisCache, logger)(buildRoot, variant, exploded, buildId, resolvedFromClient).map { started =>
+      warmRestart.foreach(_.record(buildRoot, BspBuildData.Payload(variant.name, exploded, resolvedFromClient, buildId)))
+      started
     }
-
-  private def createStartedFromValidatedBuild(
-      buildRoot: Path,
-      variant: model.BuildVariant,
-      exploded: model.Build.Exploded,
-      buildId: BuildId
-  ): Either[BleepException, Started] =
-    buildCache
-      .getOrLoad(buildRoot, variant, buildId, logger) {
-        val userPaths = UserPaths.fromAppDirs
-        val resolvedFromClient = providedResolvedProjects.get()
-        val bleepYaml = buildRoot.resolve(BuildLoader.BuildFileName)
-
-        val syntheticBuildFile = model.BuildFile(
-          $schema = model.$schema,
-          $version = exploded.$version,
-          templates = model.JsonMap.empty,
-          scripts = model.JsonMap(exploded.scripts),
-          resolvers = exploded.resolvers,
-          projects = model.JsonMap.empty,
-          jvm = exploded.jvm,
-          `remote-cache` = exploded.remoteCache
-        )
-
-        // Round-tripped through JSON so `Existing`'s own derived members (json, wantedVersion,
-        // buildFile) all agree with each other and with what we pass to the resolver factory.
-        val existingBuild = BuildLoader.Existing(bleepYaml, Lazy(Right(syntheticBuildFile.asJson.noSpaces)))
-        val buildPaths = BuildPaths(buildRoot, bleepYaml, variant, Some(exploded.$version))
-
-        val missing = exploded.explodedProjects.keySet -- resolvedFromClient.keySet
-
-        for {
-          _ <-
-            if (missing.isEmpty) Right(())
-            else
-              Left(
-                new BleepException.Text(
-                  s"Client sent a build for $buildRoot without resolved projects for ${missing.toList.map(_.value).sorted.mkString(", ")}. " +
-                    "The server does not resolve builds itself, so there is nothing to compile these from."
-                )
-              )
-          bleepConfig <- BleepConfigOps.loadOrDefault(userPaths)
-        } yield {
-          val pre = Prebootstrapped(
-            logger = logger,
-            userPaths = userPaths,
-            buildPaths = buildPaths,
-            existingBuild = existingBuild,
-            ec = scala.concurrent.ExecutionContext.global
-          )
-          val resolver = CoursierResolver.Factory.default(pre, bleepConfig, syntheticBuildFile)
-
-          val resolvedProjects: scala.collection.immutable.SortedMap[model.CrossProjectName, Lazy[ResolvedProject]] =
-            scala.collection.immutable.SortedMap.from(
-              resolvedFromClient.map { case (crossName, resolved) => crossName -> Lazy.const(resolved) }
-            )
-
-          lazy val started: Started = Started(
-            pre = pre,
-            rewrites = Nil,
-            build = exploded,
-            resolvedProjects = resolvedProjects,
-            // cwd == buildDir here, which is the case bootstrap.from also answers `None` for
-            activeProjectsFromPath = None,
-            config = bleepConfig,
-            resolver = resolver,
-            bleepExecutable = Lazy(BleepExecutable.getCommand(resolver, pre, forceJvm = false)),
-            bspServerClasspathSource = BspServerClasspathSource.FromCoursier(resolver),
-            jvmRunner = JvmRunner.Forked
-          )((_, _, _) => Right(started)) // the client owns the build; reload is its call to make
-          started
-        }
-      }
-      .map { started =>
-        // Configure PlainVirtualFile with build dir for portable zinc analysis IDs
-        bleep.analysis.PlainVirtualFile.setBuildDir(started.buildPaths.buildDir)
-        started
-      }
+  }
 
   private def getActiveBuild: Either[String, Started] =
     activeWorkspace.get() match {
@@ -945,9 +891,9 @@ class MultiWorkspaceBspServer(
     }
 
   /** Compute Java semanticdb javac options for IDE clients */
-  private def javaSemanticdbOptions(pluginPath: Path, workspaceDir: Path, classesDir: Path): List[String] = {
+  private def javaSemanticdbOptions(pluginPath: Path, workspaceDir: Path, targetRoot: Path): List[String] = {
     val baseOptions = List(
-      s"-Xplugin:semanticdb -sourceroot:$workspaceDir -targetroot:$classesDir",
+      s"-Xplugin:semanticdb -sourceroot:$workspaceDir -targetroot:$targetRoot",
       "-processorpath",
       pluginPath.toString
     )
@@ -1000,7 +946,7 @@ class MultiWorkspaceBspServer(
       .getOrElse(throw BspException(JsonRpcErrorCodes.InvalidParams, s"No main class for ${crossName.value}"))
 
     val resolved = started.resolvedProject(crossName)
-    val classpath = started.projectPaths(crossName).classes :: resolved.classpath.map(p => Path.of(p.toString)).toList
+    val classpath = started.projectPaths(crossName).output :: resolved.classpath.map(p => Path.of(p.toString)).toList
     val jvmOptions = scalaMainClass.map(_.jvmOptions).getOrElse(Nil)
     // Bloop reads program arguments only from the ScalaMainClass payload and spends `arguments` on
     // compile flags; we accept either, since the field is named for this. Clients commonly send both
@@ -1090,7 +1036,8 @@ class MultiWorkspaceBspServer(
 
     val ws = activeWorkspace.get().getOrElse(throw BspException(JsonRpcErrorCodes.ServerNotInitialized, "No active workspace"))
 
-    if (activeBuildId.get().contains(payload.buildId) && activeStarted.get().isDefined) {
+    val before = activeStarted.get()
+    if (activeBuildId.get().contains(payload.buildId) && before.isDefined) {
       // The client watches coarsely — a touched build file that parses to the same build lands here.
       debugLog(s"Ignoring ${BleepBspProtocol.BuildChanged}: build ${payload.buildId.short} is already active")
     } else {
@@ -1102,7 +1049,7 @@ class MultiWorkspaceBspServer(
 
       createStartedFromExplodedBuild(ws, variant, payload.build, payload.buildId) match {
         case Right(started) =>
-          activeStarted.set(Some(started.withLogger(logger)))
+          adopt(started)
           buildLoadError.set(None)
           logger
             .withContext("workspace", ws.toString)
@@ -1110,18 +1057,26 @@ class MultiWorkspaceBspServer(
             .withContext("projects", started.build.explodedProjects.size)
             .info("Client sent an updated build")
 
-          // Tell the client every target may have changed. We do not diff against the previous
-          // build: a changed classpath or scalac option is just as significant as an added project,
-          // and the client re-queries what it cares about anyway.
-          val changes = started.build.explodedProjects.keys.toList.map { crossName =>
-            BuildTargetEvent(
-              target = buildTargetId(started.buildPaths, crossName),
-              kind = Some(BuildTargetEventKind.Changed),
-              dataKind = None,
-              data = None
-            )
+          // Tell the client which targets changed relative to the build *it* had. That is not always the one the cache replaced: another connection may have
+          // adopted this build first. A changed classpath or scalac option counts, and so does anything downstream of one. Without a previous build every
+          // target may have changed.
+          def event(crossName: model.CrossProjectName, kind: BuildTargetEventKind) =
+            BuildTargetEvent(target = buildTargetId(started.buildPaths, crossName), kind = Some(kind), dataKind = None, data = None)
+          val changes = before match {
+            case Some(old) =>
+              val delta = BuildDelta.between(
+                old.build,
+                old.resolvedProjects.map { case (k, v) => (k, v.forceGet) },
+                payload.build,
+                payload.resolvedProjects
+              )
+              delta.added.toList.map(event(_, BuildTargetEventKind.Created)) ++
+                delta.removed.toList.map(event(_, BuildTargetEventKind.Deleted)) ++
+                (delta.affected -- delta.added).toList.map(event(_, BuildTargetEventKind.Changed))
+            case None =>
+              started.build.explodedProjects.keys.toList.map(event(_, BuildTargetEventKind.Changed))
           }
-          sendNotification("buildTarget/didChange", DidChangeBuildTarget(changes = changes))
+          if (changes.nonEmpty) sendNotification("buildTarget/didChange", DidChangeBuildTarget(changes = changes))
 
         case Left(err) =>
           buildLoadError.set(Some(err.getMessage))
@@ -1134,8 +1089,9 @@ class MultiWorkspaceBspServer(
     activeWorkspace.get().foreach { ws =>
       debugLog(s"Reloading workspace: $ws")
       val variant = activeVariant.get()
-      buildCache.evict(ws, variant)
-      BspMetrics.recordCacheEvict("buildCache", ws.toString)
+      // Reloaded against the entry it replaces, so an unchanged build keeps its analyses and noop manifests — see
+      // `MultiWorkspaceBspServer.loadClientBuild`.
+      buildCache.requestReload(ws, variant)
 
       // Re-adopt the build this connection was given. A client that wants the server on a *newer*
       // build re-resolves and sends bleep/buildChanged — `bleep bsp` does exactly that when it sees
@@ -1143,7 +1099,7 @@ class MultiWorkspaceBspServer(
       (providedBuild.get(), activeBuildId.get()) match {
         case (Some(exploded), Some(buildId)) =>
           createStartedFromExplodedBuild(ws, variant, exploded, buildId)
-            .foreach(started => activeStarted.set(Some(started.withLogger(logger))))
+            .foreach(adopt)
         case _ =>
           logger.warn("Ignoring workspace/reload: this connection never sent a build")
       }
@@ -1176,18 +1132,7 @@ class MultiWorkspaceBspServer(
         started <- getActiveBuild.toOption
         crossName <- crossNameFromTargetId(started, targetId)
         resolved <- started.resolvedProjects.get(crossName)
-      } yield {
-        val p = resolved.forceGet
-        p.resolution match {
-          case Some(res) =>
-            res.modules.flatMap { m =>
-              m.artifacts
-                .filter(a => a.classifier.contains("sources"))
-                .map(a => Uri(a.path.toUri))
-            }.distinct
-          case None => List.empty
-        }
-      }).getOrElse(List.empty)
+      } yield dependencySourcesWarmup.get(started, crossName).getOrElse(ResponseCache.sourceJarsOf(resolved.forceGet))).getOrElse(List.empty)
       DependencySourcesItem(target = targetId, sources = sourceJars)
     }
     DependencySourcesResult(items)
@@ -1696,8 +1641,12 @@ class MultiWorkspaceBspServer(
           val classpath = projectPaths.classes :: resolved.classpath.map(p => Path.of(p.toString)).toList
           val linkLogger = createLinkLogger()
           val outputDir = projectPaths.targetDir.resolve("link-output")
+          val absoluteClasspath = classpath.map(_.toAbsolutePath)
+          val mainClass = project.platform.flatMap(_.mainClass)
           withLinkMetrics(linkTask, started.buildPaths.buildDir.toString) {
-            LinkExecutor.execute(linkTask, classpath.map(_.toAbsolutePath), project.platform.flatMap(_.mainClass), outputDir, linkLogger, taskKillSignal)
+            LinkCache.around(started, linkTask, absoluteClasspath, mainClass, outputDir, linkLogger, logger) {
+              LinkExecutor.execute(linkTask, absoluteClasspath, mainClass, outputDir, linkLogger, taskKillSignal)
+            }
           }
         }
 
@@ -1721,7 +1670,7 @@ class MultiWorkspaceBspServer(
             sourcegen = sourcegenHandler,
             annotationProcessor = apHandler,
             symbolProcessor = kspHandler,
-            mayAdmitCompile = makeCompileAdmission(params.originId, serverConfig.effectiveHeapPressureThreshold)
+            mayAdmitCompile = makeCompileAdmission(params.originId, serverConfig.effectiveHeapPressureThreshold, started)
           )
         )
 
@@ -1739,7 +1688,7 @@ class MultiWorkspaceBspServer(
 
           // Run executor with guarantee to cancel consumer fiber on completion/error/cancellation
           dag <- executor
-            .execute(initialDag, machine, forkHeaps, eventQueue, killSignal)
+            .execute(initialDag, machine, forkHeaps, eventQueue, killSignal, dagRequester(started))
             .flatTap(_ => eventQueue.offer(None) >> eventConsumerFiber.joinWithNever)
             .guarantee(eventQueue.offer(None).attempt >> eventConsumerFiber.cancel)
 
@@ -1766,6 +1715,8 @@ class MultiWorkspaceBspServer(
           // Clear stale diagnostics for files that had errors last cycle but not this one
           _ <- IO(clearStaleDiagnostics(diagnosticTracker))
 
+          persistFailures <- ioResult.fold(_ => IO.pure(Nil), dag => flushAnalyses(started, dag.tasks.values))
+
           result <- IO(ioResult match {
             case Right(dag) =>
               val durationMs = System.currentTimeMillis() - startTime
@@ -1793,6 +1744,16 @@ class MultiWorkspaceBspServer(
                   dataKind = None,
                   data = None
                 )
+              } else if (persistFailures.nonEmpty) {
+                // Every compile succeeded but not every analysis reached the disk. The failed ones were deleted, so the next
+                // compile of those projects starts clean; this one cannot claim its outputs are fully in place.
+                persistFailures.foreach(bspError)
+                CompileResult(
+                  originId = params.originId,
+                  statusCode = StatusCode.Error,
+                  dataKind = None,
+                  data = None
+                )
               } else if (dag.failed.nonEmpty || dag.errored.nonEmpty) {
                 val failedIds = (dag.failed ++ dag.errored).mkString(", ")
                 bspError(s"Compilation failed: $compileFailed compile tasks failed, $linkFailed link tasks failed (${durationMs}ms)")
@@ -1915,50 +1876,79 @@ class MultiWorkspaceBspServer(
     * remembers when each project was first deferred, across separate admission attempts.
     *
     * `othersCompiling` is `> 0`, not `> 1` as the old in-task gate used: this runs BEFORE the reservation, so this compile is not in the count yet.
+    *
+    * The forecast is the daemon-wide [[HeapForecast]]: the heap is shared by every connection's compiles, so what this one is weighed against is too.
+    *
+    * Before any of that, the [[CompileParallelismTuner]]'s limit: past it a compile waits for one to finish whatever the heap looks like, and the wait is no
+    * memory's doing, so it starts no deadline and tells the client nothing.
     */
-  private def makeCompileAdmission(originId: Option[String], threshold: Double): TaskDag.CompileTask => IO[Boolean] = {
+  private def makeCompileAdmission(originId: Option[String], threshold: Double, started: Started): TaskDag.CompileTask => IO[TaskDag.CompileAdmission] = {
     val listener = makeHeapPressureListener(originId)
     val firstRefusedAt = Ref.unsafe[IO, Map[String, EpochMs]](Map.empty)
 
     compileTask => {
       val projectName = compileTask.project.value
+      val analysisFile = BleepBuildConverter.analysisFile(started, compileTask.project)
       for {
         usage <- IO(heapMonitor.heapUsage())
         compiling <- machine.activeCompiles
         nowMs <- IO.realTime.map(d => EpochMs(d.toMillis))
         refusedAt <- firstRefusedAt.get.map(_.get(projectName))
-        admit <- HeapPressureGate.decide(
-          usage = usage,
-          othersCompiling = compiling > 0,
-          threshold = threshold,
-          retryMs = HeapPressureGate.DefaultRetryMs,
-          firstRefusedAt = refusedAt,
-          now = nowMs
-        ) match {
-          case HeapPressureGate.Decision.Admit =>
-            refusedAt match {
-              case None        => IO.pure(true)
-              case Some(start) =>
-                firstRefusedAt.update(_ - projectName) >>
-                  IO(listener.onResume(projectName, usage.usedMb, usage.maxMb, DurationMs(nowMs.value - start.value), nowMs)).as(true)
-            }
-          case HeapPressureGate.Decision.Defer(delayMs) =>
-            firstRefusedAt.update(m => m.updated(projectName, m.getOrElse(projectName, nowMs))) >>
-              IO(listener.onWait(projectName, usage.usedMb, usage.maxMb, delayMs, nowMs)) >>
-              IO(
-                BspMetrics.recordAdmissionDefer(
-                  project = projectName,
-                  // The gate defers for two unrelated reasons and only one of them is memory. Recording which is the difference between reading this data and
-                  // misreading it.
-                  reason = if (usage.fraction >= threshold) "heap_pressure" else "stagger",
-                  heapUsedMb = usage.usedMb.value,
-                  heapMaxMb = usage.maxMb.value,
-                  delayMs = delayMs,
-                  othersCompiling = compiling
+        admission <-
+          if (!compileTuner.forall(_.admits(compiling)))
+            IO(
+              BspMetrics.recordAdmissionDefer(
+                project = projectName,
+                reason = "slot_limit",
+                heapUsedMb = usage.usedMb.value,
+                heapMaxMb = usage.maxMb.value,
+                delayMs = 0L,
+                othersCompiling = compiling,
+                predictedPeakMb = HeapForecast.global.forecast(analysisFile).map(_.peakBytes / (1024L * 1024L))
+              )
+            ).as(TaskDag.CompileAdmission.Defer)
+          else
+            // Admitted, the compile's predicted peak is held from here rather than from when it starts, so the next compile in this admission pass is
+            // weighed against it. The DAG gives the hold back with the compile's reservation.
+            HeapForecast.global
+              .admit(analysisFile) { forecast =>
+                HeapPressureGate.decide(
+                  usage = usage,
+                  othersCompiling = compiling > 0,
+                  threshold = threshold,
+                  retryMs = HeapPressureGate.DefaultRetryMs,
+                  firstRefusedAt = refusedAt,
+                  now = nowMs,
+                  forecast = forecast
                 )
-              ).as(false)
-        }
-      } yield admit
+              }
+              .flatMap {
+                case HeapForecast.Admission(_, HeapPressureGate.Decision.Admit, release) =>
+                  val admitted = TaskDag.CompileAdmission.Admit(release)
+                  refusedAt match {
+                    case None        => IO.pure(admitted)
+                    case Some(start) =>
+                      firstRefusedAt.update(_ - projectName) >>
+                        IO(listener.onResume(projectName, usage.usedMb, usage.maxMb, DurationMs(nowMs.value - start.value), nowMs)).as(admitted)
+                  }
+                case HeapForecast.Admission(forecast, HeapPressureGate.Decision.Defer(delayMs, reason), _) =>
+                  firstRefusedAt.update(m => m.updated(projectName, m.getOrElse(projectName, nowMs))) >>
+                    IO(listener.onWait(projectName, usage.usedMb, usage.maxMb, delayMs, nowMs)) >>
+                    IO(
+                      BspMetrics.recordAdmissionDefer(
+                        project = projectName,
+                        // The gate defers for unrelated reasons and not all of them are memory. Recording which is the difference between reading this
+                        // data and misreading it.
+                        reason = reason,
+                        heapUsedMb = usage.usedMb.value,
+                        heapMaxMb = usage.maxMb.value,
+                        delayMs = delayMs,
+                        othersCompiling = compiling,
+                        predictedPeakMb = forecast.map(_.peakBytes / (1024L * 1024L))
+                      )
+                    ).as(TaskDag.CompileAdmission.Defer)
+              }
+      } yield admission
     }
   }
 
@@ -2294,8 +2284,11 @@ class MultiWorkspaceBspServer(
                 val projectPaths = started.projectPaths(linkTask.project)
                 val logger = createLinkLogger()
                 val outputDir = projectPaths.targetDir
+                val absoluteClasspath = classpath.map(_.toAbsolutePath)
                 withLinkMetrics(linkTask, started.buildPaths.buildDir.toString) {
-                  LinkExecutor.execute(linkTask, classpath.map(_.toAbsolutePath), None, outputDir, logger, killSignal)
+                  LinkCache.around(started, linkTask, absoluteClasspath, None, outputDir, logger, MultiWorkspaceBspServer.this.logger) {
+                    LinkExecutor.execute(linkTask, absoluteClasspath, None, outputDir, logger, killSignal)
+                  }
                 }
               }
 
@@ -2312,7 +2305,7 @@ class MultiWorkspaceBspServer(
               sourcegen = sourcegenHandler,
               annotationProcessor = apHandler,
               symbolProcessor = kspHandler,
-              mayAdmitCompile = makeCompileAdmission(params.originId, serverConfig.effectiveHeapPressureThreshold)
+              mayAdmitCompile = makeCompileAdmission(params.originId, serverConfig.effectiveHeapPressureThreshold, started)
             )
           )
 
@@ -2342,7 +2335,7 @@ class MultiWorkspaceBspServer(
 
             // Run executor with guarantee to cancel consumer fiber on completion/error/cancellation
             dag <- executor
-              .execute(initialDag, machine, forkHeaps, eventQueue, killSignal)
+              .execute(initialDag, machine, forkHeaps, eventQueue, killSignal, dagRequester(started))
               .flatMap { result =>
                 IO {
                   val total = result.tasks.size
@@ -2420,6 +2413,10 @@ class MultiWorkspaceBspServer(
         // The test pipeline compiles too, so it owes the client the same stale-diagnostic clearing a plain compile does
         _ <- IO(clearStaleDiagnostics(diagnosticTracker))
 
+        // ... and the same analysis barrier. A failed write is reported but does not change the verdict on the tests, which ran against the class files.
+        persistFailures <- ioResult.fold(_ => IO.pure(Nil), r => flushAnalyses(started, r._1.tasks.values))
+        _ <- IO(persistFailures.foreach(bspError))
+
         testResult <- IO(ioResult match {
           case Right((result, totalPassed, totalFailed, totalSkipped, totalIgnored, totalSuites)) =>
             // Send TestRunFinished event
@@ -2520,6 +2517,15 @@ class MultiWorkspaceBspServer(
     }.guarantee(IO(unregisterOperation(workspace, taskId)))
   }
 
+  /** Wait for the analyses of every project `tasks` compiled to reach the disk, returning the writes that failed.
+    *
+    * Compiles hand their analysis to [[AnalysisWriter]] and finish without waiting for it, which is what lets downstream compiles in the same DAG start early.
+    * The reply to the client is where that has to stop: whatever the client does next — pack the target dir for the remote cache, run `bleep` again in another
+    * process, read the files — happens outside this JVM and sees only what is on disk.
+    */
+  private def flushAnalyses(started: Started, tasks: Iterable[TaskDag.Task]): IO[List[String]] =
+    IO.blocking(AnalysisWriter.flush(tasks.collect { case ct: TaskDag.CompileTask => BleepBuildConverter.analysisFile(started, ct.project) }))
+
   /** Compute dependency analysis file paths for a project's compile-time dependencies.
     *
     * Returns a map from each dependency's output directory to its Zinc analysis file. This is needed for Zinc to detect API changes in upstream projects and
@@ -2527,19 +2533,27 @@ class MultiWorkspaceBspServer(
     */
   private def computeDependencyAnalyses(started: Started, projectDeps: Set[CrossProjectName]): Map[Path, Path] =
     projectDeps.flatMap { dep =>
-      val depOutputDir = started.projectPaths(dep).classes
+      val depOutputDir = started.projectPaths(dep).output
       val depTargetDir = started.buildPaths.variantBuildDir(dep)
       val depAnalysisFile = depTargetDir.resolve(".zinc").resolve("analysis.zip")
-      if (java.nio.file.Files.exists(depAnalysisFile)) Some(depOutputDir -> depAnalysisFile)
+      if (AnalysisWriter.exists(depAnalysisFile)) Some(depOutputDir -> depAnalysisFile)
       else None
     }.toMap
 
+  /** Who a DAG on this connection runs for, as the machine governor sees it: this workspace, and — when an IDE is on the other end — the interactive class. */
+  private def dagRequester(started: Started): TaskDag.Requester =
+    TaskDag.Requester(started.buildPaths.workspaceKey.short, interactive = ideClient.get())
+
   /** Create a compile handler for use in DAG executors.
     *
     * Uses IO.race to race compilation against the kill signal. When the kill signal wins, IO.race cancels the compile fiber. Since ZincBridge uses
     * IO.interruptible, CE interrupts the compilation thread immediately.
     *
     * Shared between handleCompile and handleTest to eliminate duplicate compile handler definitions.
+    *
+    * A compile of this build that another request — from this connection or any other — is already running is joined rather than run again; see
+    * [[InFlightTasks]]. This request's client still sees the whole compile: its diagnostics and events are delivered through `listener`, under this request's
+    * origin id. Only when the build id is unknown, or no longer the one `started` came from, does every request compile for itself.
     */
   private def makeCompileHandler(
       started: Started,
@@ -2547,49 +2561,107 @@ class MultiWorkspaceBspServer(
       originId: Option[String],
       apResults: java.util.concurrent.ConcurrentHashMap[CrossProjectName, AnnotationProcessorResult],
       diagnosticTracker: BspDiagnosticTracker
-  ): (TaskDag.CompileTask, Deferred[IO, KillReason]) => IO[TaskDag.TaskResult] =
-    (compileTask, taskKillSignal) => {
-      val projectName = compileTask.project.value
-      val wsStr = workspace.toString
-      val token = CancellationToken.create()
-      taskKillSignal.tryGet.flatMap {
-        case Some(_) => IO.pure(TaskDag.TaskResult.Killed(KillReason.UserRequest))
-        case None    =>
-          // Fast path: check noop manifest BEFORE acquiring semaphore / heap gate.
-          // Noop projects skip all waiting and don't consume concurrency slots.
-          val apFlags: List[String] = Option(apResults.get(compileTask.project)).fold(List.empty[String])(_.javacFlags)
-          val config = BleepBuildConverter.toProjectConfig(compileTask.project, started.resolvedProject(compileTask.project), started, apFlags)
-          // Transitive, not `compileTask.projectDependencies` (direct edges only): the compile
-          // classpath is transitive, so an API change two hops upstream is just as breaking as
-          // one hop. It is also invisible via the intermediate project's analysis mtime, because
-          // an intermediate that is itself a noop never rewrites its analysis.zip.
-          val depAnalyses = computeDependencyAnalyses(started, started.build.transitiveDependenciesFor(compileTask.project).keySet)
-          val noopResult = config.language match {
-            case sl: ProjectLanguage.ScalaJava => ZincBridge.isNoop(config, sl, depAnalyses, None)
-            case _                             => None
+  ): (TaskDag.CompileTask, Deferred[IO, KillReason]) => IO[TaskDag.TaskResult] = {
+    val listener = compileListener(started, originId, diagnosticTracker)
+    // Read together with `started`, which is what the id has to name: a build change in between would otherwise let this request join compiles of a build
+    // it is not on.
+    val buildId = activeBuildId.get().filter(_ => activeStarted.get().exists(_ eq started))
+    (compileTask, taskKillSignal) =>
+      buildId match {
+        case Some(id) =>
+          InFlightTasks.run(InFlightTasks.Key(started.buildPaths.workspaceKey, id, compileTask.id), listener, taskKillSignal) { flight =>
+            runCompileTask(started, workspace, compileTask, taskKillSignal, apResults, InFlightTasks.publishingTo(flight))
           }
-          if (noopResult.isDefined) {
-            IO.pure(TaskDag.TaskResult.Success)
-          } else {
-            // Cooperative cancellation: a background fiber waits for the task-level kill signal and trips the CancellationToken so the inner compile's
-            // `advance()` polling sees it. `.background` gives us a Resource — fiber is spawned on acquire, cancelled on release; whether the surrounded race
-            // completes via gatedCompile or waitForKill, the listener is always cleaned up. Replaces the prior `.start` + manual `.guarantee(_.cancel)` pattern.
-            val cooperativeCancelFiber = taskKillSignal.get.flatMap(_ => IO(token.cancel())).background
-
-            // Reserve one core from the machine governor for this compile — the same governor test
-            // forks reserve against, so compiles and forks can't oversubscribe the CPU. A compile
-            // runs in the server heap (not a forked process), so it reserves no fork memory; server
-            // heap pressure is handled at admission — see Handlers.mayAdmitCompile.
-            val gatedCompile =
-              // Admitted by the DAG before this ran — see TaskDag.admit.
-              IO.unit.flatMap { _ =>
-                // The reservation IS the count of compiles in flight — held for exactly this scope,
-                // across every connection, and readable via `machine.activeCompiles`. The connection-
-                // local tally that used to be maintained here counted only this client's compiles,
-                // which is not the quantity anything wants to know.
-                val compileStartTime = System.currentTimeMillis()
+        case None =>
+          runCompileTask(started, workspace, compileTask, taskKillSignal, apResults, listener)
+      }
+  }
+
+  /** Where one request's compiles report: its own diagnostic bookkeeping, and notifications tagged with its own origin id. */
+  private def compileListener(started: Started, originId: Option[String], diagnosticTracker: BspDiagnosticTracker): InFlightTasks.CompileListener =
+    new InFlightTasks.CompileListener {
+      def begin(project: CrossProjectName): Unit =
+        diagnosticTracker.beginTarget(buildTargetId(started.buildPaths, project).uri.value)
+
+      def diagnostic(project: CrossProjectName, document: TextDocumentIdentifier, diagnostic: Diagnostic): Unit = {
+        val targetId = buildTargetId(started.buildPaths, project)
+        val reset = diagnosticTracker.recordDiagnostic(document.uri.value, targetId.uri.value)
+        sendNotification(
+          "build/publishDiagnostics",
+          PublishDiagnosticsParams(textDocument = document, buildTarget = targetId, originId = originId, diagnostics = List(diagnostic), reset = reset)
+        )
+      }
+
+      def event(project: CrossProjectName, event: BleepBspProtocol.Event): Unit =
+        sendEvent(originId, s"compile:${project.value}", event)
+    }
+
+  private def runCompileTask(
+      started: Started,
+      workspace: Path,
+      compileTask: TaskDag.CompileTask,
+      taskKillSignal: Deferred[IO, KillReason],
+      apResults: java.util.concurrent.ConcurrentHashMap[CrossProjectName, AnnotationProcessorResult],
+      listener: InFlightTasks.CompileListener
+  ): IO[TaskDag.TaskResult] = {
+    val projectName = compileTask.project.value
+    val wsStr = workspace.toString
+    val token = CancellationToken.create()
+    // A background prefetch of this project's outputs would now only race us to write the same directory. Stopped before the noop check, so that check
+    // reads whatever is on disk rather than something a prefetch is about to replace.
+    IO(RemoteCachePrefetcher.preempt(started.projectPaths(compileTask.project).targetDir)) >> taskKillSignal.tryGet.flatMap {
+      case Some(_) => IO.pure(TaskDag.TaskResult.Killed(KillReason.UserRequest))
+      case None    =>
+        // Taken before the noop check: from here on, whatever the classes dir holds reflects the sources as they are now. A link key is only trusted if no
+        // source changed since. See LinkCache.
+        LinkCache.compileStarting(started, compileTask.project, System.currentTimeMillis())
+        // Fast path: check noop manifest BEFORE acquiring semaphore / heap gate.
+        // Noop projects skip all waiting and don't consume concurrency slots.
+        val apFlags: List[String] = Option(apResults.get(compileTask.project)).fold(List.empty[String])(_.javacFlags)
+        val config = BleepBuildConverter.toProjectConfig(compileTask.project, started.resolvedProject(compileTask.project), started, apFlags)
+        // Transitive, not `compileTask.projectDependencies` (direct edges only): the compile
+        // classpath is transitive, so an API change two hops upstream is just as breaking as
+        // one hop. It is also invisible via the intermediate project's analysis mtime, because
+        // an intermediate that is itself a noop never rewrites its analysis.zip.
+        val depAnalyses = computeDependencyAnalyses(started, started.build.transitiveDependenciesFor(compileTask.project).keySet)
+        val noopResult = config.language match {
+          case sl: ProjectLanguage.ScalaJava => ZincBridge.isNoop(config, sl, depAnalyses, None)
+          case _                             => None
+        }
+        if (noopResult.isDefined) {
+          IO.pure(TaskDag.TaskResult.Success)
+        } else {
+          // Cooperative cancellation: a background fiber waits for the task-level kill signal and trips the CancellationToken so the inner compile's
+          // `advance()` polling sees it. `.background` gives us a Resource — fiber is spawned on acquire, cancelled on release; whether the surrounded race
+          // completes via gatedCompile or waitForKill, the listener is always cleaned up. Replaces the prior `.start` + manual `.guarantee(_.cancel)` pattern.
+          val cooperativeCancelFiber = taskKillSignal.get.flatMap(_ => IO(token.cancel())).background
+
+          // Reserve one core from the machine governor for this compile — the same governor test
+          // forks reserve against, so compiles and forks can't oversubscribe the CPU. A compile
+          // runs in the server heap (not a forked process), so it reserves no fork memory; server
+          // heap pressure is handled at admission — see Handlers.mayAdmitCompile.
+          val gatedCompile =
+            // Admitted by the DAG before this ran — see TaskDag.admit.
+            IO.unit.flatMap { _ =>
+              // The reservation IS the count of compiles in flight — held for exactly this scope,
+              // across every connection, and readable via `machine.activeCompiles`. The connection-
+              // local tally that used to be maintained here counted only this client's compiles,
+              // which is not the quantity anything wants to know.
+              //
+              // The start time is all an auto-push needs from the compile: the digest is taken afterwards, off this path, and checked against it. See
+              // RemoteCachePusher.
+              IO(System.currentTimeMillis()).flatMap { compileStartTime =>
                 IO(BspMetrics.recordCompileStart(projectName, wsStr)) >>
-                  compileProject(started, compileTask.project, originId, token, depAnalyses, apFlags, diagnosticTracker)
+                  HeapForecast.global
+                    .whileCompiling(BleepBuildConverter.analysisFile(started, compileTask.project))(
+                      compileProject(started, compileTask.project, listener, token, depAnalyses, apFlags)
+                    )
+                    .flatTap { result =>
+                      IO {
+                        if (result == TaskDag.TaskResult.Success && RemoteCachePusher.enabled(started))
+                          RemoteCachePusher.schedule(started, compileTask.project, compileStartTime, logger)
+                      }
+                    }
                     .guaranteeCase {
                       case cats.effect.Outcome.Succeeded(resultIO) =>
                         resultIO.flatMap { result =>
@@ -2601,12 +2673,13 @@ class MultiWorkspaceBspServer(
                         IO(BspMetrics.recordCompileEnd(projectName, wsStr, System.currentTimeMillis() - compileStartTime, false))
                     }
               }
-            val waitForKill = taskKillSignal.get.map(reason => TaskDag.TaskResult.Killed(reason))
+            }
+          val waitForKill = taskKillSignal.get.map(reason => TaskDag.TaskResult.Killed(reason))
 
-            cooperativeCancelFiber.surround(IO.race(gatedCompile, waitForKill).map(_.merge))
-          }
-      }
+          cooperativeCancelFiber.surround(IO.race(gatedCompile, waitForKill).map(_.merge))
+        }
     }
+  }
 
   /** Compile a single project (dependencies handled by TaskDag ordering).
     *
@@ -2616,18 +2689,17 @@ class MultiWorkspaceBspServer(
   private def compileProject(
       started: Started,
       project: CrossProjectName,
-      originId: Option[String],
+      listener: InFlightTasks.CompileListener,
       cancellation: CancellationToken,
       dependencyAnalyses: Map[Path, Path],
-      additionalJavaOptions: List[String],
-      diagnosticTracker: BspDiagnosticTracker
+      additionalJavaOptions: List[String]
   ): IO[TaskDag.TaskResult] = {
     val config = BleepBuildConverter.toProjectConfig(project, started.resolvedProject(project), started, additionalJavaOptions)
     val compiler = ProjectCompiler.forLanguage(config.language)
 
     // We're actually compiling this target, so this cycle owns its diagnostics — including the case where it compiles clean and publishes nothing, which is
     // precisely when the previous cycle's errors need clearing.
-    diagnosticTracker.beginTarget(buildTargetId(started.buildPaths, project).uri.value)
+    listener.begin(project)
 
     val diagnosticListener = new DiagnosticListener {
       def onDiagnostic(error: CompilerError): Unit = {
@@ -2655,20 +2727,10 @@ class MultiWorkspaceBspServer(
           data = None
         )
 
-        val targetId = buildTargetId(started.buildPaths, project)
         val textDocument = error.path.map(p => TextDocumentIdentifier(Uri(p.toUri)))
 
         val docId = textDocument.getOrElse(TextDocumentIdentifier(Uri(java.net.URI.create("unknown"))))
-        val reset = diagnosticTracker.recordDiagnostic(docId.uri.value, targetId.uri.value)
-        val publishParams = PublishDiagnosticsParams(
-          textDocument = docId,
-          buildTarget = targetId,
-          originId = originId,
-          diagnostics = List(diagnostic),
-          reset = reset
-        )
-
-        sendNotification("build/publishDiagnostics", publishParams)
+        listener.diagnostic(project, docId, diagnostic)
       }
 
       override def onCompilePhase(projectName: String, phase: CompilePhase): Unit = {
@@ -2677,9 +2739,8 @@ class MultiWorkspaceBspServer(
           case _                               => 0
         }
         BspMetrics.recordCompilePhase(projectName, phase.name, trackedApis)
-        sendEvent(
-          originId,
-          s"compile:$projectName",
+        listener.event(
+          project,
           BleepBspProtocol.Event
             .CompilePhaseChanged(
               CrossProjectName.fromString(projectName).get,
@@ -2712,9 +2773,8 @@ class MultiWorkspaceBspServer(
             (bleep.bsp.protocol.CompileReason.Incremental, total, invalidated.map(_.getFileName.toString).toList, changed.map(depName).toList)
         }
         val now = System.currentTimeMillis()
-        sendEvent(
-          originId,
-          s"compile:$projectName",
+        listener.event(
+          project,
           BleepBspProtocol.Event.CompilationReason(
             project = CrossProjectName.fromString(projectName).get,
             reason = reasonType,
@@ -2740,11 +2800,7 @@ class MultiWorkspaceBspServer(
           if (percent > maxPercent && now - lastEmitTime > 1000) {
             maxPercent = percent
             lastEmitTime = now
-            sendEvent(
-              originId,
-              s"compile:${project.value}",
-              BleepBspProtocol.Event.CompileProgress(project, percent, now)
-            )
+            listener.event(project, BleepBspProtocol.Event.CompileProgress(project, percent, now))
           }
         }
         !cancellation.isCancelled
@@ -2772,11 +2828,7 @@ class MultiWorkspaceBspServer(
     val locksResource: cats.effect.Resource[IO, Unit] =
       orderedSpecs.foldLeft(cats.effect.Resource.pure[IO, Unit](())) { case (acc, (proj, dir, mode)) =>
         val onContention: () => Unit = if (proj == project) { () =>
-          sendEvent(
-            originId,
-            s"compile:${project.value}",
-            BleepBspProtocol.Event.LockContention(project, 0, System.currentTimeMillis())
-          )
+          listener.event(project, BleepBspProtocol.Event.LockContention(project, 0, System.currentTimeMillis()))
         } else { () => () }
 
         val one = ProjectLock
@@ -2785,11 +2837,7 @@ class MultiWorkspaceBspServer(
             IO {
               if (hadContention && proj == project) {
                 val waited = System.currentTimeMillis() - lockStart
-                sendEvent(
-                  originId,
-                  s"compile:${project.value}",
-                  BleepBspProtocol.Event.LockAcquired(project, waited, System.currentTimeMillis())
-                )
+                listener.event(project, BleepBspProtocol.Event.LockAcquired(project, waited, System.currentTimeMillis()))
               }
             }
           }
@@ -2797,10 +2845,18 @@ class MultiWorkspaceBspServer(
         acc.flatMap(_ => one)
       }
 
+    // A large project's backend may also run on cores nothing else wants, held beside this compile's own until it ends. See BackendParallelism.
+    val backendCores: cats.effect.Resource[IO, Int] =
+      cats.effect.Resource
+        .eval(IO.blocking(BackendParallelism.wantedThreads(config)))
+        .flatMap(wanted => reserveBackendCores(s"backend ${project.value}", wanted - 1))
+
     locksResource
-      .use { _ =>
-        compiler.compile(
-          config,
+      .flatMap(_ => backendCores)
+      .use { extraCores =>
+        val granted = config.copy(backendThreads = 1 + extraCores)
+        val inProcess = compiler.compile(
+          granted,
           diagnosticListener,
           cancellation,
           dependencyAnalyses,
@@ -2809,6 +2865,15 @@ class MultiWorkspaceBspServer(
           // the workspace it is compiling.
           bleep.analysis.AnalysisCache.Ref(analysisCache, started.buildPaths.workspaceKey)
         )
+        // Under the same locks either way: a worker writes this project's classes and reads its dependencies' exactly as the in-process compile would.
+        compileWorkers match {
+          case Some(workers) =>
+            val ownAnalysis = BleepBuildConverter.analysisFile(started, project)
+            workers.compile(started.buildPaths.workspaceKey, granted, ownAnalysis, diagnosticListener, cancellation, dependencyAnalyses, progressListener)(
+              inProcess
+            )
+          case None => inProcess
+        }
       }
       .map {
         case _ if cancellation.isCancelled =>
@@ -2823,6 +2888,20 @@ class MultiWorkspaceBspServer(
       }
   }
 
+  /** Up to `extra` more cores for a compile's backend threads: the most that are idle right now, never waiting for any. The number granted, held until the
+    * resource is released.
+    */
+  private def reserveBackendCores(label: String, extra: Int): cats.effect.Resource[IO, Int] = {
+    def attempt(n: Int): IO[(Int, IO[Unit])] =
+      if (n <= 0) IO.pure((0, IO.unit))
+      else
+        machine.tryReserveIdle(MachineResources.ResourceKind.CompileThreads, label, cpu = n, memoryMb = 0L).flatMap {
+          case Some(release) => IO.pure((n, release))
+          case None          => attempt(n - 1)
+        }
+    cats.effect.Resource.make(attempt(extra))(_._2).map(_._1)
+  }
+
   /** Discover test suites in a compiled project */
   /** Filter discovered suites by --only and --exclude patterns.
     *
@@ -2873,7 +2952,7 @@ class MultiWorkspaceBspServer(
       case _ =>
         // JVM: use classpath scanning
         val projectPaths = started.projectPaths(project)
-        val classesDir = projectPaths.classes
+        val classesDir = projectPaths.output
         val resolved = started.resolvedProject(project)
         val classpath = resolved.classpath.map(p => Path.of(p.toString)).toList
 
@@ -2892,7 +2971,7 @@ class MultiWorkspaceBspServer(
   /** Get classpath for running tests */
   private def getTestClasspath(started: Started, project: CrossProjectName): List[Path] = {
     val projectPaths = started.projectPaths(project)
-    val classesDir = projectPaths.classes
+    val classesDir = projectPaths.output
 
     val resolved = started.resolvedProject(project)
     val resourceDirs = resolved.resources.getOrElse(Nil)
@@ -2902,7 +2981,7 @@ class MultiWorkspaceBspServer(
     // otherwise fetch via coursier
     val testRunnerFromBuild = started.build.explodedProjects.keys
       .find(p => p.name.value == "bleep-test-runner")
-      .map(p => started.projectPaths(p).classes)
+      .map(p => started.projectPaths(p).output)
 
     val testRunnerClasses = testRunnerFromBuild match {
       case Some(path) => List(path)
@@ -3929,7 +4008,7 @@ class MultiWorkspaceBspServer(
           case _                                 => Nil
         }
         val classpath = p.classpath.map(_.toUri.toString)
-        val classDir = started.projectPaths(crossName).classes.toUri.toString
+        val classDir = started.projectPaths(crossName).output.toUri.toString
         ScalacOptionsItem(target = targetId, options = options, classpath = classpath, classDirectory = classDir)
       }).getOrElse(
         ScalacOptionsItem(target = targetId, options = List.empty, classpath = List.empty, classDirectory = "")
@@ -3950,7 +4029,7 @@ class MultiWorkspaceBspServer(
         val baseOptions = p.language.javaOptions
         val options = maybePlugin match {
           case Some(pluginPath) =>
-            val sdOpts = javaSemanticdbOptions(pluginPath, started.buildPaths.buildDir, started.projectPaths(crossName).classes)
+            val sdOpts = javaSemanticdbOptions(pluginPath, started.buildPaths.buildDir, started.projectPaths(crossName).semanticDbTarget)
             sdOpts ::: baseOptions
           case None => baseOptions
         }
@@ -3961,7 +4040,7 @@ class MultiWorkspaceBspServer(
             else pluginUri :: p.classpath.map(_.toUri.toString)
           case None => p.classpath.map(_.toUri.toString)
         }
-        val classDir = started.projectPaths(crossName).classes.toUri.toString
+        val classDir = started.projectPaths(crossName).output.toUri.toString
         JavacOptionsItem(target = targetId, options = options, classpath = classpath, classDirectory = classDir)
       }).getOrElse(
         JavacOptionsItem(target = targetId, options = List.empty, classpath = List.empty, classDirectory = "")
@@ -4037,11 +4116,11 @@ class MultiWorkspaceBspServer(
         crossName <- crossNameFromTargetId(started, targetId)
         resolved <- started.resolvedProjects.get(crossName)
       } yield {
-        val classesDir = started.projectPaths(crossName).classes
+        val output = started.projectPaths(crossName).output
         List(
           OutputPathItem(
-            uri = Uri(Paths.get(classesDir.toString).toUri),
-            kind = OutputPathItemKind.Directory
+            uri = Uri(Paths.get(output.toString).toUri),
+            kind = if (CompileOutput.isJar(output)) OutputPathItemKind.File else OutputPathItemKind.Directory
           )
         )
       }).getOrElse(List.empty)
@@ -4055,24 +4134,32 @@ class MultiWorkspaceBspServer(
     val textDocumentPath = params.textDocument.uri.toPath
 
     val targets = getActiveBuild
-      .map { started =>
-        started.build.explodedProjects.keys.flatMap { crossName =>
-          started.resolvedProjects.get(crossName).flatMap { resolved =>
-            val sources = resolved.forceGet.sources
-            val containsFile = sources.exists { src =>
-              val srcPath = Paths.get(src.toString)
-              textDocumentPath.startsWith(srcPath)
-            }
-            if (containsFile) Some(buildTargetId(started.buildPaths, crossName))
-            else None
-          }
-        }.toList
-      }
+      .map(started => activeSourceIndex(started).projectsFor(textDocumentPath).map(buildTargetId(started.buildPaths, _)))
       .fold(_ => List.empty, identity)
 
     InverseSourcesResult(targets)
   }
 
+  /** The index of the build this connection is on: the one [[BuildCache]] built with it, or — if another connection has moved the workspace on since — one
+    * built here and kept until this connection changes build.
+    */
+  private def activeSourceIndex(started: Started): SourceIndex = {
+    val fromCache = for {
+      ws <- activeWorkspace.get()
+      buildId <- activeBuildId.get()
+      index <- buildCache.sourceIndex(ws, activeVariant.get(), buildId)
+    } yield index
+    fromCache.getOrElse {
+      localSourceIndex.get() match {
+        case Some((forStarted, index)) if forStarted eq started => index
+        case _                                                   =>
+          val index = SourceIndex.of(started)
+          localSourceIndex.set(Some((started, index)))
+          index
+      }
+    }
+  }
+
   private def handleDependencyModules(params: DependencyModulesParams): DependencyModulesResult = {
     val items = params.targets.map { targetId =>
       val modules = (for {
@@ -4125,7 +4212,8 @@ class MultiWorkspaceBspServer(
         resolved <- started.resolvedProjects.get(crossName)
       } {
         BspMetrics.recordCleanCache(crossName.value)
-        val classesDir = started.projectPaths(crossName).classes
+        val projectPaths = started.projectPaths(crossName)
+        val classesDir = projectPaths.classes
 
         // Take the same exclusive lock a compile takes. Deleting `classes` and `.zinc` unlocked
         // races a compile or test on another connection that is reading them right now.
@@ -4141,8 +4229,9 @@ class MultiWorkspaceBspServer(
           )
           .use { _ =>
             IO.blocking {
-              if (Files.exists(classesDir)) {
-                bleep.internal.FileUtils.deleteDirectory(classesDir)
+              // Both forms: a project that switched to or from straight-to-jar may still have the other.
+              List(classesDir, projectPaths.classesJar).filter(Files.exists(_)).foreach { output =>
+                CompileOutput.delete(output)
                 cleaned = true
               }
               // Also clean analysis dir - same path structure as BuildPaths.targetDir
@@ -4190,7 +4279,7 @@ class MultiWorkspaceBspServer(
         crossName <- crossNameFromTargetId(started, targetId)
       } yield {
         val projectPaths = started.projectPaths(crossName)
-        val classesDir = projectPaths.classes
+        val classesDir = projectPaths.output
         val resolved = started.resolvedProject(crossName)
         val classpath = resolved.classpath.map(p => Path.of(p.toString)).toList
 
@@ -4270,6 +4359,158 @@ object MultiWorkspaceBspServer {
   /** Enable debug logging to stderr (for development only) */
   val DebugLogging: Boolean = sys.env.get("BLEEP_BSP_DEBUG").contains("true")
 
+  /** Build a `Started` purely from what the client sent — no `bleep.yaml`, no `bootstrap.from`, no coursier on the compile path.
+    *
+    * The client has already loaded the build, applied its rewrites, and resolved every project. Repeating any of that here would at best waste time and at
+    * worst produce a build that differs from the one the client believes it asked for, which is the whole failure mode this protocol exists to prevent.
+    *
+    * `Prebootstrapped` still wants a `BuildLoader.Existing`, and two things downstream read through it: `resolvedJvm` (which the compile path forces) and the
+    * `CoursierResolver` factory. Both are derived from a `model.BuildFile`. So we synthesize one from the exploded build — every field that matters
+    * (`$version`, `jvm`, `resolvers`, `scripts`, `remote-cache`) is carried on `Build.Exploded`; `projects`/`templates` are already expanded into
+    * `explodedProjects` and nothing reads them from here. Handing over an empty `Existing` instead would silently fall back to the system JVM and ignore the
+    * build's `jvm` setting.
+    *
+    * The resolver is still constructed, because `buildTarget/dependencySources` and `dependencyModules` resolve on demand — but nothing on the compile path
+    * touches it.
+    *
+    * Here rather than on the connection because a connection is not the only one that loads builds: [[WarmRestartPreloader]] replays what a previous daemon
+    * was sent, with nobody connected at all.
+    */
+  private[bsp] def loadClientBuild(buildCache: BuildCache, analysisCache: bleep.analysis.AnalysisCache, logger: Logger)(
+      buildRoot: Path,
+      variant: model.BuildVariant,
+      exploded: model.Build.Exploded,
+      buildId: BuildId,
+      resolvedFromClient: Map[model.CrossProjectName, ResolvedProject],
+      displace: Boolean = true
+  ): Either[BleepException, Started] =
+    // Before anything is cached or compiled. The compile path throws on a missing language or platform version, which is right but arrives mid-build as an
+    // IllegalStateException about one project; this reports every offender at once, at load, through the channel the client already renders (`buildLoadError`).
+    model.BuildValidation.missingVersions(exploded) match {
+      case Nil    => loadValidatedClientBuild(buildCache, analysisCache, logger)(buildRoot, variant, exploded, buildId, resolvedFromClient, displace)
+      case errors => Left(new BleepException.Text(errors.mkString("\n")))
+    }
+
+  private def loadValidatedClientBuild(buildCache: BuildCache, analysisCache: bleep.analysis.AnalysisCache, logger: Logger)(
+      buildRoot: Path,
+      variant: model.BuildVariant,
+      exploded: model.Build.Exploded,
+      buildId: BuildId,
+      resolvedFromClient: Map[model.CrossProjectName, ResolvedProject],
+      displace: Boolean = true
+  ): Either[BleepException, Started] =
+    buildCache
+      .getOrLoad(buildRoot, variant, buildId, logger, displace) { previous =>
+        val userPaths = UserPaths.fromAppDirs
+        val bleepYaml = buildRoot.resolve(BuildLoader.BuildFileName)
+
+        // What this build changes relative to the one it replaces in the cache, if any. Only those projects lose what the daemon holds for them.
+        val delta: Option[BuildDelta] =
+          previous.map(p => BuildDelta.between(p.build, p.resolvedProjects.map { case (k, v) => (k, v.forceGet) }, exploded, resolvedFromClient))
+
+        val syntheticBuildFile = model.BuildFile(
+          $schema = model.$schema,
+          $version = exploded.$version,
+          templates = model.JsonMap.empty,
+          scripts = model.JsonMap(exploded.scripts),
+          resolvers = exploded.resolvers,
+          projects = model.JsonMap.empty,
+          jvm = exploded.jvm,
+          `remote-cache` = exploded.remoteCache
+        )
+
+        // Round-tripped through JSON so `Existing`'s own derived members (json, wantedVersion,
+        // buildFile) all agree with each other and with what we pass to the resolver factory.
+        val existingBuild = BuildLoader.Existing(bleepYaml, Lazy(Right(syntheticBuildFile.asJson.noSpaces)))
+        val buildPaths = BuildPaths(buildRoot, bleepYaml, variant, Some(exploded.$version))
+
+        val missing = exploded.explodedProjects.keySet -- resolvedFromClient.keySet
+
+        for {
+          _ <-
+            if (missing.isEmpty) Right(())
+            else
+              Left(
+                new BleepException.Text(
+                  s"Client sent a build for $buildRoot without resolved projects for ${missing.toList.map(_.value).sorted.mkString(", ")}. " +
+                    "The server does not resolve builds itself, so there is nothing to compile these from."
+                )
+              )
+          bleepConfig <- BleepConfigOps.loadOrDefault(userPaths)
+        } yield {
+          val pre = Prebootstrapped(
+            logger = logger,
+            userPaths = userPaths,
+            buildPaths = buildPaths,
+            existingBuild = existingBuild,
+            ec = scala.concurrent.ExecutionContext.global
+          )
+          // Shared with every other workspace the daemon holds, so worktrees of one repository resolve each processor and test-runner set once between them.
+          // Only the daemon's own resolutions go through it. Projects' own dependencies arrived resolved from the client and are shared between worktrees,
+          // if at all, through the per-user resolution cache on disk; see SharedResolution.
+          val resolver = SharedResolution.wrap(CoursierResolver.Factory.default(pre, bleepConfig, syntheticBuildFile), exploded.$version)
+
+          // Projects the edit did not touch keep the cells they had, so anything keyed on them carries over into the new build.
+          val resolvedProjects: scala.collection.immutable.SortedMap[model.CrossProjectName, Lazy[ResolvedProject]] =
+            scala.collection.immutable.SortedMap.from(
+              resolvedFromClient.map { case (crossName, resolved) =>
+                val carried = for {
+                  p <- previous
+                  d <- delta if !d.affected.contains(crossName)
+                  cell <- p.resolvedProjects.get(crossName)
+                } yield cell
+                crossName -> carried.getOrElse(Lazy.const(resolved))
+              }
+            )
+
+          delta.foreach(d => invalidateChangedProjects(analysisCache, logger)(buildPaths, d))
+
+          lazy val started: Started = Started(
+            pre = pre,
+            rewrites = Nil,
+            build = exploded,
+            resolvedProjects = resolvedProjects,
+            // cwd == buildDir here, which is the case bootstrap.from also answers `None` for
+            activeProjectsFromPath = None,
+            config = bleepConfig,
+            resolver = resolver,
+            bleepExecutable = Lazy(BleepExecutable.getCommand(resolver, pre, forceJvm = false)),
+            bspServerClasspathSource = BspServerClasspathSource.FromCoursier(resolver),
+            jvmRunner = JvmRunner.Forked
+          )((_, _, _) => Right(started)) // the client owns the build; reload is its call to make
+          started
+        }
+      }
+      .map { started =>
+        // Configure PlainVirtualFile with build dir for portable zinc analysis IDs
+        bleep.analysis.PlainVirtualFile.setBuildDir(started.buildPaths.buildDir)
+        started
+      }
+
+  /** Forget what the daemon holds for the projects an edit to the build touched, and nothing else.
+    *
+    * The noop manifest is the one that matters for correctness: it records source and dependency-analysis stats and a hash of the compiler options, but not
+    * the library classpath, so a bumped dependency would otherwise leave the project declared a noop against jars it was never compiled with. The loaded
+    * analysis is dropped because zinc is about to replace it anyway. Everything else — untouched projects' manifests and analyses — stays, which is the point.
+    */
+  private def invalidateChangedProjects(analysisCache: bleep.analysis.AnalysisCache, logger: Logger)(buildPaths: BuildPaths, delta: BuildDelta): Unit = {
+    val touched = delta.affected ++ delta.removed
+    touched.foreach { crossName =>
+      val analysisFile = buildPaths.variantBuildDir(crossName).resolve(".zinc").resolve("analysis.zip")
+      try java.nio.file.Files.deleteIfExists(bleep.analysis.NoopManifestStore.manifestPath(analysisFile)): Unit
+      catch { case e: java.io.IOException => if (DebugLogging) logger.info(s"Could not delete noop manifest for ${crossName.value}: ${e.getMessage}") }
+      analysisCache.invalidate(buildPaths.workspaceKey, analysisFile)
+    }
+    if (touched.nonEmpty || delta.added.nonEmpty)
+      logger
+        .withContext("workspace", buildPaths.buildDir.toString)
+        .withContext("added", delta.added.size)
+        .withContext("removed", delta.removed.size)
+        .withContext("changed", delta.changed.size)
+        .withContext("invalidated", touched.size)
+        .info("Build changed; invalidated the affected projects only")
+  }
+
   /** External test-framework dependencies that bleep-test-runner needs at runtime.
     *
     * The junit-platform launcher and vintage engine are version-sensitive: junit hard-fails when the launcher and the engine jars on the classpath disagree
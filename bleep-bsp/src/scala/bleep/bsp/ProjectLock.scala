@@ -89,6 +89,20 @@ object ProjectLock {
     Resource.make(acquireLock(project, outputDir, lockFile, mode, timeout, onContention))(_ => releaseLock(lockFile, mode))
   }
 
+  /** [[acquire]] for a directory that sits beside a project's classes instead of being them — a link output. Its lock file is `<dir>.bleep-lock` next to it,
+    * so holding it never contends with the lock compiles take in the same parent.
+    */
+  def acquireDir(
+      project: CrossProjectName,
+      dir: Path,
+      mode: LockMode,
+      timeout: scala.concurrent.duration.FiniteDuration,
+      onContention: () => Unit
+  ): Resource[IO, Boolean] = {
+    val lockFile = dir.resolveSibling(s"${dir.getFileName}.bleep-lock")
+    Resource.make(acquireLock(project, dir, lockFile, mode, timeout, onContention))(_ => releaseLock(lockFile, mode))
+  }
+
   private def acquireLock(
       project: CrossProjectName,
       outputDir: Path,
@@ -0,0 +1,241 @@
+package bleep.bsp
+
+import bleep.{model, GitRepository, MachineResources, ProjectPaths, Started}
+import bleep.analysis.{AnalysisWriter, CancellationToken}
+import bleep.commands.RemoteCache
+import cats.effect.IO
+import cats.effect.unsafe.implicits.global
+import ryddig.Logger
+
+import java.nio.file.Path
+import java.util.concurrent.{ConcurrentHashMap, Executors, Semaphore}
+import scala.collection.immutable.SortedMap
+import scala.concurrent.duration.*
+import scala.util.control.NonFatal
+
+/** Pulls remote-cache entries in the background when a workspace the daemon is holding switches branch.
+  *
+  * `bleep remote-cache pull` only helps if someone remembers to run it, and it skips every project that already has classes — which after a `git checkout` is
+  * all of them, holding outputs for the branch just left. So the first compile on the new branch rebuilt every changed project, even when CI had pushed those
+  * exact digests an hour earlier.
+  *
+  * The trigger is the checked-out commit, not the index. `.git/index` is rewritten by anything that refreshes stat info — an IDE polling `git status` does it
+  * every few seconds — and recomputing every digest on each of those would be the daemon's busiest job. A checkout, pull, reset or commit moves the commit;
+  * editing files does not need to trigger anything, because CI cannot have pushed a digest for uncommitted content.
+  *
+  * Only projects whose digest CHANGED are fetched. Their outputs on disk belong to the previous commit, so replacing them loses nothing; a project whose
+  * digest did not move is left exactly as it is, whatever is in its classes dir.
+  *
+  * Prefetch is the lowest-priority work in the daemon: it is admitted only through [[MachineResources.tryReserveIdle]], so it never takes a core that anything
+  * else is waiting for, and a compile of the same project [[RemoteCachePrefetcher.preempt preempts]] it. The compile was going to produce those outputs anyway;
+  * racing it to write the same directory helps nobody.
+  */
+final class RemoteCachePrefetcher(machine: MachineResources, buildCache: BuildCache, logger: Logger) {
+  import RemoteCachePrefetcher.*
+
+  private case class Seen(git: GitState, digests: SortedMap[model.CrossProjectName, String])
+
+  /** What each held workspace looked like when last digested. The first sighting only records: there is no "before" to diff against, and a freshly loaded
+    * workspace is about to be compiled by whoever loaded it.
+    */
+  private val seen = new ConcurrentHashMap[model.WorkspaceKey, Seen]()
+
+  /** The round in flight per workspace, so a second checkout supersedes the first instead of queueing behind it. */
+  private val rounds = new ConcurrentHashMap[model.WorkspaceKey, CancellationToken]()
+
+  private val executor = Executors.newVirtualThreadPerTaskExecutor()
+  private val slots = new Semaphore(Parallelism)
+
+  /** Check every held workspace once, starting a prefetch round for each whose commit moved. Called from the daemon's prefetch thread. */
+  def pollOnce(): Unit = {
+    val loaded = buildCache.loaded
+    val live = loaded.map { case (key, _) => key }.toSet
+    seen.keySet().removeIf(key => !live(key)): Unit
+    rounds.keySet().removeIf(key => !live(key)): Unit
+
+    loaded.foreach { case (key, started) =>
+      started.build.remoteCache.foreach { config =>
+        GitState.read(started.buildPaths.buildDir).foreach { git =>
+          Option(seen.get(key)) match {
+            case Some(previous) if previous.git == git => ()
+            case previous                              =>
+              val digests = DigestService.all(started)
+              seen.put(key, Seen(git, digests))
+              previous.foreach { p =>
+                val changed = changedProjects(p.digests, digests)
+                if (changed.nonEmpty) startRound(key, started, config, digests, changed)
+              }
+          }
+        }
+      }
+    }
+  }
+
+  private def startRound(
+      key: model.WorkspaceKey,
+      started: Started,
+      config: model.RemoteCacheConfig,
+      digests: SortedMap[model.CrossProjectName, String],
+      changed: List[model.CrossProjectName]
+  ): Unit = {
+    val round = CancellationToken.create()
+    Option(rounds.put(key, round)).foreach(_.cancel())
+
+    val store =
+      try Some(RemoteCache.storeFor(started, config))
+      catch {
+        case NonFatal(e) =>
+          // Most often: no credentials on this machine. An explicit `remote-cache pull` reports that; a background job has nobody to report it to.
+          logger.withContext("workspace", key.workspace.toString).withContext("reason", e.getMessage).debug("Remote-cache prefetch unavailable")
+          None
+      }
+
+    store.foreach { case (client, prefix) =>
+      logger
+        .withContext("workspace", key.workspace.toString)
+        .withContext("changedProjects", changed.size)
+        .info("Commit changed; prefetching remote-cache entries in the background")
+
+      changed.foreach { crossName =>
+        val projectPaths = started.projectPaths(crossName)
+        val token = CancellationToken.create()
+        round.onCancel(() => token.cancel())
+        Option(inFlight.put(projectPaths.targetDir, token)).foreach(_.cancel())
+        val digest = digests(crossName)
+        val storeKey = RemoteCache.cacheKey(prefix, crossName, digest)
+        executor.submit((() => prefetchOne(key, started, crossName, projectPaths, client, digest, storeKey, token)): Runnable): Unit
+      }
+    }
+  }
+
+  private def prefetchOne(
+      key: model.WorkspaceKey,
+      started: Started,
+      crossName: model.CrossProjectName,
+      projectPaths: ProjectPaths,
+      client: bleep.CacheStore,
+      digest: String,
+      storeKey: String,
+      token: CancellationToken
+  ): Unit = {
+    val startMs = System.currentTimeMillis()
+    def record(outcome: String, bytes: Long): Unit =
+      BspMetrics.recordRemoteCachePrefetch(crossName.value, key.workspace.toString, outcome, bytes, System.currentTimeMillis() - startMs)
+
+    slots.acquire()
+    try
+      awaitAdmission(crossName, token) match {
+        case None          => record("preempted", 0L)
+        case Some(release) =>
+          try
+            if (!client.headObject(storeKey)) record("not_cached", 0L)
+            else {
+              val archive = client.getObject(storeKey)
+              // The download is the long part, so this is where a compile that started meanwhile is most likely to have preempted us. Checked again under
+              // the lock below, which is the check that matters: the compile takes the same lock before it writes.
+              val installed =
+                !token.isCancelled && ProjectLock
+                  .acquire(crossName, projectPaths.classes, ProjectLock.LockMode.Exclusive, LockTimeout, () => ())
+                  .use { _ =>
+                    IO.blocking {
+                      if (token.isCancelled) false
+                      else {
+                        // A write still in flight from an earlier compile would land on top of the installed analysis.
+                        AnalysisWriter.flush(List(BleepBuildConverter.analysisFile(started, crossName))): Unit
+                        // The digest is from the poll that noticed the checkout, and the download took a while since. The manifest is only kept if the
+                        // sources still match it; otherwise the next compile takes zinc's look at the difference.
+                        val current = RemoteCache.install(started, crossName, projectPaths, archive, digest, () => DigestService.digest(started, crossName))
+                        if (!current) logger.withContext("project", crossName.value).debug("Sources changed during prefetch; installed without a noop manifest")
+                        true
+                      }
+                    }
+                  }
+                  .unsafeRunSync()
+              if (installed) {
+                logger
+                  .withContext("workspace", key.workspace.toString)
+                  .withContext("project", crossName.value)
+                  .withContext("kb", archive.length / 1024)
+                  .info("Prefetched from remote cache")
+                record("pulled", archive.length.toLong)
+              } else record("preempted", archive.length.toLong)
+            }
+          finally release.unsafeRunSync()
+      }
+    catch {
+      // Someone else is writing this project's outputs — a compile from another process, most likely. Theirs win.
+      case _: ProjectLock.LockTimeoutException => record("preempted", 0L)
+      case NonFatal(e)                         =>
+        logger.withContext("project", crossName.value).withContext("reason", e.getMessage).warn("Remote-cache prefetch failed")
+        record("failed", 0L)
+    } finally {
+      slots.release()
+      inFlight.remove(projectPaths.targetDir, token): Unit
+    }
+  }
+
+  /** Wait for a core nothing else wants. `None` if preempted first. Polls rather than parking on the governor — see [[MachineResources.tryReserveIdle]]. */
+  private def awaitAdmission(crossName: model.CrossProjectName, token: CancellationToken): Option[IO[Unit]] = {
+    var granted: Option[IO[Unit]] = None
+    while (granted.isEmpty && !token.isCancelled) {
+      granted = machine
+        .tryReserveIdle(MachineResources.ResourceKind.RemoteCachePrefetch, s"prefetch ${crossName.value}", cpu = 1, memoryMb = 0L)
+        .unsafeRunSync()
+      if (granted.isEmpty) Thread.sleep(AdmissionRetry.toMillis)
+    }
+    if (token.isCancelled) {
+      granted.foreach(_.unsafeRunSync())
+      None
+    } else granted
+  }
+}
+
+object RemoteCachePrefetcher {
+
+  /** How often the daemon checks held workspaces for a moved commit. Two small file reads per workspace; a checkout is noticed before anyone can type the next
+    * command.
+    */
+  val PollInterval: FiniteDuration = 2.seconds
+
+  /** Concurrent downloads across all workspaces. Lower than `remote-cache pull`'s, which the user is waiting on; this runs alongside whatever they do next. */
+  private val Parallelism = 4
+
+  private val AdmissionRetry: FiniteDuration = 500.millis
+
+  /** Short on purpose: a held lock means someone is producing these outputs right now, and waiting for them only to overwrite their work would be backwards. */
+  private val LockTimeout: FiniteDuration = 2.seconds
+
+  /** In-flight prefetches by target dir — the same 1:1 key for (workspace, variant, project) that [[ProjectLock]] uses. Process-global for the same reason:
+    * the compile that preempts may come from any connection.
+    */
+  private val inFlight = new ConcurrentHashMap[Path, CancellationToken]()
+
+  /** Stop any prefetch still running for the project whose outputs live in `targetDir`. Called when a compile of that project starts. A prefetch already
+    * installing holds the project's exclusive lock and finishes first; the compile then sees the prefetched outputs, which is the best case.
+    */
+  def preempt(targetDir: Path): Unit =
+    Option(inFlight.remove(targetDir)).foreach(_.cancel())
+
+  /** Projects whose digest is new or different. */
+  private[bsp] def changedProjects(
+      previous: SortedMap[model.CrossProjectName, String],
+      current: SortedMap[model.CrossProjectName, String]
+  ): List[model.CrossProjectName] =
+    current.iterator.collect { case (name, digest) if !previous.get(name).contains(digest) => name }.toList
+
+  /** The checked-out commit, as cheaply as it can be read: HEAD, and the commit HEAD's ref points at. `None` outside a git repository. */
+  private[bsp] case class GitState(head: String, commit: String)
+
+  private[bsp] object GitState {
+    def read(from: Path): Option[GitState] =
+      try
+        GitRepository.locate(from).map { location =>
+          val head = GitRepository.readHead(location)
+          val commit =
+            if (head.startsWith("ref: ")) GitRepository.resolveRef(location, head.stripPrefix("ref: ").trim).getOrElse("") // unborn: compares fine
+            else head // detached: HEAD is the commit
+          GitState(head, commit)
+        }
+      catch { case NonFatal(_) => None }
+  }
+}
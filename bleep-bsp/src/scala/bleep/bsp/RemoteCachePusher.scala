@@ -0,0 +1,251 @@
+package bleep.bsp
+
+import bleep.{model, Started, TarGz}
+import bleep.analysis.{AnalysisWriter, NoopManifestStore}
+import bleep.commands.RemoteCache
+import cats.effect.IO
+import cats.effect.unsafe.implicits.global
+import ryddig.Logger
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.{ConcurrentHashMap, Executors, Semaphore}
+import scala.concurrent.duration.*
+import scala.util.control.NonFatal
+
+/** Pushes a project's outputs to the remote cache as soon as the compile that produced them succeeds. Opt-in via `remoteCacheAutoPush`.
+  *
+  * `bleep remote-cache push` runs after the build: it digests every project again, packs every project again, and asks the cache about every project again —
+  * a trailing step on the critical path of every CI job, doing work the build already did. Pushing per compile moves all of it off that path, onto threads
+  * that run while the rest of the build is still compiling.
+  *
+  * ==The key==
+  *
+  * The key has to name the source state the compile read, but digesting when the compile starts put a walk of the project and all its dependencies' sources
+  * in front of every compile — on the critical path, for a push nobody waits on. So the compile only records the time it started, and everything else happens
+  * on the push's own thread afterwards: the digest, then, under the project's shared lock just before packing, a check that no input of the digest has
+  * changed since that time ([[changedSince]]). If none has, the sources digested after the compile are the ones it read. If one has, someone edited a source
+  * while it compiled, and the outputs belong to neither state. That push is dropped rather than guessed at — poisoning a shared cache is much worse than
+  * missing it.
+  *
+  * ==Bounded, deduplicated, best-effort==
+  *
+  * At most [[Parallelism]] pushes run at once across the whole daemon, digests included, and a project waits for its digest at most once however many times
+  * it compiles meanwhile. One (cache, project, digest) is pushed at most once however many workspaces compile it — worktrees on the same commit all produce
+  * the same key. A push already in the cache is skipped after a HEAD request. Nothing waits for any of
+  * this: a push that fails is logged and recorded, and a daemon that shuts down with pushes queued drops them; the next `remote-cache push`, or the next
+  * compile of that digest, covers it.
+  *
+  * Link outputs ([[LinkCache]]) share the queue, the bound and the deduplication; they are keyed by their link key instead of a project digest.
+  */
+object RemoteCachePusher {
+
+  /** Concurrent uploads across the whole daemon. Packing is CPU, uploading is network; neither should crowd out the compiles that produce the next push. */
+  private val Parallelism = 4
+
+  /** Pushes queued behind the in-flight ones before new ones are dropped. A cold CI build schedules one per project; past this the cache is already getting
+    * more than it can absorb, and queueing further only holds archives' worth of work in a daemon that will be told to shut down at the end of the job.
+    */
+  private val MaxPending = 512
+
+  /** How long to wait for the shared lock before packing. A writer holding it is recompiling these outputs, so they are about to stop matching the digest. */
+  private val LockTimeout: FiniteDuration = 30.seconds
+
+  /** Timestamps are compared with this much slack, for filesystems that keep them in whole seconds: an edit in the same second the compile started must not
+    * read as older than it. The cost is a dropped push for a source saved just before its compile began.
+    */
+  private[bsp] val TimestampSlackMs = 1000L
+
+  private val executor = Executors.newVirtualThreadPerTaskExecutor()
+  private val slots = new Semaphore(Parallelism)
+
+  /** Pushes scheduled or running, by (cache uri, project, digest). */
+  private val pending = ConcurrentHashMap.newKeySet[String]()
+
+  /** Pushes that completed or were found already present, so another workspace compiling the same digest skips even the HEAD request. Cleared rather than
+    * evicted when it grows large: forgetting costs one HEAD request per entry.
+    */
+  private val done = ConcurrentHashMap.newKeySet[String]()
+  private val MaxRemembered = 100000
+
+  /** Whether compiles of this build should be pushed. Read from the `Started`, so it follows the user config the build was loaded with. */
+  def enabled(started: Started): Boolean =
+    started.config.bspServerConfigOrDefault.effectiveRemoteCacheAutoPush && started.build.remoteCache.isDefined
+
+  /** Compiles waiting to be digested, at most one per project. */
+  private val toDigest = new Coalescing(MaxPending, slots, executor)
+
+  /** Queue a push of `project`'s outputs from a compile that started at `compileStartMs` and succeeded. Returns immediately: the digest is computed on the
+    * push's thread, not the compile's.
+    *
+    * A burst of compiles of one project — a watch loop, a developer saving repeatedly — digests once: while a push of the project still waits for its digest,
+    * further compiles only move its start time forward. The digest then describes the latest of them, and the guard checks against that one's start.
+    */
+  def schedule(started: Started, project: model.CrossProjectName, compileStartMs: Long, logger: Logger): Unit =
+    started.build.remoteCache.foreach { config =>
+      val queued = toDigest.offer(s"${config.uri}|${started.buildPaths.buildDir}|${project.value}", compileStartMs) { latestStartMs =>
+        try
+          DigestService.digest(started, project).foreach { digest =>
+            enqueue(started, project, "compile", digest, logger) { () =>
+              val projectPaths = started.projectPaths(project)
+              ProjectLock
+                .acquire(project, projectPaths.classes, ProjectLock.LockMode.Shared, LockTimeout, () => ())
+                .use { _ =>
+                  IO.blocking {
+                    // The compile that scheduled this push returned before its analysis was written; the archive must carry the new one.
+                    AnalysisWriter.flush(List(BleepBuildConverter.analysisFile(started, project))): Unit
+                    if (changedSince(digestInputs(started, project), latestStartMs - TimestampSlackMs)) Left("sources_changed")
+                    else if (RemoteCache.checkPortability(projectPaths.targetDir).nonEmpty) Left("not_portable")
+                    else Right(TarGz.pack(projectPaths.targetDir, RemoteCache.packFilter(projectPaths.targetDir)))
+                  }
+                }
+                .unsafeRunSync()
+            }
+          }
+        catch {
+          case NonFatal(e) => logger.withContext("project", project.value).withContext("reason", e.getMessage).debug("Not pushing to remote cache")
+        }
+      }
+      if (!queued) logger.withContext("project", project.value).debug("Remote-cache push queue full; skipping")
+    }
+
+  /** Work queued per key, coalesced while it waits and bounded while it runs.
+    *
+    * An offer for a key that is already waiting does not queue more work; it only raises the time the waiting work will be handed. Running work holds one of
+    * `slots`, so what it does — a full digest of a project and its dependencies, for the pusher — never runs wider than the uploads it feeds. Once work has
+    * taken its time and started, the next offer for its key queues anew: that compile may have read other sources.
+    */
+  private[bsp] final class Coalescing(maxWaiting: Int, slots: Semaphore, executor: java.util.concurrent.Executor) {
+    private val waiting = new ConcurrentHashMap[String, java.lang.Long]()
+
+    /** Queue `work` under `key` unless work for it is already waiting. Returns false if it was dropped because `maxWaiting` other keys are waiting. */
+    def offer(key: String, timeMs: Long)(work: Long => Unit): Boolean =
+      if (!waiting.containsKey(key) && waiting.size() >= maxWaiting) false
+      else {
+        var first = false
+        waiting.compute(
+          key,
+          (_, previous) =>
+            if (previous == null) {
+              first = true
+              timeMs
+            } else math.max(previous.longValue, timeMs)
+        ): Unit
+        if (first)
+          executor.execute { () =>
+            slots.acquire()
+            try work(waiting.remove(key).longValue)
+            finally slots.release()
+          }
+        true
+      }
+  }
+
+  /** The directories [[bleep.ProjectDigest]] reads for `project`: its sources and resources, and those of everything its digest folds in — dependencies and
+    * sourcegen script projects, transitively.
+    */
+  private[bsp] def digestInputs(started: Started, project: model.CrossProjectName): List[Path] = {
+    val seen = scala.collection.mutable.LinkedHashSet.empty[model.CrossProjectName]
+    def visit(name: model.CrossProjectName): Unit =
+      if (seen.add(name)) {
+        started.build.resolvedDependsOn.getOrElse(name, Set.empty).foreach(visit)
+        started.build.explodedProjects(name).sourcegen.values.foreach { case model.ScriptDef.Main(scriptProject, _, _) => visit(scriptProject) }
+      }
+    visit(project)
+    seen.toList.flatMap { name =>
+      val paths = started.projectPaths(name)
+      paths.sourcesDirs.all.toList ++ paths.resourcesDirs.all.toList
+    }
+  }
+
+  /** Whether anything under `dirs` — a file, or a directory a file was added to or removed from — changed at or after `sinceMs`.
+    *
+    * Reads ctime where there is one: unlike mtime, no tool can set it back, so a `cp -p` or an archive extraction that preserves an old mtime still shows. On
+    * Windows, mtime is the best there is.
+    */
+  private[bsp] def changedSince(dirs: Iterable[Path], sinceMs: Long): Boolean = {
+    def changeTime(path: Path): Long =
+      if (NoopManifestStore.ctimeAvailable) NoopManifestStore.statFile(path).ctimeMillis else Files.getLastModifiedTime(path).toMillis
+    dirs.exists { dir =>
+      // A file deleted while we walk is a change too.
+      try
+        Files.isDirectory(dir) && scala.util.Using.resource(Files.walk(dir)) { stream =>
+          stream.anyMatch { path =>
+            try changeTime(path) >= sinceMs
+            catch { case _: java.io.IOException => true }
+          }
+        }
+      catch { case _: java.io.UncheckedIOException => true }
+    }
+  }
+
+  /** Queue a push of a link output directory under its [[LinkCache]] key. Returns immediately. Packed under the directory's shared lock, which a link holds
+    * exclusively while it writes there, and only if [[LinkCache.pack]] finds the directory still holding that key's outputs and their inputs unchanged.
+    */
+  def scheduleLink(started: Started, project: model.CrossProjectName, keyed: LinkCache.Keyed, linkDir: Path, logger: Logger): Unit =
+    enqueue(started, project, "link", LinkCache.storeDigest(keyed.linkKey), logger) { () =>
+      ProjectLock
+        .acquireDir(project, linkDir, ProjectLock.LockMode.Shared, LockTimeout, () => ())
+        .use(_ => IO.blocking(LinkCache.pack(linkDir, keyed, digestInputs(started, project))))
+        .unsafeRunSync()
+    }
+
+  private def enqueue(started: Started, project: model.CrossProjectName, kind: String, digest: String, logger: Logger)(
+      pack: () => Either[String, Array[Byte]]
+  ): Unit =
+    started.build.remoteCache.foreach { config =>
+      val id = s"${config.uri}|${project.value}|$digest"
+      if (!done.contains(id)) {
+        if (pending.size() >= MaxPending)
+          logger.withContext("project", project.value).debug("Remote-cache push queue full; skipping")
+        else if (pending.add(id))
+          executor.submit((() => push(started, config, project, kind, digest, id, logger, pack)): Runnable): Unit
+      }
+    }
+
+  private def push(
+      started: Started,
+      config: model.RemoteCacheConfig,
+      project: model.CrossProjectName,
+      kind: String,
+      digest: String,
+      id: String,
+      logger: Logger,
+      pack: () => Either[String, Array[Byte]]
+  ): Unit = {
+    val workspace = started.buildPaths.buildDir.toString
+    val startMs = System.currentTimeMillis()
+    def record(outcome: String, bytes: Long): Unit =
+      BspMetrics.recordRemoteCachePush(project.value, workspace, kind, outcome, bytes, System.currentTimeMillis() - startMs)
+    def remember(): Unit = {
+      if (done.size() >= MaxRemembered) done.clear()
+      done.add(id): Unit
+    }
+
+    slots.acquire()
+    try {
+      val (client, prefix) = RemoteCache.storeFor(started, config)
+      val key = RemoteCache.cacheKey(prefix, project, digest)
+      if (client.headObject(key)) {
+        remember()
+        record("already_cached", 0L)
+      } else
+        pack() match {
+          case Left(reason) =>
+            logger.withContext("project", project.value).withContext("reason", reason).debug("Not pushing to remote cache")
+            record(reason, 0L)
+          case Right(archive) =>
+            client.putObject(key, archive)
+            remember()
+            logger.withContext("project", project.value).withContext("kind", kind).withContext("kb", archive.length / 1024).info("Pushed to remote cache")
+            record("pushed", archive.length.toLong)
+        }
+    } catch {
+      case NonFatal(e) =>
+        logger.withContext("project", project.value).withContext("reason", e.getMessage).warn("Remote-cache push failed")
+        record("failed", 0L)
+    } finally {
+      slots.release()
+      pending.remove(id): Unit
+    }
+  }
+}
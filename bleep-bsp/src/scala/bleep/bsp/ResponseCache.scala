@@ -0,0 +1,100 @@
+package bleep.bsp
+
+import bleep.ResolvedProject
+import cats.effect.{Deferred, IO, Ref}
+import ch.epfl.scala.bsp.{RawJson, Uri}
+
+import java.nio.charset.StandardCharsets
+
+/** Encoded answers to the read-only requests an IDE repeats, for one connection.
+  *
+  * `workspace/buildTargets`, `buildTarget/sources`, `dependencySources`, `scalacOptions`, `javacOptions` and `dependencyModules` are pure functions of the
+  * build. IntelliJ and Metals nonetheless send each of them again after every reload and on several other occasions, and each answer meant walking every
+  * requested project and encoding a few megabytes of classpath URIs. Here the encoded bytes are kept, keyed by method and the exact params.
+  *
+  * Every lookup names the build it is for — the connection's `Started`, compared by identity — and a lookup for another build than the one the entries were
+  * computed on drops them all first. So an entry can never outlive the build it describes, whether the connection moved to another build or reloaded the same
+  * one. Per connection rather than per build because two of the answers also depend on the connection — `javacOptions` carries the semanticDB plugin an IDE
+  * asked for.
+  *
+  * No answer is computed ahead of a request, though the source jars behind `dependencySources` may be (see [[DependencySourcesWarmup]]). The first request for
+  * a key computes it, and identical requests arriving meanwhile wait for that answer instead of computing their own: an IDE tends to send the same request from
+  * several places at once straight after import. Answers that fail are handed to whoever was waiting and then forgotten, and an answer whose request was
+  * cancelled is computed again by the next one asking. At most `maxEntries` answers are kept, the least recently asked for going first.
+  */
+final class ResponseCache[B <: AnyRef](maxEntries: Int = ResponseCache.MaxEntries) {
+  import ResponseCache.*
+
+  private val state: Ref[IO, State[B]] = Ref.unsafe(State(None, Map.empty, 0L))
+
+  /** The encoded answer for these params on `build`, computing it on the first request. */
+  def getOrCompute(build: B, method: String, params: Option[RawJson])(compute: IO[RawJson]): IO[RawJson] = {
+    val key = Key(method, params.fold("")(p => new String(p.value, StandardCharsets.UTF_8)))
+    IO.uncancelable { poll =>
+      Deferred[IO, Either[Throwable, RawJson]].flatMap { mine =>
+        state
+          .modify { current =>
+            val s = if (current.build.exists(_ eq build)) current else State[B](Some(build), Map.empty, 0L)
+            s.entries.get(key) match {
+              case Some((theirs, _)) => (s.touched(key, theirs), Some(theirs))
+              case None              => (s.touched(key, mine).bounded(maxEntries), None)
+            }
+          }
+          .flatMap {
+            case Some(theirs) =>
+              poll(theirs.get).flatMap {
+                case Left(Abandoned) => poll(getOrCompute(build, method, params)(compute))
+                case result          => IO.fromEither(result)
+              }
+            case None =>
+              def finish(result: Either[Throwable, RawJson]): IO[Unit] =
+                (if (result.isLeft) forget(key, mine) else IO.unit) >> mine.complete(result).void
+              poll(compute).attempt
+                .onCancel(finish(Left(Abandoned)))
+                .flatTap(finish)
+                .rethrow
+          }
+      }
+    }
+  }
+
+  /** Drop `key` if it still holds `entry`: a newer entry under the same key, after a build change, is not this caller's to remove. */
+  private def forget(key: Key, entry: Deferred[IO, Either[Throwable, RawJson]]): IO[Unit] =
+    state.update { s =>
+      s.entries.get(key) match {
+        case Some((`entry`, _)) => s.copy(entries = s.entries - key)
+        case _                  => s
+      }
+    }
+}
+
+object ResponseCache {
+  private case class Key(method: String, params: String)
+
+  /** An IDE sends a handful of distinct requests per build; this is room for those with plenty to spare, not for anything enumerating targets one by one. */
+  val MaxEntries = 256
+
+  /** What a waiter is told when the request computing its answer was cancelled: ask again. */
+  private object Abandoned extends Exception("response computation was cancelled", null, false, false)
+
+  /** Entries for one build. Each remembers the tick it was last asked for at; the lowest tick is the least recently used. */
+  private case class State[B](build: Option[B], entries: Map[Key, (Deferred[IO, Either[Throwable, RawJson]], Long)], tick: Long) {
+    def touched(key: Key, entry: Deferred[IO, Either[Throwable, RawJson]]): State[B] =
+      copy(entries = entries.updated(key, (entry, tick)), tick = tick + 1)
+
+    def bounded(maxEntries: Int): State[B] =
+      if (entries.size <= maxEntries) this
+      else copy(entries = entries - entries.minBy { case (_, (_, lastUsed)) => lastUsed }._1)
+  }
+
+  def sourceJarsOf(resolved: ResolvedProject): List[Uri] =
+    resolved.resolution match {
+      case Some(res) =>
+        res.modules.flatMap { m =>
+          m.artifacts
+            .filter(a => a.classifier.contains("sources"))
+            .map(a => Uri(a.path.toUri))
+        }.distinct
+      case None => List.empty
+    }
+}
@@ -0,0 +1,149 @@
+package bleep.bsp
+
+import bleep.{model, CoursierResolver}
+import bleep.CoursierResolver.Cached
+import coursier.Fetch
+import coursier.error.CoursierError
+
+import java.util.concurrent.{CompletableFuture, CompletionException, ConcurrentHashMap}
+import scala.collection.immutable.SortedSet
+
+/** One place in the daemon where its own dependency resolutions happen, shared by every workspace it holds.
+  *
+  * ==Where this applies==
+  *
+  * Not to projects' dependencies. Those are resolved by the client before it connects — [[bleep.ResolutionPlanner]] and the build's resolve lock, in the
+  * `bleep bsp` process — and arrive with the build, so the daemon never asks coursier for them: it refuses a build that comes without them. Worktrees resolving
+  * the same project dependency set share through the per-user resolution cache on disk (`UserPaths.resolveCacheDir`, keyed like the entries here), which every
+  * client process reads; they do not share through this object, and nothing here single-flights them. What the daemon does resolve itself, through the resolver
+  * of the workspace that asked, is tooling: annotation processors and KSP processors declared by projects, the test runner and its JUnit platform deps for
+  * every forked test JVM. That is where worktrees of one repository overlap almost entirely, and where they tend to ask at the same moment — every window runs
+  * its tests or its processors after the same checkout. Each workspace's resolver is built from its own build file; it is wrapped in [[Shared]], which:
+  *
+  *   - keys a request by what [[CoursierResolver.Cached]] keys its disk cache by — [[Cached.computeHash]] and its collision hash, so the repositories and
+  *     resolver params are part of it — plus the eviction setting and the build's bleep version, which `${BLEEP_VERSION}` in a dependency resolves to;
+  *   - lets the first caller for a key resolve, on its own thread, and every concurrent caller for the same key wait for that result instead of starting their
+  *     own;
+  *   - keeps successful results in an LRU bounded by estimated size, so later callers from any workspace get the same immutable `Result` object.
+  *
+  * ==What is never kept==
+  *
+  * Only an answer that cannot go stale is kept, because nothing here ever expires it:
+  *
+  *   - a request for a snapshot or a dynamic version (`1.+`, `latest.release`, a range) is not even single-flighted — two calls may rightly get different
+  *     answers;
+  *   - a result in which coursier marked any artifact as changing is handed to whoever was waiting for it, and then dropped like a failure, so the next caller
+  *     resolves again and coursier's own TTL decides whether to go to the network;
+  *   - failures are handed to whoever was waiting and then forgotten: the next request tries again;
+  *   - `build.bleep` dependencies are not shared at all: they resolve to class directories inside one particular workspace.
+  *
+  * The key holds two independently seeded hashes over the same inputs, so handing one workspace another's resolution by mistake would take both to collide at
+  * once.
+  */
+object SharedResolution {
+
+  /** Budget for cached results: 1/64 of the heap, at least 16 MB. A resolution of a few hundred artifacts is on the order of 100 KB. */
+  private val MaxBytes: Long = math.max(16L * 1024 * 1024, Runtime.getRuntime.maxMemory() / 64)
+
+  private case class Key(hash: Int, collisionHash: Int, ignoreEvictionErrors: model.IgnoreEvictionErrors, bleepVersion: String)
+
+  private final class Entry(val result: CoursierResolver.Result, val bytes: Long)
+
+  private val inFlight = new ConcurrentHashMap[Key, CompletableFuture[Either[CoursierError, CoursierResolver.Result]]]()
+
+  private var heldBytes = 0L
+  private val held = new java.util.LinkedHashMap[Key, Entry](256, 0.75f, /* accessOrder = */ true)
+
+  /** Route `underlying`'s resolutions through the daemon-wide cache. */
+  def wrap(underlying: CoursierResolver, bleepVersion: model.BleepVersion): CoursierResolver =
+    new Shared(underlying, bleepVersion.value)
+
+  private final class Shared(underlying: CoursierResolver, bleepVersion: String) extends CoursierResolver {
+    override val params: CoursierResolver.Params = underlying.params
+
+    override def withParams(newParams: CoursierResolver.Params): CoursierResolver =
+      new Shared(underlying.withParams(newParams), bleepVersion)
+
+    override def resolve(
+        deps: SortedSet[model.Dep],
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        ignoreEvictionErrors: model.IgnoreEvictionErrors
+    ): Either[CoursierError, CoursierResolver.Result] = {
+      def direct = underlying.resolve(deps, versionCombo, libraryVersionSchemes, ignoreEvictionErrors)
+      if (deps.exists(dep => isChanging(dep.version) || dep.organization.value == "build.bleep")) direct
+      else {
+        val key = Key(
+          Cached.computeHash(deps, params, versionCombo, libraryVersionSchemes),
+          Cached.collisionHash(deps, params, versionCombo, libraryVersionSchemes),
+          ignoreEvictionErrors,
+          bleepVersion
+        )
+        cached(key) match {
+          case Some(result) => Right(result)
+          case None =>
+            val mine = new CompletableFuture[Either[CoursierError, CoursierResolver.Result]]()
+            Option(inFlight.putIfAbsent(key, mine)) match {
+              case Some(theirs) =>
+                try theirs.join()
+                catch { case e: CompletionException if e.getCause != null => throw e.getCause }
+              case None =>
+                try {
+                  val result = direct
+                  result.foreach(r => if (!hasChangingArtifacts(r)) store(key, r))
+                  mine.complete(result): Unit
+                  result
+                } catch {
+                  case th: Throwable =>
+                    mine.completeExceptionally(th): Unit
+                    throw th
+                } finally inFlight.remove(key, mine): Unit
+            }
+        }
+      }
+    }
+
+    override def direct(
+        deps: SortedSet[model.Dep],
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        ignoreEvictionErrors: model.IgnoreEvictionErrors
+    ): Either[CoursierError, Fetch.Result] =
+      underlying.direct(deps, versionCombo, libraryVersionSchemes, ignoreEvictionErrors)
+  }
+
+  /** A version whose meaning moves over time: a snapshot, or anything coursier resolves to whatever is newest when asked. */
+  private[bsp] def isChanging(version: String): Boolean =
+    version.endsWith("-SNAPSHOT") || version.startsWith("latest.") || version.endsWith("+") || version.startsWith("[") || version.startsWith("(") ||
+      version.startsWith("]")
+
+  private[bsp] def hasChangingArtifacts(result: CoursierResolver.Result): Boolean =
+    result.fullDetailedArtifacts.exists { case (_, _, artifact, _) => artifact.changing }
+
+  private def cached(key: Key): Option[CoursierResolver.Result] =
+    held.synchronized(Option(held.get(key)).map(_.result))
+
+  private def store(key: Key, result: CoursierResolver.Result): Unit =
+    held.synchronized {
+      val entry = new Entry(result, estimateBytes(result))
+      Option(held.put(key, entry)).foreach(previous => heldBytes -= previous.bytes)
+      heldBytes += entry.bytes
+      // Least recently used first, never the newcomer.
+      val it = held.entrySet().iterator()
+      while (heldBytes > MaxBytes && held.size() > 1 && it.hasNext) {
+        val eldest = it.next()
+        if (eldest.getKey != key) {
+          heldBytes -= eldest.getValue.bytes
+          it.remove()
+        }
+      }
+    }
+
+  /** Rough retained size: the strings that make up each artifact's coordinates, URL and path, plus a fixed overhead for the objects holding them. */
+  private def estimateBytes(result: CoursierResolver.Result): Long =
+    result.fullDetailedArtifacts.foldLeft(256L) { case (acc, (dep, pub, artifact, file)) =>
+      val chars = dep.module.organization.value.length + dep.module.name.value.length + dep.versionConstraint.asString.length +
+        pub.name.length + artifact.url.length + file.fold(0)(_.getPath.length)
+      acc + 2L * chars + 400L
+    }
+}
@@ -56,6 +56,10 @@ object SharedWorkspaceState {
     else ops.values().asScala.toList
   }
 
+  /** Workspaces with at least one operation in flight. */
+  def activeWorkspaces: Set[Path] =
+    activeWork.entrySet().asScala.collect { case e if !e.getValue.isEmpty => e.getKey }.toSet
+
   /** Cancel all active operations for a workspace — cancels tokens and force-kills child processes. */
   def cancelAll(workspace: Path): Unit =
     getActiveOperations(workspace).foreach { work =>
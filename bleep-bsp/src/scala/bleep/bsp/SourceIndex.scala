@@ -0,0 +1,31 @@
+package bleep.bsp
+
+import bleep.{ResolvedProject, Started}
+import bleep.internal.PathTrie
+import bleep.model.CrossProjectName
+
+import java.nio.file.Path
+
+/** Which build targets own a source file: every project with a source root containing it.
+  *
+  * Built once per build, when it is loaded into [[BuildCache]], and shared by every connection on that build. `buildTarget/inverseSources` used to answer by
+  * testing the file against every source root of every project, and IDEs send it on each file they open.
+  *
+  * Resource roots are not indexed. `inverseSources` is about sources: an IDE asks it to decide which target compiles the file it opened, and a file under a
+  * resource root is compiled by none.
+  */
+final class SourceIndex private (roots: PathTrie[CrossProjectName]) {
+
+  /** Projects owning `file`, each once. More than one when projects share a source directory, as cross projects do. */
+  def projectsFor(file: Path): List[CrossProjectName] = roots.containing(file).distinct
+}
+
+object SourceIndex {
+  def of(started: Started): SourceIndex =
+    of(started.resolvedProjects.iterator.map { case (crossName, resolved) => (crossName, resolved.forceGet) })
+
+  private[bsp] def of(resolvedProjects: IterableOnce[(CrossProjectName, ResolvedProject)]): SourceIndex =
+    new SourceIndex(
+      PathTrie.from(resolvedProjects.iterator.flatMap { case (crossName, p) => p.sources.iterator.map(dir => (dir, crossName)) })
+    )
+}
@@ -115,6 +115,30 @@ object TaskDag {
       case _: TestSuiteTask => Cost(MachineResources.ResourceKind.TestFork, cpu = 1, memoryMb = 0L)
     }
 
+  /** Who a DAG is run for, as the machine governor sees it.
+    *
+    * @param tenant
+    *   what fairness is shared out across — the server passes the workspace
+    * @param interactive
+    *   whether someone is sitting at an editor waiting on it: an IDE's compile outranks the same compile asked for from a terminal or by an agent
+    */
+  case class Requester(tenant: String, interactive: Boolean)
+
+  object Requester {
+
+    /** Nobody at an editor, and one tenant for every caller that does not name one: what a DAG run outside the server is. */
+    val Batch: Requester = Requester("", interactive = false)
+  }
+
+  /** How urgently `task` is wanted. Everything on the way to compiled classes — sourcegen, annotation processing, KSP, linking — shares the compile's class,
+    * since the compile cannot start without it. Discovering and running suites is test work, whoever asked.
+    */
+  def priorityOf(task: Task, requester: Requester): MachineResources.Priority =
+    task match {
+      case _: TestSuiteTask | _: DiscoverTask => MachineResources.Priority.TestFork
+      case _                                  => if (requester.interactive) MachineResources.Priority.Interactive else MachineResources.Priority.Batch
+    }
+
   /** Compile a project.
     *
     * `dependencies` is supplied directly (rather than derived) so the DAG builder can combine project-level compile deps with sourcegen deps (SourcegenTask
@@ -834,6 +858,8 @@ object TaskDag {
       *   Queue for emitting events
       * @param killSignal
       *   Deferred that can be completed to kill all running tasks
+      * @param requester
+      *   who this DAG runs for, which decides the class and the fair share its tasks are admitted under
       * @return
       *   The final DAG state
       */
@@ -842,7 +868,8 @@ object TaskDag {
         machine: MachineResources,
         forkHeaps: ForkHeaps,
         eventQueue: Queue[IO, Option[DagEvent]],
-        killSignal: Deferred[IO, KillReason]
+        killSignal: Deferred[IO, KillReason],
+        requester: Requester = Requester.Batch
     ): IO[Dag]
   }
 
@@ -865,11 +892,27 @@ object TaskDag {
         * a property of the daemon's own heap right now, and the thing that relieves it is another task finishing. It belongs here rather than inside the
         * compile handler because a gate below admission holds a machine-wide CPU permit while it waits — starving tests and links that could have run.
         *
-        * Callers with no opinion pass `_ => IO.pure(true)`. Explicitly, not by default: a no-op default is a default parameter in disguise.
+        * Callers with no opinion pass `_ => IO.pure(CompileAdmission.Always)`. Explicitly, not by default: a no-op default is a default parameter in disguise.
         */
-      mayAdmitCompile: CompileTask => IO[Boolean]
+      mayAdmitCompile: CompileTask => IO[CompileAdmission]
   )
 
+  /** What [[Handlers.mayAdmitCompile]] decided. */
+  sealed trait CompileAdmission
+  object CompileAdmission {
+
+    /** Start the compile. `release` gives back whatever the decision set aside for it — the server holds its predicted heap peak, so the compiles weighed
+      * after it in the same pass see it. It runs with the compile's reservation, or at once when the machine refuses the compile one after all.
+      */
+    case class Admit(release: IO[Unit]) extends CompileAdmission
+
+    /** Not now: reconsider on the next wakeup. */
+    case object Defer extends CompileAdmission
+
+    /** Admitted, with nothing set aside. */
+    val Always: CompileAdmission = Admit(IO.unit)
+  }
+
   /** Create a DAG executor with the given handlers. */
   def executor(handlers: Handlers): DagExecutor = new DagExecutor {
 
@@ -878,7 +921,8 @@ object TaskDag {
         machine: MachineResources,
         forkHeaps: ForkHeaps,
         eventQueue: Queue[IO, Option[DagEvent]],
-        killSignal: Deferred[IO, KillReason]
+        killSignal: Deferred[IO, KillReason],
+        requester: Requester
     ): IO[Dag] = {
       def now: IO[Long] = IO.realTime.map(_.toMillis)
 
@@ -901,45 +945,69 @@ object TaskDag {
         * `idle` bypasses the gate for the same reason it bypasses `tryReserve` below — with nothing running, nothing will complete to reconsider this, so
         * deferring would stall the build rather than delay a start.
         */
-      def mayAdmit(task: Task, idle: Boolean): IO[Boolean] =
+      def mayAdmit(task: Task, idle: Boolean): IO[CompileAdmission] =
         task match {
           case c: CompileTask if !idle => handlers.mayAdmitCompile(c)
-          case _                       => IO.pure(true)
+          case _                       => IO.pure(CompileAdmission.Always)
         }
 
-      def reserveFor(task: Task): IO[Option[(Task, IO[Unit])]] = {
+      /** The gate, then the governor, for a task that is not the idle machine's first. `None` when the gate deferred it. What the gate set aside is released
+        * with the task's reservation, or straight away when the governor refuses: the task is then not running, and holding its share would only keep others
+        * out.
+        */
+      def gateAndReserve(task: Task, demand: MachineResources.Demand): IO[Option[Either[Task, (Task, IO[Unit])]]] =
+        mayAdmit(task, idle = false).flatMap {
+          case CompileAdmission.Defer           => IO.pure(None)
+          case CompileAdmission.Admit(setAside) =>
+            reserveFor(task, demand).flatMap {
+              case Left(refused)       => setAside.as(Some(Left(refused)))
+              case Right((_, release)) => IO.pure(Some(Right((task, release >> setAside))))
+            }
+        }
+
+      /** `Left` when the governor refused: the task is then part of what this DAG tells it it is waiting for. */
+      def reserveFor(task: Task, demand: MachineResources.Demand): IO[Either[Task, (Task, IO[Unit])]] = {
         val c = costOf(task, forkHeaps)
-        machine.tryReserve(c.kind, task.id.toString, c.cpu, c.memoryMb).map(_.map(release => (task, release)))
+        demand.tryReserve(c.kind, priorityOf(task, requester), task.id.toString, c.cpu, c.memoryMb).map {
+          case Some(release) => Right((task, release))
+          case None          => Left(task)
+        }
       }
 
-      def admit(candidates: List[Task], idle: Boolean): IO[List[(Task, IO[Unit])]] =
-        candidates match {
-          case Nil           => IO.pure(Nil)
-          case first :: rest =>
-            val firstCost = costOf(first, forkHeaps)
-            val firstAdmission: IO[Option[(Task, IO[Unit])]] =
-              if (idle)
-                machine
-                  .reserveUntilReleased(firstCost.kind, first.id.toString, firstCost.cpu, firstCost.memoryMb)
-                  .map(release => Some((first, release)))
-              else
-                mayAdmit(first, idle).flatMap {
-                  case true  => reserveFor(first)
-                  case false => IO.pure(None)
-                }
-
-            firstAdmission.flatMap { headResult =>
-              rest
-                .traverse { task =>
+      /** Admit what fits, and leave the governor a record of what did not — so that a lower class elsewhere yields the next free core to this DAG instead of
+        * racing it. Deferred by the heap gate is not refused by the governor, and is not recorded: no core would help it.
+        */
+      def admit(candidates: List[Task], idle: Boolean, demand: MachineResources.Demand): IO[List[(Task, IO[Unit])]] = {
+        val passed: IO[List[Either[Task, (Task, IO[Unit])]]] =
+          candidates match {
+            case Nil           => IO.pure(Nil)
+            case first :: rest =>
+              val firstCost = costOf(first, forkHeaps)
+              val firstAdmission: IO[Option[Either[Task, (Task, IO[Unit])]]] =
+                if (idle)
+                  demand
+                    .reserveUntilReleased(firstCost.kind, priorityOf(first, requester), first.id.toString, firstCost.cpu, firstCost.memoryMb)
+                    .map(release => Some(Right((first, release))))
+                else gateAndReserve(first, demand)
+
+              firstAdmission.flatMap { headResult =>
+                rest
                   // Never `idle` here: if the head was admitted, something is running by definition.
-                  mayAdmit(task, idle = false).flatMap {
-                    case true  => reserveFor(task)
-                    case false => IO.pure(None)
-                  }
-                }
-                .map(tail => (headResult :: tail).flatten)
-            }
+                  .traverse(task => gateAndReserve(task, demand))
+                  .map(tail => (headResult :: tail).flatten)
+              }
+          }
+
+        passed.flatMap { results =>
+          val refused = results.collect { case Left(task) => task }
+          val wants = refused
+            .groupMapReduce(task => priorityOf(task, requester)) { task =>
+              val c = costOf(task, forkHeaps)
+              MachineResources.Want(c.cpu, c.memoryMb)
+            }(_ + _)
+          demand.wanting(wants).as(results.collect { case Right(admitted) => admitted })
         }
+      }
 
       def emit(event: DagEvent): IO[Unit] = eventQueue.offer(Some(event))
 
@@ -1170,7 +1238,8 @@ object TaskDag {
           runningRef: Ref[IO, Set[TaskId]],
           taskKillSignals: Ref[IO, Map[TaskId, Deferred[IO, KillReason]]],
           wakeup: Queue[IO, Unit],
-          supervisor: cats.effect.std.Supervisor[IO]
+          supervisor: cats.effect.std.Supervisor[IO],
+          demand: MachineResources.Demand
       ): IO[Unit] =
         for {
           // Read `running` BEFORE `dag`. A completing task writes in the opposite order — finished
@@ -1202,7 +1271,9 @@ object TaskDag {
             } else if (maybeKilled.isDefined) {
               // Kill requested but tasks still running - wait for any to complete
               IO(System.err.println(s"[DAG] Kill requested (${maybeKilled.get}), waiting for ${running.size} running tasks: ${running.mkString(", ")}")) >>
-                wakeup.take >> loop(dagRef, runningRef, taskKillSignals, wakeup, supervisor)
+                // Nothing more will be admitted, so nothing should be yielded to on this DAG's behalf.
+                demand.wanting(Map.empty) >>
+                wakeup.take >> loop(dagRef, runningRef, taskKillSignals, wakeup, supervisor, demand)
             } else {
               // Normal execution
               // Skip tasks with failed dependencies
@@ -1219,7 +1290,7 @@ object TaskDag {
                 // reserving inside meant everything queued FIFO in the governor and this sort was
                 // decoration.
                 prioritized = readyTasks.toList.sortBy(t => -depCounts.getOrElse(t.id, 0))
-                admitted <- admit(prioritized, idle = running.isEmpty)
+                admitted <- admit(prioritized, idle = running.isEmpty, demand)
                 // Start tasks. The guarantee releases the reservation, cleans up runningRef and wakes
                 // the loop — and the wakeup is what re-runs admission, so a completion is exactly when
                 // the next task gets its chance.
@@ -1256,9 +1327,9 @@ object TaskDag {
                     )
                   } else if (newRunning.isEmpty) {
                     // No tasks running but progress still possible — re-evaluate without waiting.
-                    loop(dagRef, runningRef, taskKillSignals, wakeup, supervisor)
+                    loop(dagRef, runningRef, taskKillSignals, wakeup, supervisor, demand)
                   } else {
-                    wakeup.take >> loop(dagRef, runningRef, taskKillSignals, wakeup, supervisor)
+                    wakeup.take >> loop(dagRef, runningRef, taskKillSignals, wakeup, supervisor, demand)
                   }
               } yield ()
             }
@@ -1273,7 +1344,8 @@ object TaskDag {
           runningRef <- Ref.of[IO, Set[TaskId]](Set.empty)
           taskKillSignals <- Ref.of[IO, Map[TaskId, Deferred[IO, KillReason]]](Map.empty)
           wakeup <- Queue.bounded[IO, Unit](1)
-          _ <- loop(dagRef, runningRef, taskKillSignals, wakeup, supervisor)
+          // The governor wakes this loop too, when a core frees that this DAG was refused — not only its own completions do.
+          _ <- machine.demand(requester.tenant, wakeup.tryOffer(()).void).use(demand => loop(dagRef, runningRef, taskKillSignals, wakeup, supervisor, demand))
           finalDag <- dagRef.get
         } yield finalDag
       }
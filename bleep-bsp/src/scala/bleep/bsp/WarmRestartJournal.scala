@@ -0,0 +1,139 @@
+package bleep.bsp
+
+import bleep.UserPaths
+import io.circe.Codec
+import io.circe.generic.semiauto.deriveCodec
+import io.circe.parser.decode
+import io.circe.syntax.*
+
+import java.nio.file.{Files, Path, StandardCopyOption}
+import java.security.MessageDigest
+import java.util.concurrent.{Executors, ThreadFactory}
+import scala.util.control.NonFatal
+
+/** The builds the daemon was serving most recently, kept on disk so the next daemon can load them before anyone asks.
+  *
+  * A daemon that goes away takes everything it had warmed with it — resolved builds, compiler classloaders, the dependency analyses every incremental compile
+  * reads — and it goes away for reasons nobody at the editor chose: an upgrade, the idle timeout, an OOM restart. The first compile after that paid for all
+  * of it again, and it was the compile someone was waiting on.
+  *
+  * The server never resolves a build itself (see [[MultiWorkspaceBspServer.loadClientBuild]]), so what is kept is what the client sent: the
+  * [[BspBuildData.Payload]] of each recent workspace, one file each, and a small index naming them. Replaying a payload loads the same build under the same
+  * [[BuildId]], so the client that comes back finds it in the [[BuildCache]] rather than a build that merely looks like it.
+  *
+  * Lives under the user cache dir rather than the socket dir, which is keyed by the server's classpath and so does not survive the upgrades this is for.
+  * Daemons on other JVMs share the directory; each entry records the JVM that was serving it, and only a daemon on that JVM replays it.
+  *
+  * Written off the request path, on one thread of its own: the payload of a large build runs to megabytes, and a client waiting for `build/initialize` is not
+  * the one who should pay for writing it. An unchanged build only touches the index. Every file goes through a temp file and an atomic rename, so a crash
+  * mid-write leaves the previous version; two daemons writing the index at once can lose one's update, which costs one workspace a cold start and nothing
+  * else.
+  */
+final class WarmRestartJournal(dir: Path) {
+  import WarmRestartJournal.*
+
+  private val writer = Executors.newSingleThreadExecutor(new ThreadFactory {
+    def newThread(r: Runnable): Thread = {
+      val t = new Thread(r, "bleep-warm-restart-journal")
+      t.setDaemon(true)
+      t
+    }
+  })
+
+  /** Note that `workspace` was just loaded with `payload`. Returns at once; the write happens in the background. */
+  def record(workspace: Path, payload: BspBuildData.Payload): Unit = {
+    val entry = Entry(workspace.toString, payload.variantName, payload.buildId, JavaHome, System.currentTimeMillis())
+    writer.execute { () =>
+      try write(entry, payload)
+      catch { case NonFatal(e) => System.err.println(s"[WarmRestartJournal] Could not record ${entry.workspace}: ${e.getMessage}") }
+    }
+  }
+
+  private def write(entry: Entry, payload: BspBuildData.Payload): Unit = {
+    val before = entries
+    val payloadFile = dir.resolve(entry.payloadFileName)
+    Files.createDirectories(dir)
+    if (!before.exists(e => e.sameWorkspace(entry) && e.buildId == entry.buildId) || !Files.exists(payloadFile))
+      writeAtomically(payloadFile, BspBuildData.Payload.encode(payload))
+    val (kept, dropped) = merge(before, entry, MaxEntries)
+    writeAtomically(dir.resolve(IndexFile), kept.asJson.noSpaces)
+    dropped.foreach(e => Files.deleteIfExists(dir.resolve(e.payloadFileName)): Unit)
+  }
+
+  /** Wait for every record and forget scheduled so far to reach the disk. For shutdown: the build a client sent moments ago is the one most worth keeping. */
+  def flush(): Unit =
+    writer.submit((() => ()): Runnable).get(): Unit
+
+  /** Forget a workspace that can no longer be replayed: gone from disk, or a payload this version cannot read. */
+  def forget(entry: Entry): Unit =
+    writer.execute { () =>
+      try {
+        val remaining = entries.filterNot(_.sameWorkspace(entry))
+        if (Files.isDirectory(dir)) writeAtomically(dir.resolve(IndexFile), remaining.asJson.noSpaces)
+        Files.deleteIfExists(dir.resolve(entry.payloadFileName)): Unit
+      } catch { case NonFatal(e) => System.err.println(s"[WarmRestartJournal] Could not forget ${entry.workspace}: ${e.getMessage}") }
+    }
+
+  /** The recorded workspaces, most recently used first. Empty if there is no journal or it cannot be read. */
+  def entries: List[Entry] = {
+    val index = dir.resolve(IndexFile)
+    if (!Files.isRegularFile(index)) Nil
+    else
+      try decode[List[Entry]](Files.readString(index)).toOption.getOrElse(Nil).sortBy(-_.lastUsedMs)
+      catch { case NonFatal(_) => Nil }
+  }
+
+  /** The build recorded for `entry`, or why it cannot be had. A payload written by another version of bleep may not decode, and that is not an error. */
+  def payload(entry: Entry): Either[String, BspBuildData.Payload] =
+    try
+      decode[BspBuildData.Payload](Files.readString(dir.resolve(entry.payloadFileName))).left
+        .map(e => s"unreadable payload: ${e.getMessage}")
+        .filterOrElse(_.buildId == entry.buildId, "payload does not match the index")
+    catch { case NonFatal(e) => Left(e.getMessage) }
+
+  private def writeAtomically(file: Path, contents: String): Unit = {
+    val tmp = file.resolveSibling(s"${file.getFileName}.tmp-${ProcessHandle.current().pid()}")
+    Files.writeString(tmp, contents)
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE): Unit
+  }
+}
+
+object WarmRestartJournal {
+
+  /** How many workspaces are kept. A daemon reloads them in order until its cache is half full, so more than a handful would never be reached anyway. */
+  val MaxEntries = 4
+
+  private val IndexFile = "index.json"
+
+  /** The JVM this daemon runs on. Entries are replayed only by a daemon on the same one, which is the daemon their clients will connect to. */
+  val JavaHome: String = System.getProperty("java.home")
+
+  /** @param workspace
+    *   the build root, as a string so the index reads the same on every platform's `Path`
+    * @param variant
+    *   the [[bleep.model.BuildVariant]] name
+    */
+  case class Entry(workspace: String, variant: String, buildId: BuildId, javaHome: String, lastUsedMs: Long) {
+    def sameWorkspace(other: Entry): Boolean = workspace == other.workspace && variant == other.variant
+
+    /** One file per workspace and variant, so a newer build replaces the older one's payload rather than adding to it. */
+    private[bsp] def payloadFileName: String = {
+      val digest = MessageDigest.getInstance("SHA-256").digest(s"$workspace\u0000$variant".getBytes("UTF-8"))
+      digest.take(8).map(b => f"${b & 0xff}%02x").mkString + ".json"
+    }
+  }
+
+  object Entry {
+    implicit val codec: Codec[Entry] = deriveCodec
+  }
+
+  def forUser(userPaths: UserPaths): WarmRestartJournal = new WarmRestartJournal(userPaths.bspWarmRestartDir)
+
+  /** The index after recording `recorded`: it replaces any entry for the same workspace, and only the `max` most recently used are kept. Also returns the
+    * entries that fell off, whose payloads can go.
+    */
+  private[bsp] def merge(index: List[Entry], recorded: Entry, max: Int): (List[Entry], List[Entry]) = {
+    val all = (recorded :: index.filterNot(_.sameWorkspace(recorded))).sortBy(-_.lastUsedMs)
+    (all.take(max), all.drop(max))
+  }
+}
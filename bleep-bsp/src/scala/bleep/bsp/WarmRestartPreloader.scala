@@ -0,0 +1,136 @@
+package bleep.bsp
+
+import bleep.{model, MachineResources, ResolvedProject, Started}
+import bleep.analysis.{AnalysisCache, ZincBridge}
+import cats.effect.unsafe.implicits.global
+import ryddig.Logger
+
+import java.nio.file.{Files, Path}
+import scala.concurrent.duration.*
+import scala.util.control.NonFatal
+
+/** Reloads what the previous daemon was serving, from the [[WarmRestartJournal]], so the first compile after a restart finds a warm daemon.
+  *
+  * Three things are warmed per workspace, cheapest and most certainly wanted first: the build itself, into the [[BuildCache]], under the [[BuildId]] the
+  * client will come back with; the Scala compilers and bridges it uses; and the analyses of every project something else in the build depends on, into the
+  * [[AnalysisCache]] — those are read by every incremental compile downstream of them, and reading them is most of what a first compile spends before zinc
+  * does anything. A project's own analysis is left alone: only a compile of that project reads it, and it reads it once.
+  *
+  * Nobody is waiting on any of this, so each step is admitted separately through [[MachineResources.tryReserveIdle]] and never takes a core anything else
+  * wants. A client that arrives mid-way is not held up: it finds its build loaded or loads it itself, and what is left of the warm-up waits behind its compile.
+  * Loads never displace a build a client has sent since (see [[BuildCache.getOrLoad]]).
+  *
+  * Stops at half the cache budget. A restart after an OOM is exactly when the daemon should not fill itself back up to where it was; the other half is for
+  * whatever the clients actually ask for, which may not be what they asked for last time.
+  */
+final class WarmRestartPreloader(
+    journal: WarmRestartJournal,
+    machine: MachineResources,
+    buildCache: BuildCache,
+    analysisCache: AnalysisCache,
+    logger: Logger
+) {
+  import WarmRestartPreloader.*
+
+  /** Warm every recorded workspace this daemon can serve, most recent first, until the budget share is used or `stopped` says so. Blocks; run it on a
+    * background thread.
+    */
+  def run(stopped: () => Boolean): Unit = {
+    val entries = journal.entries.filter(_.javaHome == WarmRestartJournal.JavaHome)
+    val it = entries.iterator
+    while (it.hasNext && !stopped() && !full) {
+      val entry = it.next()
+      try preload(entry, stopped)
+      catch {
+        case NonFatal(e) => logger.withContext("workspace", entry.workspace).withContext("reason", e.getMessage).warn("Warm restart of a workspace failed")
+      }
+    }
+  }
+
+  private def full: Boolean =
+    buildCache.retained.map(_.totalBytes).sum >= (buildCache.bound.retainedBytes * BudgetShare).toLong
+
+  private def preload(entry: WarmRestartJournal.Entry, stopped: () => Boolean): Unit = {
+    val workspace = Path.of(entry.workspace)
+    val variant = model.BuildVariant.fromName(entry.variant)
+    val key = model.WorkspaceKey(workspace, variant)
+    if (!Files.isRegularFile(workspace.resolve(bleep.BuildLoader.BuildFileName))) journal.forget(entry)
+    else if (buildCache.loaded.exists(_._1 == key)) () // a client got here first
+    else
+      journal.payload(entry) match {
+        case Left(reason) =>
+          logger.withContext("workspace", entry.workspace).withContext("reason", reason).info("Not warming a workspace the journal cannot replay")
+          journal.forget(entry)
+        case Right(payload) =>
+          val startedAt = System.currentTimeMillis()
+          val loaded = whenIdle(s"warm build ${workspace.getFileName}", stopped) {
+            MultiWorkspaceBspServer.loadClientBuild(buildCache, analysisCache, logger)(
+              workspace,
+              variant,
+              payload.build,
+              payload.buildId,
+              payload.resolvedProjects,
+              displace = false
+            )
+          }
+          loaded.foreach {
+            case Left(err) =>
+              logger.withContext("workspace", entry.workspace).withContext("reason", err.getMessage).info("Not warming a workspace whose build no longer loads")
+              journal.forget(entry)
+            case Right(started) =>
+              val compilers = payload.resolvedProjects.valuesIterator
+                .map(_.language)
+                .collect { case scala: ResolvedProject.Language.Scala => scala.version }
+                .toList
+                .distinct
+                .sorted
+              val warmedCompilers = compilers.count { version =>
+                whenIdle(s"warm scala $version", stopped)(ZincBridge.preloadCompiler(version)).isDefined
+              }
+              val analyses = AnalysisCache.Ref(analysisCache, started.buildPaths.workspaceKey)
+              val warmedAnalyses = dependencyAnalyses(started).count { analysisFile =>
+                !full && whenIdle(s"warm analysis ${workspace.getFileName}", stopped)(ZincBridge.preloadAnalysis(analysisFile, analyses)).contains(true)
+              }
+              logger
+                .withContext("workspace", entry.workspace)
+                .withContext("variant", entry.variant)
+                .withContext("buildId", payload.buildId.short)
+                .withContext("compilers", warmedCompilers)
+                .withContext("analyses", warmedAnalyses)
+                .withContext("ms", System.currentTimeMillis() - startedAt)
+                .info("Warmed a workspace from the previous daemon")
+          }
+      }
+  }
+
+  /** Run `work` holding one core nothing else wants, waiting for one as long as it takes. `None` if stopped first. */
+  private def whenIdle[A](label: String, stopped: () => Boolean)(work: => A): Option[A] = {
+    var granted: Option[cats.effect.IO[Unit]] = None
+    while (granted.isEmpty && !stopped()) {
+      granted = machine.tryReserveIdle(MachineResources.ResourceKind.WarmRestart, label, cpu = 1, memoryMb = 0L).unsafeRunSync()
+      if (granted.isEmpty) Thread.sleep(AdmissionRetry.toMillis)
+    }
+    granted.map { release =>
+      try work
+      finally release.unsafeRunSync()
+    }
+  }
+}
+
+object WarmRestartPreloader {
+
+  /** The share of the [[BuildCache]] budget a warm restart may fill. */
+  private val BudgetShare = 0.5
+
+  private val AdmissionRetry: FiniteDuration = 500.millis
+
+  /** The analysis files of the projects others in the build depend on, most depended-on first: the order in which compiles will want them. */
+  private[bsp] def dependencyAnalyses(started: Started): List[Path] =
+    started.build.resolvedDependsOn.valuesIterator
+      .flatMap(_.iterator)
+      .toList
+      .groupBy(identity)
+      .toList
+      .sortBy { case (crossName, dependents) => (-dependents.size, crossName.value) }
+      .map { case (crossName, _) => BleepBuildConverter.analysisFile(started, crossName) }
+}
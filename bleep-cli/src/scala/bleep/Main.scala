@@ -758,7 +758,7 @@ object Main {
             ),
             Opts.subcommand[BleepCommand](
               "max-cached-workspaces",
-              "set how many workspaces' builds stay warm in the server (default: one per GB of server heap, at least 2). Evicted ones reload on next use"
+              "cap how many workspaces' builds stay warm in the server, on top of its heap budget (default: no cap). Evicted ones reload on next use"
             )(
               Opts.argument[Int]("n").map { n => () =>
                 if (n < 1) throw new BleepException.Text(s"max-cached-workspaces must be >= 1, got $n")
@@ -769,10 +769,28 @@ object Main {
             ),
             Opts.subcommand[BleepCommand](
               "max-cached-workspaces-clear",
-              "remove the setting (back to default: one per GB of server heap, at least 2)"
+              "remove the cap (back to default: bounded by a third of the server heap only)"
             )(
               Opts(() => BleepConfigOps.rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(maxCachedWorkspaces = None))).map(_ => ()))
             ),
+            Opts.subcommand[BleepCommand](
+              "workers",
+              "compile in this many worker JVMs instead of the server's own heap, each with its own max heap (default: 0, compile in the server)"
+            )(
+              (Opts.argument[Int]("n"), Opts.option[String]("max-memory", "max heap per worker, e.g. 4g (default: 4g)").orNone).mapN { (n, maxMemory) => () =>
+                if (n < 0) throw new BleepException.Text(s"workers must be >= 0 (0 compiles in the server), got $n")
+                BleepConfigOps
+                  .rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(compileWorkers = Some(n), compileWorkerMaxMemory = maxMemory)))
+                  .map(_ => logger.info("Takes effect when the server next starts — `bleep config compile-server stop-all` to apply now"))
+              }
+            ),
+            Opts.subcommand[BleepCommand]("workers-clear", "remove the workers setting (back to default: compile in the server)")(
+              Opts(() =>
+                BleepConfigOps
+                  .rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(compileWorkers = None, compileWorkerMaxMemory = None)))
+                  .map(_ => ())
+              )
+            ),
             Opts.subcommand[BleepCommand](
               "read-timeout",
               "set minutes the server waits for a client's next message before dropping the connection, 0 to wait forever (default: 30)"
@@ -800,6 +818,44 @@ object Main {
             ),
             Opts.subcommand[BleepCommand]("idle-timeout-clear", "remove idle timeout setting (use default: 60 minutes)")(
               Opts(() => BleepConfigOps.rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(compileServerIdleTimeoutMinutes = None))).map(_ => ()))
+            ),
+            Opts.subcommand[BleepCommand](
+              "idle-trim",
+              "set minutes the server must have run nothing before it drops idle compilers and analyses and shrinks its heap, 0 to never trim (default: 10)"
+            )(
+              Opts.argument[Int]("minutes").map { minutes => () =>
+                if (minutes < 0) throw new BleepException.Text(s"idle-trim must be >= 0 (0 never trims), got $minutes")
+                BleepConfigOps
+                  .rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(idleTrimMinutes = Some(minutes))))
+                  .map(_ => ())
+              }
+            ),
+            Opts.subcommand[BleepCommand]("idle-trim-clear", "remove idle trim setting (use default: 10 minutes)")(
+              Opts(() => BleepConfigOps.rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(idleTrimMinutes = None))).map(_ => ()))
+            ),
+            Opts.subcommand[BleepCommand]("compile-autotune-enable", "tune how many compiles run at once from their throughput and GC overhead (default)")(
+              Opts(() => BleepConfigOps.rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(compileAutotune = Some(true)))).map(_ => ()))
+            ),
+            Opts.subcommand[BleepCommand]("compile-autotune-disable", "run as many compiles at once as there are cores to grant them")(
+              Opts(() => BleepConfigOps.rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(compileAutotune = Some(false)))).map(_ => ()))
+            ),
+            Opts.subcommand[BleepCommand](
+              "remote-cache-prefetch-enable",
+              "pull remote-cache entries in the background when a workspace switches branch (default)"
+            )(
+              Opts(() => BleepConfigOps.rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(remoteCachePrefetch = Some(true)))).map(_ => ()))
+            ),
+            Opts.subcommand[BleepCommand]("remote-cache-prefetch-disable", "never pull remote-cache entries except on an explicit `bleep remote-cache pull`")(
+              Opts(() => BleepConfigOps.rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(remoteCachePrefetch = Some(false)))).map(_ => ()))
+            ),
+            Opts.subcommand[BleepCommand](
+              "remote-cache-auto-push-enable",
+              "push every successfully compiled project to the remote cache in the background (for CI; needs write credentials)"
+            )(
+              Opts(() => BleepConfigOps.rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(remoteCacheAutoPush = Some(true)))).map(_ => ()))
+            ),
+            Opts.subcommand[BleepCommand]("remote-cache-auto-push-disable", "only push on an explicit `bleep remote-cache push` (default)")(
+              Opts(() => BleepConfigOps.rewritePersisted(logger, userPaths)(updateBspServerConfig(_.copy(remoteCacheAutoPush = Some(false)))).map(_ => ()))
             )
           ).foldK
         ),
@@ -57,7 +57,7 @@ object BspProxy {
     )
 
     val started = bootstrap
-      .from(bspPre, ResolveProjects.InMemory, buildRewrites, config, CoursierResolver.Factory.default)
+      .from(bspPre, ResolveProjects.InMemoryWarmAll, buildRewrites, config, CoursierResolver.Factory.default)
       .orThrow
 
     pre.logger.info(
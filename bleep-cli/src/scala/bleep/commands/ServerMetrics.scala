@@ -89,6 +89,8 @@ case class ServerMetrics(logger: Logger, userPaths: UserPaths, pid: Option[Long]
     val machine: ArrayBuffer[JsonObject] = ArrayBuffer.empty
     val admissionDefer: ArrayBuffer[JsonObject] = ArrayBuffer.empty
     val compileAllocation: ArrayBuffer[JsonObject] = ArrayBuffer.empty
+    val heapForecast: ArrayBuffer[JsonObject] = ArrayBuffer.empty
+    val compileTuning: ArrayBuffer[JsonObject] = ArrayBuffer.empty
     val analysisCache: ArrayBuffer[JsonObject] = ArrayBuffer.empty
     val workspaceState: ArrayBuffer[JsonObject] = ArrayBuffer.empty
     // Forked test JVMs and what ran on them, joined on pid.
@@ -130,6 +132,8 @@ case class ServerMetrics(logger: Logger, userPaths: UserPaths, pid: Option[Long]
           // the CI summariser reads both — a dashboard that silently drops half its input is how these two drifted apart to begin with.
           case "heap_pressure_stall" => events.admissionDefer += obj
           case "compile_allocation"  => events.compileAllocation += obj
+          case "heap_forecast"       => events.heapForecast += obj
+          case "compile_tuning"      => events.compileTuning += obj
           case "analysis_cache"      => events.analysisCache += obj
           case "workspace_state"     => events.workspaceState += obj
           case "fork_start"          => events.forkStart += obj
@@ -167,6 +171,8 @@ case class ServerMetrics(logger: Logger, userPaths: UserPaths, pid: Option[Long]
     events.machine.foreach(collectTs)
     events.admissionDefer.foreach(collectTs)
     events.compileAllocation.foreach(collectTs)
+    events.heapForecast.foreach(collectTs)
+    events.compileTuning.foreach(collectTs)
     events.analysisCache.foreach(collectTs)
     events.workspaceState.foreach(collectTs)
     events.forkStart.foreach(collectTs)
@@ -440,6 +446,25 @@ case class ServerMetrics(logger: Logger, userPaths: UserPaths, pid: Option[Long]
       addChart("machine-cpu", "Scheduling — CPU and queue", t, baseLayout("Time (s)", "count"), false, 280)
     }
 
+    // ---- Scheduling by priority class ----
+    // Whether interactive compiles are actually getting ahead of test runs and background work. A class that wants cores it does not get shows up as a gap
+    // between its two lines.
+    val withClasses = events.machine.filter(_.has("classes"))
+    if (withClasses.nonEmpty) {
+      val t = ArrayBuffer.empty[String]
+      val xArr = fmtDoubles(withClasses.map(e => relS(e.get("ts").getAsLong)))
+      def series(cls: String, field: String): String =
+        fmtLongs(withClasses.map { e =>
+          val c = e.getAsJsonObject("classes")
+          if (c.has(cls)) c.getAsJsonObject(cls).get(field).getAsLong else 0L
+        })
+      List("interactive" -> "#ef4444", "batch" -> "#3b82f6", "test" -> "#22c55e", "background" -> "#9ca3af").foreach { case (cls, color) =>
+        t += scatterTrace(xArr, series(cls, "used_cpu"), s"$cls cores", color, "solid", "none", "lines")
+        t += scatterTrace(xArr, series(cls, "wanted_cpu"), s"$cls refused", color, "dot", "none", "lines")
+      }
+      addChart("machine-classes", "Scheduling — cores by priority class", t, baseLayout("Time (s)", "cores"), false, 280)
+    }
+
     // ---- Fork memory budget ----
     // `total_memory_mb` is the budget for forked processes, not the machine's RAM: the server's own footprint and an OS reserve are already subtracted, and it
     // is retuned as other processes come and go. Charting it against physical RAM is the only way to see how little of the machine forks may actually use.
@@ -463,7 +488,14 @@ case class ServerMetrics(logger: Logger, userPaths: UserPaths, pid: Option[Long]
       // data does not say — they were recorded when both causes shared one name.
       val byReason = events.admissionDefer.groupBy(e => if (e.has("reason")) e.get("reason").getAsString else "unlabelled (pre-rename)")
       val t = ArrayBuffer.empty[String]
-      val colours = Map("stagger" -> "#f59e0b", "heap_pressure" -> "#ef4444", "unlabelled (pre-rename)" -> "#9ca3af")
+      val colours = Map(
+        "stagger" -> "#f59e0b",
+        "heap_pressure" -> "#ef4444",
+        "predicted_peak" -> "#ec4899",
+        "large_compile_running" -> "#8b5cf6",
+        "slot_limit" -> "#3b82f6",
+        "unlabelled (pre-rename)" -> "#9ca3af"
+      )
       byReason.toSeq.sortBy(_._1).foreach { case (reason, evs) =>
         val total = evs.map(e => if (e.has("delay_ms")) e.get("delay_ms").getAsLong else 0L).sum
         val label = if (total > 0) f"$reason (${total / 1000.0}%.1fs)" else reason
@@ -483,6 +515,33 @@ case class ServerMetrics(logger: Logger, userPaths: UserPaths, pid: Option[Long]
       addChart("defers", "Deferred compiles — and why", t, baseLayout("Time (s)", "heap at the time (MB)"), false, 280)
     }
 
+    // ---- Compile slots ----
+    // The autotuner's limit as a step line, each step marked with why it moved, against how many compiles actually ran. A limit that keeps stepping down on
+    // `gc_overhead` says the heap, not the core count, decides this machine's concurrency.
+    if (events.compileTuning.nonEmpty) {
+      val t = ArrayBuffer.empty[String]
+      val first = events.compileTuning.head
+      val xs = fmtDoubles(relS(first.get("ts").getAsLong) +: events.compileTuning.map(e => relS(e.get("ts").getAsLong)).toSeq)
+      val ys = fmtLongs(first.get("from_slots").getAsLong +: events.compileTuning.map(_.get("to_slots").getAsLong).toSeq)
+      t += s"""{"type":"scatter","mode":"lines","line":{"shape":"hv","color":"#3b82f6"},"x":$xs,"y":$ys,"name":"Slots"}"""
+      t += s"""{"type":"scatter","mode":"markers","x":${fmtDoubles(events.compileTuning.map(e => relS(e.get("ts").getAsLong)))},"y":${fmtLongs(
+          events.compileTuning.map(_.get("to_slots").getAsLong)
+        )},"name":"Changes","marker":{"color":"#3b82f6","size":8},"text":${fmtStrings(
+          events.compileTuning.map(e => f"${getStr(e, "reason")}, gc ${e.get("gc_share").getAsDouble * 100}%.0f%%")
+        )},"hovertemplate":"%{text}<extra></extra>"}"""
+      if (events.machine.nonEmpty && events.machine.head.has("active_compiles"))
+        t += scatterTrace(
+          fmtDoubles(events.machine.map(e => relS(e.get("ts").getAsLong))),
+          fmtLongs(events.machine.map(_.get("active_compiles").getAsLong)),
+          "Compiling",
+          "#22c55e",
+          "solid",
+          "none",
+          "lines"
+        )
+      addChart("compile-slots", "Compile slots — autotuner", t, baseLayout("Time (s)", "compiles"), false, 280)
+    }
+
     // ---- What allocates ----
     // Allocation, not wall time, is what a heap cap has to absorb, and it is wildly uneven between projects: one project routinely accounts for a third of a
     // build's total. That makes this the shortest path from "raise the heap" to "or fix that one project".
@@ -523,6 +582,13 @@ case class ServerMetrics(logger: Logger, userPaths: UserPaths, pid: Option[Long]
       if (events.workspaceState.nonEmpty) {
         val wx = fmtDoubles(events.workspaceState.map(e => relS(e.get("ts").getAsLong)))
         t += scatterTrace(wx, fmtLongs(events.workspaceState.map(_.get("cached_count").getAsLong)), "Workspaces cached", "#f59e0b", "solid", "none", "lines")
+        // What the cached builds are estimated to retain, against the budget that evicts them. Older servers recorded neither.
+        val weighed = events.workspaceState.filter(e => e.has("retained_mb") && e.has("budget_mb"))
+        if (weighed.nonEmpty) {
+          val bx = fmtDoubles(weighed.map(e => relS(e.get("ts").getAsLong)))
+          t += scatterTrace(bx, fmtLongs(weighed.map(_.get("retained_mb").getAsLong)), "Cached builds, estimated (MB)", "#ef4444", "solid", "none", "lines")
+          t += scatterTrace(bx, fmtLongs(weighed.map(_.get("budget_mb").getAsLong)), "Cached builds budget (MB)", "#ef4444", "dash", "none", "lines")
+        }
       }
       addChart("analysis", "Zinc analysis cache", t, baseLayout("Time (s)", ""), false, 280)
     }
@@ -557,6 +623,11 @@ case class ServerMetrics(logger: Logger, userPaths: UserPaths, pid: Option[Long]
         cards += stat(f"Defers, ${delay / 1000.0}%.1fs", label, if (pressure > 0) "#ef4444" else "#9ca3af")
       }
 
+      events.compileTuning.lastOption.foreach { last =>
+        val gcDowns = events.compileTuning.count(e => getStr(e, "reason") == "gc_overhead")
+        cards += stat("Compile slots", s"${last.get("to_slots").getAsLong} (${events.compileTuning.size} changes, $gcDowns for GC)", "#3b82f6")
+      }
+
       events.compileAllocation
         .groupBy(e => pathName(getStr(e, "project")))
         .map { case (project, evs) => project -> evs.map(_.get("allocated_mb").getAsLong).sum }
@@ -565,6 +636,13 @@ case class ServerMetrics(logger: Logger, userPaths: UserPaths, pid: Option[Long]
         .headOption
         .foreach { case (project, mb) => cards += stat("Heaviest allocator", s"$project — ${mb / 1024} GB", "#6366f1") }
 
+      // Admission trusts these predictions; the median miss says how far. Well past 50% and the gate is deciding on noise.
+      if (events.heapForecast.nonEmpty) {
+        val misses = events.heapForecast.map(e => math.abs(e.get("error_pct").getAsLong)).sorted
+        val median = misses(misses.size / 2)
+        cards += stat("Heap forecast error", s"$median% median of ${misses.size}", if (median > 50) "#f59e0b" else "#22c55e")
+      }
+
       events.analysisCache.lastOption.foreach { last =>
         if (last.has("sharing_factor"))
           cards += stat("Analysis sharing", f"${last.get("sharing_factor").getAsDouble}%.2fx across ${last.get("workspaces").getAsLong} ws", "#22c55e")
@@ -587,7 +587,8 @@ object buildFromBloopFiles {
           addCompilerToClasspath = Some(setup.addCompilerToClasspath),
           addExtraJarsToClasspath = Some(setup.addExtraJarsToClasspath),
           manageBootClasspath = Some(setup.manageBootClasspath),
-          filterLibraryFromClasspath = Some(setup.filterLibraryFromClasspath)
+          filterLibraryFromClasspath = Some(setup.filterLibraryFromClasspath),
+          straightToJar = None
         )
       ),
       compilerPlugins = model.JsonSet.fromIterable(filteredCompilerPlugins),
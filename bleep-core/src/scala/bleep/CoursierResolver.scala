@@ -3,7 +3,7 @@ package bleep
 import bleep.depcheck.CheckEvictions
 import bleep.internal.codecs.*
 import bleep.internal.coursierDeps.{configurationOrThrow, fullDetailedArtifactsOrThrow}
-import bleep.internal.FileUtils
+import bleep.internal.{FileUtils, LeanCacheBinary}
 import coursier.cache.CacheDefaults
 import coursier.core.*
 import coursier.error.CoursierError
@@ -336,16 +336,23 @@ object CoursierResolver {
       else {
         // Fast hash computation - avoids JSON encoding entirely
         val digest = Cached.computeHash(deps, underlying.params, versionCombo, libraryVersionSchemes)
-        val cachePath = in / s"$digest.json"
+        val cachePath = in / s"$digest.bin"
+        // Entries written before the binary format. Read once, then rewritten as binary.
+        val legacyPath = in / s"$digest.json"
 
         val cachedResult: Option[Result] =
           if (Files.exists(cachePath)) {
-            Cached.readLeanCache(logger, cachePath, deps, underlying.params, versionCombo, libraryVersionSchemes) match {
+            Cached.readBinaryCache(logger, cachePath, deps, underlying.params, versionCombo, libraryVersionSchemes) match {
               case Some(result) => Some(result)
               case None         =>
-                Files.delete(cachePath)
+                Files.deleteIfExists(cachePath): Unit
                 None
             }
+          } else if (Files.exists(legacyPath)) {
+            val legacy = Cached.readLeanCache(logger, legacyPath, deps, underlying.params, versionCombo, libraryVersionSchemes)
+            legacy.foreach(result => Cached.writeBinaryCache(logger, cachePath, deps, underlying.params, versionCombo, libraryVersionSchemes, result))
+            Files.deleteIfExists(legacyPath): Unit
+            legacy
           } else None
 
         cachedResult match {
@@ -359,7 +366,7 @@ object CoursierResolver {
                 ctxLogger.info("Not caching because result is changing")
                 changingResult
               case result =>
-                Cached.writeLeanCache(logger, cachePath, deps, underlying.params, versionCombo, libraryVersionSchemes, result)
+                Cached.writeBinaryCache(logger, cachePath, deps, underlying.params, versionCombo, libraryVersionSchemes, result)
                 result
             }
         }
@@ -440,7 +447,7 @@ object CoursierResolver {
 
     // Secondary hash for collision detection — uses different seed but MUST hash
     // the same fields as computeHash to avoid false positives
-    private def collisionHash(
+    private[bleep] def collisionHash(
         deps: SortedSet[model.Dep],
         params: Params,
         versionCombo: model.VersionCombo,
@@ -479,22 +486,7 @@ object CoursierResolver {
       val content = Files.readString(cachePath)
       parser.decode[LeanCache](content) match {
         case Right(lean) if lean.requestHash == collisionHash(deps, params, versionCombo, libraryVersionSchemes) =>
-          // Reconstruct Result from lean format
-          val detailedArtifacts = lean.artifacts.map { la =>
-            val module = Module(Organization(la.org), ModuleName(la.name), Map.empty)
-            val dep = Dependency(module, VersionConstraint(la.version))
-            val pub = Publication(
-              la.name,
-              if (la.ext == "jar") Type.jar else Type(la.ext),
-              Extension(la.ext),
-              if (la.classifier.isEmpty) Classifier.empty else Classifier(la.classifier)
-            )
-            val artifact =
-              Artifact(java.nio.file.Path.of(la.path).toUri.toASCIIString, Map.empty, Map.empty, changing = false, optional = false, authentication = None)
-            val file = if (la.path.nonEmpty) Some(new File(la.path)) else None
-            (dep, pub, artifact, file)
-          }
-          val result = Result(detailedArtifacts, Seq.empty)
+          val result = fromLean(lean.artifacts)
           if (result.files.forall(_.exists())) Some(result)
           else {
             logger.info("coursier cache references missing files, re-resolving")
@@ -509,16 +501,27 @@ object CoursierResolver {
       }
     }
 
-    def writeLeanCache(
-        logger: Logger,
-        cachePath: Path,
-        deps: SortedSet[model.Dep],
-        params: Params,
-        versionCombo: model.VersionCombo,
-        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
-        result: Result
-    ): Unit = {
-      val leanArtifacts = result.fullDetailedArtifacts.map { case (dep, pub, _, fileOpt) =>
+    /** Reconstruct a [[Result]] from lean artifacts. Files are not checked. */
+    def fromLean(artifacts: List[LeanArtifact]): Result = {
+      val detailedArtifacts = artifacts.map { la =>
+        val module = Module(Organization(la.org), ModuleName(la.name), Map.empty)
+        val dep = Dependency(module, VersionConstraint(la.version))
+        val pub = Publication(
+          la.name,
+          if (la.ext == "jar") Type.jar else Type(la.ext),
+          Extension(la.ext),
+          if (la.classifier.isEmpty) Classifier.empty else Classifier(la.classifier)
+        )
+        val artifact =
+          Artifact(java.nio.file.Path.of(la.path).toUri.toASCIIString, Map.empty, Map.empty, changing = false, optional = false, authentication = None)
+        val file = if (la.path.nonEmpty) Some(new File(la.path)) else None
+        (dep, pub, artifact, file)
+      }
+      Result(detailedArtifacts, Seq.empty)
+    }
+
+    def toLean(result: Result): List[LeanArtifact] =
+      result.fullDetailedArtifacts.map { case (dep, pub, _, fileOpt) =>
         LeanArtifact(
           org = dep.module.organization.value,
           name = dep.module.name.value,
@@ -529,14 +532,61 @@ object CoursierResolver {
         )
       }.toList
 
+    def writeLeanCache(
+        logger: Logger,
+        cachePath: Path,
+        deps: SortedSet[model.Dep],
+        params: Params,
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        result: Result
+    ): Unit = {
       val lean = LeanCache(
         requestHash = collisionHash(deps, params, versionCombo, libraryVersionSchemes),
-        artifacts = leanArtifacts
+        artifacts = toLean(result)
       )
 
       FileUtils.writeString(logger, None, cachePath, lean.asJson.noSpaces)
     }
 
+    /** Like [[readLeanCache]], for the binary format: same collision check, same check that every file is still there. */
+    def readBinaryCache(
+        logger: Logger,
+        cachePath: Path,
+        deps: SortedSet[model.Dep],
+        params: Params,
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme]
+    ): Option[Result] =
+      LeanCacheBinary.read(cachePath, collisionHash(deps, params, versionCombo, libraryVersionSchemes)) match {
+        case LeanCacheBinary.Read.Hit(artifacts) =>
+          val result = fromLean(artifacts)
+          if (result.files.forall(_.exists())) Some(result)
+          else {
+            logger.info("coursier cache references missing files, re-resolving")
+            None
+          }
+        case LeanCacheBinary.Read.Collision =>
+          logger.debug("coursier cache collision detected")
+          None
+        case LeanCacheBinary.Read.Corrupt(reason) =>
+          logger.warn(s"coursier cache corrupted: $reason")
+          None
+      }
+
+    def writeBinaryCache(
+        logger: Logger,
+        cachePath: Path,
+        deps: SortedSet[model.Dep],
+        params: Params,
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        result: Result
+    ): Unit = {
+      FileUtils.writeBytesAtomic(cachePath, LeanCacheBinary.encode(collisionHash(deps, params, versionCombo, libraryVersionSchemes), toLean(result)))
+      logger.withContext("path", cachePath).debug("wrote file")
+    }
+
     // Request type kept for TestResolver compatibility (in-memory cache + JSON serialization)
     case class Request(
         wanted: SortedSet[model.Dep],
@@ -0,0 +1,143 @@
+package bleep
+
+import java.io.{BufferedInputStream, BufferedOutputStream, DataInputStream, DataOutputStream, EOFException}
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.{Files, Path, StandardCopyOption}
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import scala.jdk.CollectionConverters.*
+import scala.util.control.NonFatal
+
+/** Git blob hashes of files, remembered by stat so a file that has not changed is not read again.
+  *
+  * [[ProjectDigest]] hashes every file of every directory git cannot vouch for — dirty ones, generated ones, whole workspaces outside git — and used to read
+  * all of them on every run. On a build with a few thousand generated sources that was most of the cost of `remote-cache pull`, spent rehashing bytes that had
+  * not changed since the last time.
+  *
+  * ==The stat tuple==
+  *
+  * An entry is reused when size, modification time (to the nanosecond the filesystem offers) and file key (inode on POSIX) all match. That is the same bet git
+  * makes with its index, and it has the same hole: a file rewritten within the filesystem's timestamp granularity, to the same size, is indistinguishable by
+  * stat. Git's answer is "racily clean" entries and so is ours — a file modified less than [[RacyWindowNanos]] before it was hashed is hashed but not
+  * remembered, so the next run reads it again. Once it has been quiet for longer than that, a change to it moves the mtime.
+  *
+  * ==Persistence==
+  *
+  * One file per workspace under `.bleep/digest-cache`, rewritten atomically. Concurrent writers (a CLI command and the compile server) each write a complete
+  * file and the last one wins; whichever entries the loser had are simply hashed again. A file that cannot be read is an empty cache, never an error.
+  */
+final class FileHashCache private (file: Option[Path], entries: ConcurrentHashMap[String, FileHashCache.Entry]) {
+  import FileHashCache.*
+
+  @volatile private var dirty = false
+
+  /** `SHA-1("blob <size>\0" + content)` of `path`, as `git hash-object` computes it — from the cache if the file's stat is unchanged. */
+  def blobHash(path: Path): String = {
+    val attrs = Files.readAttributes(path, classOf[BasicFileAttributes])
+    val key = path.toString
+    val size = attrs.size()
+    val mtimeNanos = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+    val fileKey = Option(attrs.fileKey()).fold("")(_.toString)
+
+    Option(entries.get(key)) match {
+      case Some(e) if e.size == size && e.mtimeNanos == mtimeNanos && e.fileKey == fileKey => e.hash
+      case _                                                                              =>
+        val content = Files.readAllBytes(path)
+        val hash = gitBlobHash(content)
+        // Stat-before-read: if the file changed after we stat'd it, the size or mtime we are about to record is older than the content, and the next stat
+        // sees the difference. Racily-recent files are not recorded at all (see the class comment).
+        if (content.length.toLong == size && System.currentTimeMillis() * 1000000L - mtimeNanos > RacyWindowNanos) {
+          entries.put(key, Entry(size, mtimeNanos, fileKey, hash)): Unit
+          dirty = true
+        }
+        hash
+    }
+  }
+
+  /** Write the cache back, if anything was added. Entries for files that no longer exist are dropped here rather than accumulating forever. */
+  def save(): Unit =
+    file.foreach { target =>
+      if (dirty) {
+        dirty = false
+        try {
+          Files.createDirectories(target.getParent)
+          val temp = Files.createTempFile(target.getParent, s".${target.getFileName}", ".tmp")
+          try {
+            val out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))
+            try {
+              out.writeInt(FormatVersion)
+              entries.entrySet().iterator().asScala.foreach { e =>
+                if (Files.exists(Path.of(e.getKey))) {
+                  val v = e.getValue
+                  out.writeUTF(e.getKey)
+                  out.writeLong(v.size)
+                  out.writeLong(v.mtimeNanos)
+                  out.writeUTF(v.fileKey)
+                  out.writeUTF(v.hash)
+                }
+              }
+            } finally out.close()
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING): Unit
+          } finally Files.deleteIfExists(temp): Unit
+        } catch {
+          // A cache that cannot be written costs the next run some hashing, nothing more.
+          case NonFatal(_) => ()
+        }
+      }
+    }
+
+  def size: Int = entries.size()
+}
+
+object FileHashCache {
+
+  private[bleep] case class Entry(size: Long, mtimeNanos: Long, fileKey: String, hash: String)
+
+  /** Bump when the on-disk layout changes; a mismatching file is ignored and rewritten. */
+  private val FormatVersion = 1
+
+  /** Files modified more recently than this before hashing are not remembered. Comfortably above the coarsest timestamp granularity in use (2s on FAT, 1s on
+    * HFS+ and ext3), so a same-size rewrite within one tick is always re-read.
+    */
+  val RacyWindowNanos: Long = 2L * 1000L * 1000L * 1000L
+
+  /** Where a workspace's cache lives. Variant-independent: the hash of a source file does not depend on which variant compiles it. */
+  def fileFor(buildPaths: BuildPaths): Path =
+    buildPaths.dotBleepDir.resolve("digest-cache").resolve("file-hashes.bin")
+
+  /** Load the cache at `file`, or start empty if it is missing, unreadable or from another format version. */
+  def load(file: Path): FileHashCache = {
+    val entries = new ConcurrentHashMap[String, Entry]()
+    if (Files.isRegularFile(file))
+      try {
+        val in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))
+        try
+          if (in.readInt() == FormatVersion) {
+            var done = false
+            while (!done)
+              try {
+                val key = in.readUTF()
+                entries.put(key, Entry(in.readLong(), in.readLong(), in.readUTF(), in.readUTF())): Unit
+              } catch { case _: EOFException => done = true }
+          }
+        finally in.close()
+      } catch { case NonFatal(_) => entries.clear() }
+    new FileHashCache(Some(file), entries)
+  }
+
+  /** A cache that is never persisted — for callers that hash once and throw it away. */
+  def inMemory(): FileHashCache = new FileHashCache(None, new ConcurrentHashMap[String, Entry]())
+
+  /** Compute the git blob hash for file content: `SHA-1("blob <size>\0" + content)`.
+    *
+    * This matches what `git hash-object` produces, ensuring consistency between filesystem and git ls-tree hashing paths.
+    */
+  def gitBlobHash(content: Array[Byte]): String = {
+    val header = s"blob ${content.length}\u0000"
+    val sha1 = MessageDigest.getInstance("SHA-1")
+    sha1.update(header.getBytes("UTF-8"))
+    sha1.update(content)
+    Checksums.byteArrayToHexString(sha1.digest())
+  }
+}
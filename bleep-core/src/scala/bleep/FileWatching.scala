@@ -1,5 +1,6 @@
 package bleep
 
+import bleep.internal.PathTrie
 import com.swoval.files.FileTreeViews.Observer
 import com.swoval.files.{PathWatcher, PathWatchers}
 import com.swoval.functional.Either
@@ -44,14 +45,12 @@ object FileWatching {
           if (path.getFileName.toString.endsWith("~")) {
             logger.withContext("path", path).debug("Ignoring change in temporary file")
           } else {
-            // Find the keys attached to the given path.
-            // In order to do that, we need to traverse the file system towards the root until we find a registered directory
-            // if we reach the root, `getParent` will return `null`, and it means we got a change for a file outside the registered directories.
-            // That again can happen since we register a listener to the parent folder when we want to listen to files or to non-existing directories.
-            var registeredPath = path
-            while (registeredPath != null && !mapping.contains(registeredPath)) registeredPath = registeredPath.getParent
-            if (registeredPath != null) {
-              val keys = mapping(registeredPath)
+            // Find the keys attached to the innermost registered directory containing the given path.
+            // There may be none: we register a listener to the parent folder when we want to listen to files or to non-existing directories,
+            // so we also hear about changes outside the registered directories.
+            // Looked up in the current mapping, not the one we started with: `updateMapping` replaces it when the build changes.
+            val keys = state.keysFor(path)
+            if (keys.nonEmpty) {
               synchronized {
                 state.changedKeys ++= keys
                 ()
@@ -102,6 +101,10 @@ object FileWatching {
     private[FileWatching] val changedKeys = mutable.Set.empty[K]
     private[FileWatching] var isShutdown = false
     private[FileWatching] var mapping: Map[Path, Seq[K]] = Map.empty
+    @volatile private var index: PathTrie[K] = PathTrie.empty
+
+    /** The keys of the innermost registered path containing `path`. */
+    private[FileWatching] def keysFor(path: Path): List[K] = index.nearest(path)
 
     def addObserver(observer: Observer[PathWatchers.Event]): Unit =
       watcher.addObserver(observer).discard()
@@ -135,6 +138,7 @@ object FileWatching {
       }
 
       mapping = newMapping2
+      index = PathTrie.from(newMapping2.iterator.flatMap { case (path, keys) => keys.map(key => (path, key)) })
     }
 
     override def step(): Unit = {
@@ -0,0 +1,673 @@
+package bleep
+
+import java.io.IOException
+import java.lang.foreign.{Arena, MemorySegment, ValueLayout}
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.{Files, LinkOption, Path, StandardOpenOption}
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+import java.util.zip.{Inflater, InflaterInputStream}
+import scala.jdk.CollectionConverters.*
+import scala.util.Using
+import scala.util.control.NonFatal
+
+/** Read-only access to a git repository's index and HEAD tree, without running `git`.
+  *
+  * [[ProjectDigest]] asks git two questions about every source and resource directory: is anything under it dirty, and what are the blob hashes of the files
+  * it holds at HEAD. Asked through the `git` binary, the second question cost one `git ls-tree` process per directory — on a build with 900 source dirs, 900
+  * process spawns before the first cache lookup. Both answers are sitting in files git keeps up to date anyway: `.git/index` records the stat data and blob
+  * hash of every tracked file, and HEAD's tree objects record what was committed. This reads them directly, once, for every directory.
+  *
+  * ==What is read, and how==
+  *
+  *   - The index (versions 2 to 4) is parsed once when the repository is opened. It is mapped only for as long as that takes.
+  *   - Tree and commit objects are read loose, or from pack files through their `.idx` v2 indexes, with offset and ref deltas resolved. Packs are memory-mapped
+  *     for as long as the repository is open, and unmapped deterministically by [[close]] — on Windows a mapped pack cannot be deleted, and a `git gc` that
+  *     runs meanwhile should not have to wait for our garbage collector.
+  *   - Blob objects are never read. Everything this answers is a hash git has already computed.
+  *
+  * ==Where it stops==
+  *
+  * It answers only what it can answer exactly as `git` would, and says "don't know" (`None`) for the rest, so the caller can ask `git` instead:
+  *   - [[open]] gives up on repositories it does not model: SHA-256 object format, reftable refs, alternates, split or sparse indexes, an explicit
+  *     `core.worktree`, or `GIT_DIR` and friends in the environment.
+  *   - [[lsTree]] gives up on directories holding a submodule, or a file name `git ls-tree` would quote.
+  *   - [[isClean]] gives up on directories holding untracked files — telling an untracked file from an ignored one means evaluating `.gitignore` the way git
+  *     does, and getting it wrong in one direction would leave a new source file out of a digest — and on content that differs from the index where a
+  *     checkout filter or line-ending conversion might explain the difference.
+  *
+  * Those are the rare cases. A clean checkout, or one with edited files, is answered entirely from here.
+  */
+final class GitRepository private (
+    val location: GitRepository.Location,
+    index: java.util.TreeMap[String, GitRepository.IndexEntry],
+    indexMtimeNanos: Long,
+    headTree: String,
+    conversionsPossible: Boolean,
+    packs: List[GitRepository.Pack],
+    arena: Arena
+) extends AutoCloseable {
+  import GitRepository.*
+
+  /** Parsed trees by id. Shared by every directory asked about, so a tree near the root is read once however many source dirs sit below it. */
+  private val trees = new ConcurrentHashMap[String, Vector[TreeEntry]]()
+
+  /** What `git ls-tree -r HEAD -- <dir>` prints when run in `cwd`: (path relative to `cwd`, blob hash), sorted by path. `None` where that is not certain. */
+  def lsTree(cwd: Path, dir: Path): Option[List[(String, String)]] =
+    try {
+      val base = cwd.toAbsolutePath.normalize()
+      repoRelative(dir).flatMap(headBlobs).flatMap { blobs =>
+        if (blobs.keysIterator.exists(needsQuoting)) None
+        else
+          Some(
+            blobs.toList
+              .map { case (path, id) => base.relativize(location.workTree.resolve(path)).toString.replace('\\', '/') -> id }
+              .sortBy(_._1)
+          )
+      }
+    } catch { case NonFatal(_) => None }
+
+  /** Whether `git status` would report nothing under `dir`: no staged change, no modified or deleted file, no untracked file. `None` where that is not certain.
+    *
+    * A directory git tracks nothing under, neither in HEAD nor in the index, is reported dirty. Git would say "clean" if it is ignored and "dirty" if it is
+    * not, but either way HEAD has no hashes for it and its files must be read from disk, which is what "dirty" gets the caller.
+    *
+    * Modified files are found the way git finds them: a file whose stat matches its index entry, and was not modified after the index was written, is taken to
+    * hold what the index says. Any other file is hashed — through `hashes`, so a file that keeps failing the stat check is still only read once.
+    */
+  def isClean(dir: Path, hashes: FileHashCache): Option[Boolean] =
+    try
+      repoRelative(dir).flatMap { rel =>
+        val tracked =
+          (if (rel.isEmpty) index else index.subMap(rel + "/", true, rel + "0", false)).asScala
+        headBlobs(rel).flatMap { head =>
+          if (tracked.isEmpty && head.isEmpty) Some(false)
+          // A staged addition, deletion or change: the index and HEAD disagree on which files exist or what they hold.
+          else if (tracked.size != head.size || tracked.exists { case (path, e) => !head.get(path).contains(e.id) }) Some(false)
+          else {
+            val states = tracked.iterator.map { case (path, e) => worktreeMatches(path, e, hashes) }.toList
+            if (states.contains(Some(false))) Some(false)
+            else if (states.contains(None)) None
+            else if (hasUntracked(dir, rel, tracked)) None
+            else Some(true)
+          }
+        }
+      }
+    catch { case NonFatal(_) => None }
+
+  /** Unmap the packs. Any read still running afterwards fails, and is answered by its caller's fallback. */
+  def close(): Unit = arena.close()
+
+  private def repoRelative(dir: Path): Option[String] = {
+    val abs = dir.toAbsolutePath.normalize()
+    if (abs.startsWith(location.workTree)) Some(location.workTree.relativize(abs).toString.replace('\\', '/')) else None
+  }
+
+  /** Blobs under `rel` at HEAD, by repo-relative path. Empty if HEAD has nothing there; `None` for what this does not model — a submodule, or a file where a
+    * directory is expected.
+    */
+  private def headBlobs(rel: String): Option[Map[String, String]] = {
+    def subtree(id: String, path: List[String]): Either[Unit, Option[String]] =
+      path match {
+        case Nil          => Right(Some(id))
+        case name :: rest =>
+          tree(id).find(_.name == name) match {
+            case None                          => Right(None)
+            case Some(e) if e.mode == TreeMode => subtree(e.id, rest)
+            case Some(_)                       => Left(())
+          }
+      }
+
+    subtree(headTree, if (rel.isEmpty) Nil else rel.split('/').toList) match {
+      case Left(())         => None
+      case Right(None)      => Some(Map.empty)
+      case Right(Some(top)) =>
+        val out = Map.newBuilder[String, String]
+        def collect(id: String, prefix: String): Boolean =
+          tree(id).forall { e =>
+            val path = if (prefix.isEmpty) e.name else s"$prefix/${e.name}"
+            if (e.mode == TreeMode) collect(e.id, path)
+            else if (e.mode == GitlinkMode) false
+            else {
+              out += path -> e.id
+              true
+            }
+          }
+        if (collect(top, rel)) Some(out.result()) else None
+    }
+  }
+
+  private def tree(id: String): Vector[TreeEntry] =
+    Option(trees.get(id)).getOrElse {
+      val parsed = parseTree(readObject(id, TypeTree))
+      trees.putIfAbsent(id, parsed)
+      parsed
+    }
+
+  /** `Some(true)` if the file on disk holds what its index entry says, `Some(false)` if it does not, `None` if only git could tell. */
+  private def worktreeMatches(path: String, e: IndexEntry, hashes: FileHashCache): Option[Boolean] =
+    if (e.stage != 0 || e.intentToAdd) Some(false)
+    // Git does not look at these either; `git status` reports them clean whatever is on disk.
+    else if (e.assumeValid || e.skipWorktree) Some(true)
+    else {
+      val file = location.workTree.resolve(path)
+      val attrs =
+        try Some(Files.readAttributes(file, classOf[BasicFileAttributes], LinkOption.NOFOLLOW_LINKS))
+        catch { case _: IOException => None }
+      attrs match {
+        case None                                                               => Some(false) // deleted
+        case Some(a) if a.isDirectory || a.isOther                              => Some(false)
+        case Some(a) if a.isSymbolicLink != ((e.mode & TypeBits) == SymlinkMode) => Some(false) // type change
+        case Some(a)                                                            =>
+          val mtime = a.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+          val statMatches =
+            (a.size() & 0xffffffffL) == e.size &&
+              Math.floorDiv(mtime, NanosPerSecond) == e.mtimeSeconds &&
+              (e.mtimeNanos == 0 || Math.floorMod(mtime, NanosPerSecond) == e.mtimeNanos) &&
+              // Racily clean: modified in the same instant the index was written, so the stat cannot vouch for the content.
+              mtime < indexMtimeNanos
+          if (statMatches) Some(true)
+          else {
+            val hash =
+              if (a.isSymbolicLink) FileHashCache.gitBlobHash(Files.readSymbolicLink(file).toString.getBytes(StandardCharsets.UTF_8))
+              else hashes.blobHash(file)
+            if (hash == e.id) Some(true)
+            else if (conversionsPossible) None // a CRLF checkout of an LF blob is clean to git and different to us
+            else Some(false)
+          }
+      }
+    }
+
+  /** Whether any file on disk under `dir` is missing from the index. Such a file is either untracked (dirty) or ignored (clean), and only git knows which. */
+  private def hasUntracked(dir: Path, rel: String, tracked: collection.Map[String, IndexEntry]): Boolean =
+    Using.resource(Files.walk(dir)) { stream =>
+      stream.iterator().asScala.exists { file =>
+        !Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS) && {
+          val fileRel = dir.relativize(file).toString.replace('\\', '/')
+          !tracked.contains(if (rel.isEmpty) fileRel else s"$rel/$fileRel")
+        }
+      }
+    }
+
+  private def readObject(id: String, expectedType: Int): Array[Byte] = {
+    val (tpe, content) = readRaw(id)
+    if (tpe != expectedType) throw new Unsupported(s"object $id has type $tpe, expected $expectedType")
+    content
+  }
+
+  private def readRaw(id: String): (Int, Array[Byte]) = {
+    val loose = location.commonDir.resolve("objects").resolve(id.substring(0, 2)).resolve(id.substring(2))
+    if (Files.isRegularFile(loose)) readLoose(loose)
+    else {
+      val binaryId = unhex(id)
+      packs.iterator
+        .map(pack => pack -> pack.offsetOf(binaryId))
+        .collectFirst { case (pack, offset) if offset >= 0 => pack.readAt(offset, readRaw) }
+        // Missing: a partial clone's promisor remote has it, or something this does not model put it elsewhere. Either way, git can find it and we cannot.
+        .getOrElse(throw new Unsupported(s"object $id not found"))
+    }
+  }
+}
+
+object GitRepository {
+
+  /** Where a repository lives. `gitDir` holds HEAD and the index; `commonDir` holds objects and refs. They differ only in a linked worktree. */
+  final case class Location(workTree: Path, gitDir: Path, commonDir: Path)
+
+  private[bleep] final case class IndexEntry(
+      id: String,
+      mode: Int,
+      size: Long,
+      mtimeSeconds: Long,
+      mtimeNanos: Int,
+      stage: Int,
+      assumeValid: Boolean,
+      skipWorktree: Boolean,
+      intentToAdd: Boolean
+  )
+
+  private final case class TreeEntry(mode: Int, name: String, id: String)
+
+  /** Thrown for anything this reader does not model. Never escapes: every public entry point turns it into "don't know". */
+  private final class Unsupported(reason: String) extends RuntimeException(reason)
+
+  private val TypeCommit = 1
+  private val TypeTree = 2
+  private val TypeBlob = 3
+  private val TypeTag = 4
+  private val TypeOfsDelta = 6
+  private val TypeRefDelta = 7
+
+  private val TypeBits = 0xf000
+  private val TreeMode = 0x4000
+  private val SymlinkMode = 0xa000
+  private val GitlinkMode = 0xe000
+
+  private val NanosPerSecond = 1000000000L
+
+  private val BeInt = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN)
+  private val BeShort = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN)
+  private val BeLong = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN)
+
+  /** Environment variables that move parts of the repository somewhere [[locate]] does not look. */
+  private val RelocatingEnv =
+    List("GIT_DIR", "GIT_WORK_TREE", "GIT_INDEX_FILE", "GIT_OBJECT_DIRECTORY", "GIT_ALTERNATE_OBJECT_DIRECTORIES", "GIT_COMMON_DIR")
+
+  /** Repository extensions that change nothing this reader reads. Any other one — `refstorage`, most importantly — and git must be asked. */
+  private val HarmlessExtensions = Set("noop", "preciousobjects", "partialclone", "worktreeconfig", "objectformat")
+
+  /** Find the repository containing `from`, the way git does: the nearest `.git` above it, which is a directory in a normal checkout and a `gitdir:` pointer
+    * file in a linked worktree.
+    */
+  def locate(from: Path): Option[Location] =
+    try
+      Iterator
+        .iterate(from.toAbsolutePath.normalize())(_.getParent)
+        .takeWhile(_ != null)
+        .find(dir => Files.exists(dir.resolve(".git")))
+        .flatMap { workTree =>
+          val dotGit = workTree.resolve(".git")
+          val gitDir =
+            if (Files.isDirectory(dotGit)) Some(dotGit)
+            else
+              Files.readString(dotGit).linesIterator.collectFirst {
+                case line if line.startsWith("gitdir:") => dotGit.getParent.resolve(line.stripPrefix("gitdir:").trim).normalize()
+              }
+          gitDir.map { dir =>
+            val pointer = dir.resolve("commondir")
+            val commonDir = if (Files.isRegularFile(pointer)) dir.resolve(Files.readString(pointer).trim).normalize() else dir
+            Location(workTree, dir, commonDir)
+          }
+        }
+    catch { case NonFatal(_) => None }
+
+  /** Resolve `ref` (like `refs/heads/main`) to a commit id. A ref is loose under the git dir, or — for a worktree — under the common dir, or packed. `None` if
+    * it does not exist, as for the branch of a repository with no commits yet.
+    */
+  def resolveRef(location: Location, ref: String): Option[String] =
+    List(location.gitDir, location.commonDir).distinct.map(_.resolve(ref)).find(Files.isRegularFile(_)) match {
+      case Some(loose) => Some(Files.readString(loose).trim).filter(_.nonEmpty)
+      case None        =>
+        val packed = location.commonDir.resolve("packed-refs")
+        if (!Files.isRegularFile(packed)) None
+        else Files.readString(packed).linesIterator.collectFirst { case line if line.endsWith(s" $ref") => line.takeWhile(_ != ' ') }
+    }
+
+  /** The contents of HEAD: `ref: refs/heads/...` on a branch, a commit id when detached. */
+  def readHead(location: Location): String =
+    Files.readString(location.gitDir.resolve("HEAD")).trim
+
+  /** Open the repository containing `from` for reading. `None` if there is none, or if it is one this reader does not model — see the class comment. */
+  def open(from: Path): Option[GitRepository] =
+    if (RelocatingEnv.exists(sys.env.contains)) None
+    else locate(from).flatMap(openAt)
+
+  private def openAt(location: Location): Option[GitRepository] = {
+    val arena = Arena.ofShared()
+    try {
+      val config = readConfig(List(location.commonDir.resolve("config"), location.gitDir.resolve("config.worktree")))
+      val extensions = config.keySet.collect { case k if k.startsWith("extensions.") => k.stripPrefix("extensions.") }
+      if (
+        !extensions.subsetOf(HarmlessExtensions) ||
+        config.get("extensions.objectformat").exists(_.toLowerCase != "sha1") ||
+        config.get("core.bare").exists(_.toLowerCase == "true") ||
+        config.contains("core.worktree") ||
+        Files.exists(location.commonDir.resolve("objects/info/alternates"))
+      ) throw new Unsupported("repository format")
+
+      val head = readHead(location)
+      val commit =
+        if (head.startsWith("ref: ")) resolveRef(location, head.stripPrefix("ref: ").trim).getOrElse(throw new Unsupported("unborn branch"))
+        else head
+
+      val indexFile = location.gitDir.resolve("index")
+      val indexMtimeNanos = Files.getLastModifiedTime(indexFile).to(TimeUnit.NANOSECONDS)
+      val index = readIndex(indexFile)
+      val packs = openPacks(location.commonDir.resolve("objects/pack"), arena)
+
+      val conversions = conversionsPossible(location, config)
+
+      // The commit is read through a repository without a tree yet; it only needs the object store.
+      val commitBody =
+        new String(new GitRepository(location, index, indexMtimeNanos, "", conversions, packs, arena).readObject(commit, TypeCommit), StandardCharsets.UTF_8)
+      val tree =
+        if (commitBody.startsWith("tree ")) commitBody.substring(5, 45)
+        else throw new Unsupported("commit without tree")
+      Some(new GitRepository(location, index, indexMtimeNanos, tree, conversions, packs, arena))
+    } catch {
+      case NonFatal(_) =>
+        arena.close()
+        None
+    }
+  }
+
+  /** Whether git might hash a file's content differently from its bytes on disk: line-ending conversion or a clean filter. Checked loosely — the answer only
+    * decides whether a file that hashes differently from its index entry is reported dirty here or handed to `git status` to decide.
+    */
+  private def conversionsPossible(location: Location, repoConfig: Map[String, String]): Boolean = {
+    val home = Option(System.getProperty("user.home")).map(Path.of(_))
+    val xdg = sys.env.get("XDG_CONFIG_HOME").map(Path.of(_)).orElse(home.map(_.resolve(".config")))
+    val userConfigs = List(home.map(_.resolve(".gitconfig")), xdg.map(_.resolve("git/config")), Some(Path.of("/etc/gitconfig"))).flatten
+    val mentionsConversion = userConfigs.exists { file =>
+      try Files.isRegularFile(file) && { val text = Files.readString(file).toLowerCase; text.contains("autocrlf") || text.contains("[filter") }
+      catch { case NonFatal(_) => true }
+    }
+    scala.util.Properties.isWin ||
+    mentionsConversion ||
+    repoConfig.get("core.autocrlf").exists(_.toLowerCase != "false") ||
+    repoConfig.keySet.exists(_.startsWith("filter.")) ||
+    Files.exists(location.workTree.resolve(".gitattributes")) ||
+    Files.exists(location.commonDir.resolve("info/attributes"))
+  }
+
+  /** `section.key -> value` from git config files. Subsections are folded into their section; that is enough for the handful of keys looked at here. */
+  private def readConfig(files: List[Path]): Map[String, String] =
+    files.filter(Files.isRegularFile(_)).flatMap { file =>
+      var section = ""
+      Files.readAllLines(file).asScala.toList.flatMap { raw =>
+        val line = raw.trim
+        if (line.startsWith("[")) {
+          section = line.drop(1).takeWhile(c => c != ']' && c != ' ' && c != '"').toLowerCase
+          None
+        } else if (line.isEmpty || line.startsWith("#") || line.startsWith(";")) None
+        else {
+          val (key, rest) = line.span(_ != '=')
+          Some(s"$section.${key.trim.toLowerCase}" -> rest.drop(1).trim.stripPrefix("\"").stripSuffix("\""))
+        }
+      }
+    }.toMap
+
+  /** Parse `.git/index`, versions 2 to 4. Optional extensions (cached trees, resolve-undo, untracked cache, ...) are skipped; a required one — split index,
+    * sparse index — means the entries alone do not describe the tree.
+    */
+  private def readIndex(file: Path): java.util.TreeMap[String, IndexEntry] =
+    Using.resource(Arena.ofConfined()) { arena =>
+      Using.resource(FileChannel.open(file, StandardOpenOption.READ)) { channel =>
+        val buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena)
+        val limit = buf.byteSize() - 20 // trailing checksum
+        if (buf.get(BeInt, 0) != 0x44495243) throw new Unsupported("not an index") // "DIRC"
+        val version = buf.get(BeInt, 4)
+        if (version < 2 || version > 4) throw new Unsupported(s"index version $version")
+        val count = buf.get(BeInt, 8)
+
+        val entries = new java.util.TreeMap[String, IndexEntry]()
+        var pos = 12L
+        var previousName = Array.emptyByteArray
+        var i = 0
+        while (i < count) {
+          val flags = buf.get(BeShort, pos + 60) & 0xffff
+          val extended = version >= 3 && (flags & 0x4000) != 0
+          val extendedFlags = if (extended) buf.get(BeShort, pos + 62) & 0xffff else 0
+          val nameStart = pos + (if (extended) 64 else 62)
+
+          val (name, next) =
+            if (version == 4) {
+              // Prefix-compressed: drop N bytes from the end of the previous name, then append this NUL-terminated suffix.
+              val (strip, suffixStart) = readOffsetVarint(buf, nameStart)
+              val nul = indexOfNul(buf, suffixStart, limit)
+              val suffix = buf.asSlice(suffixStart, nul - suffixStart).toArray(ValueLayout.JAVA_BYTE)
+              (previousName.take(previousName.length - strip.toInt) ++ suffix, nul + 1)
+            } else {
+              val nul = indexOfNul(buf, nameStart, limit)
+              val name = buf.asSlice(nameStart, nul - nameStart).toArray(ValueLayout.JAVA_BYTE)
+              // Entries are NUL-padded to a multiple of eight bytes, with at least one NUL.
+              (name, pos + (((nameStart - pos) + name.length + 8) & ~7L))
+            }
+
+          val entry = IndexEntry(
+            id = hex(buf, pos + 40),
+            mode = buf.get(BeInt, pos + 24),
+            size = buf.get(BeInt, pos + 36) & 0xffffffffL,
+            mtimeSeconds = buf.get(BeInt, pos + 8) & 0xffffffffL,
+            mtimeNanos = buf.get(BeInt, pos + 12),
+            stage = (flags >> 12) & 3,
+            assumeValid = (flags & 0x8000) != 0,
+            skipWorktree = (extendedFlags & 0x4000) != 0,
+            intentToAdd = (extendedFlags & 0x2000) != 0
+          )
+          val path = new String(name, StandardCharsets.UTF_8)
+          // Conflicted paths appear once per stage; any stage but 0 is enough to report the path dirty.
+          if (entry.stage != 0 || !entries.containsKey(path)) entries.put(path, entry): Unit
+
+          previousName = name
+          pos = next
+          i += 1
+        }
+
+        while (pos + 8 <= limit) {
+          val signature = buf.get(ValueLayout.JAVA_BYTE, pos)
+          if (signature < 'A' || signature > 'Z') throw new Unsupported("required index extension")
+          pos += 8 + (buf.get(BeInt, pos + 4) & 0xffffffffL)
+        }
+        entries
+      }
+    }
+
+  /** Map every `pack-*.idx` with its `.pack` into `arena`. Only `.idx` version 2, which is all git has written since 1.5.2. */
+  private def openPacks(dir: Path, arena: Arena): List[Pack] =
+    if (!Files.isDirectory(dir)) Nil
+    else
+      Using.resource(Files.list(dir)) { stream =>
+        stream
+          .iterator()
+          .asScala
+          .filter(_.getFileName.toString.endsWith(".idx"))
+          .toList
+          .flatMap { idxFile =>
+            val packFile = idxFile.resolveSibling(idxFile.getFileName.toString.stripSuffix(".idx") + ".pack")
+            if (!Files.isRegularFile(packFile)) Nil
+            else {
+              val idx = mapReadOnly(idxFile, arena)
+              if (idx.get(BeInt, 0) != 0xff744f63 || idx.get(BeInt, 4) != 2) throw new Unsupported(s"pack index format of $idxFile")
+              List(new Pack(idx, mapReadOnly(packFile, arena)))
+            }
+          }
+      }
+
+  private def mapReadOnly(file: Path, arena: Arena): MemorySegment =
+    Using.resource(FileChannel.open(file, StandardOpenOption.READ)) { channel =>
+      channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena)
+    }
+
+  /** One pack file and its index. */
+  private[bleep] final class Pack(idx: MemorySegment, pack: MemorySegment) {
+    private val FanoutAt = 8L
+    private val count = idx.get(BeInt, FanoutAt + 255 * 4)
+    private val namesAt = FanoutAt + 256 * 4
+    private val offsetsAt = namesAt + count.toLong * 20 + count.toLong * 4 // past names and CRCs
+    private val largeOffsetsAt = offsetsAt + count.toLong * 4
+
+    /** Offset of `id` in the pack, or -1. Binary search within the range the fanout table gives for its first byte. */
+    def offsetOf(id: Array[Byte]): Long = {
+      val first = id(0) & 0xff
+      var lo = if (first == 0) 0 else idx.get(BeInt, FanoutAt + (first - 1) * 4)
+      var hi = idx.get(BeInt, FanoutAt + first * 4)
+      var found = -1L
+      while (found < 0 && lo < hi) {
+        val mid = (lo + hi) >>> 1
+        val c = compareId(mid, id)
+        if (c == 0) found = offsetAt(mid)
+        else if (c < 0) lo = mid + 1
+        else hi = mid
+      }
+      found
+    }
+
+    private def compareId(i: Int, id: Array[Byte]): Int = {
+      val at = namesAt + i.toLong * 20
+      var k = 0
+      var c = 0
+      while (c == 0 && k < 20) {
+        c = Integer.compare(idx.get(ValueLayout.JAVA_BYTE, at + k) & 0xff, id(k) & 0xff)
+        k += 1
+      }
+      c
+    }
+
+    private def offsetAt(i: Int): Long = {
+      val small = idx.get(BeInt, offsetsAt + i.toLong * 4)
+      if ((small & 0x80000000) != 0) idx.get(BeLong, largeOffsetsAt + (small & 0x7fffffff).toLong * 8)
+      else small & 0xffffffffL
+    }
+
+    private def byteAt(at: Long): Int = pack.get(ValueLayout.JAVA_BYTE, at) & 0xff
+
+    /** The object at `offset`, with deltas applied. `readById` finds the base of a ref delta, which may live in another pack or loose. */
+    def readAt(offset: Long, readById: String => (Int, Array[Byte])): (Int, Array[Byte]) = {
+      var pos = offset
+      var c = byteAt(pos)
+      pos += 1
+      val tpe = (c >> 4) & 7
+      var size = (c & 0x0f).toLong
+      var shift = 4
+      while ((c & 0x80) != 0) {
+        c = byteAt(pos)
+        pos += 1
+        size |= (c & 0x7f).toLong << shift
+        shift += 7
+      }
+      if (size > Int.MaxValue - 8) throw new Unsupported("object too large")
+
+      tpe match {
+        case TypeOfsDelta =>
+          val (distance, dataStart) = readOffsetVarint(pack, pos)
+          val (baseType, base) = readAt(offset - distance, readById)
+          (baseType, applyDelta(base, inflate(pack, dataStart, size.toInt)))
+        case TypeRefDelta =>
+          val baseId = hex(pack, pos)
+          val (baseType, base) = readById(baseId)
+          (baseType, applyDelta(base, inflate(pack, pos + 20, size.toInt)))
+        case TypeCommit | TypeTree | TypeBlob | TypeTag => (tpe, inflate(pack, pos, size.toInt))
+        case other                                      => throw new Unsupported(s"pack object type $other")
+      }
+    }
+  }
+
+  private def readLoose(file: Path): (Int, Array[Byte]) = {
+    val raw = Using.resource(new InflaterInputStream(Files.newInputStream(file)))(_.readAllBytes())
+    val nul = raw.indexOf(0.toByte)
+    val header = new String(raw, 0, nul, StandardCharsets.US_ASCII)
+    val tpe = header.takeWhile(_ != ' ') match {
+      case "commit" => TypeCommit
+      case "tree"   => TypeTree
+      case "blob"   => TypeBlob
+      case "tag"    => TypeTag
+      case other    => throw new Unsupported(s"loose object type $other")
+    }
+    (tpe, java.util.Arrays.copyOfRange(raw, nul + 1, raw.length))
+  }
+
+  /** Inflate exactly `size` bytes of the zlib stream starting at `at`, straight from the mapping. */
+  private def inflate(segment: MemorySegment, at: Long, size: Int): Array[Byte] = {
+    val inflater = new Inflater()
+    try {
+      inflater.setInput(segment.asSlice(at, math.min(segment.byteSize() - at, Int.MaxValue.toLong)).asByteBuffer())
+      val out = new Array[Byte](size)
+      var n = 0
+      while (n < size) {
+        val read = inflater.inflate(out, n, size - n)
+        if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) throw new Unsupported("truncated object")
+        n += read
+      }
+      out
+    } finally inflater.end()
+  }
+
+  /** Apply a git delta: a header of (base size, result size), then copy-from-base and insert-literal instructions. */
+  private def applyDelta(base: Array[Byte], delta: Array[Byte]): Array[Byte] = {
+    var pos = 0
+    def sizeVarint(): Long = {
+      var result = 0L
+      var shift = 0
+      var c = 0x80
+      while ((c & 0x80) != 0) {
+        c = delta(pos) & 0xff
+        pos += 1
+        result |= (c & 0x7f).toLong << shift
+        shift += 7
+      }
+      result
+    }
+    if (sizeVarint() != base.length) throw new Unsupported("delta base size mismatch")
+    val out = new Array[Byte](sizeVarint().toInt)
+    var written = 0
+    while (pos < delta.length) {
+      val op = delta(pos) & 0xff
+      pos += 1
+      if ((op & 0x80) != 0) {
+        var copyOffset = 0L
+        var copySize = 0
+        (0 until 4).foreach { bit =>
+          if ((op & (1 << bit)) != 0) {
+            copyOffset |= (delta(pos) & 0xffL) << (8 * bit)
+            pos += 1
+          }
+        }
+        (0 until 3).foreach { bit =>
+          if ((op & (0x10 << bit)) != 0) {
+            copySize |= (delta(pos) & 0xff) << (8 * bit)
+            pos += 1
+          }
+        }
+        if (copySize == 0) copySize = 0x10000
+        System.arraycopy(base, copyOffset.toInt, out, written, copySize)
+        written += copySize
+      } else if (op != 0) {
+        System.arraycopy(delta, pos, out, written, op)
+        pos += op
+        written += op
+      } else throw new Unsupported("reserved delta instruction")
+    }
+    if (written != out.length) throw new Unsupported("delta result size mismatch")
+    out
+  }
+
+  private def parseTree(bytes: Array[Byte]): Vector[TreeEntry] = {
+    val entries = Vector.newBuilder[TreeEntry]
+    var i = 0
+    while (i < bytes.length) {
+      val space = bytes.indexOf(' '.toByte, i)
+      val nul = bytes.indexOf(0.toByte, space)
+      val mode = Integer.parseInt(new String(bytes, i, space - i, StandardCharsets.US_ASCII), 8)
+      val name = new String(bytes, space + 1, nul - space - 1, StandardCharsets.UTF_8)
+      entries += TreeEntry(mode, name, Checksums.byteArrayToHexString(java.util.Arrays.copyOfRange(bytes, nul + 1, nul + 21)))
+      i = nul + 21
+    }
+    entries.result()
+  }
+
+  /** The variable-length offset encoding of OFS_DELTA and index v4 names, where each continuation adds one before shifting. Returns (value, next position). */
+  private def readOffsetVarint(segment: MemorySegment, at: Long): (Long, Long) = {
+    var pos = at
+    var c = segment.get(ValueLayout.JAVA_BYTE, pos) & 0xff
+    pos += 1
+    var value = (c & 0x7f).toLong
+    while ((c & 0x80) != 0) {
+      c = segment.get(ValueLayout.JAVA_BYTE, pos) & 0xff
+      pos += 1
+      value = ((value + 1) << 7) | (c & 0x7f)
+    }
+    (value, pos)
+  }
+
+  private def indexOfNul(segment: MemorySegment, from: Long, limit: Long): Long = {
+    var at = from
+    while (at < limit && segment.get(ValueLayout.JAVA_BYTE, at) != 0) at += 1
+    if (at >= limit) throw new Unsupported("unterminated index entry name")
+    at
+  }
+
+  private def hex(segment: MemorySegment, at: Long): String =
+    Checksums.byteArrayToHexString(segment.asSlice(at, 20).toArray(ValueLayout.JAVA_BYTE))
+
+  private def unhex(id: String): Array[Byte] =
+    Array.tabulate(20)(i => Integer.parseInt(id.substring(i * 2, i * 2 + 2), 16).toByte)
+
+  /** Whether `git ls-tree` would C-quote this path: control characters, `"`, `\`, and — with the default `core.quotePath` — anything outside ASCII. Such a
+    * path is listed in a form this does not reproduce, so the whole directory is left to git.
+    */
+  private def needsQuoting(path: String): Boolean =
+    path.exists(c => c < 0x20 || c == '"' || c == '\\' || c >= 0x7f)
+}
@@ -22,9 +22,19 @@ import scala.concurrent.duration._
   * Implemented purely on cats-effect: all state lives in a single [[Ref]]; a reservation that can't be granted immediately parks on a [[Deferred]] and is
   * completed by whoever frees the resources it needs. The park is `poll(gate.get)` under `Resource.makeFull` (whose `poll` is what keeps the wait cancelable —
   * plain `Resource.make` runs acquisition uncancelably and would hang a cancelled reservation), so cancelling the waiting IO (a cancelled test run, say)
-  * dequeues the reservation cleanly via `onCancel` — no thread blocking, no interruption. Grants are work-conserving and oldest-first: a cheap CPU-only compile
-  * is never stuck behind a large memory-hungry fork it doesn't compete with, but among requests that DO fit the oldest wins, so nothing starves. Every state is
-  * observable via [[snapshot]].
+  * dequeues the reservation cleanly via `onCancel` — no thread blocking, no interruption. Grants are work-conserving: a cheap CPU-only compile is never stuck
+  * behind a large memory-hungry fork it doesn't compete with. Every state is observable via [[snapshot]].
+  *
+  * Who gets what is decided by [[Claim]]: a [[Priority]] class and a tenant (the server passes the workspace). Grants used to be oldest-first regardless of
+  * who asked, so one agent's 2,000-suite test run could hold every core for minutes while an IDE user's compile on the same daemon waited its turn behind it.
+  * Now classes are strict — interactive compile, then batch compile, then test forks, then background work — and within a class the tenant holding fewer cores
+  * goes first. A request yields to any unmet need that outranks it, but only along the dimensions that need is short of, so work conservation survives: a
+  * compile waiting for a core does not hold back a fork that is only waiting for memory.
+  *
+  * Most work never queues here — [[bleep.bsp.TaskDag]] admits with [[tryReserve]] and retries on its own wakeups — so an unmet need is not always a waiter. A
+  * scheduler that retries registers a [[Demand]] instead: what it wanted and was refused, and how to wake it. Lower classes yield to demands exactly as they
+  * yield to waiters, and every release wakes the demands, so a freed core goes to the interactive compile that wanted it rather than to whichever retry loop
+  * happened to run first.
   */
 final class MachineResources private (
     val totalCpu: Int,
@@ -38,12 +48,19 @@ final class MachineResources private (
     * the machine totals so asking for more than the machine has waits for the whole machine rather than never being grantable.
     */
   def reserve(kind: ResourceKind, label: String, cpu: Int, memoryMb: Long): Resource[IO, Unit] =
+    reserve(kind, Claim.unattributed(kind), label, cpu, memoryMb)
+
+  def reserve(kind: ResourceKind, claim: Claim, label: String, cpu: Int, memoryMb: Long): Resource[IO, Unit] =
+    reserveAs(None, kind, claim, label, cpu, memoryMb)
+
+  /** `owner` is the [[Demand]] asking, whose own registered need must not count against it. */
+  private def reserveAs(owner: Option[Long], kind: ResourceKind, claim: Claim, label: String, cpu: Int, memoryMb: Long): Resource[IO, Unit] =
     // makeFull (not make): make runs acquisition fully uncancelable, which would make the wait below
     // uninterruptible and a cancelled reservation hang forever. makeFull hands us a `poll` so only
     // the enqueue is uncancelable and the actual waiting stays cancelable.
-    Resource.makeFull[IO, Long](poll => acquire(poll, kind, label, cpu, memoryMb))(id => dispose(id)).void
+    Resource.makeFull[IO, Long](poll => acquire(poll, owner, kind, claim, label, cpu, memoryMb))(id => dispose(id)).void
 
-  private def acquire(poll: Poll[IO], kind: ResourceKind, label: String, cpu: Int, memoryMb: Long): IO[Long] = {
+  private def acquire(poll: Poll[IO], owner: Option[Long], kind: ResourceKind, claim: Claim, label: String, cpu: Int, memoryMb: Long): IO[Long] = {
     val cpuReq = math.max(0, math.min(cpu, totalCpu))
     for {
       now <- IO.realTime.map(_.toMillis)
@@ -54,7 +71,7 @@ final class MachineResources private (
         // Clamp against the CURRENT total: it moves as the machine's spare capacity moves, so a
         // request larger than the machine waits for the whole machine rather than never fitting.
         val memReq = math.max(0L, math.min(memoryMb, st.totalMemoryMb))
-        val queued = st.copy(nextId = id + 1, waiting = st.waiting :+ Waiter(id, kind, label, cpuReq, memReq, now, gate))
+        val queued = st.copy(nextId = id + 1, waiting = st.waiting :+ Waiter(id, owner, kind, claim, label, cpuReq, memReq, now, gate))
         val (next, granted) = grantEligible(queued)
         (next, (id, granted))
       }
@@ -79,7 +96,10 @@ final class MachineResources private (
     * leaks for the life of the server. [[JvmPool.shutdown]] is the backstop.
     */
   def reserveUntilReleased(kind: ResourceKind, label: String, cpu: Int, memoryMb: Long): IO[IO[Unit]] =
-    reserve(kind, label, cpu, memoryMb).allocated.map { case (_, release) => release }
+    reserveUntilReleased(kind, Claim.unattributed(kind), label, cpu, memoryMb)
+
+  def reserveUntilReleased(kind: ResourceKind, claim: Claim, label: String, cpu: Int, memoryMb: Long): IO[IO[Unit]] =
+    reserve(kind, claim, label, cpu, memoryMb).allocated.map { case (_, release) => release }
 
   /** Reserve only if it fits RIGHT NOW; never queues. `Some(release)` when granted, `None` when it doesn't currently fit.
     *
@@ -87,19 +107,44 @@ final class MachineResources private (
     * responds to `None` by evicting an idle pooled JVM (whose memory it is itself holding) and retrying, which is what keeps the pool from deadlocking against
     * its own cached processes.
     */
-  def tryReserve(kind: ResourceKind, label: String, cpu: Int, memoryMb: Long): IO[Option[IO[Unit]]] = {
+  def tryReserve(kind: ResourceKind, label: String, cpu: Int, memoryMb: Long): IO[Option[IO[Unit]]] =
+    tryReserveWhen(kind, Claim.unattributed(kind), label, cpu, memoryMb, requireEmptyQueue = false, owner = None)
+
+  /** Reserve only if it fits right now AND nothing is queued — the admission rule for work nobody is waiting on.
+    *
+    * [[tryReserve]] never queues, but it will happily take the last free core while a compile is parked waiting for one, and a background prefetch that wins
+    * that race has made a user-visible build slower to save time nobody asked for yet. So background work yields twice: to anything waiting, and to anything
+    * that does not fit. It retries later rather than parking, because a parked waiter is exactly what it must never become — the grant loop is oldest-first
+    * and would eventually serve it ahead of foreground work that arrived after it.
+    */
+  def tryReserveIdle(kind: ResourceKind, label: String, cpu: Int, memoryMb: Long): IO[Option[IO[Unit]]] =
+    tryReserveIdle(kind, Claim.unattributed(kind), label, cpu, memoryMb)
+
+  def tryReserveIdle(kind: ResourceKind, claim: Claim, label: String, cpu: Int, memoryMb: Long): IO[Option[IO[Unit]]] =
+    tryReserveWhen(kind, claim, label, cpu, memoryMb, requireEmptyQueue = true, owner = None)
+
+  private def tryReserveWhen(
+      kind: ResourceKind,
+      claim: Claim,
+      label: String,
+      cpu: Int,
+      memoryMb: Long,
+      requireEmptyQueue: Boolean,
+      owner: Option[Long]
+  ): IO[Option[IO[Unit]]] = {
     val cpuReq = math.max(0, math.min(cpu, totalCpu))
     for {
       now <- IO.realTime.map(_.toMillis)
       maybeId <- state.modify { st =>
         val memReq = math.max(0L, math.min(memoryMb, st.totalMemoryMb))
-        if (fits(cpuReq, memReq, st.freeCpu, st.freeMemoryMb)) {
+        val yielded = st.yieldedBy(claim, owner)
+        if ((!requireEmptyQueue || st.waiting.isEmpty) && fits(cpuReq, memReq, st.freeCpu - yielded.cpu, st.freeMemoryMb - yielded.memoryMb)) {
           val id = st.nextId
           val next = st.copy(
             nextId = id + 1,
             freeCpu = st.freeCpu - cpuReq,
             freeMemoryMb = st.freeMemoryMb - memReq,
-            active = st.active.updated(id, Reservation(id, kind, label, cpuReq, memReq, now))
+            active = st.active.updated(id, Reservation(id, kind, claim, label, cpuReq, memReq, now))
           )
           (next, Some(id))
         } else (st, None)
@@ -107,6 +152,41 @@ final class MachineResources private (
     } yield maybeId.map(id => dispose(id))
   }
 
+  /** Stand in the governor as a scheduler that retries rather than queues, for the lifetime of the returned Resource.
+    *
+    * `wake` is run whenever resources are freed, or an outranking need shrinks, while this demand wants something — it must be cheap and must not block;
+    * [[bleep.bsp.TaskDag]] passes its coalescing wakeup. Closing the demand withdraws whatever it still wanted.
+    */
+  def demand(tenant: String, wake: IO[Unit]): Resource[IO, Demand] = {
+    val register = state.modify { st =>
+      (st.copy(nextId = st.nextId + 1, demands = st.demands.updated(st.nextId, Wanted(tenant, Map.empty, wake))), st.nextId)
+    }
+    def withdraw(id: Long): IO[Unit] =
+      state.modify(st => grantAndWake(st.copy(demands = st.demands - id), except = Some(id))).flatMap(completeAndWake)
+    Resource.make(register)(withdraw).map(id => new Demand(this, id, tenant))
+  }
+
+  private[MachineResources] def setWanted(id: Long, wants: Map[Priority, Want]): IO[Unit] =
+    state
+      .modify { st =>
+        st.demands.get(id) match {
+          case Some(current) if current.wants != wants =>
+            val next = st.copy(demands = st.demands.updated(id, current.copy(wants = wants)))
+            // Growing a need can only refuse more, so it wakes nobody. Shrinking one may be what a lower class was yielding to — and if nobody were woken
+            // for it, two schedulers refusing each other would each wait for the other's next completion.
+            val shrank = current.wants.exists { case (p, w) => wants.get(p).forall(now => now.cpu < w.cpu || now.memoryMb < w.memoryMb) }
+            if (shrank) grantAndWake(next, except = Some(id)) else (next, (Nil, Nil))
+          case _ => (st, (Nil, Nil))
+        }
+      }
+      .flatMap(completeAndWake)
+
+  private[MachineResources] def tryReserveAs(owner: Long, kind: ResourceKind, claim: Claim, label: String, cpu: Int, memoryMb: Long): IO[Option[IO[Unit]]] =
+    tryReserveWhen(kind, claim, label, cpu, memoryMb, requireEmptyQueue = false, owner = Some(owner))
+
+  private[MachineResources] def reserveUntilReleasedAs(owner: Long, kind: ResourceKind, claim: Claim, label: String, cpu: Int, memoryMb: Long): IO[IO[Unit]] =
+    reserveAs(Some(owner), kind, claim, label, cpu, memoryMb).allocated.map { case (_, release) => release }
+
   /** Release or cancel reservation `id`, then grant whoever was waiting on the freed resources. Idempotent, and handles both states: still-queued (drop from
     * the wait queue, nothing was held) and already-granted (return the resources).
     */
@@ -114,16 +194,30 @@ final class MachineResources private (
     state
       .modify { st =>
         if (st.waiting.exists(_.id == id))
-          (st.copy(waiting = st.waiting.filterNot(_.id == id)), Nil)
+          // A waiter that leaves may have been what others were yielding to.
+          grantAndWake(st.copy(waiting = st.waiting.filterNot(_.id == id)), except = None)
         else
           st.active.get(id) match {
             case Some(r) =>
               val freed = st.copy(freeCpu = st.freeCpu + r.cpu, freeMemoryMb = st.freeMemoryMb + r.memoryMb, active = st.active - id)
-              grantEligible(freed)
-            case None => (st, Nil)
+              grantAndWake(freed, except = None)
+            case None => (st, (Nil, Nil))
           }
       }
-      .flatMap(completeAll)
+      .flatMap(completeAndWake)
+
+  /** Grant what now fits, and collect the wakeups of every demand still wanting something (bar `except`, the one whose change this is). */
+  private def grantAndWake(st: St, except: Option[Long]): (St, (List[Waiter], List[IO[Unit]])) = {
+    val (next, granted) = grantEligible(st)
+    val wakes = next.demands.toList
+      .collect { case (id, d) if d.wants.nonEmpty && !except.contains(id) => (d.wants.keys.map(_.rank).min, d.wake) }
+      .sortBy(_._1)
+      .map(_._2)
+    (next, (granted, wakes))
+  }
+
+  private def completeAndWake(grantedAndWakes: (List[Waiter], List[IO[Unit]])): IO[Unit] =
+    completeAll(grantedAndWakes._1) >> grantedAndWakes._2.sequence_
 
   /** Complete the gates of newly-granted waiters (wakes them), logging each grant. Runs outside any state update.
     */
@@ -132,8 +226,8 @@ final class MachineResources private (
       val log =
         if (w.sinceMs > 0) {
           IO.realTime.map(_.toMillis - w.sinceMs).flatMap { waited =>
-            if (waited >= longWaitWarnMs) IO(logger.info(s"[machine] granted '${w.label}' (${w.kind}) after waiting ${waited}ms"))
-            else IO(logger.debug(s"[machine] grant '${w.label}' (${w.kind}) cpu=${w.cpu} mem=${w.memoryMb}MB"))
+            if (waited >= longWaitWarnMs) IO(logger.info(s"[machine] granted '${w.label}' (${w.kind}, ${w.claim.priority.name}) after waiting ${waited}ms"))
+            else IO(logger.debug(s"[machine] grant '${w.label}' (${w.kind}, ${w.claim.priority.name}) cpu=${w.cpu} mem=${w.memoryMb}MB"))
           }
         } else IO.unit
       log *> w.gate.complete(()).void
@@ -149,8 +243,20 @@ final class MachineResources private (
         totalMemoryMb = st.totalMemoryMb,
         usedMemoryMb = st.totalMemoryMb - st.freeMemoryMb,
         activeCompiles = st.activeCompiles,
-        active = st.active.values.toList.sortBy(_.id).map(r => Entry(r.kind, r.label, r.cpu, r.memoryMb, now - r.sinceMs)),
-        waiting = st.waiting.toList.map(w => Entry(w.kind, w.label, w.cpu, w.memoryMb, now - w.sinceMs))
+        active = st.active.values.toList.sortBy(_.id).map(r => Entry(r.kind, r.claim, r.label, r.cpu, r.memoryMb, now - r.sinceMs)),
+        waiting = st.waiting.toList.map(w => Entry(w.kind, w.claim, w.label, w.cpu, w.memoryMb, now - w.sinceMs)),
+        shares = Priority.all.map { p =>
+          val running = st.active.values.filter(_.claim.priority == p)
+          ClassShare(
+            priority = p,
+            usedCpu = running.map(_.cpu).sum,
+            usedMemoryMb = running.map(_.memoryMb).sum,
+            running = running.size,
+            waiting = st.waiting.count(_.claim.priority == p),
+            wantedCpu = st.demands.values.flatMap(_.wants.get(p)).map(_.cpu).sum,
+            cpuByTenant = running.groupMapReduce(_.claim.tenant)(_.cpu)(_ + _)
+          )
+        }
       )
     }
 
@@ -178,14 +284,14 @@ final class MachineResources private (
     state
       .modify { st =>
         val next = math.max(1L, newTotalMb)
-        if (next == st.totalMemoryMb) (st, Nil)
+        if (next == st.totalMemoryMb) (st, (Nil, Nil))
         else {
           // Move free by the same delta as total, so what is currently reserved stays reserved.
           val adjusted = st.copy(totalMemoryMb = next, freeMemoryMb = st.freeMemoryMb + (next - st.totalMemoryMb))
-          grantEligible(adjusted)
+          if (next > st.totalMemoryMb) grantAndWake(adjusted, except = None) else (adjusted, (Nil, Nil))
         }
       }
-      .flatMap(completeAll)
+      .flatMap(completeAndWake)
 
   /** The budget currently in force. */
   def memoryBudgetMb: IO[Long] = state.get.map(_.totalMemoryMb)
@@ -199,10 +305,108 @@ object MachineResources {
     case object TestFork extends ResourceKind
     case object SourcegenFork extends ResourceKind
     case object KspFork extends ResourceKind
+
+    /** Downloading and unpacking remote-cache entries in the background. Admitted only through [[MachineResources.tryReserveIdle]]. */
+    case object RemoteCachePrefetch extends ResourceKind
+
+    /** Reloading what a previous daemon was serving, before anyone asks for it again. Admitted only through [[MachineResources.tryReserveIdle]]. */
+    case object WarmRestart extends ResourceKind
+
+    /** Working out answers an IDE is about to ask for, straight after its connection adopts a build. Admitted only through
+      * [[MachineResources.tryReserveIdle]].
+      */
+    case object ResponseWarmup extends ResourceKind
+
+    /** A compile worker JVM, for as long as it lives. Memory only: the compiles it runs reserve their cores as [[Compile]], exactly as in-process ones do. */
+    case object CompileWorker extends ResourceKind
+
+    /** The extra cores a large compile's parallel backend runs on, beside the [[Compile]] reservation the compile already holds. Not a compile of its own, so
+      * not in [[MachineResources.activeCompiles]]. Admitted only through [[MachineResources.tryReserveIdle]].
+      */
+    case object CompileThreads extends ResourceKind
   }
 
-  private case class Reservation(id: Long, kind: ResourceKind, label: String, cpu: Int, memoryMb: Long, sinceMs: Long)
-  private case class Waiter(id: Long, kind: ResourceKind, label: String, cpu: Int, memoryMb: Long, sinceMs: Long, gate: Deferred[IO, Unit])
+  /** How urgently a reservation is wanted. Strictly ordered by `rank`, lowest first: a class never waits for a class below it.
+    *
+    * Deliberately few. Each class exists because someone is waiting on it in a different way — a person at an editor, a person or agent at a terminal, a test
+    * run whose wall time is dominated by its slowest suite anyway, and nobody at all.
+    */
+  sealed abstract class Priority(val rank: Int, val name: String) {
+    override def toString: String = name
+  }
+  object Priority {
+
+    /** A compile an IDE asked for. Someone is looking at red squiggles. */
+    case object Interactive extends Priority(0, "interactive")
+
+    /** A compile, or a fork on a compile's path, asked for by the CLI or an agent. */
+    case object Batch extends Priority(1, "batch")
+
+    /** Running tests. */
+    case object TestFork extends Priority(2, "test")
+
+    /** Work nobody is waiting on yet. */
+    case object Background extends Priority(3, "background")
+
+    val all: List[Priority] = List(Interactive, Batch, TestFork, Background)
+
+    /** The class of a reservation whose caller did not say. Compiles are not interactive unless someone says they are. */
+    def defaultFor(kind: ResourceKind): Priority =
+      kind match {
+        case ResourceKind.Compile | ResourceKind.SourcegenFork | ResourceKind.KspFork | ResourceKind.CompileWorker                   => Batch
+        case ResourceKind.TestFork                                                                                                   => TestFork
+        case ResourceKind.RemoteCachePrefetch | ResourceKind.WarmRestart | ResourceKind.ResponseWarmup | ResourceKind.CompileThreads => Background
+      }
+  }
+
+  /** Who wants a reservation and how urgently. Fairness within a [[Priority]] is shared out across `tenant`s — the server passes the workspace, so two agents
+    * hammering one workspace share with an IDE on another rather than outvoting it.
+    */
+  case class Claim(priority: Priority, tenant: String)
+  object Claim {
+
+    /** For callers that cannot say who they are working for. All of them are one tenant, at the default class of their kind. */
+    def unattributed(kind: ResourceKind): Claim = Claim(Priority.defaultFor(kind), "")
+  }
+
+  /** An amount of both dimensions. */
+  case class Want(cpu: Int, memoryMb: Long) {
+    def +(other: Want): Want = Want(cpu + other.cpu, memoryMb + other.memoryMb)
+  }
+  object Want {
+    val none: Want = Want(0, 0L)
+  }
+
+  /** A scheduler's standing in the governor: what it wanted and was refused, per class, so that lower classes leave it room. See [[MachineResources.demand]].
+    *
+    * Reserving through the demand is what keeps its own need from counting against it.
+    */
+  final class Demand private[MachineResources] (machine: MachineResources, id: Long, val tenant: String) {
+
+    /** Replace what this scheduler is currently waiting for. Set it after every admission pass — to nothing, when nothing was refused. */
+    def wanting(wants: Map[Priority, Want]): IO[Unit] =
+      machine.setWanted(id, wants.filter { case (_, w) => w.cpu > 0 || w.memoryMb > 0 })
+
+    def tryReserve(kind: ResourceKind, priority: Priority, label: String, cpu: Int, memoryMb: Long): IO[Option[IO[Unit]]] =
+      machine.tryReserveAs(id, kind, Claim(priority, tenant), label, cpu, memoryMb)
+
+    def reserveUntilReleased(kind: ResourceKind, priority: Priority, label: String, cpu: Int, memoryMb: Long): IO[IO[Unit]] =
+      machine.reserveUntilReleasedAs(id, kind, Claim(priority, tenant), label, cpu, memoryMb)
+  }
+
+  private case class Reservation(id: Long, kind: ResourceKind, claim: Claim, label: String, cpu: Int, memoryMb: Long, sinceMs: Long)
+  private case class Waiter(
+      id: Long,
+      owner: Option[Long],
+      kind: ResourceKind,
+      claim: Claim,
+      label: String,
+      cpu: Int,
+      memoryMb: Long,
+      sinceMs: Long,
+      gate: Deferred[IO, Unit]
+  )
+  private case class Wanted(tenant: String, wants: Map[Priority, Want], wake: IO[Unit])
 
   /** All governor state, held in one Ref. */
   private case class St(
@@ -211,33 +415,81 @@ object MachineResources {
       freeMemoryMb: Long,
       nextId: Long,
       active: Map[Long, Reservation],
-      waiting: Vector[Waiter]
+      waiting: Vector[Waiter],
+      demands: Map[Long, Wanted]
   ) {
 
     /** Compiles currently holding a reservation. Derived rather than stored: one counter that must be kept in step with `active` across grant, release and
       * cancel is one counter that will eventually disagree with it, and `active` is small.
       */
     def activeCompiles: Int = active.values.count(_.kind == ResourceKind.Compile)
+
+    /** Cores held under each claim — what fairness within a class is measured in. */
+    def heldCpu: Map[Claim, Int] = active.values.groupMapReduce(_.claim)(_.cpu)(_ + _)
+
+    /** What a request under `claim` must leave free: every outranking waiter's need along the dimensions it is short of, and every outranking demand's need
+      * whole. A demand counts whole because it was refused when it last looked, and whatever has freed since is what it is about to come back for.
+      */
+    def yieldedBy(claim: Claim, owner: Option[Long]): Want = {
+      val held = heldCpu
+      val fromWaiters = waiting.iterator
+        .filter(w => outranks(w.claim, claim, held))
+        .map(w => shortOf(w.cpu, w.memoryMb, freeCpu, freeMemoryMb))
+      val fromDemands = demands.iterator
+        .filterNot { case (id, _) => owner.contains(id) }
+        .flatMap { case (_, d) => d.wants.iterator.collect { case (p, w) if outranks(Claim(p, d.tenant), claim, held) => w } }
+      (fromWaiters ++ fromDemands).foldLeft(Want.none)(_ + _)
+    }
   }
 
-  /** Grant every currently-fitting waiter, oldest first (work-conserving: a waiter that doesn't fit is skipped rather than head-of-line-blocking). Pure:
-    * returns the updated state and the waiters that were granted (whose gates the caller then completes).
+  /** Whether `other`'s unmet need comes before `claim`'s: a higher class always does; within a class, another tenant holding fewer cores does. Equal holdings
+    * defer to nobody, so two tenants of one class with the same share compete on age as before.
+    */
+  private def outranks(other: Claim, claim: Claim, held: Map[Claim, Int]): Boolean =
+    other.priority.rank < claim.priority.rank ||
+      (other.priority == claim.priority && other.tenant != claim.tenant && held.getOrElse(other, 0) < held.getOrElse(claim, 0))
+
+  /** The part of `(cpu, memoryMb)` that does not fit in what is free: the dimensions a blocked request is actually waiting for. */
+  private def shortOf(cpu: Int, memoryMb: Long, freeCpu: Int, freeMemoryMb: Long): Want =
+    Want(
+      cpu = if (cpu == 0 || freeCpu >= cpu) 0 else cpu,
+      memoryMb = if (memoryMb == 0L || freeMemoryMb >= memoryMb) 0L else memoryMb
+    )
+
+  /** Grant every waiter that fits once outranking needs are set aside. Pure: returns the updated state and the waiters that were granted (whose gates the
+    * caller then completes).
+    *
+    * Waiters are considered by class, then fewest cores held by their claim, then age — and a waiter that does not fit is skipped rather than
+    * head-of-line-blocking. What it was short of is then set aside from everything it outranks, so a lower class cannot take the core a higher one is
+    * waiting for, but can still take memory the higher one does not need. Within one claim nothing is set aside: oldest-first among requests that fit, as
+    * always.
     */
   private def grantEligible(st: St): (St, List[Waiter]) = {
     var freeCpu = st.freeCpu
     var freeMem = st.freeMemoryMb
     var active = st.active
+    val held = scala.collection.mutable.Map.from(st.heldCpu)
     val granted = List.newBuilder[Waiter]
-    val stillWaiting = Vector.newBuilder[Waiter]
-    st.waiting.foreach { w =>
-      if (fits(w.cpu, w.memoryMb, freeCpu, freeMem)) {
+    val grantedIds = scala.collection.mutable.Set.empty[Long]
+    val blocked = scala.collection.mutable.ListBuffer.empty[(Claim, Want)]
+    st.waiting.sortBy(w => (w.claim.priority.rank, held.getOrElse(w.claim, 0), w.id)).foreach { w =>
+      val snapshotHeld = held.toMap
+      val fromBlocked = blocked.toList.collect { case (c, short) if outranks(c, w.claim, snapshotHeld) => short }
+      val fromDemands = st.demands.iterator
+        .filterNot { case (id, _) => w.owner.contains(id) }
+        .flatMap { case (_, d) => d.wants.collect { case (p, want) if outranks(Claim(p, d.tenant), w.claim, snapshotHeld) => want } }
+      val yielded = (fromBlocked ++ fromDemands).foldLeft(Want.none)(_ + _)
+      if (fits(w.cpu, w.memoryMb, freeCpu - yielded.cpu, freeMem - yielded.memoryMb)) {
         freeCpu -= w.cpu
         freeMem -= w.memoryMb
-        active = active.updated(w.id, Reservation(w.id, w.kind, w.label, w.cpu, w.memoryMb, w.sinceMs))
+        active = active.updated(w.id, Reservation(w.id, w.kind, w.claim, w.label, w.cpu, w.memoryMb, w.sinceMs))
+        held.update(w.claim, held.getOrElse(w.claim, 0) + w.cpu)
         granted += w
-      } else stillWaiting += w
+        grantedIds += w.id
+      } else blocked += ((w.claim, shortOf(w.cpu, w.memoryMb, freeCpu, freeMem)))
     }
-    (st.copy(freeCpu = freeCpu, freeMemoryMb = freeMem, active = active, waiting = stillWaiting.result()), granted.result())
+    // The queue keeps arrival order; only the grant pass is sorted.
+    (st.copy(freeCpu = freeCpu, freeMemoryMb = freeMem, active = active, waiting = st.waiting.filterNot(w => grantedIds(w.id))), granted.result())
   }
 
   /** Does a request for `(cpu, mem)` fit given what is free?
@@ -256,7 +508,18 @@ object MachineResources {
   private def fits(cpu: Int, memoryMb: Long, freeCpu: Int, freeMemoryMb: Long): Boolean =
     (cpu == 0 || freeCpu >= cpu) && (memoryMb == 0L || freeMemoryMb >= memoryMb)
 
-  case class Entry(kind: ResourceKind, label: String, cpu: Int, memoryMb: Long, ageMs: Long)
+  case class Entry(kind: ResourceKind, claim: Claim, label: String, cpu: Int, memoryMb: Long, ageMs: Long)
+
+  /** What one [[Priority]] class holds and wants right now. `wantedCpu` is what retrying schedulers were refused, which never shows up as `waiting`. */
+  case class ClassShare(
+      priority: Priority,
+      usedCpu: Int,
+      usedMemoryMb: Long,
+      running: Int,
+      waiting: Int,
+      wantedCpu: Int,
+      cpuByTenant: Map[String, Int]
+  )
 
   case class Snapshot(
       totalCpu: Int,
@@ -265,7 +528,8 @@ object MachineResources {
       usedMemoryMb: Long,
       activeCompiles: Int,
       active: List[Entry],
-      waiting: List[Entry]
+      waiting: List[Entry],
+      shares: List[ClassShare]
   ) {
 
     /** Multi-line human-readable rendering for the server log. */
@@ -274,8 +538,14 @@ object MachineResources {
       sb.append(
         f"machine: cpu $usedCpu%d/$totalCpu%d, mem $usedMemoryMb%d/$totalMemoryMb%dMB, compiles $activeCompiles%d, running ${active.size}%d, waiting ${waiting.size}%d"
       )
+      shares.filter(c => c.running > 0 || c.waiting > 0 || c.wantedCpu > 0).foreach { c =>
+        val tenants = c.cpuByTenant.toList.sortBy(-_._2).map { case (t, n) => s"${if (t.isEmpty) "-" else t}=$n" }.mkString(" ")
+        sb.append(
+          f"\n  class    ${c.priority.name}%-11s cpu ${c.usedCpu}%d/$totalCpu%d (${100 * c.usedCpu / math.max(1, totalCpu)}%d%%), mem ${c.usedMemoryMb}%dMB, running ${c.running}%d, waiting ${c.waiting}%d, wanted cpu ${c.wantedCpu}%d  $tenants"
+        )
+      }
       def line(prefix: String, e: Entry): Unit =
-        sb.append(f"\n  $prefix%-8s ${e.kind}%-14s cpu=${e.cpu}%d mem=${e.memoryMb}%dMB age=${e.ageMs / 1000}%ds  ${e.label}")
+        sb.append(f"\n  $prefix%-8s ${e.kind}%-14s ${e.claim.priority.name}%-11s cpu=${e.cpu}%d mem=${e.memoryMb}%dMB age=${e.ageMs / 1000}%ds  ${e.label}")
       active.foreach(line("running", _))
       waiting.foreach(line("waiting", _))
       sb.toString()
@@ -352,7 +622,17 @@ object MachineResources {
     val cpu = math.max(1, totalCpu)
     val mem = math.max(1L, totalMemoryMb)
     logger.info(s"[machine] resource governor: $cpu CPU core(s), ${mem}MB fork-memory budget")
-    val state = Ref.unsafe[IO, St](St(freeCpu = cpu, totalMemoryMb = mem, freeMemoryMb = mem, nextId = 0L, active = Map.empty, waiting = Vector.empty))
+    val state = Ref.unsafe[IO, St](
+      St(
+        freeCpu = cpu,
+        totalMemoryMb = mem,
+        freeMemoryMb = mem,
+        nextId = 0L,
+        active = Map.empty,
+        waiting = Vector.empty,
+        demands = Map.empty
+      )
+    )
     new MachineResources(cpu, state, logger, longWaitWarnMs)
   }
 
@@ -12,7 +12,8 @@ case class PreBootstrapOpts(
     directory: Option[String],
     dev: Boolean,
     noBspProgress: Boolean,
-    logAsJson: Boolean
+    logAsJson: Boolean,
+    refreshLock: Boolean
 ) {
   def toLoggingOpts: LoggingOpts =
     LoggingOpts(
@@ -46,6 +47,7 @@ object PreBootstrapOpts {
     var dev = false
     var noBspProgress = false
     var logAsJson = propsOrEnv(CallerProcessAcceptsJsonEvents).nonEmpty
+    var refreshLock = false
     var idx = 0
     while (idx < args.length) {
       args(idx) match {
@@ -59,6 +61,7 @@ object PreBootstrapOpts {
         case "--debug"           => debug = true
         case "--no-bsp-progress" => noBspProgress = true
         case "--log-as-json"     => logAsJson = true
+        case "--refresh-lock"    => refreshLock = true
         case "--"                =>
           keepArgs ++= args.drop(idx)
           idx = Int.MaxValue - 1
@@ -71,6 +74,8 @@ object PreBootstrapOpts {
     // Set the JVM-local marker so code that doesn't see the parsed `PreBootstrapOpts` directly — `DisplayMode.fromFlags` is the canonical example — can still
     // make a no-color decision. Set unconditionally to true/false so later parses (e.g. from completion paths) reflect the latest invocation.
     sys.props.put(NoColorProperty, noColor.toString): Unit
-    (PreBootstrapOpts(noColor, debug, directory, dev, noBspProgress, logAsJson), keepArgs.result())
+    // Same for `--refresh-lock`, read by `ResolveLock` when the build is loaded, however many layers below this the loading happens.
+    sys.props.put(ResolveLock.RefreshProperty, refreshLock.toString): Unit
+    (PreBootstrapOpts(noColor, debug, directory, dev, noBspProgress, logAsJson, refreshLock), keepArgs.result())
   }
 }
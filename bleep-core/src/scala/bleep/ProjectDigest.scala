@@ -2,6 +2,7 @@ package bleep
 
 import java.nio.file.{Files, Path}
 import java.security.MessageDigest
+import java.util.concurrent.{CompletableFuture, CompletionException, Executors}
 import scala.collection.immutable.SortedMap
 import scala.collection.mutable
 import scala.jdk.StreamConverters.*
@@ -11,14 +12,15 @@ import scala.util.control.NonFatal
   *
   * The digest includes:
   *   - Project configuration (deps, compiler flags, scala version, platform, etc.)
-  *   - Source file content hashes (via `git ls-tree` for clean dirs, filesystem for dirty/generated)
+  *   - Source file content hashes (git's blob hashes for clean dirs, filesystem for dirty/generated)
   *   - Resource file content hashes (affects key but resources are NOT cached)
   *   - Transitive dependency project digests (if B depends on A, B's digest includes A's digest)
   *
-  * Computed bottom-up through the dependency DAG so leaf projects are digested first.
+  * Computed bottom-up through the dependency DAG, independent branches in parallel.
   *
-  * For performance on large repos, uses `git ls-tree` to get precomputed content hashes when the working tree is clean for a directory. Falls back to
-  * filesystem hashing for directories with uncommitted changes or generated sources not tracked by git.
+  * For performance on large repos, uses git's precomputed content hashes when the working tree is clean for a directory. Falls back to filesystem hashing
+  * for directories with uncommitted changes or generated sources not tracked by git. Git is asked in-process through [[GitRepository]], which reads the index
+  * and HEAD's trees once for every directory; the `git` binary is only run for what that reader does not model.
   */
 object ProjectDigest {
 
@@ -30,75 +32,124 @@ object ProjectDigest {
   def computeAll(
       build: model.Build,
       buildPaths: BuildPaths
+  ): SortedMap[model.CrossProjectName, String] =
+    computeFor(build, buildPaths, build.explodedProjects.keySet)
+
+  /** Digests for `projects` and everything they depend on, and nothing else.
+    *
+    * For callers that want one project's digest — a compile recording the key its outputs will be pushed under — and should not pay for every other project
+    * in the build to get it. A project's digest is the same whichever of the two computes it.
+    *
+    * File hashes are read from and written back to the workspace's [[FileHashCache]], so a second run only reads the files that changed since the first.
+    *
+    * @return
+    *   map from project name to digest, for `projects` and their transitive dependencies
+    */
+  def computeFor(
+      build: model.Build,
+      buildPaths: BuildPaths,
+      projects: collection.Set[model.CrossProjectName]
+  ): SortedMap[model.CrossProjectName, String] = {
+    val hashes = FileHashCache.load(FileHashCache.fileFor(buildPaths))
+    try computeFor(build, buildPaths, projects, hashes)
+    finally hashes.save()
+  }
+
+  /** As above, against a [[FileHashCache]] the caller owns — the compile server keeps one in memory per workspace rather than reloading it per call.
+    *
+    * Projects are digested in parallel on virtual threads. A project's own content (config, sources, resources) does not depend on anything else and is hashed
+    * as soon as the work is scheduled; only the final step, folding in its dependencies' digests, waits for them. So independent branches of the DAG overlap
+    * completely, and a chain overlaps everything but the last few microseconds of each link. The bytes fed into each digest, and their order, are exactly
+    * what the sequential version fed, so digests — and every remote-cache key built from them — are unchanged.
+    */
+  def computeFor(
+      build: model.Build,
+      buildPaths: BuildPaths,
+      projects: collection.Set[model.CrossProjectName],
+      hashes: FileHashCache
   ): SortedMap[model.CrossProjectName, String] = {
-    val digests = mutable.Map.empty[model.CrossProjectName, String]
+    val git = GitView.open(buildPaths.buildDir)
 
-    // Pre-compute set of dirty paths once (much cheaper than per-directory git status calls)
-    val dirtyPaths = gitDirtyPaths(buildPaths.buildDir)
+    val executor = Executors.newVirtualThreadPerTaskExecutor()
+    // Filled on this thread only, in dependency order, so every dependency's future exists before its dependents are scheduled.
+    val scheduled = mutable.Map.empty[model.CrossProjectName, CompletableFuture[String]]
 
-    // Bottom-up: compute leaves first, then projects that depend on them
-    def compute(crossName: model.CrossProjectName): String =
-      digests.getOrElseUpdate(
-        crossName, {
+    def schedule(crossName: model.CrossProjectName): CompletableFuture[String] =
+      scheduled.get(crossName) match {
+        case Some(future) => future
+        case None         =>
           val project = build.explodedProjects(crossName)
           val projectPaths = buildPaths.project(crossName, project)
 
-          val md = MessageDigest.getInstance("SHA-256")
+          // 4. Transitive dependency digests (sorted for determinism)
+          val deps = build.resolvedDependsOn.getOrElse(crossName, Set.empty).toList.sorted.map(schedule)
+          // 5. Sourcegen dependency digests
+          val sourcegens = project.sourcegen.values.toList.map { case model.ScriptDef.Main(sourcegenProject, _, _) => schedule(sourcegenProject) }
 
-          // 0. Bleep version (different versions produce different compilation output)
-          md.update(build.$version.value.getBytes("UTF-8"))
+          val own = CompletableFuture.supplyAsync(
+            () => {
+              val md = MessageDigest.getInstance("SHA-256")
 
-          // 1. Project config (deterministic YAML, excluding publish which doesn't affect compilation)
-          val configForDigest = project.copy(publish = None)
-          val configYaml = yaml.encodeShortened(configForDigest)
-          md.update(configYaml.getBytes("UTF-8"))
+              // 0. Bleep version (different versions produce different compilation output)
+              md.update(build.$version.value.getBytes("UTF-8"))
 
-          // 2. Source file content hashes
-          hashDirectories(md, buildPaths.buildDir, projectPaths.sourcesDirs.all, dirtyPaths)
+              // 1. Project config (deterministic YAML, excluding publish which doesn't affect compilation)
+              val configForDigest = project.copy(publish = None)
+              val configYaml = yaml.encodeShortened(configForDigest)
+              md.update(configYaml.getBytes("UTF-8"))
 
-          // 3. Resource file content hashes (affects digest, but resources are not cached)
-          hashDirectories(md, buildPaths.buildDir, projectPaths.resourcesDirs.all, dirtyPaths)
+              // 2. Source file content hashes
+              hashDirectories(md, buildPaths.buildDir, projectPaths.sourcesDirs.all, git, hashes)
 
-          // 4. Transitive dependency digests (sorted for determinism)
-          val deps = build.resolvedDependsOn.getOrElse(crossName, Set.empty)
-          deps.toList.sorted.foreach { dep =>
-            md.update(compute(dep).getBytes("UTF-8"))
-          }
+              // 3. Resource file content hashes (affects digest, but resources are not cached)
+              hashDirectories(md, buildPaths.buildDir, projectPaths.resourcesDirs.all, git, hashes)
+              md
+            },
+            executor
+          )
 
-          // 5. Sourcegen dependency digests
-          project.sourcegen.values.foreach { case model.ScriptDef.Main(sourcegenProject, _, _) =>
-            md.update(compute(sourcegenProject).getBytes("UTF-8"))
-          }
-
-          Checksums.byteArrayToHexString(md.digest())
-        }
-      )
+          val digest = CompletableFuture
+            .allOf((own :: deps ::: sourcegens)*)
+            .thenApply { _ =>
+              val md = own.join()
+              (deps ::: sourcegens).foreach(dep => md.update(dep.join().getBytes("UTF-8")))
+              Checksums.byteArrayToHexString(md.digest())
+            }
+          scheduled(crossName) = digest
+          digest
+      }
 
-    build.explodedProjects.keys.foreach(compute)
-    SortedMap.from(digests)
+    try {
+      projects.foreach(schedule)
+      SortedMap.from(scheduled.view.mapValues(await))
+    } finally {
+      executor.shutdown()
+      git.close()
+    }
   }
 
+  /** `join`, rethrowing what the digest actually failed with rather than the `CompletionException` around it. */
+  private def await(future: CompletableFuture[String]): String =
+    try future.join()
+    catch { case e: CompletionException if e.getCause != null => throw e.getCause }
+
   /** Hash all files under the given directories into the MessageDigest.
     *
-    * For each directory: if the working tree is clean (no dirty files under it), uses `git ls-tree` for precomputed content hashes (fast, no file I/O).
-    * Otherwise falls back to filesystem hashing.
+    * For each directory: if the working tree is clean (no dirty files under it), uses git's precomputed content hashes (fast, no file I/O). Otherwise falls
+    * back to filesystem hashing.
     */
   private def hashDirectories(
       md: MessageDigest,
       buildDir: Path,
       dirs: collection.Set[Path],
-      dirtyPaths: Option[Set[Path]]
+      git: GitView,
+      hashes: FileHashCache
   ): Unit =
     dirs.toList.sorted.foreach { dir =>
       if (Files.isDirectory(dir)) {
-        val isDirty = dirtyPaths match {
-          case Some(dirty) => dirty.exists(_.startsWith(dir))
-          case None        => true // not in a git repo, always use filesystem
-        }
-
-        if (!isDirty) {
+        if (git.isClean(dir, hashes)) {
           // Clean directory — use git blob hashes (fast, no file I/O)
-          val gitHashes = gitLsTree(buildDir, dir)
+          val gitHashes = git.lsTree(dir)
           if (gitHashes.nonEmpty) {
             // git ls-tree returns paths relative to repo root with '/' separators on every OS.
             // Normalize the dir prefix so the strip works on Windows.
@@ -111,20 +162,51 @@ object ProjectDigest {
             }
           } else {
             // Directory exists but git doesn't know about it (generated sources)
-            hashFilesystem(md, dir)
+            hashFilesystem(md, dir, hashes)
           }
         } else {
           // Dirty directory — must read from filesystem to capture uncommitted changes
-          hashFilesystem(md, dir)
+          hashFilesystem(md, dir, hashes)
         }
       }
     }
 
+  /** What git says about a workspace's directories: whether each is clean, and the blob hashes HEAD has for it.
+    *
+    * Answered by [[GitRepository]] wherever it can. Where it cannot — a repository format it does not model, a directory with untracked files it cannot tell
+    * from ignored ones — the `git` binary is asked instead, exactly as before it existed: `git status` at most once, and only if needed, and `git ls-tree` for
+    * the directories in question. Both give the same answers, so which one answered never shows in a digest.
+    */
+  private final class GitView(buildDir: Path, repo: Option[GitRepository], root: Option[Path]) extends AutoCloseable {
+    private lazy val dirtyPaths: Option[Set[Path]] =
+      if (root.isEmpty && !sys.env.contains("GIT_DIR")) None // not in a git repo; no need to ask git to confirm it
+      else gitDirtyPaths(buildDir, root.getOrElse(buildDir))
+
+    def isClean(dir: Path, hashes: FileHashCache): Boolean =
+      repo.flatMap(_.isClean(dir, hashes)).getOrElse {
+        dirtyPaths match {
+          case Some(dirty) => !dirty.exists(_.startsWith(dir))
+          case None        => false // not in a git repo, always use filesystem
+        }
+      }
+
+    def lsTree(dir: Path): List[(String, String)] =
+      repo.flatMap(_.lsTree(buildDir, dir)).getOrElse(gitLsTree(buildDir, dir))
+
+    def close(): Unit = repo.foreach(_.close())
+  }
+
+  private object GitView {
+    def open(buildDir: Path): GitView =
+      new GitView(buildDir, GitRepository.open(buildDir), GitRepository.locate(buildDir).map(_.workTree))
+  }
+
   /** Get all dirty (modified, staged, untracked) file paths in the repository. Returns None if not in a git repo.
     *
-    * Uses `git status --porcelain` which is fast and gives us all dirty paths in one call.
+    * Uses `git status --porcelain` which is fast and gives us all dirty paths in one call. Porcelain paths are relative to the repository root whatever
+    * directory git runs in, so they are resolved against `root`, not `buildDir` — for a build nested inside a larger repository the two differ.
     */
-  private def gitDirtyPaths(buildDir: Path): Option[Set[Path]] =
+  private def gitDirtyPaths(buildDir: Path, root: Path): Option[Set[Path]] =
     try {
       val output = scala.sys.process
         .Process(
@@ -137,7 +219,7 @@ object ProjectDigest {
         .map { line =>
           // Format: "XY <path>" or "XY <path> -> <path>" (for renames)
           val pathPart = line.substring(3).split(" -> ").last
-          buildDir.resolve(pathPart).normalize()
+          root.resolve(pathPart).normalize()
         }
         .toSet
       Some(paths)
@@ -145,7 +227,7 @@ object ProjectDigest {
       case NonFatal(_) => None // not in a git repo
     }
 
-  /** Use `git ls-tree -r HEAD -- <dir>` to get content hashes for all files under a directory.
+  /** Use `git ls-tree -r HEAD -- <dir>` to get content hashes for all files under a directory. The fallback for [[GitRepository.lsTree]].
     *
     * @return
     *   sorted list of (relative-path, blob-hash) pairs, or empty if the directory isn't tracked by git
@@ -176,9 +258,9 @@ object ProjectDigest {
   /** Hash all files under a directory using git-compatible blob hashes. Files are sorted by relative path for determinism.
     *
     * Computes the same hash as `git hash-object` for each file: `SHA-1("blob <size>\0" + content)`. This ensures filesystem hashing produces the same digest as
-    * git ls-tree hashing for identical content.
+    * git ls-tree hashing for identical content. Files whose stat is unchanged since they were last hashed are not read at all — see [[FileHashCache]].
     */
-  private def hashFilesystem(md: MessageDigest, dir: Path): Unit = {
+  private def hashFilesystem(md: MessageDigest, dir: Path, hashes: FileHashCache): Unit = {
     val files = scala.util
       .Using(Files.walk(dir)) { stream =>
         stream.toScala(List).filter(Files.isRegularFile(_))
@@ -193,22 +275,9 @@ object ProjectDigest {
       .sortBy { case (relPath, _) => relPath }
 
     files.foreach { case (relPath, file) =>
-      val content = Files.readAllBytes(file)
-      val blobHash = gitBlobHash(content)
+      val blobHash = hashes.blobHash(file)
       md.update(relPath.getBytes("UTF-8"))
       md.update(blobHash.getBytes("UTF-8"))
     }
   }
-
-  /** Compute the git blob hash for file content: `SHA-1("blob <size>\0" + content)`.
-    *
-    * This matches what `git hash-object` produces, ensuring consistency between filesystem and git ls-tree hashing paths.
-    */
-  private def gitBlobHash(content: Array[Byte]): String = {
-    val header = s"blob ${content.length}\u0000"
-    val sha1 = MessageDigest.getInstance("SHA-1")
-    sha1.update(header.getBytes("UTF-8"))
-    sha1.update(content)
-    Checksums.byteArrayToHexString(sha1.digest())
-  }
 }
@@ -0,0 +1,213 @@
+package bleep
+
+import coursier.Fetch
+import coursier.error.CoursierError
+import ryddig.Logger
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap, Executors, Semaphore}
+import scala.collection.immutable.SortedSet
+import scala.util.control.NonFatal
+
+/** Resolves each distinct dependency set once, in parallel, ahead of the projects that need it.
+  *
+  * [[ResolveProjects.InMemory]] hands out one `Lazy` per project, and each does its own coursier resolutions the first time someone asks for it. A project
+  * forces its dependencies' cells first, one at a time, so a 250-project build spent tens of seconds resolving serially, most of it asking for the same thing
+  * again: the JVM and JS cross builds of a module, or a test project and the project it tests, often resolve identical dependency sets, and every Scala
+  * project resolves its compiler.
+  *
+  * The planner reads the build and collects each project's [[Request]]s — exactly what [[ResolveProjects.resolveProject]] will pass to the resolver — keeping
+  * one of each. Nothing is resolved until a project is asked for: [[Plan.warm]] then starts the requests of that project and everything it depends on, at most
+  * [[Parallelism]] at a time, so the chain of cells that follows finds its dependencies' resolutions already running side by side. A command that builds one
+  * project resolves what that project needs and nothing else; downloading the dependencies of every project in the build for a `bleep run` of one of them
+  * would be a cost the planner added, not one it saved. Only a process that will ask for every project anyway — the BSP connection, which hands the whole
+  * build to the compile server — starts everything at once ([[Plan.warmAll]]).
+  *
+  * The resolver the projects are resolved with ([[Prewarmed]]) answers a planned request from its result, waiting for it if it is still running, and starts
+  * it if nothing has yet, so a consumer that gets there first is never worse off than before.
+  *
+  * Nothing here changes what a project resolves to: a request the planner did not foresee, or one that failed, goes to the resolver exactly as before and fails
+  * the way it always did, on the thread that asked.
+  */
+object ResolutionPlanner {
+
+  /** Concurrent resolutions. Coursier already downloads in parallel within one; this bounds how many resolutions' worth of metadata it juggles at once. */
+  private val Parallelism = math.max(2, math.min(8, Runtime.getRuntime.availableProcessors()))
+
+  /** Runs every plan's resolutions. One for the process rather than one per plan: a plan lives as long as the build it was made for and may start a
+    * resolution at any point in that time, so there is no moment to close a per-plan executor at, and each daemon reload would leave another one behind. The
+    * per-plan [[Parallelism]] bound is the semaphore's, not the executor's.
+    */
+  private val executor = Executors.newVirtualThreadPerTaskExecutor()
+
+  /** One call to [[CoursierResolver.force]], as a value. Two projects asking for equal requests get the same answer. */
+  case class Request(
+      deps: SortedSet[model.Dep],
+      versionCombo: model.VersionCombo,
+      libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+      ignoreEvictionErrors: model.IgnoreEvictionErrors
+  ) {
+    def force(resolver: CoursierResolver, context: String): CoursierResolver.Result =
+      resolver.force(deps, versionCombo, libraryVersionSchemes, context, ignoreEvictionErrors)
+  }
+
+  /** Every request `crossName` will make, as far as the build tells. JVM agents are left out: they are rare, and a miss just resolves when asked. */
+  def requestsFor(crossName: model.CrossProjectName, explodedProject: model.Project, build: model.Build): List[Request] = {
+    val versionCombo = model.VersionCombo.fromExplodedProject(explodedProject).orThrowTextWithContext(crossName)
+    val libraryVersionSchemes = ResolveProjects.libraryVersionSchemesFor(crossName, explodedProject, build)
+    val (normal, runtime) = ResolveProjects.dependencyRequests(crossName, explodedProject, build, versionCombo, libraryVersionSchemes)
+
+    val scalaRequests = explodedProject.scala.flatMap(_.version) match {
+      case Some(scalaVersion) =>
+        val compiler = Request(
+          SortedSet[model.Dep](ResolveProjects.scalaCompilerDep(scalaVersion, versionCombo)),
+          versionCombo,
+          SortedSet.empty,
+          model.IgnoreEvictionErrors.No
+        )
+        val plugins = ResolveProjects
+          .compilerPluginDeps(versionCombo, explodedProject.scala)
+          .toList
+          .map(dep => Request(SortedSet(dep), versionCombo, libraryVersionSchemes, model.IgnoreEvictionErrors.No))
+        compiler :: plugins
+      case None => Nil
+    }
+
+    normal :: runtime.toList ::: scalaRequests
+  }
+
+  /** Work out everything the projects in `build` will ask for. Resolves nothing yet; see [[Plan.warm]]. */
+  def start(logger: Logger, resolver: CoursierResolver, build: model.Build): Plan = {
+    val perProject: Map[model.CrossProjectName, List[Request]] =
+      build.explodedProjects.map { case (crossName, p) =>
+        // A project whose requests cannot even be worked out fails when it is resolved, with the error it always had.
+        val requests =
+          try requestsFor(crossName, p, build)
+          catch { case NonFatal(_) => Nil }
+        crossName -> requests
+      }
+    new Plan(logger, resolver, build, perProject)
+  }
+
+  final class Plan private[ResolutionPlanner] (
+      logger: Logger,
+      underlying: CoursierResolver,
+      build: model.Build,
+      perProject: Map[model.CrossProjectName, List[Request]]
+  ) {
+    private val slots = new Semaphore(Parallelism)
+    private val started = new ConcurrentHashMap[Request, CompletableFuture[Either[CoursierError, CoursierResolver.Result]]]()
+    private val completed = new AtomicInteger(0)
+
+    /** Every distinct request the build's projects will make. */
+    val requests: Set[Request] = perProject.valuesIterator.flatten.toSet
+
+    val resolver: CoursierResolver = new Prewarmed(underlying, requests, startRequest)
+
+    /** The request's resolution, started now if nothing has started it yet. */
+    private def startRequest(request: Request): CompletableFuture[Either[CoursierError, CoursierResolver.Result]] =
+      started.computeIfAbsent(
+        request,
+        _ =>
+          CompletableFuture.supplyAsync(
+            () => {
+              slots.acquire()
+              val result =
+                try underlying.resolve(request.deps, request.versionCombo, request.libraryVersionSchemes, request.ignoreEvictionErrors)
+                finally slots.release()
+              logger.withContext("done", completed.incrementAndGet()).withContext("of", requests.size).debug("resolved dependency set")
+              result
+            },
+            executor
+          )
+      )
+
+    /** Start resolving what `projects` and everything they depend on will ask for, unless already started.
+      *
+      * @return
+      *   completes when those requests are in, whatever the outcome
+      */
+    def warm(projects: Iterable[model.CrossProjectName]): CompletableFuture[Unit] = {
+      val t0 = System.currentTimeMillis()
+      val closure = projects.toSet.flatMap(name => build.transitiveDependenciesFor(name).keySet + name)
+      val wanted = closure.toList.flatMap(name => perProject.getOrElse(name, Nil)).distinct
+      val newlyStarted = wanted.count(request => !started.containsKey(request))
+      val futures = wanted.map(startRequest)
+      CompletableFuture
+        .allOf(futures*)
+        .handle[Unit] { (_, _) =>
+          if (newlyStarted > 0) {
+            val failed = futures.count(f => f.isCompletedExceptionally || f.join().isLeft)
+            val td = System.currentTimeMillis() - t0
+            val message = s"resolved $newlyStarted distinct dependency sets for ${closure.size} projects in $td ms"
+            val ctxLogger = logger.withContext("parallelism", Parallelism).withContext("failed", failed)
+            // Mostly a few cache reads. Worth a line only when it actually resolved something.
+            if (td >= 1000) ctxLogger.info(message) else ctxLogger.debug(message)
+          }
+        }
+    }
+
+    /** [[warm]] every project in the build. */
+    def warmAll(): CompletableFuture[Unit] =
+      warm(build.explodedProjects.keySet)
+
+    /** Force every cell in `projects` in the background, once their requests are in — not before, so a cell never holds a slot while waiting on a request
+      * that needs one. A cell that fails keeps its failure for whoever asks for it.
+      *
+      * @return
+      *   completes when every cell has been forced, whatever the outcome
+      */
+    def prewarm(projects: ResolveProjects.Projects): CompletableFuture[Void] =
+      warm(projects.keySet)
+        .thenCompose[Void] { _ =>
+          val forced = projects.values.toList.map { cell =>
+            CompletableFuture.runAsync(
+              () => {
+                slots.acquire()
+                try cell.get.discard()
+                catch { case NonFatal(_) => () }
+                finally slots.release()
+              },
+              executor
+            )
+          }
+          CompletableFuture.allOf(forced*)
+        }
+  }
+
+  /** Answers planned requests from the planner's results, starting them if nothing has yet, and everything else from `underlying`. */
+  final class Prewarmed(
+      underlying: CoursierResolver,
+      planned: Set[Request],
+      start: Request => CompletableFuture[Either[CoursierError, CoursierResolver.Result]]
+  ) extends CoursierResolver {
+    override val params: CoursierResolver.Params = underlying.params
+
+    // Planned results were resolved with the old params.
+    override def withParams(newParams: CoursierResolver.Params): CoursierResolver =
+      underlying.withParams(newParams)
+
+    override def resolve(
+        deps: SortedSet[model.Dep],
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        ignoreEvictionErrors: model.IgnoreEvictionErrors
+    ): Either[CoursierError, CoursierResolver.Result] = {
+      def direct = underlying.resolve(deps, versionCombo, libraryVersionSchemes, ignoreEvictionErrors)
+      val request = Request(deps, versionCombo, libraryVersionSchemes, ignoreEvictionErrors)
+      if (!planned(request)) direct
+      else
+        // A resolution that threw is retried here, so the exception surfaces where it always did.
+        try start(request).join()
+        catch { case NonFatal(_) => direct }
+    }
+
+    override def direct(
+        deps: SortedSet[model.Dep],
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        ignoreEvictionErrors: model.IgnoreEvictionErrors
+    ): Either[CoursierError, Fetch.Result] =
+      underlying.direct(deps, versionCombo, libraryVersionSchemes, ignoreEvictionErrors)
+  }
+}
@@ -0,0 +1,241 @@
+package bleep
+
+import bleep.CoursierResolver.Cached
+import bleep.internal.FileUtils
+import coursier.Fetch
+import coursier.error.CoursierError
+import io.circe.*
+import io.circe.syntax.*
+import ryddig.Logger
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.attribute.BasicFileAttributes
+import java.nio.file.{Files, Path}
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.immutable.SortedSet
+import scala.jdk.CollectionConverters.*
+import scala.util.Using
+import scala.util.control.NonFatal
+
+/** A resolver that answers from the build's lockfile when it can, and records what it resolved into it when it cannot.
+  *
+  * [[CoursierResolver.Cached]] already spares coursier itself on a warm machine, but a cold start still hashes every request and parses one circe file per
+  * request, and a 250-project build makes close to a thousand of them. The lockfile is one file, read once: for every dependency set the build resolved last
+  * time, keyed by a digest of the exact inputs (dependencies, version combo, library version schemes, repositories and the other resolver params, eviction
+  * setting), it records each artifact's coordinates, its path in the coursier cache, and its size, modification time and SHA-1 as they were when locked.
+  *
+  * A request is answered from the lockfile only if its key is there and every file still has the size and modification time it was locked with — a stat per
+  * file, no reads. Anything else goes to `underlying` as before, and the answer is locked for next time. The checksum is not verified on the way in; it is for
+  * whoever needs to know what exactly was on the classpath, and is carried over without rereading a file whose stat did not change.
+  *
+  * Not locked, like in [[CoursierResolver.Cached]]: snapshots, changing artifacts, and bleep's own `build.bleep` dependencies, whose dev versions resolve to
+  * class directories.
+  *
+  * The file lives at [[BuildPaths.resolveLockFile]]. Paths in it are absolute, so it belongs to the machine that wrote it rather than to the repository. It is
+  * rewritten as soon as the dependency sets a command asked for have been resolved — not when every project has been, which a short command exits long
+  * before — and again if anything asked later adds to it. What was asked for is kept, and so is anything the build would still ask for ([[retain]]); a
+  * dependency set no project makes any more is dropped, so the file follows the build as dependencies change. The whole file is ignored when the build's
+  * bleep version changes, since `${BLEEP_VERSION}` in a dependency is not part of any key, and when `--refresh-lock` is given, which rebuilds it from scratch.
+  */
+final class ResolveLock private (
+    logger: Logger,
+    file: Path,
+    buildVersion: String,
+    previous: Map[String, List[ResolveLock.LockedArtifact]],
+    refresh: Boolean,
+    underlying: CoursierResolver
+) extends CoursierResolver {
+  import ResolveLock.*
+
+  override val params: CoursierResolver.Params = underlying.params
+
+  /** What this run asked for, locked. Becomes the next lockfile. */
+  private val used = new ConcurrentHashMap[String, List[LockedArtifact]]()
+
+  /** Whether `used` holds something the file on disk does not. With `--refresh-lock` the file is rewritten even if nothing new was resolved. */
+  @volatile private var changed = refresh
+
+  /** How many entries the file on disk has: `previous` until this run first writes it. A different count means something was added or dropped. */
+  @volatile private var savedEntries = previous.size
+
+  /** Keys of the requests the build makes, whether or not this run gets to them. See [[retain]]. Computed on the first save, off the thread that loaded. */
+  @volatile private var retained: Lazy[Set[String]] = Lazy(Set.empty)
+
+  /** Keep the previous entries for `requests` when saving, even if this run never asks for them.
+    *
+    * Projects are resolved when they are first needed, so a command that builds one project asks for a fraction of what the build does. Saving only that
+    * would erase what the lockfile knows about everything else, and the next command to touch the rest would resolve it all again.
+    */
+  def retain(requests: Iterable[ResolutionPlanner.Request]): Unit =
+    retained = Lazy(requests.iterator.map(r => keyFor(r.deps, params, r.versionCombo, r.libraryVersionSchemes, r.ignoreEvictionErrors)).toSet)
+
+  // Locked results were resolved with the old params.
+  override def withParams(newParams: CoursierResolver.Params): CoursierResolver =
+    underlying.withParams(newParams)
+
+  override def resolve(
+      deps: SortedSet[model.Dep],
+      versionCombo: model.VersionCombo,
+      libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+      ignoreEvictionErrors: model.IgnoreEvictionErrors
+  ): Either[CoursierError, CoursierResolver.Result] =
+    if (deps.exists(dep => dep.version.endsWith("-SNAPSHOT") || dep.organization.value == "build.bleep"))
+      underlying.resolve(deps, versionCombo, libraryVersionSchemes, ignoreEvictionErrors)
+    else {
+      val key = keyFor(deps, params, versionCombo, libraryVersionSchemes, ignoreEvictionErrors)
+      val fromLock = if (refresh) None else previous.get(key).filter(_.forall(stampMatches))
+      fromLock match {
+        case Some(artifacts) =>
+          used.put(key, artifacts): Unit
+          Right(Cached.fromLean(artifacts.map(_.artifact)))
+        case None =>
+          underlying.resolve(deps, versionCombo, libraryVersionSchemes, ignoreEvictionErrors).map { result =>
+            if (!result.fullDetailedArtifacts.exists { case (_, _, artifact, _) => artifact.changing }) {
+              used.put(key, lock(result)): Unit
+              changed = true
+            }
+            result
+          }
+      }
+    }
+
+  override def direct(
+      deps: SortedSet[model.Dep],
+      versionCombo: model.VersionCombo,
+      libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+      ignoreEvictionErrors: model.IgnoreEvictionErrors
+  ): Either[CoursierError, Fetch.Result] =
+    underlying.direct(deps, versionCombo, libraryVersionSchemes, ignoreEvictionErrors)
+
+  /** Checksums already known, by path, so relocking an unchanged file does not read it again. */
+  private lazy val previousByPath: Map[String, LockedArtifact] =
+    previous.valuesIterator.flatten.map(a => a.artifact.path -> a).toMap
+
+  private def lock(result: CoursierResolver.Result): List[LockedArtifact] =
+    Cached.toLean(result).map { lean =>
+      if (lean.path.isEmpty) LockedArtifact(lean, -1L, -1L, "")
+      else {
+        val path = Path.of(lean.path)
+        val attrs = Files.readAttributes(path, classOf[BasicFileAttributes])
+        val size = attrs.size()
+        val lastModified = attrs.lastModifiedTime().toMillis
+        val sha1 = previousByPath.get(lean.path) match {
+          case Some(known) if known.size == size && known.lastModified == lastModified => known.sha1
+          case _                                                                       => sha1Of(path)
+        }
+        LockedArtifact(lean, size, lastModified, sha1)
+      }
+    }
+
+  /** Write the lockfile, if this run asked for anything the file does not already hold. Safe to call more than once: a call that finds nothing new writes
+    * nothing.
+    */
+  def save(): Unit =
+    synchronized {
+      try {
+        val asked = used.asScala.toMap
+        val kept =
+          if (previous.isEmpty) Map.empty
+          else
+            retained.forceGet.iterator
+              .filter(key => !asked.contains(key))
+              .flatMap(key => previous.get(key).map(key -> _))
+              .toMap
+        val entries = kept ++ asked
+        if (changed || entries.size != savedEntries) {
+          changed = false
+          Files.createDirectories(file.getParent)
+          FileUtils.writeString(logger, None, file, LockFile(FormatVersion, buildVersion, entries).asJson.noSpaces)
+          savedEntries = entries.size
+          logger.withContext("entries", entries.size).debug("wrote resolve lock")
+        }
+      } catch {
+        case NonFatal(e) => logger.withContext("path", file).withContext("reason", e.getMessage).warn("Couldn't write resolve lock")
+      }
+    }
+}
+
+object ResolveLock {
+
+  /** JVM-local "`--refresh-lock` was passed" marker, set by [[PreBootstrapOpts.parse]] in the same way as its no-color marker. */
+  val RefreshProperty: String = "bleep.refreshLock"
+
+  def refreshRequested: Boolean =
+    sys.props.get(RefreshProperty).contains("true")
+
+  /** Bump when the key or the file layout changes meaning. */
+  private val FormatVersion = 1
+
+  case class LockedArtifact(artifact: Cached.LeanArtifact, size: Long, lastModified: Long, sha1: String)
+  object LockedArtifact {
+    implicit val codec: Codec[LockedArtifact] =
+      Codec.forProduct4[LockedArtifact, Cached.LeanArtifact, Long, Long, String]("a", "s", "m", "sha1")(LockedArtifact.apply)(x =>
+        (x.artifact, x.size, x.lastModified, x.sha1)
+      )
+  }
+
+  case class LockFile(version: Int, buildVersion: String, entries: Map[String, List[LockedArtifact]])
+  object LockFile {
+    implicit val codec: Codec[LockFile] =
+      Codec.forProduct3[LockFile, Int, String, Map[String, List[LockedArtifact]]]("version", "buildVersion", "entries")(LockFile.apply)(x =>
+        (x.version, x.buildVersion, x.entries)
+      )
+  }
+
+  /** Wrap `underlying` with the lockfile for `pre`'s build. An unreadable or outdated lockfile is the same as none. */
+  def load(pre: Prebootstrapped, underlying: CoursierResolver, build: model.Build): ResolveLock =
+    open(pre.logger, pre.buildPaths.resolveLockFile, build.$version.value, refreshRequested, underlying)
+
+  /** As [[load]], from the parts of a bootstrap it reads. */
+  private[bleep] def open(logger: Logger, file: Path, buildVersion: String, refresh: Boolean, underlying: CoursierResolver): ResolveLock = {
+    val previous: Map[String, List[LockedArtifact]] =
+      if (refresh || !Files.isRegularFile(file)) Map.empty
+      else
+        try
+          parser.decode[LockFile](Files.readString(file)) match {
+            case Right(lock) if lock.version == FormatVersion && lock.buildVersion == buildVersion => lock.entries
+            case Right(_)                                                                          => Map.empty
+            case Left(err)                                                                         =>
+              logger.withContext("path", file).debug(s"resolve lock unreadable: ${err.getMessage}")
+              Map.empty
+          }
+        catch { case NonFatal(_) => Map.empty }
+    new ResolveLock(logger, file, buildVersion, previous, refresh, underlying)
+  }
+
+  private def keyFor(
+      deps: SortedSet[model.Dep],
+      params: CoursierResolver.Params,
+      versionCombo: model.VersionCombo,
+      libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+      ignoreEvictionErrors: model.IgnoreEvictionErrors
+  ): String = {
+    val md = MessageDigest.getInstance("SHA-256")
+    md.update(Cached.Request(deps, params, versionCombo, libraryVersionSchemes).asJson.noSpaces.getBytes(StandardCharsets.UTF_8))
+    md.update(ignoreEvictionErrors.value.getBytes(StandardCharsets.UTF_8))
+    Checksums.byteArrayToHexString(md.digest())
+  }
+
+  private def stampMatches(locked: LockedArtifact): Boolean =
+    locked.artifact.path.isEmpty || {
+      try {
+        val attrs = Files.readAttributes(Path.of(locked.artifact.path), classOf[BasicFileAttributes])
+        attrs.size() == locked.size && attrs.lastModifiedTime().toMillis == locked.lastModified
+      } catch { case NonFatal(_) => false }
+    }
+
+  private def sha1Of(path: Path): String =
+    Checksums
+      .compute(Checksums.Algorithm.Sha1) { md =>
+        Using.resource(Files.newInputStream(path)) { in =>
+          val buf = new Array[Byte](64 * 1024)
+          var n = in.read(buf)
+          while (n >= 0) {
+            md.update(buf, 0, n)
+            n = in.read(buf)
+          }
+        }
+      }
+      .hexString
+}
@@ -27,13 +27,33 @@ object ResolveProjects {
 
   case class Result(build: model.Build, projects: Projects, bspServerClasspathSource: bsp.BspServerClasspathSource)
 
-  object InMemory extends ResolveProjects {
+  /** Resolves each project when it is first asked for, starting the resolutions of everything it depends on side by side (see [[ResolutionPlanner]]). */
+  object InMemory extends InMemoryResolve(warmAll = false)
+
+  /** As [[InMemory]], and resolves every project in the background from the start. For the BSP connection, which hands every project to the compile server
+    * as soon as the build loads; anything shorter-lived would download the dependencies of projects it never looks at.
+    */
+  object InMemoryWarmAll extends InMemoryResolve(warmAll = true)
+
+  sealed abstract class InMemoryResolve(warmAll: Boolean) extends ResolveProjects {
     override def apply(pre: Prebootstrapped, resolver: CoursierResolver, build: model.Build): Result = {
+      // Answer from the lockfile where it still holds, and resolve each distinct dependency set once; the cells below find the results instead of resolving
+      // one at a time. The lock is saved whenever a batch of resolutions is in — a short command may exit before anything else would save it.
+      val lock = ResolveLock.load(pre, resolver, build)
+      val plan = ResolutionPlanner.start(pre.logger, lock, build)
+      lock.retain(plan.requests)
       val projects: Projects = rewriteDependentData(build.explodedProjects).apply[ResolvedProject] { (crossName, project, eval) =>
         def get(depName: model.CrossProjectName): ResolvedProject =
           eval(depName).forceGet(s"${crossName.value} => ${depName.value}")
 
-        resolveProject(pre, resolver, crossName, project, build, getResolvedProject = get)
+        // This project's dependencies are forced one after another below; their resolutions need not be.
+        plan.warm(List(crossName)).thenRun(() => lock.save()): Unit
+        resolveProject(pre, plan.resolver, crossName, project, build, getResolvedProject = get)
+      }
+      if (warmAll) {
+        plan.warmAll().thenRun(() => lock.save()): Unit
+        // Saved again after the cells, in case one asked for something the plan did not foresee.
+        plan.prewarm(projects).thenRun(() => lock.save()): Unit
       }
       Result(build, projects, bspServerClasspathSource = bsp.BspServerClasspathSource.FromCoursier(resolver))
     }
@@ -96,8 +116,8 @@ object ResolveProjects {
       // re-deployed with layout-v2 yet. Once a v2-aware CLI is shipping everywhere this fallback can be deleted.
       def resolveClassesDir(crossName: model.CrossProjectName): java.nio.file.Path = {
         val built = bleepBuild.forceGet
-        val v2 = built.projectPaths(crossName).classes
-        if (java.nio.file.Files.isDirectory(v2)) v2
+        val v2 = built.projectPaths(crossName).output
+        if (java.nio.file.Files.exists(v2)) v2
         else {
           val legacy = built.buildPaths.workspaceVariantDir.resolve(".bloop").resolve(crossName.value).resolve("classes")
           if (java.nio.file.Files.isDirectory(legacy)) legacy
@@ -261,59 +281,13 @@ object ResolveProjects {
         case other => sys.error(s"unexpected: $other")
       }
 
-    /** Version schemes from this project AND from everything it depends on.
-      *
-      * A scheme travels with the library it is a claim about. `inherited` above pulls a dependency's libraries into this project's resolution, so this project
-      * faces that dependency's conflicts — and must therefore be allowed to inherit the dependency's judgement about them too. Without this, a project that
-      * resolves cleanly makes every consumer fail on a conflict it did not introduce and cannot see, and the fix is to repeat the same scheme in every
-      * consumer.
-      *
-      * Templates still contribute through `explodedProject`, so a scheme can be stated either way: on the project that pulls the library, or on a template for
-      * a whole family of projects.
-      */
     val libraryVersionSchemes: SortedSet[model.LibraryVersionScheme] =
-      explodedProject.libraryVersionSchemes.values ++
-        build.transitiveDependenciesFor(crossName).flatMap { case (_, p) => p.libraryVersionSchemes.values }
+      libraryVersionSchemesFor(crossName, explodedProject, build)
 
     val (resolvedDependencies, resolvedRuntimeDependencies) = {
-      val fromPlatform =
-        versionCombo.libraries(isTest = explodedProject.isTestProject.getOrElse(false))
-
-      val inherited =
-        build.transitiveDependenciesFor(crossName).flatMap { case (_, p) => p.dependencies.values }
-
-      def providedOrOptional(dep: model.Dep): Boolean =
-        dep.configuration == Configuration.provided || dep.configuration == Configuration.optional
-
-      val filteredInherited = inherited.filterNot(providedOrOptional)
-
-      val deps = explodedProject.dependencies.values ++ (filteredInherited ++ fromPlatform)
-      val normal = resolver.force(
-        deps,
-        versionCombo,
-        libraryVersionSchemes,
-        crossName.value,
-        explodedProject.ignoreEvictionErrors.getOrElse(model.IgnoreEvictionErrors.No)
-      )
-
-      val runtime =
-        if (explodedProject.dependencies.values.exists(providedOrOptional) || inherited.size != filteredInherited.size) {
-          val (optionalsFromProject, restFromProject) =
-            explodedProject.dependencies.values.partition(providedOrOptional)
-
-          val noLongerOptionalsFromProject =
-            optionalsFromProject.map(_.withConfiguration(Configuration.empty))
-
-          val deps = (filteredInherited ++ restFromProject ++ noLongerOptionalsFromProject ++ fromPlatform).toSet
-          resolver.force(
-            deps,
-            versionCombo,
-            libraryVersionSchemes,
-            crossName.value,
-            explodedProject.ignoreEvictionErrors.getOrElse(model.IgnoreEvictionErrors.No)
-          )
-        } else normal
-
+      val (normalRequest, runtimeRequest) = dependencyRequests(crossName, explodedProject, build, versionCombo, libraryVersionSchemes)
+      val normal = normalRequest.force(resolver, crossName.value)
+      val runtime = runtimeRequest.fold(normal)(_.force(resolver, crossName.value))
       (normal, runtime)
     }
 
@@ -382,7 +356,7 @@ object ResolveProjects {
     // Determine the language: Scala (with Java options) or pure Java
     val language: ResolvedProject.Language = scalaVersion match {
       case Some(scalaVersion) =>
-        val compiler = scalaVersion.compiler.mapScala(_.copy(forceJvm = true)).asJava(versionCombo).getOrElse(sys.error("unexpected"))
+        val compiler = scalaCompilerDep(scalaVersion, versionCombo)
 
         val resolvedScalaCompiler: List[Path] = {
           val defaultCompilerJars =
@@ -456,9 +430,7 @@ object ResolveProjects {
         }
 
         val compilerPlugins: model.Options = {
-          val deps: Set[model.Dep] =
-            (versionCombo.compilerPlugin.toSet ++ maybeScala.fold(Set.empty[model.Dep])(_.compilerPlugins.values))
-              .map(_.mapScala(_.copy(forceJvm = true)))
+          val deps: Set[model.Dep] = compilerPluginDeps(versionCombo, maybeScala)
 
           model.Options.fromIterable(
             deps.toSeq.map { dep =>
@@ -512,7 +484,7 @@ object ResolveProjects {
       workspaceDir = pre.buildPaths.buildDir,
       sources = projectPaths.sourcesDirs.all.toList ++ annotationProcessingGenSourcesDir.toList,
       classpath = classPath.values.toList,
-      classesDir = projectPaths.classes,
+      classesDir = projectPaths.output,
       resources = Some(projectPaths.resourcesDirs.all.toList),
       language = language,
       platform = resolvedPlatform,
@@ -523,6 +495,74 @@ object ResolveProjects {
     )
   }
 
+  /** Version schemes from this project AND from everything it depends on.
+    *
+    * A scheme travels with the library it is a claim about. `inherited` in [[dependencyRequests]] pulls a dependency's libraries into this project's
+    * resolution, so this project faces that dependency's conflicts — and must therefore be allowed to inherit the dependency's judgement about them too.
+    * Without this, a project that resolves cleanly makes every consumer fail on a conflict it did not introduce and cannot see, and the fix is to repeat the
+    * same scheme in every consumer.
+    *
+    * Templates still contribute through `explodedProject`, so a scheme can be stated either way: on the project that pulls the library, or on a template for a
+    * whole family of projects.
+    */
+  def libraryVersionSchemesFor(
+      crossName: model.CrossProjectName,
+      explodedProject: model.Project,
+      build: model.Build
+  ): SortedSet[model.LibraryVersionScheme] =
+    explodedProject.libraryVersionSchemes.values ++
+      build.transitiveDependenciesFor(crossName).flatMap { case (_, p) => p.libraryVersionSchemes.values }
+
+  /** What a project compiles against, and — only when provided or optional dependencies make the two differ — what it runs with.
+    *
+    * Split out of [[resolveProject]] so [[ResolutionPlanner]] asks for exactly the same thing ahead of time.
+    */
+  def dependencyRequests(
+      crossName: model.CrossProjectName,
+      explodedProject: model.Project,
+      build: model.Build,
+      versionCombo: model.VersionCombo,
+      libraryVersionSchemes: SortedSet[model.LibraryVersionScheme]
+  ): (ResolutionPlanner.Request, Option[ResolutionPlanner.Request]) = {
+    val fromPlatform =
+      versionCombo.libraries(isTest = explodedProject.isTestProject.getOrElse(false))
+
+    val inherited =
+      build.transitiveDependenciesFor(crossName).flatMap { case (_, p) => p.dependencies.values }
+
+    def providedOrOptional(dep: model.Dep): Boolean =
+      dep.configuration == Configuration.provided || dep.configuration == Configuration.optional
+
+    val filteredInherited = inherited.filterNot(providedOrOptional)
+
+    val ignoreEvictionErrors = explodedProject.ignoreEvictionErrors.getOrElse(model.IgnoreEvictionErrors.No)
+
+    def request(deps: Iterable[model.Dep]): ResolutionPlanner.Request =
+      ResolutionPlanner.Request(SortedSet.empty[model.Dep] ++ deps, versionCombo, libraryVersionSchemes, ignoreEvictionErrors)
+
+    val normal = request(explodedProject.dependencies.values ++ (filteredInherited ++ fromPlatform))
+
+    val runtime =
+      if (explodedProject.dependencies.values.exists(providedOrOptional) || inherited.size != filteredInherited.size) {
+        val (optionalsFromProject, restFromProject) =
+          explodedProject.dependencies.values.partition(providedOrOptional)
+
+        val noLongerOptionalsFromProject =
+          optionalsFromProject.map(_.withConfiguration(Configuration.empty))
+
+        Some(request(filteredInherited ++ restFromProject ++ noLongerOptionalsFromProject ++ fromPlatform))
+      } else None
+
+    (normal, runtime)
+  }
+
+  def scalaCompilerDep(scalaVersion: model.VersionScala, versionCombo: model.VersionCombo): model.Dep.JavaDependency =
+    scalaVersion.compiler.mapScala(_.copy(forceJvm = true)).asJava(versionCombo).getOrElse(sys.error("unexpected"))
+
+  def compilerPluginDeps(versionCombo: model.VersionCombo, maybeScala: Option[model.Scala]): Set[model.Dep] =
+    (versionCombo.compilerPlugin.toSet ++ maybeScala.fold(Set.empty[model.Dep])(_.compilerPlugins.values))
+      .map(_.mapScala(_.copy(forceJvm = true)))
+
   // Helper for groupBy preserving order
   implicit class GroupByOrderedImplicitImpl[A](val t: Iterable[A]) extends AnyVal {
     def groupByOrderedUnique[K](f: A => K): Map[K, ListSet[A]] =
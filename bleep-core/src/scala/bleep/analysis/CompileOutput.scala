@@ -0,0 +1,58 @@
+package bleep.analysis
+
+import java.nio.file.{Files, Path}
+import java.util.zip.ZipFile
+import scala.jdk.CollectionConverters.*
+
+/** A project's compile output: a directory of class files or, for a project compiled straight to jar, one jar ([[bleep.ProjectPaths.output]]).
+  *
+  * A directory of class files costs an inode per class, and every consumer pays for them again: the noop manifest stats each directory, test discovery and
+  * `createJar` walk the tree, the remote cache packs it file by file and each forked test JVM opens the classes one at a time. A jar is one file for all of
+  * them. Code that only puts the output on a classpath does not care which form it has. Code that looks inside it asks here.
+  */
+object CompileOutput {
+
+  /** Whether `output` is a jar rather than a directory. Decided by the name, so it holds before the first compile has written anything. */
+  def isJar(output: Path): Boolean =
+    output.getFileName.toString.endsWith(".jar")
+
+  /** Whether a compile has left anything in `output`: a jar that exists, or a directory with at least one entry. */
+  def nonEmpty(output: Path): Boolean =
+    if (isJar(output)) Files.isRegularFile(output)
+    else Files.isDirectory(output) && scala.util.Using.resource(Files.list(output))(_.findAny().isPresent)
+
+  /** Make `output` ready for a compile to write: the directory itself, or the directory the jar goes in. */
+  def prepare(output: Path): Unit = {
+    Files.createDirectories(if (isJar(output)) output.getParent else output)
+    ()
+  }
+
+  /** Remove `output` in either form. */
+  def delete(output: Path): Unit =
+    bleep.internal.FileUtils.deleteDirectory(output)
+
+  /** Scratch space for a compile into `outputJar`: zinc stages there whatever a compile step cannot write into a jar directly (javac's output among it) before
+    * folding it into the jar.
+    */
+  def stagingDir(outputJar: Path): Path =
+    outputJar.resolveSibling(outputJar.getFileName.toString.stripSuffix(".jar") + "-staging")
+
+  /** The class files in `output`, as `/`-separated paths relative to its root (`com/example/Foo.class`). Empty when there is no output. */
+  def classEntries(output: Path): List[String] =
+    if (isJar(output)) {
+      if (!Files.isRegularFile(output)) Nil
+      else
+        scala.util.Using.resource(new ZipFile(output.toFile)) { zip =>
+          zip.entries().asScala.filter(e => !e.isDirectory && e.getName.endsWith(".class")).map(_.getName).toList
+        }
+    } else if (!Files.isDirectory(output)) Nil
+    else
+      scala.util.Using.resource(Files.walk(output)) { stream =>
+        stream
+          .iterator()
+          .asScala
+          .filter(p => p.toString.endsWith(".class") && Files.isRegularFile(p))
+          .map(p => output.relativize(p).iterator().asScala.mkString("/"))
+          .toList
+      }
+}
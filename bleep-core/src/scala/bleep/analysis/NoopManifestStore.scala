@@ -39,7 +39,7 @@ object NoopManifestStore {
   case class NoopManifest(
       sourceStats: Map[Path, FileStatEntry],
       sourceDirStats: Map[Path, FileStatEntry], // source dir + subdirs → stat (detects file add/delete)
-      outputDirStats: Map[Path, FileStatEntry], // output dir + subdirs → stat (detects class file add/delete)
+      outputDirStats: Map[Path, FileStatEntry], // output dir + subdirs, or the output jar → stat (detects class file add/delete)
       depAnalysisStats: Map[Path, DepAnalysisStat], // outputDir → dep analysis mtime + content hash
       optionsHash: Long,
       cachedResult: ProjectCompileSuccess
@@ -182,8 +182,11 @@ object NoopManifestStore {
 
     // Stat output directories (outputDir + all subdirs).
     // Directory mtime changes on file add/delete — catches class file deletion cheaply.
+    // A jar output is one file, and any change to it moves its own stat.
     val outputDirStatsMap: Map[Path, FileStatEntry] =
-      collectDirsRecursively(result.outputDir).map(d => d -> statFile(d)).toMap
+      if (CompileOutput.isJar(result.outputDir)) {
+        if (Files.isRegularFile(result.outputDir)) Map(result.outputDir -> statFile(result.outputDir)) else Map.empty
+      } else collectDirsRecursively(result.outputDir).map(d => d -> statFile(d)).toMap
 
     val manifest = NoopManifest(
       sourceStats = {
@@ -53,7 +53,11 @@ object ProjectLanguage {
     }
 }
 
-/** Configuration for compiling a project */
+/** Configuration for compiling a project
+  *
+  * @param backendThreads
+  *   threads the compiler's backend may run on for this compile, granted by the server from cores nothing else wanted. 1 leaves the compiler's own default.
+  */
 case class ProjectConfig(
     name: String,
     sources: Set[Path],
@@ -61,7 +65,8 @@ case class ProjectConfig(
     outputDir: Path,
     language: ProjectLanguage,
     analysisDir: Option[Path],
-    buildDir: Path
+    buildDir: Path,
+    backendThreads: Int = 1
 )
 
 /** Result of compiling a project */
@@ -51,9 +51,9 @@ object bootstrap {
     def go(pre: Prebootstrapped, config: model.BleepConfig, rewrites: List[BuildRewrite]): Either[BleepException, Started] = {
       val t0 = System.currentTimeMillis()
       try
-        pre.existingBuild.buildFile.forceGet.map { buildFile =>
-          val resolver = resolverFactory(pre, config, buildFile)
-          val build = rewrites.foldLeft[model.Build](model.Build.FileBacked(buildFile)) { case (b, rewrite) => rewrite(b, pre.buildPaths) }
+        pre.existingBuild.fileBacked.forceGet.map { fileBacked =>
+          val resolver = resolverFactory(pre, config, fileBacked.file)
+          val build = rewrites.foldLeft[model.Build](fileBacked) { case (b, rewrite) => rewrite(b, pre.buildPaths) }
           val bleepExecutable = Lazy(BleepExecutable.getCommand(resolver, pre, forceJvm = false))
 
           // Resolve projects - this may also modify the build (e.g., ReplaceBleepDependencies removes build.bleep:* deps)
@@ -1,7 +1,7 @@
 package bleep
 package commands
 
-import bleep.analysis.{NoopManifestStore, ProjectCompileSuccess, ProjectLanguage}
+import bleep.analysis.{CompileOutput, NoopManifestStore, ProjectCompileSuccess, ProjectLanguage}
 
 import java.nio.file.{Files, Path}
 import java.util.concurrent.atomic.AtomicInteger
@@ -26,9 +26,24 @@ object RemoteCache {
   /** Per-machine noop manifest is regenerated locally after pull, never shipped. */
   private val NoopManifestFileName = "noop-manifest.bin"
 
-  /** Predicate used to filter files when packing an archive for upload. Exposed so tests can verify the same exclusion behavior as production. */
-  private[bleep] def packFilter(p: Path): Boolean =
-    p.getFileName.toString != NoopManifestFileName
+  /** The cross-process project lock ([[bleep.bsp.ProjectLock]]) lives in the target dir, as `.bleep-lock` for the classes and `<dir>.bleep-lock` for a link
+    * output beside them. Shipping one would make an unpack replace the very file a concurrent holder has locked, after which a second process can lock the new
+    * inode and the exclusion is gone.
+    */
+  private val ProjectLockFileName = ".bleep-lock"
+
+  /** Where a straight-to-jar compile stages what it cannot write into the jar directly ([[CompileOutput.stagingDir]]), relative to the target dir. Its contents
+    * are already in the jar when the compile finishes, and whatever is left there is scratch from a compile that did not.
+    */
+  private val StagingDirNames: Set[String] =
+    Set("classes.jar", "test-classes.jar").map(jar => CompileOutput.stagingDir(Path.of(jar)).toString)
+
+  /** Predicate used to filter files under `targetDir` when packing it for upload. Exposed so tests can verify the same exclusion behavior as production. */
+  private[bleep] def packFilter(targetDir: Path)(p: Path): Boolean = {
+    val name = p.getFileName.toString
+    val rel = targetDir.relativize(p)
+    name != NoopManifestFileName && !name.endsWith(ProjectLockFileName) && !StagingDirNames.contains(rel.getName(0).toString)
+  }
 
   case class Pull(projects: Array[model.CrossProjectName]) extends BleepBuildCommand {
     override def run(started: Started): Either[BleepException, Unit] = {
@@ -62,13 +77,13 @@ object RemoteCache {
                   val key = cacheKey(prefix, crossName, digest)
                   val projectPaths = started.buildPaths.project(crossName, started.build.explodedProjects(crossName))
 
-                  if (Files.isDirectory(projectPaths.classes) && Files.list(projectPaths.classes).findAny().isPresent) {
+                  if (CompileOutput.nonEmpty(projectPaths.output)) {
                     skipped.incrementAndGet()
                     started.logger.debug(s"${crossName.value}: already compiled, skipping")
                   } else if (client.headObject(key)) {
                     val archive = client.getObject(key)
-                    TarGz.unpack(archive, projectPaths.targetDir)
-                    regenerateManifest(started, crossName, projectPaths)
+                    val currentDigest = () => ProjectDigest.computeFor(started.build, started.buildPaths, Set(crossName)).get(crossName)
+                    install(started, crossName, projectPaths, archive, digest, currentDigest): Unit
                     pulled.incrementAndGet()
                     started.logger.info(s"${crossName.value}: pulled from cache (${archive.length / 1024}KB)")
                   } else {
@@ -90,14 +105,14 @@ object RemoteCache {
     }
   }
 
-  case class Push(projects: Array[model.CrossProjectName], force: Boolean) extends BleepBuildCommand {
+  /** Read portability warnings written by the BSP server after compile. Returns list of absolute paths (empty = portable). */
+  private[bleep] def checkPortability(targetDir: Path): List[String] = {
+    val warningsFile = targetDir.resolve(".zinc/portability-warnings")
+    if (!Files.exists(warningsFile)) return Nil
+    Files.readString(warningsFile).linesIterator.filter(_.nonEmpty).toList
+  }
 
-    /** Read portability warnings written by the BSP server after compile. Returns list of absolute paths (empty = portable). */
-    private def checkPortability(targetDir: Path): List[String] = {
-      val warningsFile = targetDir.resolve(".zinc/portability-warnings")
-      if (!Files.exists(warningsFile)) return Nil
-      Files.readString(warningsFile).linesIterator.filter(_.nonEmpty).toList
-    }
+  case class Push(projects: Array[model.CrossProjectName], force: Boolean) extends BleepBuildCommand {
 
     override def run(started: Started): Either[BleepException, Unit] = {
       val cacheConfig = started.build.remoteCache
@@ -128,7 +143,7 @@ object RemoteCache {
                   val key = cacheKey(prefix, crossName, digest)
                   val projectPaths = started.buildPaths.project(crossName, started.build.explodedProjects(crossName))
 
-                  if (!Files.isDirectory(projectPaths.classes) || !Files.list(projectPaths.classes).findAny().isPresent) {
+                  if (!CompileOutput.nonEmpty(projectPaths.output)) {
                     notCompiled.incrementAndGet()
                     started.logger.debug(s"${crossName.value}: not compiled, skipping")
                   } else if (!force && client.headObject(key)) {
@@ -142,7 +157,7 @@ object RemoteCache {
                           s"${crossName.value}: analysis contains ${absolutePaths.size} absolute path(s), e.g. '$head'. Kill BSP servers and recompile."
                         ): Unit
                       case Nil =>
-                        val archive = TarGz.pack(projectPaths.targetDir, packFilter)
+                        val archive = TarGz.pack(projectPaths.targetDir, packFilter(projectPaths.targetDir))
                         semaphore.acquire()
                         try {
                           client.putObject(key, archive)
@@ -183,13 +198,13 @@ object RemoteCache {
     * `file://` is a directory on the local filesystem — no credentials, the uri path is the cache root and the key prefix is empty. Anything else goes through
     * [[S3Client]] (s3:// or an S3-compatible HTTP endpoint) and requires credentials.
     */
-  private def storeFor(started: Started, config: model.RemoteCacheConfig): (CacheStore, String) =
+  private[bleep] def storeFor(started: Started, config: model.RemoteCacheConfig): (CacheStore, String) =
     config.uri.getScheme match {
       case "file" => (LocalDirStore.fromUri(started.logger, config.uri), "")
       case _      => (S3Client.fromConfig(started.logger, config, resolveCredentials(started)), S3Client.keyPrefix(config))
     }
 
-  private def cacheKey(prefix: String, crossName: model.CrossProjectName, digest: String): String = {
+  private[bleep] def cacheKey(prefix: String, crossName: model.CrossProjectName, digest: String): String = {
     val projectKey = crossName.value.replace('/', '-')
     if (prefix.isEmpty) s"$projectKey/$digest.tar.gz"
     else s"$prefix/$projectKey/$digest.tar.gz"
@@ -204,6 +219,46 @@ object RemoteCache {
         )
       )
 
+  /** Unpack a pulled archive over the project's target dir and make it a noop hit for the next compile. The caller owns deciding whether the outputs already
+    * there may be replaced.
+    *
+    * `archiveDigest` is the digest the archive was fetched under; `currentDigest` recomputes the project's digest from the working tree. The noop manifest is
+    * only kept if the two agree — see [[keepManifestIfCurrent]]. Returns whether it was.
+    */
+  private[bleep] def install(
+      started: Started,
+      crossName: model.CrossProjectName,
+      projectPaths: ProjectPaths,
+      archive: Array[Byte],
+      archiveDigest: String,
+      currentDigest: () => Option[String]
+  ): Boolean = {
+    TarGz.unpack(archive, projectPaths.targetDir)
+    keepManifestIfCurrent(analysisFileOf(projectPaths), archiveDigest, currentDigest)(regenerateManifest(started, crossName, projectPaths))
+  }
+
+  /** Write the noop manifest for freshly unpacked outputs, then drop it again unless the sources still digest to what the archive was stored under.
+    *
+    * The manifest is built by stat'ing the working tree, and it vouches for the outputs beside it: a later compile that finds every source's stat unchanged
+    * skips zinc entirely. That is only true if the working tree is what the archive was compiled from. The digest was computed before the download started,
+    * and a background prefetch can take long enough for an edit — or another checkout — to land in between; a manifest stat'd after that edit would pass off
+    * the archive's classes as a compile of the edited sources, and nothing would ever recompile them.
+    *
+    * The digest is checked after the manifest is written, not before. A source that changes after the check moves its stat away from what the manifest holds,
+    * so the next compile goes to zinc; one that changed before it fails the check. Checked the other way round, an edit between check and stat would be
+    * recorded as current. Without a manifest the unpacked outputs are still used: zinc compares the archive's analysis with the sources and recompiles what
+    * differs.
+    */
+  private[bleep] def keepManifestIfCurrent(analysisFile: Path, archiveDigest: String, currentDigest: () => Option[String])(regenerate: => Unit): Boolean = {
+    regenerate
+    val current = currentDigest().contains(archiveDigest)
+    if (!current) Files.deleteIfExists(NoopManifestStore.manifestPath(analysisFile)): Unit
+    current
+  }
+
+  private def analysisFileOf(projectPaths: ProjectPaths): Path =
+    projectPaths.targetDir.resolve(".zinc").resolve("analysis.zip")
+
   /** After unpacking a project archive, write a fresh noop manifest stat'd against the local filesystem. The next compile then short-circuits via the pre-Zinc
     * fast-path instead of going through a Zinc no-op compile. No-op on Windows (ctime unavailable) and on non-Scala projects.
     */
@@ -219,7 +274,7 @@ object RemoteCache {
     val maybeLanguage = ProjectLanguage.fromResolvedScalaJava(resolved, ecjVersion)
     if (maybeLanguage.isEmpty) return
 
-    val analysisFile = projectPaths.targetDir.resolve(".zinc").resolve("analysis.zip")
+    val analysisFile = analysisFileOf(projectPaths)
     if (!Files.exists(analysisFile)) return
 
     val sourceDirs = projectPaths.sourcesDirs.all.toSet
@@ -233,23 +288,19 @@ object RemoteCache {
       else Nil
     }.toArray
 
+    // As ZincBridge records it: a jar output's result lists no class files of its own.
     val classFiles =
-      if (Files.isDirectory(projectPaths.classes))
-        scala.util
-          .Using(Files.walk(projectPaths.classes)) { stream =>
-            stream.toScala(List).filter(p => Files.isRegularFile(p) && p.toString.endsWith(".class")).toSet
-          }
-          .getOrElse(Set.empty[Path])
-      else Set.empty[Path]
+      if (CompileOutput.isJar(projectPaths.output)) Set.empty[Path]
+      else CompileOutput.classEntries(projectPaths.output).map(entry => projectPaths.output.resolve(entry)).toSet
 
     val deps = started.build.resolvedDependsOn.getOrElse(crossName, Set.empty)
     val dependencyAnalyses = deps.iterator.flatMap { dep =>
       val depPaths = started.projectPaths(dep)
-      val depAnalysis = depPaths.targetDir.resolve(".zinc").resolve("analysis.zip")
-      Some(depPaths.classes -> depAnalysis)
+      val depAnalysis = analysisFileOf(depPaths)
+      Some(depPaths.output -> depAnalysis)
     }.toMap
 
-    val result = ProjectCompileSuccess(projectPaths.classes, classFiles, Some(analysisFile))
+    val result = ProjectCompileSuccess(projectPaths.output, classFiles, Some(analysisFile))
 
     NoopManifestStore.regenerateFromLocal(
       analysisFile = analysisFile,
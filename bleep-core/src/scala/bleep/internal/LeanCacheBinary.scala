@@ -0,0 +1,127 @@
+package bleep.internal
+
+import bleep.CoursierResolver.Cached.LeanArtifact
+
+import java.lang.foreign.{Arena, MemorySegment, ValueLayout}
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Path, StandardOpenOption}
+import java.nio.{ByteBuffer, ByteOrder}
+import scala.collection.mutable
+import scala.util.Using
+
+/** The on-disk format of [[bleep.CoursierResolver.Cached]]'s resolution cache.
+  *
+  * It used to be circe JSON. Reading an entry meant parsing all of it and allocating every org, name, version and path string for every artifact of every
+  * resolution, and a big build reads close to a thousand entries at startup, before anything else can happen. This format is read through a memory mapping:
+  * the header is checked before anything else is touched, so a collision costs four int reads, and each distinct string is decoded once per entry however
+  * many artifacts share it.
+  *
+  * {{{
+  * header     magic "BLRC", format version, request hash, artifact count, string count      5 x int32
+  * artifacts  per artifact: org, name, version, classifier, ext, path as string indices      6 x int32 each
+  * offsets    per string: byte offset into the string data, then one past the last            (count + 1) x int32
+  * strings    UTF-8, back to back
+  * }}}
+  *
+  * Big-endian throughout. The request hash is the same collision hash the JSON format stored; the file name still carries the primary hash.
+  *
+  * Mapped in a confined arena and unmapped before returning, so an invalid entry can be deleted right away, on Windows too.
+  */
+object LeanCacheBinary {
+  private val Magic = 0x424c5243 // "BLRC"
+  private val FormatVersion = 1
+  private val HeaderInts = 5
+  private val FieldsPerArtifact = 6
+
+  private val BeInt = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN)
+
+  sealed trait Read
+  object Read {
+    case class Hit(artifacts: List[LeanArtifact]) extends Read
+
+    /** A different request hashed to the same file name. */
+    case object Collision extends Read
+    case class Corrupt(reason: String) extends Read
+  }
+
+  def encode(requestHash: Int, artifacts: List[LeanArtifact]): Array[Byte] = {
+    val indices = mutable.HashMap.empty[String, Int]
+    val strings = mutable.ArrayBuffer.empty[Array[Byte]]
+    def intern(s: String): Int =
+      indices.getOrElseUpdate(
+        s, {
+          strings += s.getBytes(StandardCharsets.UTF_8)
+          strings.size - 1
+        }
+      )
+
+    val records = artifacts.map(a => Array(intern(a.org), intern(a.name), intern(a.version), intern(a.classifier), intern(a.ext), intern(a.path)))
+    val dataBytes = strings.iterator.map(_.length).sum
+    val size = 4 * (HeaderInts + FieldsPerArtifact * records.size + strings.size + 1) + dataBytes
+
+    val buf = ByteBuffer.allocate(size).order(ByteOrder.BIG_ENDIAN)
+    buf.putInt(Magic).putInt(FormatVersion).putInt(requestHash).putInt(records.size).putInt(strings.size)
+    records.foreach(_.foreach(buf.putInt))
+    var offset = 0
+    strings.foreach { bytes =>
+      buf.putInt(offset)
+      offset += bytes.length
+    }
+    buf.putInt(offset)
+    strings.foreach(buf.put)
+    buf.array()
+  }
+
+  def read(path: Path, expectedRequestHash: Int): Read =
+    Using.resource(Arena.ofConfined()) { arena =>
+      val segment = Using.resource(FileChannel.open(path, StandardOpenOption.READ)) { channel =>
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena)
+      }
+      decode(segment, expectedRequestHash)
+    }
+
+  private[bleep] def decode(segment: MemorySegment, expectedRequestHash: Int): Read = {
+    val size = segment.byteSize()
+    def int(at: Long): Int = segment.get(BeInt, at)
+
+    if (size < 4L * HeaderInts || int(0) != Magic) Read.Corrupt("not a resolution cache entry")
+    else if (int(4) != FormatVersion) Read.Corrupt(s"format version ${int(4)}")
+    else if (int(8) != expectedRequestHash) Read.Collision
+    else {
+      val artifactCount = int(12)
+      val stringCount = int(16)
+      val recordsAt = 4L * HeaderInts
+      val offsetsAt = recordsAt + 4L * FieldsPerArtifact * artifactCount
+      val dataAt = offsetsAt + 4L * (stringCount + 1)
+
+      if (artifactCount < 0 || stringCount < 0 || dataAt > size || dataAt + int(offsetsAt + 4L * stringCount) != size)
+        Read.Corrupt("truncated")
+      else {
+        val decoded = new Array[String](stringCount)
+        def string(index: Int): String = {
+          if (index < 0 || index >= stringCount) throw new IndexOutOfBoundsException(s"string $index of $stringCount")
+          var s = decoded(index)
+          if (s == null) {
+            val from = int(offsetsAt + 4L * index)
+            val to = int(offsetsAt + 4L * (index + 1))
+            s = new String(segment.asSlice(dataAt + from, (to - from).toLong).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8)
+            decoded(index) = s
+          }
+          s
+        }
+
+        try {
+          val artifacts = List.tabulate(artifactCount) { i =>
+            val at = recordsAt + 4L * FieldsPerArtifact * i
+            def field(n: Int): String = string(int(at + 4L * n))
+            LeanArtifact(org = field(0), name = field(1), version = field(2), classifier = field(3), ext = field(4), path = field(5))
+          }
+          Read.Hit(artifacts)
+        } catch {
+          case e: IndexOutOfBoundsException => Read.Corrupt(e.getMessage)
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package bleep.internal
+
+import java.nio.file.Path
+import scala.collection.mutable
+
+/** Directories mapped to values, answering "which directories contain this file" in time proportional to the file's depth rather than to the number of
+  * directories.
+  *
+  * Both callers used to answer that with a scan: the BSP server tested `startsWith` against every source directory of every project on each
+  * `buildTarget/inverseSources`, which IDEs send on every file open, and the file watcher mapped an event back to its keys by probing each ancestor of the
+  * changed path. Here a lookup walks the file's name components once from the root.
+  *
+  * Paths are made absolute and normalized on the way in and on lookup, so `a/./b` and `a/b` are the same directory. Immutable once built.
+  */
+final class PathTrie[V] private (root: PathTrie.Node[V]) {
+
+  /** Values of every registered directory that is `path` or one of its ancestors, outermost first. */
+  def containing(path: Path): List[V] = {
+    val found = List.newBuilder[V]
+    var node = root.children.get(PathTrie.rootKey(path)).orNull
+    val components = PathTrie.components(path)
+    var i = 0
+    while (node != null) {
+      found ++= node.values
+      node = if (i < components.length) node.children.get(components(i)).orNull else null
+      i += 1
+    }
+    found.result()
+  }
+
+  /** Values of the innermost registered directory that is `path` or one of its ancestors — what a watcher registered for that subtree. */
+  def nearest(path: Path): List[V] = {
+    var best: List[V] = Nil
+    var node = root.children.get(PathTrie.rootKey(path)).orNull
+    val components = PathTrie.components(path)
+    var i = 0
+    while (node != null) {
+      if (node.values.nonEmpty) best = node.values
+      node = if (i < components.length) node.children.get(components(i)).orNull else null
+      i += 1
+    }
+    best
+  }
+
+  def isEmpty: Boolean = root.children.isEmpty
+}
+
+object PathTrie {
+  private final class Node[V] {
+    val children: mutable.HashMap[String, Node[V]] = mutable.HashMap.empty
+    var values: List[V] = Nil
+  }
+
+  private def normalized(path: Path): Path = path.toAbsolutePath.normalize()
+
+  private def rootKey(path: Path): String = String.valueOf(normalized(path).getRoot)
+
+  private def components(path: Path): Array[String] = {
+    val p = normalized(path)
+    Array.tabulate(p.getNameCount)(i => p.getName(i).toString)
+  }
+
+  def empty[V]: PathTrie[V] = new PathTrie(new Node[V])
+
+  /** A directory listed more than once keeps all its values, in the order given. */
+  def from[V](entries: IterableOnce[(Path, V)]): PathTrie[V] = {
+    val root = new Node[V]
+    entries.iterator.foreach { case (dir, value) =>
+      var node = root.children.getOrElseUpdate(rootKey(dir), new Node[V])
+      components(dir).foreach(c => node = node.children.getOrElseUpdate(c, new Node[V]))
+      node.values = node.values :+ value
+    }
+    new PathTrie(root)
+  }
+}
@@ -216,7 +216,7 @@ object JModel {
     new bleepscript.ProjectPaths(
       pp.dir,
       pp.targetDir,
-      pp.classes,
+      pp.output,
       pp.incrementalAnalysis,
       pp.sourcesDirs.all.toList.asJava,
       pp.resourcesDirs.all.toList.asJava,
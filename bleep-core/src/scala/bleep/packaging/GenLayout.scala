@@ -45,7 +45,7 @@ object GenLayout {
       jarFile = createJar(
         JarType.Jar,
         manifestCreator,
-        Array(projectPaths.classes) ++ projectPaths.resourcesDirs.all,
+        Array(projectPaths.output) ++ projectPaths.resourcesDirs.all,
         projectName = Some(projectName),
         mainClass = mainClass
       ),
@@ -5,7 +5,10 @@ import java.io.ByteArrayOutputStream
 import java.nio.file.attribute.FileTime
 import java.nio.file.{Files, Path}
 import java.util.jar.{JarEntry, JarOutputStream}
+import java.util.zip.ZipFile
 import scala.collection.mutable
+import scala.jdk.CollectionConverters.*
+import scala.util.Using
 
 object createJar {
   // sbt/sbt#6254
@@ -23,25 +26,33 @@ object createJar {
     val baos = new ByteArrayOutputStream(1024 * 1024)
     val jar = new JarOutputStream(baos, manifest)
 
+    def add(mapping: RelPath, bytes: => Array[Byte]): Unit =
+      if (!seen(mapping)) {
+        seen.add(mapping).discard()
+        val entry = new JarEntry(mapping.toString)
+        entry.setCreationTime(epochTime)
+        entry.setLastModifiedTime(epochTime)
+        entry.setLastAccessTime(epochTime)
+
+        jar.putNextEntry(entry)
+        jar.write(bytes)
+        jar.closeEntry()
+      }
+
     try
       fromFolders.foreach { fromFolder =>
-        if (Files.exists(fromFolder))
-          Files.walk(fromFolder).forEachOrdered { file =>
-            if (Files.isRegularFile(file)) {
-              val mapping = RelPath.relativeTo(fromFolder, file)
-              if (!seen(mapping)) {
-                seen.add(mapping).discard()
-                val entry = new JarEntry(mapping.toString)
-                entry.setCreationTime(epochTime)
-                entry.setLastModifiedTime(epochTime)
-                entry.setLastAccessTime(epochTime)
-
-                jar.putNextEntry(entry)
-                jar.write(Files.readAllBytes(file))
-                jar.closeEntry()
-              }
+        // A project compiled straight to jar has a jar where its classes directory would be. Its entries are repacked as if they had been files in one, so
+        // the result is the same jar either way.
+        if (Files.isRegularFile(fromFolder) && fromFolder.getFileName.toString.endsWith(".jar"))
+          Using.resource(new ZipFile(fromFolder.toFile)) { zip =>
+            zip.entries().asScala.filterNot(_.isDirectory).toList.sortBy(_.getName).foreach { zipEntry =>
+              add(RelPath.force(zipEntry.getName), Using.resource(zip.getInputStream(zipEntry))(_.readAllBytes()))
             }
           }
+        else if (Files.exists(fromFolder))
+          Files.walk(fromFolder).forEachOrdered { file =>
+            if (Files.isRegularFile(file)) add(RelPath.relativeTo(fromFolder, file), Files.readAllBytes(file))
+          }
       }
     finally jar.close()
 
@@ -29,7 +29,7 @@ object dist {
           createJar(
             JarType.Jar,
             ManifestCreator.default,
-            projectPaths.resourcesDirs.all + projectPaths.classes,
+            projectPaths.resourcesDirs.all + projectPaths.output,
             Some(crossName),
             p.platform.flatMap(_.mainClass)
           )
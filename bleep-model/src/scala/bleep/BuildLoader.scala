@@ -35,14 +35,25 @@ object BuildLoader {
   case class Existing(bleepYaml: Path, str: Lazy[Either[BleepException, String]]) extends BuildLoader {
     override def existing: Either[BleepException, Existing] = Right(this)
 
+    /** What the last invocation left in `.bleep` for exactly this content, if anything. */
+    private val snapshot: Lazy[Option[BuildSnapshot.Loaded]] =
+      str.map {
+        case Left(_)        => None
+        case Right(content) => BuildSnapshot.read(bleepYaml, content)
+      }
+
     val json: Lazy[Either[BleepException, Json]] =
       str.map {
         case Left(be)       => Left(be)
         case Right(jsonStr) =>
-          try
-            yaml.parse(jsonStr).left.map(th => new BleepException.InvalidJson(bleepYaml, th))
-          catch {
-            case NonFatal(th) => Left(new BleepException.InvalidJson(bleepYaml, th))
+          snapshot.forceGet match {
+            case Some(loaded) => Right(loaded.json)
+            case None         =>
+              try
+                yaml.parse(jsonStr).left.map(th => new BleepException.InvalidJson(bleepYaml, th))
+              catch {
+                case NonFatal(th) => Left(new BleepException.InvalidJson(bleepYaml, th))
+              }
           }
       }
 
@@ -58,6 +69,27 @@ object BuildLoader {
             case Right(build) => Right(build)
           }
       }
+
+    /** The build with its projects exploded: from the snapshot when there is one for this content, and otherwise exploded here and snapshotted for next time.
+      */
+    val fileBacked: Lazy[Either[BleepException, model.Build.FileBacked]] =
+      buildFile.map {
+        case Left(be)    => Left(be)
+        case Right(file) =>
+          snapshot.forceGet.flatMap(_.explodedProjects.toOption) match {
+            case Some(explodedProjects) => Right(model.Build.FileBacked.preExploded(file, explodedProjects))
+            case None                   =>
+              val build = model.Build.FileBacked(file)
+              for {
+                content <- str.forceGet.toOption
+                tree <- json.forceGet.toOption
+              }
+                // A build that does not explode fails later, where it always did, when its projects are asked for. There is nothing to snapshot.
+                try BuildSnapshot.write(bleepYaml, content, tree, build.explodedProjects)
+                catch { case NonFatal(_) => () }
+              Right(build)
+          }
+      }
   }
 
   def inDirectory(dir: Path): BuildLoader =
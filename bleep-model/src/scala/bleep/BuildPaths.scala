@@ -56,6 +56,11 @@ case class BuildPaths(cwd: Path, bleepYamlFile: Path, variant: model.BuildVarian
   /** `<workspace>/.bleep/builds/<variant>/last.log` — the build log from the most recent compile in this variant. */
   lazy val logFile: Path = workspaceVariantDir / "last.log"
 
+  /** `<workspace>/.bleep/builds/<variant>/resolve.lock.json` — resolved classpaths for this variant, so startup can skip coursier. Per variant because the BSP
+    * variant also resolves sources.
+    */
+  lazy val resolveLockFile: Path = workspaceVariantDir / "resolve.lock.json"
+
   /** `<workspace>/.bleep/import/` — scratch for one-shot import commands (`bleep import`, `bleep import-maven`). */
   lazy val bleepImportDir: Path = dotBleepDir / "import"
   lazy val bleepImportBloopDir: Path = bleepImportDir / "bloop"
@@ -139,7 +144,22 @@ case class BuildPaths(cwd: Path, bleepYamlFile: Path, variant: model.BuildVarian
       ProjectPaths.DirsByOrigin(fromSourceLayout, fromJson, generated, None, ksp)
     }
 
-    ProjectPaths(dir = dir, targetDir = targetDir, sourcesDirs = sources, resourcesDirs = resources, isTestProject = p.isTestProject.getOrElse(false))
+    // Zinc compiles straight to jar for the compilers that can write one with `-d`; Scala.js and Scala Native link from a directory of IR, and kotlinc and a
+    // plain javac compile do not go through zinc at all. Anything else asking for it keeps its directory.
+    val straightToJar =
+      p.scala.flatMap(_.setup).flatMap(_.straightToJar).contains(true) &&
+        scalaVersion.exists(v => v.is3 || v.is213 || v.is212) &&
+        maybePlatformId.forall(_ == model.PlatformId.Jvm) &&
+        p.kotlin.flatMap(_.version).isEmpty
+
+    ProjectPaths(
+      dir = dir,
+      targetDir = targetDir,
+      sourcesDirs = sources,
+      resourcesDirs = resources,
+      isTestProject = p.isTestProject.getOrElse(false),
+      straightToJar = straightToJar
+    )
   }
 }
 
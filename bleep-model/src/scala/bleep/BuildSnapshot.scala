@@ -0,0 +1,94 @@
+package bleep
+
+import bleep.internal.BinaryJson
+import io.circe.{Decoder, Encoder, Json}
+
+import java.io.{BufferedOutputStream, ByteArrayInputStream, DataInputStream, DataOutputStream}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{AtomicMoveNotSupportedException, Files, Path, StandardCopyOption}
+import java.security.MessageDigest
+import scala.util.Using
+import scala.util.control.NonFatal
+
+/** The parsed and exploded form of `bleep.yaml`, kept under `.bleep` so the next invocation does not parse and explode it again.
+  *
+  * Before a command can do anything it needs the build: the YAML parsed into a circe tree, that decoded into a [[model.BuildFile]], and every project exploded
+  * through its templates and cross builds. For a 4000-line build that is over half a second of every invocation, spent producing exactly what the previous
+  * invocation produced. The snapshot holds the parsed tree and the exploded projects in [[BinaryJson]], and is valid for one exact `bleep.yaml` content and
+  * one bleep version: its key is a SHA-256 of both, so a decoder or explode change in a new bleep cannot be answered with an old bleep's output.
+  *
+  * The `BuildFile` is still decoded from the tree — cheaply, and its decoder is where template and project names are checked. The exploded projects are
+  * decoded only when asked for.
+  *
+  * Anything unexpected — no file, another key, a file that does not read — means no snapshot, and the build is parsed from `bleep.yaml` as it always was.
+  */
+object BuildSnapshot {
+  private val Magic = 0x424c4253 // "BLBS"
+  private val FormatVersion = 1
+
+  def fileFor(bleepYaml: Path): Path =
+    bleepYaml.getParent.resolve(".bleep").resolve("build-snapshot.bin")
+
+  /** What a snapshot holds, with the exploded projects left as a tree until needed. */
+  final class Loaded(val json: Json, explodedJson: Json) {
+    lazy val explodedProjects: Either[Exception, Map[model.CrossProjectName, model.Project]] =
+      explodedJson.as[Map[model.CrossProjectName, model.Project]](using projectsDecoder)
+  }
+
+  private val projectsDecoder: Decoder[Map[model.CrossProjectName, model.Project]] =
+    Decoder.decodeMap[model.CrossProjectName, model.Project](using model.CrossProjectName.keyDecodes, model.Project.decodes)
+  private val projectsEncoder: Encoder[Map[model.CrossProjectName, model.Project]] =
+    Encoder.encodeMap[model.CrossProjectName, model.Project](using model.CrossProjectName.keyEncodes, model.Project.encodes)
+
+  def keyFor(yamlContent: String): Array[Byte] = {
+    val md = MessageDigest.getInstance("SHA-256")
+    md.update(FormatVersion.toByte)
+    md.update(model.BleepVersion.current.value.getBytes(StandardCharsets.UTF_8))
+    md.update(0.toByte)
+    md.update(yamlContent.getBytes(StandardCharsets.UTF_8))
+    md.digest()
+  }
+
+  /** The snapshot for exactly this `bleep.yaml` content, if there is one. */
+  def read(bleepYaml: Path, yamlContent: String): Option[Loaded] = {
+    val file = fileFor(bleepYaml)
+    if (!Files.isRegularFile(file)) None
+    else
+      try {
+        val bytes = Files.readAllBytes(file)
+        val in = new DataInputStream(new ByteArrayInputStream(bytes))
+        val key = new Array[Byte](32)
+        if (in.readInt() != Magic || in.readInt() != FormatVersion) None
+        else {
+          in.readFully(key)
+          if (!java.util.Arrays.equals(key, keyFor(yamlContent))) None
+          else {
+            val json = BinaryJson.read(in)
+            val exploded = BinaryJson.read(in)
+            Some(new Loaded(json, exploded))
+          }
+        }
+      } catch { case NonFatal(_) => None }
+  }
+
+  /** Store a snapshot for this `bleep.yaml` content. Best effort: a snapshot that cannot be written just is not there next time. */
+  def write(bleepYaml: Path, yamlContent: String, json: Json, explodedProjects: Map[model.CrossProjectName, model.Project]): Unit =
+    try {
+      val file = fileFor(bleepYaml)
+      Files.createDirectories(file.getParent)
+      // Unique per writer: two invocations starting at once must not interleave into one temp file.
+      val tmp = Files.createTempFile(file.getParent, "build-snapshot", ".tmp")
+      try {
+        Using.resource(new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) { out =>
+          out.writeInt(Magic)
+          out.writeInt(FormatVersion)
+          out.write(keyFor(yamlContent))
+          BinaryJson.write(json, out)
+          BinaryJson.write(projectsEncoder(explodedProjects), out)
+        }
+        try Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        catch { case _: AtomicMoveNotSupportedException => Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING) }
+        ()
+      } finally Files.deleteIfExists(tmp): Unit
+    } catch { case NonFatal(_) => () }
+}
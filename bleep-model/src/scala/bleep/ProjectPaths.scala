@@ -3,10 +3,36 @@ package bleep
 import java.nio.file.Path
 import scala.collection.immutable.SortedSet
 
-case class ProjectPaths(dir: Path, targetDir: Path, sourcesDirs: ProjectPaths.DirsByOrigin, resourcesDirs: ProjectPaths.DirsByOrigin, isTestProject: Boolean) {
+/** @param straightToJar
+  *   the project compiles into [[classesJar]] rather than [[classes]]. Decided once, in [[BuildPaths.project]], so that the compile, every classpath it ends up
+  *   on and everything that packages it agree on where the classes are.
+  */
+case class ProjectPaths(
+    dir: Path,
+    targetDir: Path,
+    sourcesDirs: ProjectPaths.DirsByOrigin,
+    resourcesDirs: ProjectPaths.DirsByOrigin,
+    isTestProject: Boolean,
+    straightToJar: Boolean = false
+) {
   val classes: Path =
     targetDir / (if (isTestProject) "test-classes" else "classes")
 
+  val classesJar: Path =
+    targetDir / (if (isTestProject) "test-classes.jar" else "classes.jar")
+
+  /** Where this project's compiled classes are: [[classesJar]] when it compiles straight to jar, [[classes]] otherwise. This is what goes on classpaths and
+    * into packages. [[classes]] stays the project's identity for locks, whichever form the output takes.
+    */
+  val output: Path =
+    if (straightToJar) classesJar else classes
+
+  /** Where the compiler writes SemanticDB files. They are files on disk whatever form the classes take, so a straight-to-jar project keeps them in a directory
+    * of their own; otherwise they go among the classes, where tools look for them first.
+    */
+  val semanticDbTarget: Path =
+    if (straightToJar) targetDir / "semanticdb" else classes
+
   val incrementalAnalysis: Path =
     targetDir / s"inc_compile.zip"
 }
@@ -0,0 +1,84 @@
+package bleep.internal
+
+import io.circe.{Json, JsonNumber, JsonObject}
+
+import java.io.{ByteArrayOutputStream, DataInputStream, DataOutputStream, InputStream}
+import java.nio.charset.StandardCharsets
+import scala.collection.mutable
+
+/** A compact binary encoding of a circe `Json` tree, for caches that would otherwise store JSON text and parse it back.
+  *
+  * Every string — object keys, string values, numbers in their textual form — goes into a table once and is referred to by index. An exploded build says
+  * `scala`, `version`, `3.7.1` and the same dozen option names once per project; here each is stored and decoded once. Reading is a single pass with no
+  * tokenizing, and produces the same tree `parse` would have, key order included.
+  */
+object BinaryJson {
+  private val Null = 0
+  private val True = 1
+  private val False = 2
+  private val Number = 3
+  private val Str = 4
+  private val Arr = 5
+  private val Obj = 6
+
+  def write(json: Json, out: DataOutputStream): Unit = {
+    val indices = mutable.HashMap.empty[String, Int]
+    val table = mutable.ArrayBuffer.empty[String]
+    def intern(s: String): Int = indices.getOrElseUpdate(s, { table += s; table.size - 1 })
+
+    val bodyBytes = new ByteArrayOutputStream()
+    val body = new DataOutputStream(bodyBytes)
+    def go(json: Json): Unit =
+      json.fold(
+        body.writeByte(Null),
+        b => body.writeByte(if (b) True else False),
+        n => { body.writeByte(Number); body.writeInt(intern(n.toString)) },
+        s => { body.writeByte(Str); body.writeInt(intern(s)) },
+        values => { body.writeByte(Arr); body.writeInt(values.size); values.foreach(go) },
+        obj => {
+          body.writeByte(Obj)
+          body.writeInt(obj.size)
+          obj.toIterable.foreach { case (k, v) => body.writeInt(intern(k)); go(v) }
+        }
+      )
+    go(json)
+    body.flush()
+
+    out.writeInt(table.size)
+    table.foreach { s =>
+      val bytes = s.getBytes(StandardCharsets.UTF_8)
+      out.writeInt(bytes.length)
+      out.write(bytes)
+    }
+    bodyBytes.writeTo(out)
+  }
+
+  def read(in: InputStream): Json = {
+    val data = new DataInputStream(in)
+    val table = Array.fill(data.readInt()) {
+      val bytes = new Array[Byte](data.readInt())
+      data.readFully(bytes)
+      new String(bytes, StandardCharsets.UTF_8)
+    }
+    def go(): Json =
+      data.readByte().toInt match {
+        case Null   => Json.Null
+        case True   => Json.True
+        case False  => Json.False
+        case Number =>
+          val text = table(data.readInt())
+          JsonNumber.fromString(text).map(Json.fromJsonNumber).getOrElse(throw new IllegalStateException(s"bad number $text"))
+        case Str => Json.fromString(table(data.readInt()))
+        case Arr => Json.fromValues(Vector.fill(data.readInt())(go()))
+        case Obj =>
+          val size = data.readInt()
+          val fields = Vector.fill(size) {
+            val key = table(data.readInt())
+            key -> go()
+          }
+          Json.fromJsonObject(JsonObject.fromIterable(fields))
+        case other => throw new IllegalStateException(s"unknown tag $other")
+      }
+    go()
+  }
+}
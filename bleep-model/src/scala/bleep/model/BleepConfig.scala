@@ -65,15 +65,40 @@ case class BspServerConfig(
       * (stay alive forever). Default: 60
       */
     compileServerIdleTimeoutMinutes: Option[Int],
-    /** How many workspaces' resolved builds [[bleep.bsp.BuildCache]] keeps before evicting the least recently used idle one.
+    /** A hard cap on how many workspaces' resolved builds [[bleep.bsp.BuildCache]] keeps, on top of its heap budget.
       *
-      * A resolved build is not small — exploded model, resolved classpaths, the Zinc analysis reachable from it — and the cache used to hold every workspace
-      * the daemon had ever seen for its whole lifetime. Measured on a daemon serving 11 worktrees: the post-GC floor climbed monotonically from 3.5GB to 8.2GB
-      * of a 12GB heap over 45 minutes, at which point compiles OOM'd at a concurrency of three. Bounding the cache bounds that floor.
+      * The cache is bounded by the estimated heap its builds retain — see [[BspServerConfig.CachedBuildsHeapShare]] — because a count treats a two-project
+      * workspace and a three-hundred-project monorepo alike. This cap is for when fewer warm workspaces are wanted than the heap would allow.
       *
-      * Only idle workspaces are evicted, so this is a cache size, not a limit on how many workspaces a daemon can serve. Default: 4. None = default.
+      * Only idle workspaces are evicted, so this is a cache size, not a limit on how many workspaces a daemon can serve. Default: no cap.
       */
-    maxCachedWorkspaces: Option[Int]
+    maxCachedWorkspaces: Option[Int],
+    /** Whether the compile server pulls remote-cache entries in the background when a loaded workspace switches branch, so the first compile after a `git
+      * checkout` finds outputs CI already built instead of rebuilding them. Only builds that configure `remote-cache` are affected, and the prefetch only
+      * takes cores nothing else is waiting for. Default: true
+      */
+    remoteCachePrefetch: Option[Boolean],
+    /** Whether the compile server pushes each project it compiles to the build's `remote-cache`, in the background, as soon as the compile succeeds. Meant for
+      * CI, which then populates the cache as it builds rather than in a trailing `bleep remote-cache push` that digests and packs everything again. Needs
+      * write credentials for the cache. Default: false
+      */
+    remoteCacheAutoPush: Option[Boolean],
+    /** How many compile worker JVMs the compile server runs compiles in, instead of in its own heap. Workers are long-lived, each keeps the compiler and Zinc
+      * analyses of the workspaces routed to it warm, and each counts against the machine's memory budget like any other fork. A worker that dies is replaced
+      * and its compiles are retried. 0 (the default) compiles in the server, as before.
+      */
+    compileWorkers: Option[Int],
+    /** Max heap for each compile worker JVM, e.g. "4g". Only read when [[compileWorkers]] is set. Default: 4g */
+    compileWorkerMaxMemory: Option[String],
+    /** How long the compile server must have run nothing — no compile, test or other work, whether or not clients are connected — before it gives memory
+      * back, in minutes. It then drops all but the most recently used compiler and workspace analyses, collects, and lets the heap shrink; the next compile
+      * reads back whatever it needs. Set to 0 to never trim. Default: 10
+      */
+    idleTrimMinutes: Option[Int],
+    /** Whether the compile server tunes how many compiles it runs at once from their throughput, GC overhead and CPU load, between one and `parallelism`.
+      * Without it, as many compiles run as there are cores to grant them. Not used with [[compileWorkers]]. Default: true
+      */
+    compileAutotune: Option[Boolean]
 ) {
   def effectiveParallelism: Int = {
     val cores = Runtime.getRuntime.availableProcessors
@@ -95,19 +120,43 @@ case class BspServerConfig(
     minutes * 60 * 1000
   }
 
-  /** How many workspaces' builds the daemon caches, for a server with `maxHeapBytes` of heap.
+  /** The configured cap on cached workspaces, if any. Always >= 1: the workspace being compiled has to stay cached while it compiles. */
+  def maxCachedWorkspacesCap: Option[Int] =
+    maxCachedWorkspaces.map { n =>
+      if (n < 1) sys.error(s"maxCachedWorkspaces must be >= 1, got $n")
+      n
+    }
+
+  /** How many bytes of heap the daemon lets its cached builds retain, for a server with `maxHeapBytes` of heap.
     *
     * Takes the heap rather than reading it, so the model stays free of runtime lookups and the scaling is testable. The daemon passes its own
     * `Runtime.getRuntime.maxMemory()`, which is exact — the client sets `-Xmx` when it starts the server.
-    *
-    * Always >= 1: the workspace being compiled has to stay cached while it compiles.
     */
-  def maxCachedWorkspacesFor(maxHeapBytes: Long): Int = {
-    val n = maxCachedWorkspaces.getOrElse(BspServerConfig.defaultMaxCachedWorkspaces(maxHeapBytes))
-    if (n < 1) sys.error(s"maxCachedWorkspaces must be >= 1, got $n")
+  def cachedBuildsBudgetBytesFor(maxHeapBytes: Long): Long =
+    (maxHeapBytes * BspServerConfig.CachedBuildsHeapShare).toLong
+
+  def effectiveRemoteCachePrefetch: Boolean =
+    remoteCachePrefetch.getOrElse(true)
+
+  def effectiveCompileAutotune: Boolean =
+    compileAutotune.getOrElse(true)
+
+  def effectiveRemoteCacheAutoPush: Boolean =
+    remoteCacheAutoPush.getOrElse(false)
+
+  def effectiveCompileWorkers: Int = {
+    val n = compileWorkers.getOrElse(0)
+    if (n < 0) sys.error(s"compileWorkers must be >= 0 (0 compiles in the server), got $n")
     n
   }
 
+  /** How long the server must have been quiet before it trims its caches, in milliseconds. 0 means never. */
+  def effectiveIdleTrimMillis: Long = {
+    val minutes = idleTrimMinutes.getOrElse(BspServerConfig.DefaultIdleTrimMinutes)
+    if (minutes < 0) sys.error(s"idleTrimMinutes must be >= 0 (0 disables idle trimming), got $minutes")
+    minutes.toLong * 60L * 1000L
+  }
+
   /** How long a fully-idle server waits before self-shutdown, in milliseconds. 0 means never. */
   def effectiveCompileServerIdleTimeoutMillis: Long = {
     val minutes = compileServerIdleTimeoutMinutes.getOrElse(BspServerConfig.DefaultCompileServerIdleTimeoutMinutes)
@@ -131,28 +180,31 @@ object BspServerConfig {
   // connected), so this never interrupts a compile or a live editor.
   val DefaultCompileServerIdleTimeoutMinutes: Int = 60
 
-  /** Never cache fewer than this, however small the heap: one warm build is no better than none when work moves between two worktrees. */
+  // Long enough that a developer reading a diff or running the app between compiles comes back to a warm server, short enough that a laptop left with the
+  // server idle over a meeting has its memory back well before anyone notices it missing. Trimming is cheap to undo: the next compile rereads a few files.
+  val DefaultIdleTrimMinutes: Int = 10
+
+  /** Never evict for heap below this many builds, however small the heap: one warm build is no better than none when work moves between two worktrees. The
+    * explicit `maxCachedWorkspaces` cap is not subject to it.
+    */
   val MinCachedWorkspaces: Int = 2
 
-  /** One cached build per gigabyte of server heap.
+  /** The share of the server heap cached builds may retain — their resolved projects and the Zinc analyses read while compiling them.
     *
-    * A fixed count was wrong in both directions — too many on a small heap, needlessly few on a large one — and the right number is a function of how much heap
-    * there is to hold them.
+    * This replaced one cached build per gigabyte of heap. That count scaled with the heap but not with the builds: it held as many tiny workspaces as large
+    * ones, so either small ones were evicted for nothing or a large one blew the heap.
     *
-    * A ratio is only defensible because the marginal cost of a workspace falls as more are resident: byte-identical analysis files back a single shared object
-    * graph, and the more workspaces are loaded the likelier any given analysis is already there. Measured on divergent dlab worktrees, which are large (~93MB
-    * of analysis each):
+    * A third, because that is where the measured curve landed the old default on a 12GB heap. On divergent dlab worktrees, which are large (~93MB of
+    * analysis each):
     *
     * 4 resident -> 2.10GB retained, 525MB per workspace, 22% of entries were duplicates 8 resident -> 3.71GB retained, 464MB per workspace, 37% duplicates 10
     * resident -> 3.93GB retained, 393MB per workspace, 44% duplicates
     *
-    * The ninth and tenth workspaces cost about 110MB each, against ~525MB for the fourth. Extrapolating the earlier per-workspace figure would have predicted
-    * 5.6GB at twelve; the curve says closer to 4.2GB, a third of a 12GB heap, leaving the compile-admission gate the rest.
+    * Twelve such workspaces came to about 4.2GB, a third of the heap, leaving the compile-admission gate the rest. The marginal cost of a workspace falls as
+    * more are resident, because byte-identical analyses back one shared object graph — which the per-workspace estimate accounts for by splitting a shared
+    * analysis between its holders.
     */
-  def defaultMaxCachedWorkspaces(maxHeapBytes: Long): Int = {
-    val gb = maxHeapBytes / (1024L * 1024L * 1024L)
-    math.max(MinCachedWorkspaces, gb.toInt)
-  }
+  val CachedBuildsHeapShare: Double = 1.0 / 3.0
 
   val default: BspServerConfig = BspServerConfig(
     parallelism = None,
@@ -165,7 +217,13 @@ object BspServerConfig {
     heapPressureThreshold = None,
     bspReadTimeoutMinutes = None,
     compileServerIdleTimeoutMinutes = None,
-    maxCachedWorkspaces = None
+    maxCachedWorkspaces = None,
+    remoteCachePrefetch = None,
+    remoteCacheAutoPush = None,
+    compileWorkers = None,
+    compileWorkerMaxMemory = None,
+    idleTrimMinutes = None,
+    compileAutotune = None
   )
 
   implicit val decoder: Decoder[BspServerConfig] = deriveDecoder
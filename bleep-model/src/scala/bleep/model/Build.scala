@@ -165,22 +165,40 @@ object Build {
     implicit val decodes: Decoder[Exploded] = deriveDecoder
   }
 
-  case class FileBacked(file: BuildFile) extends Build {
+  object FileBacked {
+    def apply(file: BuildFile): FileBacked =
+      new FileBacked(file)(None)
+
+    /** A build whose exploded projects are already known — read back from a [[bleep.BuildSnapshot]] — so they are not exploded again. Equal to the plain one
+      * for the same file.
+      */
+    def preExploded(file: BuildFile, projects: Map[CrossProjectName, Project]): FileBacked =
+      new FileBacked(file)(Some(projects))
+  }
+
+  /** @param knownExplodedProjects
+    *   what exploding `file` gives, when that is already known. In the second parameter list so that it is not part of equality; a copy with another file
+    *   explodes that file.
+    */
+  case class FileBacked private (file: BuildFile)(knownExplodedProjects: Option[Map[CrossProjectName, Project]]) extends Build {
     def $version: BleepVersion = file.$version
     def resolvers: JsonList[Repository] = file.resolvers
     def scripts: Map[ScriptName, JsonList[ScriptDef]] = file.scripts.value
     def jvm: Option[Jvm] = file.jvm
     def remoteCache: Option[RemoteCacheConfig] = file.`remote-cache`
 
+    def copy(file: BuildFile = this.file): Build.FileBacked =
+      new FileBacked(file)(None)
+
     def mapBuildFile(f: BuildFile => BuildFile): Build.FileBacked =
-      Build.FileBacked(f(file))
+      copy(file = f(file))
 
     lazy val explodedTemplates: Map[TemplateId, Project] =
       rewriteDependentData(file.templates.value).eager[Project] { (_, p, eval) =>
         p.`extends`.values.foldLeft(p)((acc, templateId) => acc.union(eval(templateId).forceGet))
       }
 
-    lazy val explodedProjects: Map[CrossProjectName, Project] = {
+    lazy val explodedProjects: Map[CrossProjectName, Project] = knownExplodedProjects.getOrElse {
       def explode(p: Project): Project =
         p.`extends`.values.foldLeft(p)((acc, templateId) => acc.union(explodedTemplates(templateId)))
 
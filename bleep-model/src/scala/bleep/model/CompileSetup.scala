@@ -9,7 +9,11 @@ case class CompileSetup(
     addCompilerToClasspath: Option[Boolean],
     addExtraJarsToClasspath: Option[Boolean],
     manageBootClasspath: Option[Boolean],
-    filterLibraryFromClasspath: Option[Boolean]
+    filterLibraryFromClasspath: Option[Boolean],
+    /** Compile into a single jar (`classes.jar`) instead of a directory of class files. Only honoured for Scala 2.12+ and Scala 3 projects on the JVM, which
+      * zinc can compile straight to jar; others keep their `classes` directory. See [[bleep.ProjectPaths.output]].
+      */
+    straightToJar: Option[Boolean]
 ) extends SetLike[CompileSetup] {
 
   override def intersect(other: CompileSetup): CompileSetup =
@@ -19,7 +23,8 @@ case class CompileSetup(
       addCompilerToClasspath = if (addCompilerToClasspath == other.addCompilerToClasspath) addCompilerToClasspath else None,
       addExtraJarsToClasspath = if (addExtraJarsToClasspath == other.addExtraJarsToClasspath) addExtraJarsToClasspath else None,
       manageBootClasspath = if (manageBootClasspath == other.manageBootClasspath) manageBootClasspath else None,
-      filterLibraryFromClasspath = if (filterLibraryFromClasspath == other.filterLibraryFromClasspath) filterLibraryFromClasspath else None
+      filterLibraryFromClasspath = if (filterLibraryFromClasspath == other.filterLibraryFromClasspath) filterLibraryFromClasspath else None,
+      straightToJar = if (straightToJar == other.straightToJar) straightToJar else None
     )
 
   override def removeAll(other: CompileSetup): CompileSetup =
@@ -29,7 +34,8 @@ case class CompileSetup(
       addCompilerToClasspath = if (addCompilerToClasspath == other.addCompilerToClasspath) None else addCompilerToClasspath,
       addExtraJarsToClasspath = if (addExtraJarsToClasspath == other.addExtraJarsToClasspath) None else addExtraJarsToClasspath,
       manageBootClasspath = if (manageBootClasspath == other.manageBootClasspath) None else manageBootClasspath,
-      filterLibraryFromClasspath = if (filterLibraryFromClasspath == other.filterLibraryFromClasspath) None else filterLibraryFromClasspath
+      filterLibraryFromClasspath = if (filterLibraryFromClasspath == other.filterLibraryFromClasspath) None else filterLibraryFromClasspath,
+      straightToJar = if (straightToJar == other.straightToJar) None else straightToJar
     )
 
   override def union(other: CompileSetup): CompileSetup =
@@ -39,17 +45,27 @@ case class CompileSetup(
       addCompilerToClasspath = addCompilerToClasspath.orElse(other.addCompilerToClasspath),
       addExtraJarsToClasspath = addExtraJarsToClasspath.orElse(other.addExtraJarsToClasspath),
       manageBootClasspath = manageBootClasspath.orElse(other.manageBootClasspath),
-      filterLibraryFromClasspath = filterLibraryFromClasspath.orElse(other.filterLibraryFromClasspath)
+      filterLibraryFromClasspath = filterLibraryFromClasspath.orElse(other.filterLibraryFromClasspath),
+      straightToJar = straightToJar.orElse(other.straightToJar)
     )
 
   override def isEmpty: Boolean = this match {
-    case CompileSetup(order, addLibraryToBootClasspath, addCompilerToClasspath, addExtraJarsToClasspath, manageBootClasspath, filterLibraryFromClasspath) =>
-      order.isEmpty && addLibraryToBootClasspath.isEmpty && addCompilerToClasspath.isEmpty && addExtraJarsToClasspath.isEmpty && manageBootClasspath.isEmpty && filterLibraryFromClasspath.isEmpty
+    case CompileSetup(
+          order,
+          addLibraryToBootClasspath,
+          addCompilerToClasspath,
+          addExtraJarsToClasspath,
+          manageBootClasspath,
+          filterLibraryFromClasspath,
+          straightToJar
+        ) =>
+      order.isEmpty && addLibraryToBootClasspath.isEmpty && addCompilerToClasspath.isEmpty && addExtraJarsToClasspath.isEmpty && manageBootClasspath.isEmpty &&
+      filterLibraryFromClasspath.isEmpty && straightToJar.isEmpty
   }
 }
 
 object CompileSetup {
-  val empty: CompileSetup = CompileSetup(None, None, None, None, None, None)
+  val empty: CompileSetup = CompileSetup(None, None, None, None, None, None, None)
   implicit val decodes: Decoder[CompileSetup] = deriveDecoder
   implicit val encodes: Encoder[CompileSetup] = deriveEncoder
 }
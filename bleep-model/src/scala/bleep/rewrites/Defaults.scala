@@ -9,7 +9,8 @@ object Defaults {
     addCompilerToClasspath = Some(false),
     addExtraJarsToClasspath = Some(false),
     manageBootClasspath = Some(true),
-    filterLibraryFromClasspath = Some(true)
+    filterLibraryFromClasspath = Some(true),
+    straightToJar = None
   )
 
   val Jvm: model.Platform =
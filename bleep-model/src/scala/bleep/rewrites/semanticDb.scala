@@ -47,9 +47,9 @@ class semanticDb(semanticDbVersion: String) extends BuildRewrite {
 
   def targetRootOptions(version: model.VersionScala, projectPaths: ProjectPaths): Option[model.Options.Opt] =
     if (version.is3) {
-      Some(model.Options.Opt.WithArgs("-semanticdb-target", List(projectPaths.classes.toString)))
+      Some(model.Options.Opt.WithArgs("-semanticdb-target", List(projectPaths.semanticDbTarget.toString)))
     } else
-      Some(model.Options.Opt.Flag(s"-P:semanticdb:targetroot:${projectPaths.classes}"))
+      Some(model.Options.Opt.Flag(s"-P:semanticdb:targetroot:${projectPaths.semanticDbTarget}"))
 
   def sourceRootOptions(version: model.VersionScala, buildPaths: BuildPaths): model.Options.Opt =
     if (version.is3)
@@ -0,0 +1,125 @@
+package bleep
+
+import bleep.internal.BinaryJson
+import io.circe.Json
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataOutputStream}
+import java.nio.file.Files
+
+/** Unit tests for [[BuildSnapshot]] and the [[BinaryJson]] encoding it stores trees in: trees come back exactly as written, key order included, and a snapshot
+  * only answers for the `bleep.yaml` content it was written for.
+  */
+class BuildSnapshotTest extends AnyFunSuite {
+
+  private val tree = Json.obj(
+    "$schema" -> Json.fromString("https://raw.githubusercontent.com/oyvindberg/bleep/master/schema.json"),
+    "projects" -> Json.obj(
+      "b" -> Json.obj("dependsOn" -> Json.arr(Json.fromString("a")), "scala" -> Json.obj("version" -> Json.fromString("3.7.1"))),
+      "a" -> Json.obj("scala" -> Json.obj("version" -> Json.fromString("3.7.1")), "isTestProject" -> Json.False)
+    ),
+    "numbers" -> Json.arr(Json.fromInt(1), Json.fromBigDecimal(BigDecimal("1.50")), Json.fromLong(Long.MaxValue)),
+    "nothing" -> Json.Null,
+    "ø" -> Json.True
+  )
+
+  private def roundTrip(json: Json): Json = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new DataOutputStream(bytes)
+    BinaryJson.write(json, out)
+    out.flush()
+    BinaryJson.read(new ByteArrayInputStream(bytes.toByteArray))
+  }
+
+  test("binary json round trip keeps values and key order") {
+    val back = roundTrip(tree)
+    assert(back == tree)
+    assert(back.noSpaces == tree.noSpaces)
+  }
+
+  test("snapshot answers only for the content it was written for") {
+    val dir = Files.createTempDirectory("build-snapshot")
+    val bleepYaml = dir.resolve("bleep.yaml")
+    BuildSnapshot.write(bleepYaml, "content", tree, Map.empty)
+
+    val loaded = BuildSnapshot.read(bleepYaml, "content")
+    assert(loaded.map(_.json).contains(tree))
+    assert(loaded.flatMap(_.explodedProjects.toOption).contains(Map.empty))
+    assert(BuildSnapshot.read(bleepYaml, "content ").isEmpty)
+  }
+
+  test("a damaged snapshot is no snapshot") {
+    val dir = Files.createTempDirectory("build-snapshot")
+    val bleepYaml = dir.resolve("bleep.yaml")
+    BuildSnapshot.write(bleepYaml, "content", tree, Map.empty)
+    val file = BuildSnapshot.fileFor(bleepYaml)
+    val bytes = Files.readAllBytes(file)
+    Files.write(file, bytes.take(bytes.length / 2))
+    assert(BuildSnapshot.read(bleepYaml, "content").isEmpty)
+  }
+
+  private val yamlWithTemplates =
+    """$schema: https://raw.githubusercontent.com/oyvindberg/bleep/master/schema.json
+      |$version: 0.0.1
+      |projects:
+      |  app:
+      |    dependsOn: core
+      |    extends:
+      |    - template-common
+      |    - template-jvm
+      |    platform:
+      |      mainClass: app.Main
+      |  core:
+      |    cross:
+      |      js3:
+      |        extends: template-js
+      |      jvm3:
+      |        extends: template-jvm
+      |    extends: template-common
+      |templates:
+      |  template-common:
+      |    dependencies: org.typelevel::cats-core:2.13.0
+      |    scala:
+      |      options: -deprecation
+      |      version: 3.7.1
+      |  template-js:
+      |    platform:
+      |      jsVersion: 1.19.0
+      |      name: js
+      |  template-jvm:
+      |    platform:
+      |      name: jvm
+      |""".stripMargin
+
+  test("a build read back from its snapshot has the projects exploding its yaml gives, templates and cross projects included") {
+    val dir = Files.createTempDirectory("build-snapshot")
+    try {
+      Files.writeString(dir.resolve(BuildLoader.BuildFileName), yamlWithTemplates)
+      def load(): model.Build.FileBacked = BuildLoader.inDirectory(dir).existing.orThrow.fileBacked.forceGet.orThrow
+
+      val exploded = load()
+      assert(Files.isRegularFile(BuildSnapshot.fileFor(dir.resolve(BuildLoader.BuildFileName))))
+      val fromSnapshot = load()
+
+      val names = Set("app", "core@js3", "core@jvm3").map(model.CrossProjectName.fromString(_).get)
+      assert(exploded.explodedProjects.keySet == names)
+      assert(fromSnapshot.explodedProjects == exploded.explodedProjects)
+      assert(fromSnapshot == exploded)
+    } finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+
+  test("known exploded projects are used as they are, and not carried over to a copy with another file") {
+    val dir = Files.createTempDirectory("build-snapshot")
+    try {
+      Files.writeString(dir.resolve(BuildLoader.BuildFileName), yamlWithTemplates)
+      val file = BuildLoader.inDirectory(dir).existing.orThrow.buildFile.forceGet.orThrow
+      val plain = model.Build.FileBacked(file)
+
+      val preExploded = model.Build.FileBacked.preExploded(file, Map.empty)
+      assert(preExploded.explodedProjects.isEmpty)
+      assert(preExploded == plain)
+      assert(preExploded.copy(file = file).explodedProjects == plain.explodedProjects)
+      assert(preExploded.mapBuildFile(identity).explodedProjects == plain.explodedProjects)
+    } finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+}
@@ -0,0 +1,56 @@
+package bleep
+
+import bleep.CoursierResolver.Cached.LeanArtifact
+import bleep.internal.LeanCacheBinary
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.Files
+
+/** Unit tests for [[LeanCacheBinary]], the on-disk format of the coursier resolution cache: a round trip through a real file, and the two ways an entry is
+  * refused — a different request that hashed to the same file name, and a file that is not (all) there.
+  */
+class LeanCacheBinaryTest extends AnyFunSuite {
+
+  private val artifacts = List(
+    LeanArtifact("org.typelevel", "cats-core_3", "2.13.0", "", "jar", "/cache/https/repo1/org/typelevel/cats-core_3-2.13.0.jar"),
+    LeanArtifact("org.typelevel", "cats-core_3", "2.13.0", "sources", "jar", "/cache/https/repo1/org/typelevel/cats-core_3-2.13.0-sources.jar"),
+    LeanArtifact("org.typelevel", "cats-kernel_3", "2.13.0", "", "jar", "/cache/https/repo1/org/typelevel/cats-kernel_3-2.13.0.jar"),
+    LeanArtifact("com.example", "bundle", "1.0", "", "bundle", ""),
+    LeanArtifact("ø.unicode", "naïve", "1.0", "", "jar", "/cache/ø/naïve-1.0.jar")
+  )
+
+  private def written(bytes: Array[Byte]) = {
+    val file = Files.createTempFile("lean-cache-", ".bin")
+    Files.write(file, bytes)
+    file
+  }
+
+  test("round trip") {
+    val file = written(LeanCacheBinary.encode(42, artifacts))
+    assert(LeanCacheBinary.read(file, 42) == LeanCacheBinary.Read.Hit(artifacts))
+  }
+
+  test("empty resolution") {
+    val file = written(LeanCacheBinary.encode(7, Nil))
+    assert(LeanCacheBinary.read(file, 7) == LeanCacheBinary.Read.Hit(Nil))
+  }
+
+  test("shared strings are stored once") {
+    val once = LeanCacheBinary.encode(1, artifacts.take(1)).length
+    val twice = LeanCacheBinary.encode(1, artifacts.take(1) ++ artifacts.take(1)).length
+    assert(twice - once == 6 * 4)
+  }
+
+  test("different request hash is a collision") {
+    val file = written(LeanCacheBinary.encode(42, artifacts))
+    assert(LeanCacheBinary.read(file, 43) == LeanCacheBinary.Read.Collision)
+  }
+
+  test("truncated or foreign files are corrupt") {
+    val bytes = LeanCacheBinary.encode(42, artifacts)
+    assert(LeanCacheBinary.read(written(bytes.take(bytes.length - 1)), 42).isInstanceOf[LeanCacheBinary.Read.Corrupt])
+    assert(LeanCacheBinary.read(written(bytes.take(10)), 42).isInstanceOf[LeanCacheBinary.Read.Corrupt])
+    assert(LeanCacheBinary.read(written(Array.emptyByteArray), 42).isInstanceOf[LeanCacheBinary.Read.Corrupt])
+    assert(LeanCacheBinary.read(written("""{"h":42,"a":[]}""".getBytes), 42).isInstanceOf[LeanCacheBinary.Read.Corrupt])
+  }
+}
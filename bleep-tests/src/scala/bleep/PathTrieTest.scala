@@ -0,0 +1,44 @@
+package bleep
+
+import bleep.internal.PathTrie
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.Paths
+
+/** Unit tests for [[PathTrie]]: containment by path components rather than by string prefix, and the difference between every containing directory and the
+  * innermost one.
+  */
+class PathTrieTest extends AnyFunSuite {
+  private val root = Paths.get("/build")
+
+  private val trie = PathTrie.from(
+    List(
+      root.resolve("a/src/scala") -> "a",
+      root.resolve("shared/src/scala") -> "jvm",
+      root.resolve("shared/src/scala") -> "js",
+      root.resolve("shared") -> "outer"
+    )
+  )
+
+  test("a file under one root") {
+    assert(trie.containing(root.resolve("a/src/scala/x/Foo.scala")) == List("a"))
+  }
+
+  test("every containing root, outermost first") {
+    assert(trie.containing(root.resolve("shared/src/scala/Foo.scala")) == List("outer", "jvm", "js"))
+  }
+
+  test("only the innermost root") {
+    assert(trie.nearest(root.resolve("shared/src/scala/Foo.scala")) == List("jvm", "js"))
+    assert(trie.nearest(root.resolve("shared/README.md")) == List("outer"))
+  }
+
+  test("components, not string prefixes") {
+    assert(trie.containing(root.resolve("a/src/scalax/Foo.scala")).isEmpty)
+    assert(trie.containing(root.resolve("b/Foo.scala")).isEmpty)
+  }
+
+  test("paths are normalized") {
+    assert(trie.containing(root.resolve("a/./src/../src/scala/Foo.scala")) == List("a"))
+  }
+}
@@ -273,4 +273,125 @@ class ProjectDigestTest extends AnyFunSuite with Matchers {
       digest1 should not be digest2
     } finally deleteRecursively(workspace)
   }
+
+  test("the persisted hash cache changes no digest, and a same-size rewrite is still seen") {
+    val workspace = createTempWorkspace()
+    try {
+      val srcDir = workspace.resolve("a/src/scala")
+      Files.createDirectories(srcDir)
+      val file = srcDir.resolve("Foo.scala")
+      Files.writeString(file, "object Foo { val x = 1 }")
+      // Old enough to be outside the racy window, so the first run remembers it.
+      val anHourAgo = java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() - 3600000L)
+      Files.setLastModifiedTime(file, anHourAgo)
+
+      val p = model.Project.empty.copy(sources = model.JsonSet(SortedSet(RelPath.force("src/scala"))))
+      val build = makeBuild("a" -> p)
+      val buildPaths = BuildPaths(workspace, BuildLoader.inDirectory(workspace), model.BuildVariant.Normal)
+
+      val uncached = ProjectDigest.computeFor(build, buildPaths, Set(cpn("a")), FileHashCache.inMemory())(cpn("a"))
+      val first = ProjectDigest.computeAll(build, buildPaths)(cpn("a"))
+      Files.exists(FileHashCache.fileFor(buildPaths)) shouldBe true
+      val second = ProjectDigest.computeAll(build, buildPaths)(cpn("a"))
+      first shouldBe uncached
+      second shouldBe uncached
+
+      // Same size, different content, and an mtime that is still old but different: the stat tuple moved, so the file is read again.
+      Files.writeString(file, "object Foo { val x = 2 }")
+      Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(anHourAgo.toMillis + 1000L))
+      val third = ProjectDigest.computeAll(build, buildPaths)(cpn("a"))
+      third should not be first
+    } finally deleteRecursively(workspace)
+  }
+
+  test("parallel digesting of a diamond agrees with digesting each project alone") {
+    val workspace = createTempWorkspace()
+    try {
+      val build = makeBuild(
+        "base" -> model.Project.empty,
+        "left" -> projectWithDeps("base"),
+        "right" -> projectWithDeps("base"),
+        "top" -> projectWithDeps("left", "right")
+      )
+      val buildPaths = BuildPaths(workspace, BuildLoader.inDirectory(workspace), model.BuildVariant.Normal)
+
+      val all = ProjectDigest.computeAll(build, buildPaths)
+      all.keySet shouldBe Set(cpn("base"), cpn("left"), cpn("right"), cpn("top"))
+      all.foreach { case (name, digest) =>
+        ProjectDigest.computeFor(build, buildPaths, Set(name))(name) shouldBe digest
+      }
+      // Only the closure is computed.
+      ProjectDigest.computeFor(build, buildPaths, Set(cpn("left"))).keySet shouldBe Set(cpn("base"), cpn("left"))
+    } finally deleteRecursively(workspace)
+  }
+
+  test("in-process git reader agrees with git, through packs, deltas and loose objects") {
+    val workspace = Files.createTempDirectory("bleep-digest-gitreader-")
+    def git(args: String*): String = scala.sys.process.Process("git" :: args.toList, workspace.toFile).!!
+    try {
+      git("init")
+      git("config", "user.email", "test@test.com")
+      git("config", "user.name", "test")
+
+      val srcDir = workspace.resolve("a/src/scala")
+      val nestedDir = srcDir.resolve("com/example")
+      Files.createDirectories(nestedDir)
+      val foo = srcDir.resolve("Foo.scala")
+      Files.writeString(foo, "object Foo {\n" + (1 to 200).map(i => s"  val x$i = $i\n").mkString + "}\n")
+      Files.writeString(nestedDir.resolve("Baz.scala"), "package com.example; object Baz")
+      git("add", ".")
+      git("commit", "-m", "one")
+      // A second version of the same files, then a repack: trees and blobs now live in a pack, some as deltas against the first version.
+      Files.writeString(foo, Files.readString(foo).replace("val x100 = 100", "val x100 = 101"))
+      git("commit", "-am", "two")
+      git("gc", "--aggressive", "--quiet")
+      // And a third commit on top, whose objects are loose.
+      Files.writeString(nestedDir.resolve("Qux.scala"), "package com.example; object Qux")
+      git("add", ".")
+      git("commit", "-m", "three")
+
+      val hashes = FileHashCache.inMemory()
+      def expectedLsTree = git("ls-tree", "-r", "HEAD", "--", srcDir.toString).linesIterator.filter(_.nonEmpty).map { line =>
+        val tab = line.indexOf('\t')
+        (line.substring(tab + 1), line.substring(12, tab))
+      }.toList.sortBy(_._1)
+
+      val repo = GitRepository.open(workspace).getOrElse(fail("expected the in-process reader to open a plain repository"))
+      try {
+        repo.lsTree(workspace, srcDir) shouldBe Some(expectedLsTree)
+        repo.isClean(srcDir, hashes) shouldBe Some(true)
+      } finally repo.close()
+
+      def isClean = {
+        val repo = GitRepository.open(workspace).get
+        try repo.isClean(srcDir, hashes)
+        finally repo.close()
+      }
+
+      // Modified in the worktree.
+      val original = Files.readString(foo)
+      Files.writeString(foo, original + "// edited\n")
+      // Dirty here, or git's to decide where line-ending conversion is configured — never clean.
+      isClean should not be Some(true)
+      // Restored: the stat no longer matches the index, but the content does.
+      Files.writeString(foo, original)
+      isClean shouldBe Some(true)
+      // Untracked: could be ignored, so git is asked.
+      val untracked = nestedDir.resolve("New.scala")
+      Files.writeString(untracked, "object New")
+      isClean shouldBe None
+      // Staged: the index no longer matches HEAD.
+      git("add", ".")
+      isClean shouldBe Some(false)
+
+      // And the digest agrees with one computed from the filesystem alone.
+      git("commit", "-m", "four")
+      val p = model.Project.empty.copy(sources = model.JsonSet(SortedSet(RelPath.force("src/scala"))))
+      val build = makeBuild("a" -> p)
+      val buildPaths = BuildPaths(workspace, BuildLoader.inDirectory(workspace), model.BuildVariant.Normal)
+      val viaGit = ProjectDigest.computeAll(build, buildPaths)(cpn("a"))
+      deleteRecursively(workspace.resolve(".git"))
+      ProjectDigest.computeAll(build, buildPaths)(cpn("a")) shouldBe viaGit
+    } finally deleteRecursively(workspace)
+  }
 }
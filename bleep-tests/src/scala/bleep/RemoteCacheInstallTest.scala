@@ -0,0 +1,86 @@
+package bleep
+
+import bleep.analysis.{CompileOutput, NoopManifestStore, ProjectCompileSuccess, ProjectLanguage}
+import bleep.commands.RemoteCache
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+
+import java.nio.file.{Files, Path}
+
+/** What an installed remote-cache archive leaves behind: its outputs always, a noop manifest only when the sources are still the ones it was stored under. */
+class RemoteCacheInstallTest extends AnyFunSuite with Matchers {
+
+  private val archiveDigest = "digest-of-the-archived-sources"
+
+  /** A target dir as a compile leaves it — classes, analysis and a manifest — packed the way a push packs it, plus an empty target dir to install into. */
+  private def withArchive(f: (Array[Byte], Path, Path) => Unit): Unit = {
+    val dir = Files.createTempDirectory("remote-cache-install")
+    try {
+      val source = dir.resolve("src").resolve("Foo.scala")
+      Files.createDirectories(source.getParent)
+      Files.writeString(source, "class Foo")
+
+      val built = dir.resolve("built")
+      val classFile = built.resolve("classes").resolve("Foo.class")
+      Files.createDirectories(classFile.getParent)
+      Files.write(classFile, Array[Byte](1, 2, 3))
+      val builtAnalysis = built.resolve(".zinc").resolve("analysis.zip")
+      Files.createDirectories(builtAnalysis.getParent)
+      Files.write(builtAnalysis, Array[Byte](4, 5, 6))
+      Files.writeString(NoopManifestStore.manifestPath(builtAnalysis), "the machine that pushed")
+      // Left behind by a straight-to-jar compile that was killed before folding it into the jar.
+      val staged = CompileOutput.stagingDir(built.resolve("classes.jar")).resolve("Bar.class")
+      Files.createDirectories(staged.getParent)
+      Files.write(staged, Array[Byte](7, 8, 9))
+
+      val archive = TarGz.pack(built, RemoteCache.packFilter(built))
+      val target = dir.resolve("target")
+      Files.createDirectories(target)
+      f(archive, target, source)
+    } finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+
+  private def install(archive: Array[Byte], target: Path, source: Path, currentDigest: () => Option[String]): Boolean = {
+    TarGz.unpack(archive, target)
+    val analysisFile = target.resolve(".zinc").resolve("analysis.zip")
+    RemoteCache.keepManifestIfCurrent(analysisFile, archiveDigest, currentDigest) {
+      val language = ProjectLanguage.ScalaJava("3.7.1", Nil, Nil, None, model.CompileOrder.Mixed)
+      val classes = target.resolve("classes")
+      val result = ProjectCompileSuccess(classes, Set(classes.resolve("Foo.class")), Some(analysisFile))
+      NoopManifestStore.regenerateFromLocal(analysisFile, Set(source.getParent), Array(source), Map.empty, language, None, result): Unit
+    }
+  }
+
+  test("the pushing machine's manifest and a straight-to-jar compile's staging dir are not part of the archive") {
+    withArchive { (archive, target, _) =>
+      TarGz.unpack(archive, target)
+      Files.exists(target.resolve("classes").resolve("Foo.class")) shouldBe true
+      Files.exists(target.resolve(".zinc").resolve("analysis.zip")) shouldBe true
+      Files.exists(NoopManifestStore.manifestPath(target.resolve(".zinc").resolve("analysis.zip"))) shouldBe false
+      Files.exists(CompileOutput.stagingDir(target.resolve("classes.jar"))) shouldBe false
+    }
+  }
+
+  test("a manifest is written when the sources still digest to the archive's key") {
+    assume(NoopManifestStore.ctimeAvailable)
+    withArchive { (archive, target, source) =>
+      install(archive, target, source, () => Some(archiveDigest)) shouldBe true
+      val manifest = NoopManifestStore.load(target.resolve(".zinc").resolve("analysis.zip"))
+      manifest.map(_.sourceStats.keySet) shouldBe Some(Set(source))
+    }
+  }
+
+  test("sources edited while the archive was downloading leave no manifest behind") {
+    assume(NoopManifestStore.ctimeAvailable)
+    withArchive { (archive, target, source) =>
+      val edited = () => {
+        Files.writeString(source, "class Foo { def edited = 1 }")
+        Some("digest-of-the-edited-sources")
+      }
+      install(archive, target, source, edited) shouldBe false
+      Files.exists(NoopManifestStore.manifestPath(target.resolve(".zinc").resolve("analysis.zip"))) shouldBe false
+      // The outputs stay: zinc compares the archive's analysis with the edited sources and recompiles what differs.
+      Files.exists(target.resolve("classes").resolve("Foo.class")) shouldBe true
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package bleep
+
+import bleep.CoursierResolver.Cached
+import coursier.Fetch
+import coursier.error.CoursierError
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import scala.collection.immutable.SortedSet
+import scala.jdk.CollectionConverters.*
+
+/** Unit tests for [[ResolutionPlanner]]: one resolution per distinct dependency set, none before a project is asked for, and cells answered from the plan. */
+class ResolutionPlannerTest extends AnyFunSuite {
+
+  private def cpn(name: String): model.CrossProjectName =
+    model.CrossProjectName(model.ProjectName(name), None)
+
+  private def project(deps: List[model.Dep], dependsOn: String*): model.Project =
+    model.Project.empty.copy(
+      dependencies = model.JsonSet(SortedSet.from(deps)),
+      dependsOn = model.JsonSet(SortedSet.from(dependsOn.map(model.ProjectName.apply)))
+    )
+
+  private val catsCore = model.Dep.Java("org.typelevel", "cats-core_3", "2.13.0")
+  private val kittens = model.Dep.Java("org.typelevel", "kittens_3", "3.5.0")
+  private val zio = model.Dep.Java("dev.zio", "zio_3", "2.1.0")
+
+  /** `a` and `b` ask for the same thing; `c` builds on `a`; `d` has nothing to do with any of them. */
+  private val build = model.Build.Exploded(
+    $version = model.BleepVersion("test"),
+    explodedProjects = Map(
+      cpn("a") -> project(List(catsCore)),
+      cpn("b") -> project(List(catsCore)),
+      cpn("c") -> project(List(kittens), "a"),
+      cpn("d") -> project(List(zio))
+    ),
+    resolvers = model.JsonList.empty,
+    jvm = None,
+    scripts = Map.empty,
+    remoteCache = None
+  )
+
+  /** Resolves everything to nothing, counting how often each dependency set was asked for. */
+  private class Counting extends CoursierResolver {
+    val calls = new ConcurrentHashMap[SortedSet[model.Dep], AtomicInteger]()
+    def total: Int = calls.values().asScala.map(_.get()).sum
+    def asked: Set[Set[String]] = calls.keySet().asScala.map(_.map(_.baseModuleName.value).toSet).toSet
+
+    override val params: CoursierResolver.Params = CoursierResolver.Params(None, false, None, Nil)
+    override def withParams(newParams: CoursierResolver.Params): CoursierResolver = this
+
+    override def resolve(
+        deps: SortedSet[model.Dep],
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        ignoreEvictionErrors: model.IgnoreEvictionErrors
+    ): Either[CoursierError, CoursierResolver.Result] = {
+      calls.computeIfAbsent(deps, _ => new AtomicInteger(0)).incrementAndGet()
+      Right(Cached.fromLean(Nil))
+    }
+
+    override def direct(
+        deps: SortedSet[model.Dep],
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        ignoreEvictionErrors: model.IgnoreEvictionErrors
+    ): Either[CoursierError, Fetch.Result] =
+      Left(new CoursierError("not used") {})
+  }
+
+  /** What resolving `name` asks the resolver for, as [[ResolveProjects.resolveProject]] asks it. */
+  private def resolveCell(plan: ResolutionPlanner.Plan, name: String): Unit =
+    ResolutionPlanner.requestsFor(cpn(name), build.explodedProjects(cpn(name)), build).foreach(_.force(plan.resolver, name).discard())
+
+  test("identical dependency sets are planned once") {
+    val plan = ResolutionPlanner.start(ThreadSafeStoringLogger(), new Counting, build)
+    // a and b share one; c's includes what it inherits from a.
+    assert(plan.requests.map(_.deps.map(_.baseModuleName.value).toSet) == Set(Set("cats-core_3"), Set("cats-core_3", "kittens_3"), Set("zio_3")))
+  }
+
+  test("nothing is resolved before a project is asked for") {
+    val underlying = new Counting
+    ResolutionPlanner.start(ThreadSafeStoringLogger(), underlying, build).discard()
+    Thread.sleep(100)
+    assert(underlying.total == 0)
+  }
+
+  test("warming a project resolves it and what it depends on, and nothing else") {
+    val underlying = new Counting
+    val plan = ResolutionPlanner.start(ThreadSafeStoringLogger(), underlying, build)
+    plan.warm(List(cpn("c"))).join()
+    assert(underlying.asked == Set(Set("cats-core_3"), Set("cats-core_3", "kittens_3")))
+    assert(underlying.total == 2)
+  }
+
+  test("cells are answered from the plan, each distinct set resolved once however many projects ask") {
+    val underlying = new Counting
+    val plan = ResolutionPlanner.start(ThreadSafeStoringLogger(), underlying, build)
+    plan.warmAll().join()
+    assert(underlying.total == 3)
+    List("a", "b", "c", "d", "a").foreach(resolveCell(plan, _))
+    assert(underlying.total == 3)
+    assert(underlying.calls.values().asScala.forall(_.get() == 1))
+  }
+
+  test("a cell that gets there before the plan starts its request itself, once") {
+    val underlying = new Counting
+    val plan = ResolutionPlanner.start(ThreadSafeStoringLogger(), underlying, build)
+    resolveCell(plan, "a")
+    resolveCell(plan, "b")
+    plan.warm(List(cpn("b"))).join()
+    assert(underlying.total == 1)
+  }
+
+  test("a request the plan did not foresee goes to the resolver every time") {
+    val underlying = new Counting
+    val plan = ResolutionPlanner.start(ThreadSafeStoringLogger(), underlying, build)
+    val agent = SortedSet[model.Dep](model.Dep.Java("org.example", "agent", "1.0"))
+    plan.resolver.resolve(agent, model.VersionCombo.Java, SortedSet.empty, model.IgnoreEvictionErrors.No).discard()
+    plan.resolver.resolve(agent, model.VersionCombo.Java, SortedSet.empty, model.IgnoreEvictionErrors.No).discard()
+    assert(underlying.total == 2)
+  }
+}
@@ -0,0 +1,173 @@
+package bleep
+
+import bleep.CoursierResolver.Cached
+import bleep.CoursierResolver.Cached.LeanArtifact
+import coursier.Fetch
+import coursier.error.CoursierError
+import org.scalatest.funsuite.AnyFunSuite
+
+import java.nio.file.attribute.FileTime
+import java.nio.file.{Files, Path}
+import java.util.concurrent.atomic.AtomicInteger
+import scala.collection.immutable.SortedSet
+
+/** Unit tests for [[ResolveLock]]: what a lockfile answers across runs, what its key is made of, and the ways an entry stops being trusted. */
+class ResolveLockTest extends AnyFunSuite {
+
+  private val logger = ThreadSafeStoringLogger()
+  private val version = "1.0.0"
+  private val catsCore = SortedSet[model.Dep](model.Dep.Java("org.typelevel", "cats-core_3", "2.13.0"))
+  private val combo: model.VersionCombo = model.VersionCombo.Java
+
+  /** Resolves every dependency to one jar in `dir`, and counts how often it was asked. */
+  private class Counting(dir: Path, override val params: CoursierResolver.Params = CoursierResolver.Params(None, false, None, Nil)) extends CoursierResolver {
+    val calls = new AtomicInteger(0)
+
+    override def withParams(newParams: CoursierResolver.Params): CoursierResolver = new Counting(dir, newParams)
+
+    override def resolve(
+        deps: SortedSet[model.Dep],
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        ignoreEvictionErrors: model.IgnoreEvictionErrors
+    ): Either[CoursierError, CoursierResolver.Result] = {
+      calls.incrementAndGet()
+      Right(Cached.fromLean(deps.toList.map { dep =>
+        val jar = dir.resolve(s"${dep.baseModuleName.value}-${dep.version}.jar")
+        if (!Files.exists(jar)) Files.write(jar, jar.getFileName.toString.getBytes)
+        LeanArtifact(dep.organization.value, dep.baseModuleName.value, dep.version, "", "jar", jar.toString)
+      }))
+    }
+
+    override def direct(
+        deps: SortedSet[model.Dep],
+        versionCombo: model.VersionCombo,
+        libraryVersionSchemes: SortedSet[model.LibraryVersionScheme],
+        ignoreEvictionErrors: model.IgnoreEvictionErrors
+    ): Either[CoursierError, Fetch.Result] =
+      Left(new CoursierError("not used") {})
+  }
+
+  private def withDir(f: Path => Unit): Unit = {
+    val dir = Files.createTempDirectory("resolve-lock")
+    try f(dir)
+    finally bleep.internal.FileUtils.deleteDirectory(dir)
+  }
+
+  private def lockFile(dir: Path) = dir.resolve("lock").resolve("resolve.lock.json")
+
+  /** One run: open the lock over a fresh counting resolver, ask for `deps`, save. Returns how many requests reached the resolver. */
+  private def run(dir: Path, deps: SortedSet[model.Dep] = catsCore, buildVersion: String = version, refresh: Boolean = false): Int = {
+    val underlying = new Counting(dir)
+    val lock = ResolveLock.open(logger, lockFile(dir), buildVersion, refresh, underlying)
+    assert(lock.resolve(deps, combo, SortedSet.empty, model.IgnoreEvictionErrors.No).isRight)
+    lock.save()
+    underlying.calls.get()
+  }
+
+  test("a locked request is answered from the lockfile in the next run") {
+    withDir { dir =>
+      assert(run(dir) == 1)
+      assert(Files.isRegularFile(lockFile(dir)))
+      assert(run(dir) == 0)
+    }
+  }
+
+  test("the key covers every input of the request") {
+    withDir { dir =>
+      run(dir)
+      val underlying = new Counting(dir)
+      val lock = ResolveLock.open(logger, lockFile(dir), version, refresh = false, underlying)
+      def reachesResolver(deps: SortedSet[model.Dep], versionCombo: model.VersionCombo, ignoreEvictionErrors: model.IgnoreEvictionErrors): Boolean = {
+        val before = underlying.calls.get()
+        lock.resolve(deps, versionCombo, SortedSet.empty, ignoreEvictionErrors).discard()
+        underlying.calls.get() > before
+      }
+      assert(!reachesResolver(catsCore, combo, model.IgnoreEvictionErrors.No))
+      assert(reachesResolver(catsCore, combo, model.IgnoreEvictionErrors.Warn))
+      assert(reachesResolver(catsCore, model.VersionCombo.Jvm(model.VersionScala("3.7.1")), model.IgnoreEvictionErrors.No))
+      assert(reachesResolver(SortedSet[model.Dep](model.Dep.Java("org.typelevel", "cats-core_3", "2.13.1")), combo, model.IgnoreEvictionErrors.No))
+    }
+  }
+
+  test("resolver params are part of the key") {
+    withDir { dir =>
+      run(dir)
+      val sources = new Counting(dir, CoursierResolver.Params(None, true, None, Nil))
+      val lock = ResolveLock.open(logger, lockFile(dir), version, refresh = false, sources)
+      lock.resolve(catsCore, combo, SortedSet.empty, model.IgnoreEvictionErrors.No).discard()
+      assert(sources.calls.get() == 1)
+    }
+  }
+
+  test("an artifact that changed on disk since it was locked is resolved again") {
+    withDir { dir =>
+      run(dir)
+      val jar = dir.resolve("cats-core_3-2.13.0.jar")
+      Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis - 60000L))
+      assert(run(dir) == 1)
+      // Relocked with the new stamp.
+      assert(run(dir) == 0)
+    }
+  }
+
+  test("a lockfile from another bleep version, an unreadable one, or --refresh-lock is the same as none") {
+    withDir { dir =>
+      run(dir)
+      assert(run(dir, buildVersion = "2.0.0") == 1)
+      assert(run(dir, buildVersion = "2.0.0") == 0)
+      assert(run(dir, buildVersion = "2.0.0", refresh = true) == 1)
+
+      Files.writeString(lockFile(dir), "{ not json")
+      assert(run(dir, buildVersion = "2.0.0") == 1)
+    }
+  }
+
+  test("snapshots are never locked") {
+    withDir { dir =>
+      val snapshot = SortedSet[model.Dep](model.Dep.Java("com.example", "lib", "1.0-SNAPSHOT"))
+      assert(run(dir, snapshot) == 1)
+      assert(run(dir, snapshot) == 1)
+    }
+  }
+
+  test("saving again writes only when something new was asked for, and drops what the build no longer asks for") {
+    withDir { dir =>
+      val other = SortedSet[model.Dep](model.Dep.Java("org.typelevel", "cats-kernel_3", "2.13.0"))
+      val underlying = new Counting(dir)
+      val lock = ResolveLock.open(logger, lockFile(dir), version, refresh = false, underlying)
+      lock.resolve(catsCore, combo, SortedSet.empty, model.IgnoreEvictionErrors.No).discard()
+      lock.save()
+      val old = FileTime.fromMillis(0L)
+      Files.setLastModifiedTime(lockFile(dir), old)
+      lock.save()
+      assert(Files.getLastModifiedTime(lockFile(dir)) == old)
+
+      // Asked for after the first save — an unplanned request — and written by the next one.
+      lock.resolve(other, combo, SortedSet.empty, model.IgnoreEvictionErrors.No).discard()
+      lock.save()
+      assert(Files.getLastModifiedTime(lockFile(dir)) != old)
+      assert(run(dir, other) == 0)
+
+      // That run asked only for `other`, so `catsCore` is gone from the file.
+      assert(run(dir) == 1)
+    }
+  }
+
+  test("a run that asks for part of the build keeps what the lockfile knows about the rest") {
+    withDir { dir =>
+      val other = SortedSet[model.Dep](model.Dep.Java("org.typelevel", "cats-kernel_3", "2.13.0"))
+      val first = ResolveLock.open(logger, lockFile(dir), version, refresh = false, new Counting(dir))
+      List(catsCore, other).foreach(deps => first.resolve(deps, combo, SortedSet.empty, model.IgnoreEvictionErrors.No).discard())
+      first.save()
+
+      // The build still makes both requests; this run only gets to `other`.
+      val lock = ResolveLock.open(logger, lockFile(dir), version, refresh = false, new Counting(dir))
+      lock.retain(List(catsCore, other).map(deps => ResolutionPlanner.Request(deps, combo, SortedSet.empty, model.IgnoreEvictionErrors.No)))
+      lock.resolve(other, combo, SortedSet.empty, model.IgnoreEvictionErrors.No).discard()
+      lock.save()
+
+      assert(run(dir) == 0)
+    }
+  }
+}
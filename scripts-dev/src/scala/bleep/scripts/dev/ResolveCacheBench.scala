@@ -0,0 +1,69 @@
+package bleep.scripts.dev
+
+import bleep.CoursierResolver.Cached
+import bleep.internal.FileUtils
+import bleep.{BleepScript, Commands, ResolutionPlanner, Started}
+
+import java.nio.file.{Files, Path}
+
+/** Compare the two formats [[bleep.CoursierResolver.Cached]] has stored resolutions in: circe JSON, and the memory-mapped binary format that replaced it.
+  *
+  * Takes every dependency set this build resolves at startup, writes each in both formats to a scratch directory, and reads the lot back `iterations` times per
+  * format — what a cold CLI start does, minus everything else it does. Reports the median time per full pass and the bytes on disk. Both readers run their
+  * hash checks and the check that every file still exists, so the numbers include the stats a real start pays for too.
+  *
+  * Run with `bleep resolve-cache-bench [iterations]` (default 20) from a build big enough to be interesting; bleep's own will do.
+  */
+object ResolveCacheBench extends BleepScript("ResolveCacheBench") {
+
+  override def run(started: Started, commands: Commands, args: List[String]): Unit = {
+    val logger = started.logger
+    val iterations = args.headOption.flatMap(_.toIntOption).getOrElse(20)
+    val params = started.resolver.params
+
+    val requests = started.build.explodedProjects.toList.flatMap { case (crossName, p) => ResolutionPlanner.requestsFor(crossName, p, started.build) }.distinct
+    val scratch = Files.createTempDirectory("resolve-cache-bench")
+
+    try {
+      val entries: List[(ResolutionPlanner.Request, Path, Path)] =
+        requests.zipWithIndex.map { case (request, i) =>
+          val result = request.force(started.resolver, "resolve-cache-bench")
+          val json = scratch.resolve(s"$i.json")
+          val bin = scratch.resolve(s"$i.bin")
+          Cached.writeLeanCache(logger, json, request.deps, params, request.versionCombo, request.libraryVersionSchemes, result)
+          Cached.writeBinaryCache(logger, bin, request.deps, params, request.versionCombo, request.libraryVersionSchemes, result)
+          (request, json, bin)
+        }
+
+      def pass(read: (ResolutionPlanner.Request, Path) => Option[?], pick: ((ResolutionPlanner.Request, Path, Path)) => Path): Long = {
+        val t0 = System.nanoTime()
+        entries.foreach { entry =>
+          if (read(entry._1, pick(entry)).isEmpty) sys.error(s"${pick(entry)} did not read back")
+        }
+        System.nanoTime() - t0
+      }
+
+      def median(read: (ResolutionPlanner.Request, Path) => Option[?], pick: ((ResolutionPlanner.Request, Path, Path)) => Path): Double = {
+        // Warm up the JIT on both paths before anything counts.
+        (1 to 3).foreach(_ => pass(read, pick))
+        val sorted = List.fill(iterations)(pass(read, pick)).sorted
+        sorted(sorted.size / 2) / 1e6
+      }
+
+      val readJson = (r: ResolutionPlanner.Request, p: Path) => Cached.readLeanCache(logger, p, r.deps, params, r.versionCombo, r.libraryVersionSchemes)
+      val readBin = (r: ResolutionPlanner.Request, p: Path) => Cached.readBinaryCache(logger, p, r.deps, params, r.versionCombo, r.libraryVersionSchemes)
+
+      val jsonMs = median(readJson, _._2)
+      val binMs = median(readBin, _._3)
+      val jsonBytes = entries.map(e => Files.size(e._2)).sum
+      val binBytes = entries.map(e => Files.size(e._3)).sum
+
+      logger
+        .withContext("entries", entries.size)
+        .withContext("iterations", iterations)
+        .info(f"json:   $jsonMs%8.2f ms per pass, ${jsonBytes / 1024}%6d KB on disk")
+      logger.info(f"binary: $binMs%8.2f ms per pass, ${binBytes / 1024}%6d KB on disk")
+      logger.info(f"binary reads ${jsonMs / binMs}%.1fx as fast")
+    } finally FileUtils.deleteDirectory(scratch)
+  }
+}